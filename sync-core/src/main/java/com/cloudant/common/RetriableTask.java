@@ -25,6 +25,7 @@ public class RetriableTask<T> implements Callable<T> {
     private int totalRetries; // total number of tries
     private int triesRemaining; // number left
     private long timeToWait; // wait interval
+    private final long maxTimeToWait; // longest wait interval, when backing off
 
     public RetriableTask(Callable<T> task) {
         this(DEFAULT_NUMBER_OF_RETRIES, DEFAULT_WAIT_TIME, task);
@@ -32,9 +33,21 @@ public class RetriableTask<T> implements Callable<T> {
     }
 
     public RetriableTask(int totalRetries, long timeToWait, Callable<T> task) {
+        this(totalRetries, timeToWait, timeToWait, task);
+    }
+
+    /**
+     * Creates a task which backs off exponentially: the wait before each
+     * retry is double the last one, starting at {@code timeToWait} and up to
+     * {@code maxTimeToWait}.
+     */
+    public RetriableTask(int totalRetries, long timeToWait, long maxTimeToWait, Callable<T> task) {
+        Preconditions.checkArgument(maxTimeToWait >= timeToWait,
+                "Maximum wait must not be less than the initial wait");
         this.totalRetries = totalRetries;
         this.triesRemaining = totalRetries;
         this.timeToWait = timeToWait;
+        this.maxTimeToWait = maxTimeToWait;
         this.task = task;
     }
 
@@ -48,6 +61,7 @@ public class RetriableTask<T> implements Callable<T> {
 
     @Override
     public T call() throws Exception {
+        long wait = timeToWait;
         while (true) {
             try {
                 logger.fine("Retry #: " + triesRemaining + "," + task.toString());
@@ -61,12 +75,15 @@ public class RetriableTask<T> implements Callable<T> {
             } catch (Exception e) {
                 triesRemaining--;
                 if (triesRemaining == 0) {
+                    String interval = maxTimeToWait > timeToWait
+                            ? timeToWait + "ms to " + maxTimeToWait + "ms interval"
+                            : timeToWait + "ms interval";
                     throw new RetryException(totalRetries +
-                            " attempts to retry failed at " + timeToWait +
-                            "ms interval", e);
+                            " attempts to retry failed at " + interval, e);
                 }
                 logger.log(Level.FINE,"Retry later: " + triesRemaining + ", " + task.toString(), e);
-                Thread.sleep(timeToWait);
+                Thread.sleep(wait);
+                wait = Math.min(wait * 2, maxTimeToWait);
             }
         }
     }
@@ -0,0 +1,60 @@
+/**
+ * Copyright (c) 2015 Cloudant, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.mazha;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * The open revisions of one document to fetch in a {@code _bulk_get}
+ * request, along with the revisions whose attachments the caller already
+ * has.
+ *
+ * @see CouchClient#bulkReadDocsWithOpenRevisions(List, boolean)
+ */
+public class BulkGetRequest {
+
+    private final String id;
+    private final List<String> revs;
+    private final List<String> attsSince;
+
+    public BulkGetRequest(String id, Collection<String> revs, Collection<String> attsSince) {
+        Preconditions.checkArgument(!Strings.isNullOrEmpty(id), "id must not be empty");
+        Preconditions.checkArgument(revs != null && revs.size() > 0, "Need at least one open revision");
+        this.id = id;
+        this.revs = new ArrayList<String>(revs);
+        this.attsSince = attsSince == null ? null : new ArrayList<String>(attsSince);
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public List<String> getRevs() {
+        return revs;
+    }
+
+    /**
+     * @return the revisions whose attachments the caller already has, or
+     *         null if none
+     */
+    public List<String> getAttsSince() {
+        return attsSince;
+    }
+}
@@ -0,0 +1,69 @@
+/**
+ * Copyright (c) 2015 Cloudant, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.mazha;
+
+import java.util.List;
+
+/**
+ * Object representation of a {@code _bulk_get} response, example:
+ *
+ * {
+ *   "results": [
+ *     { "id": "foo",
+ *       "docs": [
+ *         { "ok": { "_id": "foo", "_rev": "4-753875d51501a6b1883a9d62b4d33f91", ... } },
+ *         { "error": { "id": "foo", "rev": "3-bad", "error": "not_found", "reason": "missing" } }
+ *       ]
+ *     }
+ *   ]
+ * }
+ *
+ * There is one result for each id/revision pair in the request, in the same
+ * order as the request.
+ */
+public class BulkGetResponse {
+
+    private List<Result> results;
+
+    public List<Result> getResults() {
+        return results;
+    }
+
+    public void setResults(List<Result> results) {
+        this.results = results;
+    }
+
+    public static class Result {
+
+        private String id;
+        private List<OpenRevision> docs;
+
+        public String getId() {
+            return id;
+        }
+
+        public void setId(String id) {
+            this.id = id;
+        }
+
+        public List<OpenRevision> getDocs() {
+            return docs;
+        }
+
+        public void setDocs(List<OpenRevision> docs) {
+            this.docs = docs;
+        }
+    }
+}
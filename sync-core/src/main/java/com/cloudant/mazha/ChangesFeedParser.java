@@ -0,0 +1,153 @@
+/**
+ * Copyright (c) 2015 Cloudant, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.mazha;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.MappingJsonFactory;
+import com.google.common.base.Preconditions;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>Reads a {@code _changes} response with Jackson's streaming
+ * {@link JsonParser}, passing each row to a {@link RowListener} as soon as
+ * it has been read.</p>
+ *
+ * <p>Unlike deserialising the response into a {@link ChangesResult}, the
+ * rows are never all held in memory at once, and only the fields the
+ * replicator uses are kept: {@code seq}, {@code id}, the {@code changes}
+ * revisions and {@code deleted}. Anything else in a row, such as an
+ * included {@code doc}, is skipped without being parsed into objects.</p>
+ *
+ * <p>Instances are thread-safe.</p>
+ */
+public class ChangesFeedParser {
+
+    /**
+     * Receives the rows of a changes feed in the order they appear.
+     */
+    public interface RowListener {
+
+        /**
+         * @param seq the sequence of this change, as a string
+         * @param id the document id
+         * @param revs the open revisions of the document in this change
+         * @param deleted true if the winning revision is deleted
+         */
+        void onRow(String seq, String id, List<String> revs, boolean deleted);
+    }
+
+    // MappingJsonFactory so non-scalar sequences can be read as trees
+    private final JsonFactory jsonFactory = new MappingJsonFactory();
+
+    /**
+     * Reads a normal ({@code feed=normal} or {@code feed=longpoll}) changes
+     * response. The stream is not closed.
+     *
+     * @return the {@code last_seq} of the response, or null if it had none
+     */
+    public String parse(InputStream in, RowListener listener) {
+        Preconditions.checkNotNull(in, "Input stream must not be null");
+        Preconditions.checkNotNull(listener, "Listener must not be null");
+
+        String lastSeq = null;
+        try {
+            JsonParser jp = jsonFactory.createParser(in);
+            try {
+                expect(jp.nextToken(), JsonToken.START_OBJECT);
+                while (jp.nextToken() == JsonToken.FIELD_NAME) {
+                    String field = jp.getCurrentName();
+                    JsonToken value = jp.nextToken();
+                    if ("results".equals(field) && value == JsonToken.START_ARRAY) {
+                        while (jp.nextToken() == JsonToken.START_OBJECT) {
+                            readRow(jp, listener);
+                        }
+                    } else if ("last_seq".equals(field)) {
+                        lastSeq = readSequence(jp);
+                    } else {
+                        jp.skipChildren();
+                    }
+                }
+            } finally {
+                jp.close();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return lastSeq;
+    }
+
+    /**
+     * Reads one row, with the parser positioned on the row's
+     * {@code START_OBJECT}, and leaves it on the row's {@code END_OBJECT}.
+     */
+    void readRow(JsonParser jp, RowListener listener) throws IOException {
+        String seq = null;
+        String id = null;
+        List<String> revs = new ArrayList<String>(1);
+        boolean deleted = false;
+
+        while (jp.nextToken() == JsonToken.FIELD_NAME) {
+            String field = jp.getCurrentName();
+            JsonToken value = jp.nextToken();
+            if ("seq".equals(field)) {
+                seq = readSequence(jp);
+            } else if ("id".equals(field)) {
+                id = jp.getText();
+            } else if ("deleted".equals(field)) {
+                deleted = value == JsonToken.VALUE_TRUE;
+            } else if ("changes".equals(field) && value == JsonToken.START_ARRAY) {
+                while (jp.nextToken() == JsonToken.START_OBJECT) {
+                    while (jp.nextToken() == JsonToken.FIELD_NAME) {
+                        String revField = jp.getCurrentName();
+                        jp.nextToken();
+                        if ("rev".equals(revField)) {
+                            revs.add(jp.getText());
+                        } else {
+                            jp.skipChildren();
+                        }
+                    }
+                }
+            } else {
+                jp.skipChildren();
+            }
+        }
+        listener.onRow(seq, id, revs, deleted);
+    }
+
+    /**
+     * Sequences are numbers in CouchDB 1.x and strings or arrays in
+     * Cloudant and CouchDB 2.x. They're opaque to the replicator, so all
+     * are returned as strings; non-scalar sequences as their JSON.
+     */
+    private String readSequence(JsonParser jp) throws IOException {
+        if (jp.getCurrentToken().isScalarValue()) {
+            return jp.getCurrentToken() == JsonToken.VALUE_NULL ? null : jp.getText();
+        }
+        return jp.readValueAsTree().toString();
+    }
+
+    private static void expect(JsonToken actual, JsonToken expected) throws IOException {
+        if (actual != expected) {
+            throw new IOException("Unexpected token in changes feed: expected " + expected
+                    + " but found " + actual);
+        }
+    }
+}
@@ -34,9 +34,11 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.lang.reflect.Type;
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -47,6 +49,7 @@ public class CouchClient  {
 
     private final HttpRequests httpClient;
     protected final JSONHelper jsonHelper;
+    private final ChangesFeedParser changesFeedParser = new ChangesFeedParser();
     private CouchURIHelper uriHelper;
 
     public CouchClient(CouchConfig config) {
@@ -127,6 +130,42 @@ public class CouchClient  {
     }
 
     public ChangesResult changes(String filterName, Map<String, String> filterParameters, String since, Integer limit) {
+        return this.changes(changesOptions(filterName, filterParameters, since, limit));
+    }
+
+    /**
+     * Streams the changes feed to {@code listener} one row at a time, rather than building a
+     * {@code ChangesResult} of the whole response.
+     *
+     * @return the last sequence of the response
+     * @see ChangesFeedParser
+     */
+    public String changes(String filterName, Map<String, String> filterParameters, String since,
+                          Integer limit, ChangesFeedParser.RowListener listener) {
+        return this.changes(changesOptions(filterName, filterParameters, since, limit), listener);
+    }
+
+    /**
+     * Streams a {@code feed=longpoll} changes feed to {@code listener}. If there are no changes
+     * since {@code since}, the server holds the request open until there are, or until
+     * {@code timeout} milliseconds have passed, when it returns no rows. While the request is
+     * open, the server sends a newline every {@code heartbeat} milliseconds so that the
+     * connection isn't closed for being idle; the parser skips these as whitespace.
+     *
+     * @return the last sequence of the response
+     */
+    public String longpollChanges(String filterName, Map<String, String> filterParameters,
+                                  String since, Integer limit, int heartbeat, int timeout,
+                                  ChangesFeedParser.RowListener listener) {
+        Map<String, Object> options = changesOptions(filterName, filterParameters, since, limit);
+        options.put("feed", "longpoll");
+        options.put("heartbeat", heartbeat);
+        options.put("timeout", timeout);
+        return this.changes(options, listener);
+    }
+
+    private Map<String, Object> changesOptions(String filterName, Map<String, String> filterParameters,
+                                               String since, Integer limit) {
         Map<String, Object> options = getDefaultChangeFeeOptions();
         if(filterName != null) {
             options.put("filter", filterName);
@@ -140,7 +179,7 @@ public class CouchClient  {
         if (limit != null) {
             options.put("limit", limit);
         }
-        return this.changes(options);
+        return options;
     }
 
     public ChangesResult changes(Map<String, Object> options) {
@@ -155,6 +194,19 @@ public class CouchClient  {
         }
     }
 
+    public String changes(Map<String, Object> options, ChangesFeedParser.RowListener listener) {
+        Preconditions.checkNotNull(options, "options must not be null");
+        Preconditions.checkNotNull(listener, "listener must not be null");
+        InputStream is = null;
+        try {
+            URI changesFeedUri = this.uriHelper.changesUri(options);
+            is = httpClient.get(changesFeedUri);
+            return changesFeedParser.parse(is, listener);
+        } finally {
+            closeQuietly(is);
+        }
+    }
+
     public boolean contains(String id) {
         Preconditions.checkArgument(!Strings.isNullOrEmpty(id), "id must not be empty");
         URI doc = this.uriHelper.documentUri(id);
@@ -300,6 +352,70 @@ public class CouchClient  {
         });
     }
 
+    /**
+     * Gets many documents with revision history for their open revisions in a single
+     * {@code _bulk_get} request. This is the bulk equivalent of
+     * {@link #getDocWithOpenRevisions(String, Collection, Collection, boolean)}.
+     *
+     * Not all servers support {@code _bulk_get}; for those that don't, this throws a
+     * {@code CouchException} with the status code returned by the server.
+     *
+     * @return the open revisions of each requested document, keyed by document id and in the
+     *         order of the requests
+     */
+    public Map<String, List<OpenRevision>> bulkReadDocsWithOpenRevisions(List<BulkGetRequest> requests,
+                                                                          boolean pullAttachmentsInline) {
+        Preconditions.checkNotNull(requests, "Requests must not be null");
+
+        Map<String, Object> options = new HashMap<String, Object>();
+        options.put("revs", true);
+        // only pull attachments inline if we're configured to
+        if (pullAttachmentsInline) {
+            options.put("attachments", true);
+        } else {
+            options.put("attachments", false);
+            options.put("att_encoding_info", true);
+        }
+
+        // _bulk_get takes one entry per document revision
+        List<Map<String, Object>> docs = new ArrayList<Map<String, Object>>();
+        for (BulkGetRequest request : requests) {
+            for (String rev : request.getRevs()) {
+                Map<String, Object> doc = new HashMap<String, Object>();
+                doc.put("id", request.getId());
+                doc.put("rev", rev);
+                if (pullAttachmentsInline && request.getAttsSince() != null) {
+                    doc.put("atts_since", request.getAttsSince());
+                }
+                docs.add(doc);
+            }
+        }
+        Map<String, Object> payload = new HashMap<String, Object>();
+        payload.put("docs", docs);
+
+        URI uri = this.uriHelper.bulkGetUri(options);
+        InputStream is = null;
+        try {
+            is = httpClient.post(uri, jsonHelper.toJson(payload));
+            BulkGetResponse response = jsonHelper.fromJson(new InputStreamReader(is),
+                    BulkGetResponse.class);
+            Map<String, List<OpenRevision>> openRevisions =
+                    new LinkedHashMap<String, List<OpenRevision>>();
+            for (BulkGetRequest request : requests) {
+                openRevisions.put(request.getId(), new ArrayList<OpenRevision>());
+            }
+            for (BulkGetResponse.Result result : response.getResults()) {
+                List<OpenRevision> revisions = openRevisions.get(result.getId());
+                if (revisions != null) {
+                    revisions.addAll(result.getDocs());
+                }
+            }
+            return openRevisions;
+        } finally {
+            closeQuietly(is);
+        }
+    }
+
     public Map<String, Object> getDocument(String id) {
         return this.getDocument(id, new HashMap<String, Object>(), JSONHelper.STRING_MAP_TYPE_DEF);
     }
@@ -77,6 +77,20 @@ public class CouchURIHelper {
         return uriFor(uri);
     }
 
+    /**
+     * Returns URI for {@code _bulk_get} endpoint using passed
+     * {@code query}.
+     */
+    public URI bulkGetUri(Map<String, Object> query) {
+        String base_uri = String.format(
+                "%s/%s",
+                this.rootUriString,
+                "_bulk_get"
+        );
+        String uri = appendQueryString(base_uri, query);
+        return uriFor(uri);
+    }
+
     /**
      * Returns URI for {@code _revs_diff} endpoint.
      */
@@ -34,6 +34,12 @@ public class OpenRevisionDeserializer extends JsonDeserializer<OpenRevision> {
             return jp.getCodec().treeToValue(node, OkOpenRevision.class);
         } else if(node.has("missing")) {
             return jp.getCodec().treeToValue(node, MissingOpenRevision.class);
+        } else if(node.has("error")) {
+            // _bulk_get reports a missing revision as an error object, e.g.
+            // {"error": {"id": "foo", "rev": "3-bad", "error": "not_found", "reason": "missing"}}
+            MissingOpenRevision missing = new MissingOpenRevision();
+            missing.setRevision(node.get("error").path("rev").asText());
+            return missing;
         } else {
             // Should never happen
             throw new IllegalStateException("Unexpected object in open revisions response.");
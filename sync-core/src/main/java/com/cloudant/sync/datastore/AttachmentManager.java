@@ -18,6 +18,8 @@ import com.cloudant.sync.sqlite.ContentValues;
 import com.cloudant.sync.sqlite.Cursor;
 import com.cloudant.sync.util.CouchUtils;
 import com.cloudant.sync.util.DatabaseUtils;
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
 
 import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.io.FileExistsException;
@@ -28,12 +30,15 @@ import java.io.IOException;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.Pattern;
 
 /**
  * Created by tomblench on 14/03/2014.
@@ -67,9 +72,27 @@ class AttachmentManager {
             "FROM attachments " +
             "WHERE sequence = ?";
 
+    private static final String SQL_ATTACHMENTS_SELECT_ALL_SEQUENCES = "SELECT sequence, " +
+            "filename, " +
+            "key, " +
+            "type, " +
+            "encoding, " +
+            "length, " +
+            "encoded_length, " +
+            "revpos " +
+            "FROM attachments " +
+            "WHERE sequence IN ( %s )";
+
     private static final String SQL_ATTACHMENTS_SELECT_ALL_KEYS = "SELECT key " +
             "FROM attachments";
 
+    private static final String SQL_ATTACHMENTS_SELECT_KEYS_IN = "SELECT DISTINCT key " +
+            "FROM attachments " +
+            "WHERE key IN ( %s )";
+
+    // Attachments' files are named with the lower case hex of their key
+    private static final Pattern ATTACHMENT_KEY_PATTERN = Pattern.compile("([0-9a-f]{2})+");
+
     public final String attachmentsDir;
 
     private BasicDatastore datastore;
@@ -220,13 +243,7 @@ class AttachmentManager {
             c = datastore.getSQLDatabase().rawQuery(SQL_ATTACHMENTS_SELECT_ALL,
                     new String[]{String.valueOf(sequence)});
             while (c.moveToNext()) {
-                String name = c.getString(1);
-                byte[] key = c.getBlob(2);
-                String type = c.getString(3);
-                int encoding = c.getInt(4);
-                int revpos = c.getInt(7);
-                File file = fileFromKey(key);
-                atts.add(new SavedAttachment(name, revpos, sequence, key, type, file, Attachment.Encoding.values()[encoding]));
+                atts.add(savedAttachmentFromCursor(c));
             }
             return atts;
         } catch (SQLException e) {
@@ -236,6 +253,58 @@ class AttachmentManager {
         }
     }
 
+    /**
+     * <p>Returns the attachments of several revisions, using one query for
+     * each {@link BasicDatastore#SQLITE_QUERY_PLACEHOLDERS_LIMIT} sequences
+     * rather than one query per revision.</p>
+     *
+     * @param sequences sequences of the revisions to get attachments for
+     * @return attachments keyed by revision sequence; revisions without
+     *         attachments have no entry. {@code null} if the attachments
+     *         couldn't be read.
+     */
+    protected Map<Long, List<SavedAttachment>> attachmentsForRevisions(List<Long> sequences) {
+        Map<Long, List<SavedAttachment>> atts = new HashMap<Long, List<SavedAttachment>>();
+        for (List<Long> batch : Lists.partition(sequences,
+                BasicDatastore.SQLITE_QUERY_PLACEHOLDERS_LIMIT)) {
+            String sql = String.format(SQL_ATTACHMENTS_SELECT_ALL_SEQUENCES,
+                    DatabaseUtils.makePlaceholders(batch.size()));
+            String[] args = new String[batch.size()];
+            for (int i = 0; i < batch.size(); i++) {
+                args[i] = String.valueOf(batch.get(i));
+            }
+            Cursor c = null;
+            try {
+                c = datastore.getSQLDatabase().rawQuery(sql, args);
+                while (c.moveToNext()) {
+                    SavedAttachment att = savedAttachmentFromCursor(c);
+                    List<SavedAttachment> revAtts = atts.get(att.seq);
+                    if (revAtts == null) {
+                        revAtts = new LinkedList<SavedAttachment>();
+                        atts.put(att.seq, revAtts);
+                    }
+                    revAtts.add(att);
+                }
+            } catch (SQLException e) {
+                return null;
+            } finally {
+                DatabaseUtils.closeCursorQuietly(c);
+            }
+        }
+        return atts;
+    }
+
+    private SavedAttachment savedAttachmentFromCursor(Cursor c) {
+        long sequence = c.getLong(0);
+        String name = c.getString(1);
+        byte[] key = c.getBlob(2);
+        String type = c.getString(3);
+        int encoding = c.getInt(4);
+        int revpos = c.getInt(7);
+        File file = fileFromKey(key);
+        return new SavedAttachment(name, revpos, sequence, key, type, file, Attachment.Encoding.values()[encoding]);
+    }
+
     private void copyCursorValuesToNewSequence(Cursor c, long newSequence) {
         while (c.moveToNext()) {
             String filename = c.getString(1);
@@ -295,8 +364,13 @@ class AttachmentManager {
                 byte[] key = c.getBlob(0);
                 currentKeys.add(keyToString(key));
             }
-            // iterate thru attachments dir
-            for (File f : new File(attachmentsDir).listFiles()) {
+            // iterate thru attachments dir, which doesn't exist until an
+            // attachment has been added
+            File[] files = new File(attachmentsDir).listFiles();
+            if (files == null) {
+                return;
+            }
+            for (File f : files) {
                 // if file isn't in the keys list, delete it
                 String keyForFile = f.getName();
                 if (!currentKeys.contains(keyForFile)) {
@@ -320,6 +394,78 @@ class AttachmentManager {
         }
     }
 
+    /**
+     * @return names of the files in the BLOB store, which is empty if no
+     *         attachments have been added
+     */
+    protected String[] attachmentFileNames() {
+        String[] names = new File(attachmentsDir).list();
+        return names != null ? names : new String[0];
+    }
+
+    /**
+     * <p>Deletes the files in a batch from the BLOB store which aren't the
+     * file of any attachment.</p>
+     *
+     * <p>Files modified at or after {@code modifiedBefore} are kept, as they
+     * may be attachments which are being added.</p>
+     *
+     * @param fileNames names of files in the BLOB store
+     * @param modifiedBefore time in milliseconds since the epoch
+     * @return number of files deleted
+     */
+    protected int purgeAttachmentFiles(List<String> fileNames, long modifiedBefore) {
+        // Find which of the files are attachments' files in a single query.
+        // Only names which are keys can be attachments' files, and these
+        // are written as blob literals, as blobs can't be bound here.
+        List<String> keyLiterals = new ArrayList<String>(fileNames.size());
+        for (String name : fileNames) {
+            if (ATTACHMENT_KEY_PATTERN.matcher(name).matches()) {
+                keyLiterals.add("X'" + name + "'");
+            }
+        }
+        Set<String> currentKeys = new HashSet<String>();
+        if (!keyLiterals.isEmpty()) {
+            Cursor c = null;
+            try {
+                c = datastore.getSQLDatabase().rawQuery(String.format(
+                        SQL_ATTACHMENTS_SELECT_KEYS_IN, Joiner.on(", ").join(keyLiterals)), null);
+                while (c.moveToNext()) {
+                    currentKeys.add(keyToString(c.getBlob(0)));
+                }
+            } catch (SQLException e) {
+                logger.log(Level.SEVERE, "Problem in purgeAttachmentFiles, executing SQL to " +
+                        "fetch attachment keys ", e);
+                return 0;
+            } finally {
+                DatabaseUtils.closeCursorQuietly(c);
+            }
+        }
+
+        int deleted = 0;
+        for (String name : fileNames) {
+            if (currentKeys.contains(name)) {
+                continue;
+            }
+            File f = new File(attachmentsDir, name);
+            if (!f.exists() || f.lastModified() >= modifiedBefore) {
+                continue;
+            }
+            try {
+                if (f.delete()) {
+                    deleted++;
+                } else {
+                    logger.warning("Could not delete file from BLOB store: " +
+                            f.getAbsolutePath());
+                }
+            } catch (SecurityException e) {
+                logger.log(Level.WARNING, "SecurityException when trying to delete file " +
+                        "from BLOB store: " + f.getAbsolutePath(), e);
+            }
+        }
+        return deleted;
+    }
+
     private String keyToString(byte[] key) {
         return new String(new Hex().encode(key));
     }
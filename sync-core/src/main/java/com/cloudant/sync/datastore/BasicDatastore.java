@@ -21,6 +21,7 @@ import com.cloudant.android.Base64InputStreamFactory;
 import com.cloudant.sync.notifications.DatabaseClosed;
 import com.cloudant.sync.notifications.DocumentCreated;
 import com.cloudant.sync.notifications.DocumentDeleted;
+import com.cloudant.sync.notifications.DocumentModified;
 import com.cloudant.sync.notifications.DocumentUpdated;
 import com.cloudant.sync.sqlite.ContentValues;
 import com.cloudant.sync.sqlite.Cursor;
@@ -33,6 +34,7 @@ import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.HashMultimap;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Multimap;
 import com.google.common.eventbus.EventBus;
@@ -49,9 +51,13 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -62,6 +68,9 @@ class BasicDatastore implements Datastore, DatastoreExtended {
 
     private static final String FULL_DOCUMENT_COLS = "docs.docid, docs.doc_id, revid, sequence, json, current, deleted, parent";
 
+    // The same columns as FULL_DOCUMENT_COLS, without reading the JSON
+    private static final String METADATA_DOCUMENT_COLS = "docs.docid, docs.doc_id, revid, sequence, NULL, current, deleted, parent";
+
     private static final String GET_DOCUMENT_CURRENT_REVISION =
             "SELECT " + FULL_DOCUMENT_COLS + " FROM revs, docs WHERE docs.docid=? AND revs.doc_id=docs.doc_id " +
                     "AND current=1 ORDER BY revid DESC LIMIT 1";
@@ -78,11 +87,20 @@ class BasicDatastore implements Datastore, DatastoreExtended {
     // http://www.sqlite.org/limits.html 
     public static final int SQLITE_QUERY_PLACEHOLDERS_LIMIT = 500;
 
+    // Number of documents iterateAllDocuments reads at a time
+    static final int ALL_DOCUMENTS_PAGE_SIZE = 500;
+
+    // Number of document IDs getConflictedDocumentIds reads at a time
+    static final int CONFLICTED_DOCUMENTS_PAGE_SIZE = 500;
+
     private final SQLDatabase sqlDb;
     private final String datastoreName;
     private final EventBus eventBus;
     private final AttachmentManager attachmentManager;
 
+    // Incremental compaction in progress, if any
+    private IncrementalCompactor incrementalCompactor;
+
     final String datastoreDir;
     final String extensionsDir;
 
@@ -97,6 +115,11 @@ class BasicDatastore implements Datastore, DatastoreExtended {
         this.extensionsDir = FilenameUtils.concat(this.datastoreDir, "extensions");
         String dbFilename = FilenameUtils.concat(this.datastoreDir, DB_FILE_NAME);
         this.sqlDb = SQLDatabaseFactory.openSqlDatabase(dbFilename);
+        if (this.sqlDb.getVersion() == 0) {
+            // Only takes effect before any tables are created; allows free
+            // pages to be reclaimed a few at a time by compact(long, TimeUnit)
+            this.sqlDb.execSQL("PRAGMA auto_vacuum = INCREMENTAL;");
+        }
         this.updateSchema();
         this.eventBus = new EventBus();
         this.attachmentManager = new AttachmentManager(this);
@@ -106,6 +129,7 @@ class BasicDatastore implements Datastore, DatastoreExtended {
         SQLDatabaseFactory.updateSchema(this.sqlDb, DatastoreConstants.getSchemaVersion3(), 3);
         SQLDatabaseFactory.updateSchema(this.sqlDb, DatastoreConstants.getSchemaVersion4(), 4);
         SQLDatabaseFactory.updateSchema(this.sqlDb, DatastoreConstants.getSchemaVersion5(), 5);
+        SQLDatabaseFactory.updateSchema(this.sqlDb, DatastoreConstants.getSchemaVersion6(), 6);
     }
 
     @Override
@@ -208,7 +232,12 @@ class BasicDatastore implements Datastore, DatastoreExtended {
     }
 
     public DocumentRevisionTree getAllRevisionsOfDocument(String docId) {
-        String sql = "SELECT " + FULL_DOCUMENT_COLS + " FROM revs, docs " +
+        return getAllRevisionsOfDocument(docId, true);
+    }
+
+    public DocumentRevisionTree getAllRevisionsOfDocument(String docId, boolean loadBodies) {
+        String sql = "SELECT " + (loadBodies ? FULL_DOCUMENT_COLS : METADATA_DOCUMENT_COLS) +
+                " FROM revs, docs " +
                 "WHERE docs.docid=? AND revs.doc_id = docs.doc_id ORDER BY sequence ASC";
 
         String[] args = {docId};
@@ -216,11 +245,27 @@ class BasicDatastore implements Datastore, DatastoreExtended {
 
         try {
             DocumentRevisionTree tree = new DocumentRevisionTree();
-            cursor = this.sqlDb.rawQuery(sql, args);
-            while (cursor.moveToNext()) {
-                long sequence = cursor.getLong(3);
-                List<? extends Attachment> atts = attachmentManager.attachmentsForRevision(sequence);
-                BasicDocumentRevision rev = getFullRevisionFromCurrentCursor(cursor, atts);
+            List<BasicDocumentRevision> revs;
+            if (loadBodies) {
+                List<DocumentRevisionBuilder> builders = new ArrayList<DocumentRevisionBuilder>();
+                List<Long> sequences = new ArrayList<Long>();
+                cursor = this.sqlDb.rawQuery(sql, args);
+                while (cursor.moveToNext()) {
+                    sequences.add(cursor.getLong(3));
+                    builders.add(getRevisionBuilderFromCurrentCursor(cursor));
+                }
+                revs = buildRevisionsWithAttachments(builders, sequences);
+            } else {
+                revs = new ArrayList<BasicDocumentRevision>();
+                cursor = this.sqlDb.rawQuery(sql, args);
+                while (cursor.moveToNext()) {
+                    long sequence = cursor.getLong(3);
+                    revs.add(getRevisionMetadataFromCurrentCursor(cursor)
+                            .setBody(new LazyDocumentBody(this.sqlDb, sequence))
+                            .build());
+                }
+            }
+            for (BasicDocumentRevision rev : revs) {
                 logger.finer("Rev: " + rev);
                 tree.add(rev);
             }
@@ -330,17 +375,139 @@ class BasicDatastore implements Datastore, DatastoreExtended {
         return getRevisionsFromRawQuery(sql, new String[]{});
     }
 
+    @Override
+    public Iterator<BasicDocumentRevision> iterateAllDocuments(final boolean descending) {
+        Preconditions.checkState(this.isOpen(), "Database is closed");
+
+        return new Iterator<BasicDocumentRevision>() {
+
+            private Iterator<BasicDocumentRevision> documentBlock =
+                    Collections.<BasicDocumentRevision>emptyList().iterator();
+            private long lastDocNumericId = descending ? Long.MAX_VALUE : Long.MIN_VALUE;
+            private boolean lastPageRead = false;
+
+            @Override
+            public boolean hasNext() {
+                if (!documentBlock.hasNext() && !lastPageRead) {
+                    List<BasicDocumentRevision> page = getAllDocumentsAfter(lastDocNumericId,
+                            ALL_DOCUMENTS_PAGE_SIZE, descending);
+                    lastPageRead = page.size() < ALL_DOCUMENTS_PAGE_SIZE;
+                    if (!page.isEmpty()) {
+                        lastDocNumericId = page.get(page.size() - 1).getInternalNumericId();
+                    }
+                    documentBlock = page.iterator();
+                }
+                return documentBlock.hasNext();
+            }
+
+            @Override
+            public BasicDocumentRevision next() {
+                if (!this.hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return documentBlock.next();
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Returns a page of documents, in the same order as
+     * {@link #getAllDocuments(int, int, boolean)}, starting after the
+     * document with the given numeric ID. Unlike paging with an offset, the
+     * documents before the page don't have to be read to find it.
+     */
+    private List<BasicDocumentRevision> getAllDocumentsAfter(long docNumericId, int limit,
+                                                             boolean descending) {
+        String sql = String.format("SELECT " + FULL_DOCUMENT_COLS + " FROM revs, docs " +
+                "WHERE deleted = 0 AND current = 1 AND docs.doc_id = revs.doc_id " +
+                "AND docs.doc_id %1$s ? " +
+                "ORDER BY docs.doc_id %2$s, revid DESC LIMIT %3$s ",
+                (descending ? "<" : ">"), (descending ? "DESC" : "ASC"), limit);
+        return getRevisionsFromRawQuery(sql, new String[]{Long.toString(docNumericId)});
+    }
+
     @Override
     public List<BasicDocumentRevision> getDocumentsWithIds(List<String> docIds) {
         Preconditions.checkState(this.isOpen(), "Database is closed");
         Preconditions.checkNotNull(docIds, "Input document id list can not be null");
+
+        // Split into batches because SQLite has a limit on the number
+        // of placeholders we can use in a single query.
+        List<BasicDocumentRevision> result = new ArrayList<BasicDocumentRevision>(docIds.size());
+        for (List<String> batch : Lists.partition(docIds, SQLITE_QUERY_PLACEHOLDERS_LIMIT)) {
+            result.addAll(getDocumentsWithIdsBatch(batch));
+        }
+        return result;
+    }
+
+    @Override
+    public Iterator<BasicDocumentRevision> iterateDocumentsWithIds(Iterable<String> docIds) {
+        Preconditions.checkState(this.isOpen(), "Database is closed");
+        Preconditions.checkNotNull(docIds, "Input document id list can not be null");
+
+        final Iterator<List<String>> batches =
+                Iterables.partition(docIds, SQLITE_QUERY_PLACEHOLDERS_LIMIT).iterator();
+        return new Iterator<BasicDocumentRevision>() {
+
+            private Iterator<BasicDocumentRevision> documentBlock =
+                    Collections.<BasicDocumentRevision>emptyList().iterator();
+
+            @Override
+            public boolean hasNext() {
+                // A batch may contain no documents, if none of its IDs exist
+                while (!documentBlock.hasNext() && batches.hasNext()) {
+                    documentBlock = getDocumentsWithIdsBatch(batches.next()).iterator();
+                }
+                return documentBlock.hasNext();
+            }
+
+            @Override
+            public BasicDocumentRevision next() {
+                if (!this.hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return documentBlock.next();
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Returns the current revisions of a batch of documents, small enough
+     * to fit in a single query, in the order of {@code docIds}.
+     */
+    private List<BasicDocumentRevision> getDocumentsWithIdsBatch(List<String> docIds) {
         String sql = String.format("SELECT " + FULL_DOCUMENT_COLS + " FROM revs, docs" +
-                " WHERE docid IN ( %1$s ) AND current = 1 AND docs.doc_id = revs.doc_id " +
-                " ORDER BY docs.doc_id ", DatabaseUtils.makePlaceholders(docIds.size()));
+                " WHERE docid IN ( %1$s ) AND current = 1 AND docs.doc_id = revs.doc_id",
+                DatabaseUtils.makePlaceholders(docIds.size()));
         String[] args = docIds.toArray(new String[docIds.size()]);
         List<BasicDocumentRevision> docs = getRevisionsFromRawQuery(sql, args);
+
         // Sort in memory since seems not able to sort them using SQL
-        return sortDocumentsAccordingToIdList(docIds, docs);
+        Map<String, BasicDocumentRevision> idToDocs =
+                new HashMap<String, BasicDocumentRevision>(docs.size() * 2);
+        for (BasicDocumentRevision doc : docs) {
+            idToDocs.put(doc.getId(), doc);
+        }
+        List<BasicDocumentRevision> results = new ArrayList<BasicDocumentRevision>(docs.size());
+        for (String id : docIds) {
+            BasicDocumentRevision doc = idToDocs.get(id);
+            if (doc != null) {
+                results.add(doc);
+            } else {
+                logger.fine("No document found for id: " + id);
+            }
+        }
+        return results;
     }
 
     @Override
@@ -375,30 +542,6 @@ class BasicDatastore implements Datastore, DatastoreExtended {
         return ids;
     }
 
-    private List<BasicDocumentRevision> sortDocumentsAccordingToIdList(List<String> docIds, List<BasicDocumentRevision> docs) {
-        Map<String, BasicDocumentRevision> idToDocs = putDocsIntoMap(docs);
-        List<BasicDocumentRevision> results = new ArrayList<BasicDocumentRevision>();
-        for (String id : docIds) {
-            if (idToDocs.containsKey(id)) {
-                results.add(idToDocs.remove(id));
-            } else {
-                logger.fine("No document found for id: " + id);
-            }
-        }
-        assert idToDocs.size() == 0;
-        return results;
-    }
-
-    private Map<String, BasicDocumentRevision> putDocsIntoMap(List<BasicDocumentRevision> docs) {
-        Map<String, BasicDocumentRevision> map = new HashMap<String, BasicDocumentRevision>();
-        for (BasicDocumentRevision doc : docs) {
-            // id should be unique cross all docs
-            assert !map.containsKey(doc.getId());
-            map.put(doc.getId(), doc);
-        }
-        return map;
-    }
-
     @Override
     public BasicDocumentRevision getLocalDocument(String docId) {
         Preconditions.checkState(this.isOpen(), "Database is closed");
@@ -614,7 +757,7 @@ class BasicDatastore implements Datastore, DatastoreExtended {
                 throw new IllegalArgumentException("The document trying to update does not exist.");
             }
 
-            DocumentRevisionTree revisionTree = this.getAllRevisionsOfDocument(docId);
+            DocumentRevisionTree revisionTree = this.getAllRevisionsOfDocument(docId, false);
             if(revisionTree == null) {
                 throw new IllegalArgumentException("Document does not exist for id: " + docId);
             } else if (!revisionTree.leafRevisionIds().contains(prevRevId)) {
@@ -727,6 +870,13 @@ class BasicDatastore implements Datastore, DatastoreExtended {
                 throw new IllegalStateException("Unknown error inserting new updated doc, please checking log");
             }
 
+            try {
+                updateConflicts(options.docNumericId, options.parentSequence, newSequence,
+                        options.deleted);
+            } catch (SQLException e) {
+                throw new IllegalStateException("Error updating conflicts for new revision " + e);
+            }
+
             // by default all the attachments from the previous rev will be carried over
             if (options.copyAttachments) {
                 try {
@@ -745,6 +895,60 @@ class BasicDatastore implements Datastore, DatastoreExtended {
         return newSequence;
     }
 
+    /**
+     * <p>Updates the {@code conflicts} table for a revision just inserted.</p>
+     *
+     * <p>The table holds the documents with more than one non-deleted leaf
+     * revision. A new revision is always a leaf, and its parent stops being
+     * one if the new revision is its first child, so the number of
+     * non-deleted leaves only changes when one of the two is deleted or,
+     * for a new branch or document, when the new revision has no parent
+     * or a parent which already has children. Only then is the table
+     * touched, and the document's leaves are only counted when it may have
+     * become conflicted.</p>
+     */
+    private void updateConflicts(long docNumericId, long parentSequence, long newSequence,
+                                 boolean deleted) throws SQLException {
+        int change = deleted ? 0 : 1;
+        if (parentSequence > 0) {
+            Cursor cursor = null;
+            try {
+                cursor = this.sqlDb.rawQuery("SELECT COUNT(*) FROM revs p " +
+                        "WHERE p.sequence = ? AND p.deleted = 0 AND NOT EXISTS " +
+                        "(SELECT 1 FROM revs c WHERE c.parent = p.sequence AND c.sequence <> ?)",
+                        new String[]{Long.toString(parentSequence), Long.toString(newSequence)});
+                if (cursor.moveToFirst() && cursor.getInt(0) > 0) {
+                    // the parent was a non-deleted leaf
+                    change--;
+                }
+            } finally {
+                DatabaseUtils.closeCursorQuietly(cursor);
+            }
+        }
+
+        String[] docNumericIdArg = new String[]{Long.toString(docNumericId)};
+        if (change < 0) {
+            this.sqlDb.execSQL("UPDATE conflicts SET leaves = leaves - 1 WHERE doc_id = ?",
+                    docNumericIdArg);
+            this.sqlDb.delete("conflicts", "doc_id = ? AND leaves < 2", docNumericIdArg);
+        } else if (change > 0) {
+            int leaves;
+            Cursor cursor = null;
+            try {
+                cursor = this.sqlDb.rawQuery("SELECT COUNT(*) FROM revs r " +
+                        "WHERE r.doc_id = ? AND r.deleted = 0 AND NOT EXISTS " +
+                        "(SELECT 1 FROM revs c WHERE c.parent = r.sequence)", docNumericIdArg);
+                leaves = cursor.moveToFirst() ? cursor.getInt(0) : 0;
+            } finally {
+                DatabaseUtils.closeCursorQuietly(cursor);
+            }
+            if (leaves > 1) {
+                this.sqlDb.execSQL("INSERT OR REPLACE INTO conflicts (doc_id, leaves) " +
+                        "VALUES (?, ?)", new Object[]{docNumericId, leaves});
+            }
+        }
+    }
+
     private long insertStubRevision(long docNumericId, String revId, long parentSequence) {
         // don't copy attachments
         InsertRevisionOptions options = new InsertRevisionOptions();
@@ -759,6 +963,45 @@ class BasicDatastore implements Datastore, DatastoreExtended {
         return insertRevision(options);
     }
 
+    /**
+     * Returns a stub revision just inserted by
+     * {@link #insertStubRevision(long, String, long)}, without reading it
+     * back from the database.
+     */
+    private BasicDocumentRevision stubRevision(String docId, long docNumericId, String revId,
+                                               long sequence, long parentSequence) {
+        return new DocumentRevisionBuilder()
+                .setDocId(docId)
+                .setRevId(revId)
+                .setBody(BasicDocumentBody.bodyWith(JSONUtils.EMPTY_JSON))
+                .setDeleted(false)
+                .setSequence(sequence)
+                .setInternalId(docNumericId)
+                .setCurrent(false)
+                .setParent(parentSequence)
+                .build();
+    }
+
+    /**
+     * Returns a revision of {@code rev} just inserted by
+     * {@link #insertRevision(InsertRevisionOptions)}, without reading it back
+     * from the database.
+     */
+    private static BasicDocumentRevision insertedRevision(BasicDocumentRevision rev,
+                                                          InsertRevisionOptions options,
+                                                          long sequence) {
+        return new DocumentRevisionBuilder()
+                .setDocId(rev.getId())
+                .setRevId(options.revId)
+                .setBody(rev.getBody())
+                .setDeleted(options.deleted)
+                .setSequence(sequence)
+                .setInternalId(options.docNumericId)
+                .setCurrent(options.current)
+                .setParent(options.parentSequence)
+                .build();
+    }
+
     // Keep in mind we do not keep local document revision history
     private BasicDocumentRevision doGetLocalDocument(String docId, String revId) {
         assert !Strings.isNullOrEmpty(docId);
@@ -793,21 +1036,49 @@ class BasicDatastore implements Datastore, DatastoreExtended {
     }
 
     private List<BasicDocumentRevision> getRevisionsFromRawQuery(String sql, String[] args) {
-        List<BasicDocumentRevision> result = new ArrayList<BasicDocumentRevision>();
+        List<DocumentRevisionBuilder> builders = new ArrayList<DocumentRevisionBuilder>();
+        List<Long> sequences = new ArrayList<Long>();
         Cursor cursor = null;
         try {
-            cursor = this.sqlDb.rawQuery(sql, args);
+            // Rows are turned into builders as they're read, so there's no
+            // need for the whole result set to be in memory as well
+            cursor = this.sqlDb.rawQueryForwardOnly(sql, args);
             while (cursor.moveToNext()) {
-                long sequence = cursor.getLong(3);
-                List<? extends Attachment> atts = attachmentManager.attachmentsForRevision(sequence);
-                BasicDocumentRevision row = getFullRevisionFromCurrentCursor(cursor, atts);
-                result.add(row);
+                sequences.add(cursor.getLong(3));
+                builders.add(getRevisionBuilderFromCurrentCursor(cursor));
             }
         } catch (SQLException e) {
             e.printStackTrace();  //To change bodyOne of catch statement use File | Settings | File Templates.
         } finally {
             DatabaseUtils.closeCursorQuietly(cursor);
         }
+        return buildRevisionsWithAttachments(builders, sequences);
+    }
+
+    /**
+     * Builds revisions, reading the attachments for all of them in a few
+     * batched queries rather than a query per revision.
+     *
+     * @param builders builders for the revisions, without their attachments
+     * @param sequences sequence of the revision of each builder
+     */
+    private List<BasicDocumentRevision> buildRevisionsWithAttachments(
+            List<DocumentRevisionBuilder> builders, List<Long> sequences) {
+        List<BasicDocumentRevision> result = new ArrayList<BasicDocumentRevision>(builders.size());
+        if (builders.isEmpty()) {
+            return result;
+        }
+        Map<Long, List<SavedAttachment>> atts = attachmentManager.attachmentsForRevisions(sequences);
+        for (int i = 0; i < builders.size(); i++) {
+            List<? extends Attachment> revAtts = null;
+            if (atts != null) {
+                revAtts = atts.get(sequences.get(i));
+                if (revAtts == null) {
+                    revAtts = Collections.emptyList();
+                }
+            }
+            result.add(builders.get(i).setAttachments(revAtts).build());
+        }
         return result;
     }
 
@@ -843,6 +1114,83 @@ class BasicDatastore implements Datastore, DatastoreExtended {
                             Map<String, Object> attachments,
                             boolean pullAttachmentsInline) {
         Preconditions.checkState(this.isOpen(), "Database is closed");
+        Preconditions.checkNotNull(rev, "Input document revision can not be null");
+        validateForceInsert(rev, revisionHistory);
+
+        DocumentModified event = null;
+        this.sqlDb.beginTransaction();
+        try {
+            DocumentRevisionTree localRevs = null;
+            if (this.containsDocument(rev.getId())) {
+                localRevs = getAllRevisionsOfDocument(rev.getId(), false);
+            }
+            event = forceInsertInTransaction(rev, revisionHistory, attachments,
+                    pullAttachmentsInline, localRevs);
+            if (event != null) {
+                this.sqlDb.setTransactionSuccessful();
+            }
+        } finally {
+            this.sqlDb.endTransaction();
+            if (event != null) {
+                eventBus.post(event);
+            }
+        }
+    }
+
+    @Override
+    public boolean forceInsert(List<ForceInsertItem> items, boolean pullAttachmentsInline) {
+        Preconditions.checkState(this.isOpen(), "Database is closed");
+        Preconditions.checkNotNull(items, "Input revisions can not be null");
+        for (ForceInsertItem item : items) {
+            validateForceInsert(item.getRev(), item.getRevisionHistory());
+        }
+
+        List<DocumentModified> events = new ArrayList<DocumentModified>(items.size());
+        boolean ok = true;
+        this.sqlDb.beginTransaction();
+        try {
+            Set<String> docIds = new HashSet<String>();
+            for (ForceInsertItem item : items) {
+                docIds.add(item.getRev().getId());
+            }
+            Map<String, DocumentRevisionTree> trees = getRevisionTreesOfDocuments(docIds);
+
+            // The trees are only up to date until a document is changed, so a
+            // document changed earlier in the batch has its tree read again
+            Set<String> changedDocIds = new HashSet<String>();
+            for (ForceInsertItem item : items) {
+                String docId = item.getRev().getId();
+                DocumentRevisionTree localRevs;
+                if (changedDocIds.contains(docId)) {
+                    localRevs = getAllRevisionsOfDocument(docId, false);
+                } else {
+                    localRevs = trees.get(docId);
+                }
+                DocumentModified event = forceInsertInTransaction(item.getRev(),
+                        item.getRevisionHistory(), item.getAttachments(),
+                        pullAttachmentsInline, localRevs);
+                if (event == null) {
+                    ok = false;
+                    break;
+                }
+                events.add(event);
+                changedDocIds.add(docId);
+            }
+            if (ok) {
+                this.sqlDb.setTransactionSuccessful();
+            }
+        } finally {
+            this.sqlDb.endTransaction();
+            if (ok) {
+                for (DocumentModified event : events) {
+                    eventBus.post(event);
+                }
+            }
+        }
+        return ok;
+    }
+
+    private void validateForceInsert(BasicDocumentRevision rev, List<String> revisionHistory) {
         Preconditions.checkNotNull(rev, "Input document revision can not be null");
         Preconditions.checkNotNull(revisionHistory, "Input revision history must not be null");
         Preconditions.checkArgument(revisionHistory.size() > 0, "Input revision history must not be empty");
@@ -852,70 +1200,111 @@ class BasicDatastore implements Datastore, DatastoreExtended {
                 "Revision history must be in right order.");
         CouchUtils.validateDocumentId(rev.getId());
         CouchUtils.validateRevisionId(rev.getRevision());
+    }
 
+    /**
+     * Inserts a revision and its history, which must be done in a transaction.
+     *
+     * @param localRevs tree of the revisions of the document already in the
+     *                  datastore, or null if the document is new
+     * @return the event to post once the transaction is committed, or null
+     *         if the revision's attachments couldn't be added, in which case
+     *         the transaction mustn't be committed.
+     */
+    private DocumentModified forceInsertInTransaction(BasicDocumentRevision rev,
+                                                      List<String> revisionHistory,
+                                                      Map<String, Object> attachments,
+                                                      boolean pullAttachmentsInline,
+                                                      DocumentRevisionTree localRevs) {
         logger.finer("forceInsert(): " + rev.toString() + ",\n" + JSONUtils.toPrettyJson
                 (revisionHistory));
 
-        DocumentCreated documentCreated = null;
-        DocumentUpdated documentUpdated = null;
+        DocumentModified event;
 
-        boolean ok = true;
+        long seq = 0;
+        // sequence here is -1, but we need it to insert the attachment - also might be wanted by subscribers
+        if (localRevs != null) {
+            seq = doForceInsertExistingDocumentWithHistory(rev, revisionHistory, attachments, localRevs);
+            rev.initialiseSequence(seq);
+            // TODO fetch the parent doc?
+            event = new DocumentUpdated(null, rev);
+        } else {
+            seq = doForceInsertNewDocumentWithHistory(rev, revisionHistory);
+            rev.initialiseSequence(seq);
+            event = new DocumentCreated(rev);
+        }
 
-        this.sqlDb.beginTransaction();
-        try {
-            long seq = 0;
-            // sequence here is -1, but we need it to insert the attachment - also might be wanted by subscribers
-            if (this.containsDocument(rev.getId())) {
-                seq = doForceInsertExistingDocumentWithHistory(rev, revisionHistory, attachments);
-                rev.initialiseSequence(seq);
-                // TODO fetch the parent doc?
-                documentUpdated = new DocumentUpdated(null, rev);
-            } else {
-                seq = doForceInsertNewDocumentWithHistory(rev, revisionHistory);
-                rev.initialiseSequence(seq);
-                documentCreated = new DocumentCreated(rev);
-            }
-
-            // now deal with any attachments
-            if (pullAttachmentsInline) {
-                if (attachments != null) {
-                    for (String att : attachments.keySet()) {
-                        Boolean stub = ((Map<String, Boolean>) attachments.get(att)).get("stub");
-                        if (stub != null && stub.booleanValue()) {
-                            // stubs get copied forward at the end of insertDocumentHistoryIntoExistingTree - nothing to do here
-                            continue;
-                        }
+        // now deal with any attachments
+        if (pullAttachmentsInline) {
+            if (attachments != null) {
+                for (String att : attachments.keySet()) {
+                    Boolean stub = ((Map<String, Boolean>) attachments.get(att)).get("stub");
+                    if (stub != null && stub.booleanValue()) {
+                        // stubs get copied forward at the end of insertDocumentHistoryIntoExistingTree - nothing to do here
+                        continue;
+                    }
+                    try {
+                        // a malformed attachment fails here, like one which can't be added
                         String data = (String) ((Map<String, Object>) attachments.get(att)).get("data");
                         InputStream is = Base64InputStreamFactory.get(new ByteArrayInputStream(data.getBytes()));
                         String type = (String) ((Map<String, Object>) attachments.get(att)).get("content_type");
                         // inline attachments are automatically decompressed, so we don't have to worry about that
                         UnsavedStreamAttachment usa = new UnsavedStreamAttachment(is, att, type);
-                        try {
-                            PreparedAttachment pa = prepareAttachment(usa, rev);
-                            addAttachment(pa, rev);
-                        } catch (Exception e) {
-                            logger.log(Level.SEVERE, "There was a problem adding the attachment "
-                                            + usa + "to the datastore for document " + rev,
-                                    e);
-                            ok = false;
-                        }
+                        PreparedAttachment pa = prepareAttachment(usa, rev);
+                        addAttachment(pa, rev);
+                    } catch (Exception e) {
+                        logger.log(Level.SEVERE, "There was a problem adding the attachment "
+                                        + att + " to the datastore for document " + rev,
+                                e);
+                        return null;
                     }
                 }
             }
-            if (ok) {
-                logger.log(Level.FINER, "Inserted revision: %s", rev);
-                this.sqlDb.setTransactionSuccessful();
-            }
-        } finally {
-            this.sqlDb.endTransaction();
-            if (ok) {
-                if (documentCreated != null) {
-                    eventBus.post(documentCreated);
-                } else if (documentUpdated != null) {
-                    eventBus.post(documentUpdated);
+        }
+        logger.log(Level.FINER, "Inserted revision: %s", rev);
+        return event;
+    }
+
+    /**
+     * Returns the revision trees of the given documents, without the bodies
+     * of their revisions, reading them in batches rather than one document
+     * at a time.
+     *
+     * @return the tree of each document, keyed by document ID. Documents
+     *         which don't exist have no entry.
+     */
+    private Map<String, DocumentRevisionTree> getRevisionTreesOfDocuments(Collection<String> docIds) {
+        final String GET_REVISIONS_OF_DOCUMENTS = "SELECT " + METADATA_DOCUMENT_COLS +
+                " FROM revs, docs WHERE docs.docid IN ( %s ) AND revs.doc_id = docs.doc_id " +
+                "ORDER BY sequence ASC";
+
+        Map<String, DocumentRevisionTree> trees = new HashMap<String, DocumentRevisionTree>();
+        for (List<String> batch : Lists.partition(new ArrayList<String>(docIds),
+                SQLITE_QUERY_PLACEHOLDERS_LIMIT)) {
+            String sql = String.format(GET_REVISIONS_OF_DOCUMENTS,
+                    DatabaseUtils.makePlaceholders(batch.size()));
+            Cursor cursor = null;
+            try {
+                cursor = this.sqlDb.rawQuery(sql, batch.toArray(new String[batch.size()]));
+                while (cursor.moveToNext()) {
+                    long sequence = cursor.getLong(3);
+                    BasicDocumentRevision rev = getRevisionMetadataFromCurrentCursor(cursor)
+                            .setBody(new LazyDocumentBody(this.sqlDb, sequence))
+                            .build();
+                    DocumentRevisionTree tree = trees.get(rev.getId());
+                    if (tree == null) {
+                        tree = new DocumentRevisionTree();
+                        trees.put(rev.getId(), tree);
+                    }
+                    tree.add(rev);
                 }
+            } catch (SQLException e) {
+                throw new SQLRuntimeException("Error getting revisions of documents", e);
+            } finally {
+                DatabaseUtils.closeCursorQuietly(cursor);
             }
         }
+        return trees;
     }
 
     @Override
@@ -946,27 +1335,33 @@ class BasicDatastore implements Datastore, DatastoreExtended {
      * @param revisions   revision history to insert, it includes all revisions (include the revision of the DocumentRevision
      *                    as well) sorted in ascending order.
      */
-    private long doForceInsertExistingDocumentWithHistory(BasicDocumentRevision newRevision, List<String> revisions, Map<String, Object> attachments) {
+    private long doForceInsertExistingDocumentWithHistory(BasicDocumentRevision newRevision, List<String> revisions,
+                                                          Map<String, Object> attachments,
+                                                          DocumentRevisionTree localRevs) {
         logger.entering("BasicDatastore",
                 "doForceInsertExistingDocumentWithHistory",
                 new Object[]{newRevision, revisions, attachments});
         Preconditions.checkNotNull(newRevision, "New document revision must not be null.");
-        Preconditions.checkArgument(this.containsDocument(newRevision.getId()), "DocumentRevisionTree must exist.");
+        Preconditions.checkNotNull(localRevs, "DocumentRevisionTree must exist.");
         Preconditions.checkNotNull(revisions, "Revision history should not be null.");
         Preconditions.checkArgument(revisions.size() > 0, "Revision history should have at least one revision." );
 
-        // First look up all locally-known revisions of this document:
-        DocumentRevisionTree localRevs = getAllRevisionsOfDocument(newRevision.getId());
-
-        assert localRevs != null;
-
         long sequence;
 
-        BasicDocumentRevision parent = localRevs.lookup(newRevision.getId(), revisions.get(0));
-        if(parent == null) {
+        // The local tree may have been pruned to the revs limit, so the
+        // history is grafted onto the oldest of its revisions still in the
+        // tree, which may not be its first.
+        int start = 0;
+        while (start < revisions.size() &&
+                localRevs.lookup(newRevision.getId(), revisions.get(start)) == null) {
+            start++;
+        }
+        if(start == revisions.size()) {
             sequence = insertDocumentHistoryToNewTree(newRevision, revisions, localRevs.getDocumentNumericId(), localRevs);
         } else {
-            sequence = insertDocumentHistoryIntoExistingTree(newRevision, revisions, localRevs.getDocumentNumericId(), localRevs, attachments);
+            sequence = insertDocumentHistoryIntoExistingTree(newRevision,
+                    revisions.subList(start, revisions.size()),
+                    localRevs.getDocumentNumericId(), localRevs, attachments);
         }
         return sequence;
     }
@@ -996,19 +1391,23 @@ class BasicDatastore implements Datastore, DatastoreExtended {
             return -1;
         }
 
+        // The new revisions branch from here, so it's no longer current. The
+        // stub revisions inserted below it are never current.
+        this.changeDocumentToBeNotCurrent(parent.getSequence());
+        boolean previousLeafIsCurrent = previousLeaf.getSequence() != parent.getSequence();
+
         // Insert the new stub revisions
         for (; i < revisions.size() - 1; i++) {
             logger.finer("Inserting new stub revision, id: " + docNumericID + ", rev: " + revisions.get(i));
-            this.changeDocumentToBeNotCurrent(parent.getSequence());
-            insertStubRevision(docNumericID, revisions.get(i), parent.getSequence());
-            parent = getDocument(newRevision.getId(), revisions.get(i));
+            long stubSequence = insertStubRevision(docNumericID, revisions.get(i), parent.getSequence());
+            parent = stubRevision(newRevision.getId(), docNumericID, revisions.get(i),
+                    stubSequence, parent.getSequence());
             localRevs.add(parent);
         }
 
         // Insert the new leaf revision
         logger.finer("Inserting new revision, id: " + docNumericID + ", rev: " + revisions.get(i));
         String newRevisionId = revisions.get(revisions.size() - 1);
-        this.changeDocumentToBeNotCurrent(parent.getSequence());
         // don't copy over attachments
         InsertRevisionOptions options = new InsertRevisionOptions();
         options.docNumericId = docNumericID;
@@ -1020,13 +1419,10 @@ class BasicDatastore implements Datastore, DatastoreExtended {
         options.available = true;
         options.copyAttachments = false;
         long sequence = insertRevision(options);
-        BasicDocumentRevision newLeaf = getDocument(newRevision.getId(), newRevisionId);
+        BasicDocumentRevision newLeaf = insertedRevision(newRevision, options, sequence);
         localRevs.add(newLeaf);
 
-        // Refresh previous leaf in case it is changed in sqlDb but not in memory
-        previousLeaf = getDocument(previousLeaf.getId(), previousLeaf.getRevision());
-
-        if (previousLeaf.isCurrent()) {
+        if (previousLeafIsCurrent) {
             // we have a conflicts, and we need to resolve it.
             pickWinnerOfConflicts(localRevs, newLeaf, previousLeaf);
         }
@@ -1059,8 +1455,10 @@ class BasicDatastore implements Datastore, DatastoreExtended {
         logger.finer("Inserting a brand new tree for an existing document.");
         long parentSequence = 0L;
         for(int i = 0 ; i < revisions.size() - 1 ; i ++) {
-            parentSequence = insertStubRevision(docNumericID, revisions.get(i), parentSequence);
-            BasicDocumentRevision newNode = this.getDocument(newRevision.getId(), revisions.get(i));
+            long stubSequence = insertStubRevision(docNumericID, revisions.get(i), parentSequence);
+            BasicDocumentRevision newNode = stubRevision(newRevision.getId(), docNumericID,
+                    revisions.get(i), stubSequence, parentSequence);
+            parentSequence = stubSequence;
             localRevs.add(newNode);
         }
         // don't copy attachments
@@ -1074,7 +1472,7 @@ class BasicDatastore implements Datastore, DatastoreExtended {
         options.available = !newRevision.isDeleted();
         options.copyAttachments = false;
         long sequence = insertRevision(options);
-        BasicDocumentRevision newLeaf = getDocument(newRevision.getId(), newRevision.getRevision());
+        BasicDocumentRevision newLeaf = insertedRevision(newRevision, options, sequence);
         localRevs.add(newLeaf);
 
         // No need to refresh the previousWinner since we are inserting a new tree,
@@ -1087,15 +1485,17 @@ class BasicDatastore implements Datastore, DatastoreExtended {
     private void pickWinnerOfConflicts(DocumentRevisionTree objectTree, BasicDocumentRevision newLeaf, BasicDocumentRevision previousLeaf) {
         // We are having a conflict, and we are resolving it
         if (newLeaf.isDeleted() == previousLeaf.isDeleted()) {
-            // If both leafs are deleted or not
-            int previousLeafDepth = objectTree.depth(previousLeaf.getSequence());
-            int newLeafDepth = objectTree.depth(newLeaf.getSequence());
-            if (previousLeafDepth > newLeafDepth) {
+            // If both leafs are deleted or not. Generations are compared,
+            // rather than depths in the tree, as the tree may have been
+            // pruned to the revs limit.
+            int previousLeafGeneration = previousLeaf.getGeneration();
+            int newLeafGeneration = newLeaf.getGeneration();
+            if (previousLeafGeneration > newLeafGeneration) {
                 this.changeDocumentToBeNotCurrent(newLeaf.getSequence());
-            } else if (previousLeafDepth < newLeafDepth) {
+            } else if (previousLeafGeneration < newLeafGeneration) {
                 this.changeDocumentToBeNotCurrent(previousLeaf.getSequence());
             } else {
-                // Compare revision hash if both leafs has same depth
+                // Compare revision hash if both leafs has same generation
                 String previousRevisionHash = previousLeaf.getRevision().substring(2);
                 String newRevisionHash = newLeaf.getRevision().substring(2);
                 if (previousRevisionHash.compareTo(newRevisionHash) > 0) {
@@ -1154,6 +1554,16 @@ class BasicDatastore implements Datastore, DatastoreExtended {
 
     @Override
     public void compact() {
+        int revsLimit = getRevsLimit();
+        if (revsLimit > 0) {
+            logger.finer("Deleting revisions beyond the revs limit...");
+            try {
+                new RevisionHistoryPruner(this.sqlDb, revsLimit).pruneAll();
+            } catch (SQLException e) {
+                throw new SQLRuntimeException("Error pruning revision histories", e);
+            }
+        }
+
         logger.finer("Deleting JSON of old revisions...");
         ContentValues args = new ContentValues();
         args.put("json", (String) null);
@@ -1163,7 +1573,63 @@ class BasicDatastore implements Datastore, DatastoreExtended {
         this.attachmentManager.purgeAttachments();
 
         logger.finer("Vacuuming SQLite database...");
+        try {
+            // Takes effect when the database is vacuumed, so that later
+            // compactions can be incremental
+            this.sqlDb.execSQL("PRAGMA auto_vacuum = INCREMENTAL;");
+        } catch (SQLException e) {
+            logger.log(Level.WARNING, "Failed to set incremental auto_vacuum mode", e);
+        }
         this.sqlDb.compactDatabase();
+
+        // Any incremental compaction in progress has been overtaken
+        synchronized (this) {
+            this.incrementalCompactor = null;
+        }
+    }
+
+    @Override
+    public synchronized CompactionProgress compact(long timeBudget, TimeUnit unit) {
+        Preconditions.checkState(this.isOpen(), "Database is closed");
+        Preconditions.checkArgument(timeBudget >= 0, "Time budget must not be negative");
+        Preconditions.checkNotNull(unit, "Time unit must not be null");
+
+        if (this.incrementalCompactor == null) {
+            this.incrementalCompactor = new IncrementalCompactor(this.sqlDb,
+                    this.attachmentManager, getRevsLimit());
+        }
+        CompactionProgress progress =
+                this.incrementalCompactor.run(System.nanoTime() + unit.toNanos(timeBudget));
+        if (progress.isComplete()) {
+            this.incrementalCompactor = null;
+        }
+        return progress;
+    }
+
+    @Override
+    public int getRevsLimit() {
+        Preconditions.checkState(this.isOpen(), "Database is closed");
+        Cursor cursor = null;
+        try {
+            cursor = this.sqlDb.rawQuery("SELECT value FROM info WHERE key='revsLimit'", null);
+            return cursor.moveToFirst() ? Integer.parseInt(cursor.getString(0)) : 0;
+        } catch (SQLException e) {
+            throw new SQLRuntimeException("Error querying revsLimit: ", e);
+        } finally {
+            DatabaseUtils.closeCursorQuietly(cursor);
+        }
+    }
+
+    @Override
+    public void setRevsLimit(int limit) {
+        Preconditions.checkState(this.isOpen(), "Database is closed");
+        Preconditions.checkArgument(limit >= 0, "Revs limit must not be negative");
+        try {
+            this.sqlDb.execSQL("INSERT OR REPLACE INTO info (key, value) VALUES ('revsLimit', ?)",
+                    new Object[]{Integer.toString(limit)});
+        } catch (SQLException e) {
+            throw new SQLRuntimeException("Error setting revsLimit: ", e);
+        }
     }
 
     @Override
@@ -1266,32 +1732,55 @@ class BasicDatastore implements Datastore, DatastoreExtended {
 
     @Override
     public Iterator<String> getConflictedDocumentIds() {
+        Preconditions.checkState(this.isOpen(), "Database is closed");
 
-        // the "SELECT DISTINCT ..." subquery selects all the parent
-        // sequence, and so the outer "SELECT ..." practically selects
-        // all the leaf nodes. The "GROUP BY" and "HAVING COUNT(*) > 1"
-        // make sure only those document with more than one leafs are
-        // returned.
-        final String sql = "SELECT docs.docid, COUNT(*) FROM docs,revs " +
-                "WHERE revs.doc_id = docs.doc_id " +
-                "AND deleted = 0 AND revs.sequence NOT IN " +
-                "(SELECT DISTINCT parent FROM revs WHERE parent NOT NULL) " +
-                "GROUP BY docs.docid HAVING COUNT(*) > 1";
-
-        List<String> conflicts = new ArrayList<String>();
-        Cursor cursor = null;
-        try {
-            cursor = this.sqlDb.rawQuery(sql, new String[]{});
-            while (cursor.moveToNext()) {
-                String docId = cursor.getString(0);
-                conflicts.add(docId);
+        // Read a page at a time, rather than holding a cursor open, so
+        // conflicts can be resolved while iterating
+        return new Iterator<String>() {
+
+            private Iterator<String> documentBlock = Collections.<String>emptyList().iterator();
+            private long lastDocNumericId = 0;
+            private boolean lastPageRead = false;
+
+            @Override
+            public boolean hasNext() {
+                if (!documentBlock.hasNext() && !lastPageRead) {
+                    List<String> page = new ArrayList<String>(CONFLICTED_DOCUMENTS_PAGE_SIZE);
+                    Cursor cursor = null;
+                    try {
+                        cursor = sqlDb.rawQuery("SELECT conflicts.doc_id, docs.docid " +
+                                "FROM conflicts, docs WHERE docs.doc_id = conflicts.doc_id " +
+                                "AND conflicts.doc_id > ? ORDER BY conflicts.doc_id LIMIT " +
+                                CONFLICTED_DOCUMENTS_PAGE_SIZE,
+                                new String[]{Long.toString(lastDocNumericId)});
+                        while (cursor.moveToNext()) {
+                            lastDocNumericId = cursor.getLong(0);
+                            page.add(cursor.getString(1));
+                        }
+                    } catch (SQLException e) {
+                        throw new SQLRuntimeException("Error getting conflicted documents", e);
+                    } finally {
+                        DatabaseUtils.closeCursorQuietly(cursor);
+                    }
+                    lastPageRead = page.size() < CONFLICTED_DOCUMENTS_PAGE_SIZE;
+                    documentBlock = page.iterator();
+                }
+                return documentBlock.hasNext();
             }
-        }  catch (SQLException e) {
-            logger.log(Level.SEVERE, "Error getting conflicted document: ", e);
-        } finally {
-            DatabaseUtils.closeCursorQuietly(cursor);
-        }
-        return conflicts.iterator();
+
+            @Override
+            public String next() {
+                if (!this.hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return documentBlock.next();
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
     }
 
     @Override
@@ -1390,11 +1879,26 @@ class BasicDatastore implements Datastore, DatastoreExtended {
     }
 
     private static BasicDocumentRevision getFullRevisionFromCurrentCursor(Cursor cursor, List<? extends Attachment> attachments) {
+        return getRevisionBuilderFromCurrentCursor(cursor)
+                .setAttachments(attachments)
+                .build();
+    }
+
+    private static DocumentRevisionBuilder getRevisionBuilderFromCurrentCursor(Cursor cursor) {
+        byte[] json = cursor.getBlob(4);
+        return getRevisionMetadataFromCurrentCursor(cursor)
+                .setBody(BasicDocumentBody.bodyWith(json));
+    }
+
+    /**
+     * Returns a builder set up with everything but the body and attachments
+     * of the revision at the cursor's current row.
+     */
+    private static DocumentRevisionBuilder getRevisionMetadataFromCurrentCursor(Cursor cursor) {
         String docId = cursor.getString(0);
         long internalId = cursor.getLong(1);
         String revId = cursor.getString(2);
         long sequence = cursor.getLong(3);
-        byte[] json = cursor.getBlob(4);
         boolean current = cursor.getInt(5) > 0;
         boolean deleted = cursor.getInt(6) > 0;
 
@@ -1409,15 +1913,13 @@ class BasicDatastore implements Datastore, DatastoreExtended {
         DocumentRevisionBuilder builder = new DocumentRevisionBuilder()
                 .setDocId(docId)
                 .setRevId(revId)
-                .setBody(BasicDocumentBody.bodyWith(json))
                 .setDeleted(deleted)
                 .setSequence(sequence)
                 .setInternalId(internalId)
                 .setCurrent(current)
-                .setParent(parent)
-                .setAttachments(attachments);
+                .setParent(parent);
 
-        return builder.build();
+        return builder;
     }
 
 
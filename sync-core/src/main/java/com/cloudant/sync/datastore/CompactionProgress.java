@@ -0,0 +1,156 @@
+/**
+ * Copyright (c) 2015 Cloudant, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.cloudant.sync.datastore;
+
+/**
+ * <p>How far an incremental compaction started by
+ * {@link Datastore#compact(long, java.util.concurrent.TimeUnit)} has got.</p>
+ *
+ * <p>Incremental compaction works through its stages in order. The counts
+ * are totals for the compaction so far, across all the calls made to
+ * continue it.</p>
+ */
+public class CompactionProgress {
+
+    /**
+     * The stages of an incremental compaction, in the order they're done.
+     */
+    public enum Stage {
+        /**
+         * Removing revisions further from the leaves of their document's
+         * tree than the datastore's revs limit allows.
+         *
+         * @see Datastore#setRevsLimit(int)
+         */
+        PRUNING_REVISION_HISTORIES,
+        /**
+         * Removing the bodies of revisions which aren't current, and
+         * their attachments.
+         */
+        PRUNING_REVISIONS,
+        /**
+         * Deleting attachment files which no attachment uses any more.
+         */
+        PURGING_ATTACHMENT_FILES,
+        /**
+         * Returning free pages of the database file to the file system.
+         */
+        VACUUMING,
+        /**
+         * The compaction has finished.
+         */
+        COMPLETE
+    }
+
+    private final Stage stage;
+    private final long revisionsRemoved;
+    private final long revisionsPruned;
+    private final long attachmentFilesChecked;
+    private final long attachmentFilesTotal;
+    private final long attachmentFilesDeleted;
+    private final long pagesVacuumed;
+    private final long pagesFree;
+
+    CompactionProgress(Stage stage, long revisionsRemoved, long revisionsPruned,
+                       long attachmentFilesChecked, long attachmentFilesTotal,
+                       long attachmentFilesDeleted, long pagesVacuumed, long pagesFree) {
+        this.stage = stage;
+        this.revisionsRemoved = revisionsRemoved;
+        this.revisionsPruned = revisionsPruned;
+        this.attachmentFilesChecked = attachmentFilesChecked;
+        this.attachmentFilesTotal = attachmentFilesTotal;
+        this.attachmentFilesDeleted = attachmentFilesDeleted;
+        this.pagesVacuumed = pagesVacuumed;
+        this.pagesFree = pagesFree;
+    }
+
+    /**
+     * @return the stage the compaction will continue from
+     */
+    public Stage getStage() {
+        return stage;
+    }
+
+    /**
+     * @return {@code true} if the compaction has finished
+     */
+    public boolean isComplete() {
+        return stage == Stage.COMPLETE;
+    }
+
+    /**
+     * @return number of revisions which have been removed by pruning
+     *         revision histories
+     */
+    public long getRevisionsRemoved() {
+        return revisionsRemoved;
+    }
+
+    /**
+     * @return number of revisions whose bodies have been removed
+     */
+    public long getRevisionsPruned() {
+        return revisionsPruned;
+    }
+
+    /**
+     * @return number of attachment files which have been checked
+     */
+    public long getAttachmentFilesChecked() {
+        return attachmentFilesChecked;
+    }
+
+    /**
+     * @return number of attachment files to check, or 0 if the compaction
+     *         hasn't got to them yet
+     */
+    public long getAttachmentFilesTotal() {
+        return attachmentFilesTotal;
+    }
+
+    /**
+     * @return number of attachment files which have been deleted
+     */
+    public long getAttachmentFilesDeleted() {
+        return attachmentFilesDeleted;
+    }
+
+    /**
+     * @return number of pages of the database file which have been returned
+     *         to the file system
+     */
+    public long getPagesVacuumed() {
+        return pagesVacuumed;
+    }
+
+    /**
+     * @return number of free pages left in the database file when it was
+     *         last checked
+     */
+    public long getPagesFree() {
+        return pagesFree;
+    }
+
+    @Override
+    public String toString() {
+        return "CompactionProgress: stage " + stage +
+                ", revisions removed " + revisionsRemoved +
+                ", revisions pruned " + revisionsPruned +
+                ", attachment files checked " + attachmentFilesChecked + "/" +
+                attachmentFilesTotal +
+                ", attachment files deleted " + attachmentFilesDeleted +
+                ", pages vacuumed " + pagesVacuumed +
+                ", pages free " + pagesFree;
+    }
+}
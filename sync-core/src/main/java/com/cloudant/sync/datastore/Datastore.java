@@ -22,6 +22,7 @@ import com.google.common.eventbus.EventBus;
 import java.io.IOException;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * <p>The Datastore is the core interaction point for create, delete and update
@@ -139,18 +140,59 @@ public interface Datastore {
      */
     public List<BasicDocumentRevision> getAllDocuments(int offset, int limit, boolean descending);
 
+    /**
+     * <p>Returns an iterator over the current revisions of all the
+     * non-deleted documents in the datastore, in the same order as
+     * {@link #getAllDocuments(int, int, boolean)}.</p>
+     *
+     * <p>The documents are read a page at a time as the iterator advances,
+     * with each page starting where the last one finished, so reading every
+     * document takes time proportional to the number of documents and only
+     * one page is held in memory. Paging with
+     * {@link #getAllDocuments(int, int, boolean)} has to skip over all the
+     * documents before {@code offset} for every page.</p>
+     *
+     * <p>Documents created while iterating may or may not be returned.</p>
+     *
+     * @param descending whether the documents are read in ascending or
+     *                   descending order.
+     * @return iterator over {@code DocumentRevision} objects.
+     */
+    public Iterator<BasicDocumentRevision> iterateAllDocuments(boolean descending);
+
     /**
      * <p>Returns the current winning revisions for a set of documents.</p>
      *
-     * <p>If the {@code documentIds} list contains document IDs not present
-     * in the datastore, they will be skipped and there will be no entry for
-     * them in the returned list.</p>
+     * <p>The revisions are returned in the same order as their IDs in
+     * {@code documentIds}. If the {@code documentIds} list contains
+     * document IDs not present in the datastore, they will be skipped and
+     * there will be no entry for them in the returned list.</p>
+     *
+     * <p>For very long lists of IDs, use
+     * {@link #iterateDocumentsWithIds(Iterable)} to avoid holding all the
+     * revisions in memory at once.</p>
      *
      * @param documentIds list of document id
      * @return list of {@code DocumentRevision} objects.
      */
     public List<BasicDocumentRevision> getDocumentsWithIds(List<String> documentIds);
 
+    /**
+     * <p>Returns an iterator over the current winning revisions for a set
+     * of documents.</p>
+     *
+     * <p>The revisions are returned in the same order as their IDs in
+     * {@code documentIds}, and IDs not present in the datastore are skipped,
+     * as for {@link #getDocumentsWithIds(java.util.List)}. Revisions are read
+     * from the datastore in batches as the iterator advances, so only one
+     * batch is held in memory at a time.</p>
+     *
+     * @param documentIds document IDs, which are read as the iterator
+     *                    advances
+     * @return iterator over {@code DocumentRevision} objects.
+     */
+    public Iterator<BasicDocumentRevision> iterateDocumentsWithIds(Iterable<String> documentIds);
+
     /**
      * <p>Retrieves the datastore's current sequence number.</p>
      *
@@ -215,6 +257,12 @@ public interface Datastore {
      * conflicted revisions of the document.
      * </p>
      *
+     * <p>Conflicted documents are tracked as revisions are added, so this
+     * doesn't need to look at the revisions of every document. The IDs are
+     * read a page at a time as the iterator is used, so conflicts may be
+     * resolved while iterating; documents which become conflicted while
+     * iterating may not be returned.</p>
+     *
      * @return Iterable of String over ids of all Documents with
      *         conflicted revisions
      *
@@ -332,8 +380,66 @@ public interface Datastore {
 
     /**
      * Compacts the sqlDatabase storage by removing the bodies and attachments of obsolete revisions.
+     *
+     * <p>If the datastore has a revs limit, revisions further than the
+     * limit from every leaf of their document's tree are removed
+     * first.</p>
+     *
+     * @see #setRevsLimit(int)
      */
     public void compact();
 
+    /**
+     * <p>Compacts the sqlDatabase storage a step at a time, doing as much as
+     * fits in {@code timeBudget} before returning.</p>
+     *
+     * <p>This does the same work as {@link #compact()}, but in small steps,
+     * each of which only holds the database for a short time, so other use
+     * of the datastore isn't blocked for long. Call this repeatedly, for
+     * example when the application is idle, until the returned progress
+     * {@link CompactionProgress#isComplete() is complete}. Each call
+     * continues from where the last one stopped, and at least one step is
+     * done even if the budget is zero.</p>
+     *
+     * <p>Returning free space to the file system this way needs the
+     * database to be in SQLite's incremental auto-vacuum mode. Datastores
+     * created by this version are; older datastores are switched to it by
+     * {@link #compact()}.</p>
+     *
+     * @param timeBudget time after which no more steps are started
+     * @param unit unit of {@code timeBudget}
+     * @return how far the compaction has got
+     */
+    public CompactionProgress compact(long timeBudget, TimeUnit unit);
+
+    /**
+     * @return the number of revisions kept on each branch of a document's
+     *         tree by compaction, or 0 if all revisions are kept
+     *
+     * @see #setRevsLimit(int)
+     */
+    public int getRevsLimit();
+
+    /**
+     * <p>Sets the number of revisions kept on each branch of a document's
+     * tree, like CouchDB's {@code _revs_limit}.</p>
+     *
+     * <p>When the datastore is compacted, revisions more than
+     * {@code limit} generations away from every leaf of their document's
+     * tree are removed, along with their attachments. The revision
+     * histories of the remaining revisions, such as those sent to a remote
+     * database by push replication, start from the oldest revision kept.
+     * Pruned revisions pulled again from a remote database are recognised
+     * by the revisions they share with the local tree, so aren't added as
+     * conflicts.</p>
+     *
+     * <p>The limit is stored in the datastore. The default, 0, keeps all
+     * revisions.</p>
+     *
+     * @param limit number of revisions to keep on each branch, or 0 to keep
+     *              all revisions
+     */
+    public void setRevsLimit(int limit);
+
 }
 
@@ -110,4 +110,19 @@ class DatastoreConstants {
         };
     };
 
+    // Documents with more than one non-deleted leaf revision, kept up to
+    // date as revisions are inserted, with their number of such leaves
+    public static String[] getSchemaVersion6() {
+        return new String[] {
+            "CREATE TABLE conflicts ( " +
+            "    doc_id INTEGER PRIMARY KEY REFERENCES docs(doc_id) ON DELETE CASCADE, " +
+            "    leaves INTEGER NOT NULL); ",
+            "INSERT INTO conflicts (doc_id, leaves) " +
+            "    SELECT doc_id, COUNT(*) FROM revs " +
+            "    WHERE deleted = 0 AND sequence NOT IN " +
+            "    (SELECT DISTINCT parent FROM revs WHERE parent NOT NULL) " +
+            "    GROUP BY doc_id HAVING COUNT(*) > 1; "
+        };
+    };
+
 }
@@ -115,6 +115,24 @@ public interface DatastoreExtended extends Datastore {
      */
     public DocumentRevisionTree getAllRevisionsOfDocument(String documentId);
 
+    /**
+     * <p>Returns {@code DocumentRevisionTree} of a document, optionally
+     * without reading the bodies of its revisions.</p>
+     *
+     * <p>Without bodies only the metadata of each revision is read (its
+     * sequence, revision ID, parent, and whether it's current or deleted),
+     * which is all that's needed to walk the tree. The body of a revision
+     * is then read from the datastore the first time it's used, and its
+     * attachments aren't read at all; use
+     * {@link #attachmentsForRevision(BasicDocumentRevision)} to get them.</p>
+     *
+     * @param documentId  id of the document
+     * @param loadBodies  whether to read the bodies and attachments of the
+     *                    revisions straight away
+     * @return {@code DocumentRevisionTree} of the specified document
+     */
+    public DocumentRevisionTree getAllRevisionsOfDocument(String documentId, boolean loadBodies);
+
     /**
      * <p>Inserts a revision of a document with an existing revision ID and
      * revision history.</p>
@@ -165,6 +183,32 @@ public interface DatastoreExtended extends Datastore {
                             Map<String, Object> attachments,
                             boolean pullAttachmentsInline);
 
+    /**
+     * <p>Inserts revisions of documents with existing revision IDs, as
+     * {@link #forceInsert(BasicDocumentRevision, java.util.List, java.util.Map, boolean)}
+     * does for a single revision.</p>
+     *
+     * <p>All the revisions are inserted in a single transaction, and the
+     * revision trees of the documents are read in batches rather than one
+     * document at a time, so this is much quicker than inserting the
+     * revisions one by one. If any revision can't be inserted, none are.</p>
+     *
+     * <p>The events for the inserted revisions are posted on the event bus
+     * once all the revisions have been inserted.</p>
+     *
+     * @param items the revisions to insert, along with their histories and
+     *              attachments. Revisions of the same document are inserted
+     *              in the order given.
+     * @param pullAttachmentsInline true if the attachments of the revisions
+     *                              are inline and should be added
+     * @return true if the revisions were inserted, or false if the inline
+     *         attachments of any of them couldn't be added. When called in
+     *         a transaction, that transaction is then rolled back.
+     *
+     * @see Datastore#getEventBus()
+     */
+    public boolean forceInsert(List<ForceInsertItem> items, boolean pullAttachmentsInline);
+
     /**
      * <p>Inserts a revision of a document with an existing revision ID</p>
      *
@@ -0,0 +1,62 @@
+/**
+ * Copyright (c) 2015 Cloudant, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.datastore;
+
+import com.google.common.base.Preconditions;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A revision to insert with
+ * {@link DatastoreExtended#forceInsert(java.util.List, boolean)}, along with
+ * its revision history and attachments.
+ *
+ * @see DatastoreExtended#forceInsert(BasicDocumentRevision, java.util.List, java.util.Map, boolean)
+ */
+public class ForceInsertItem {
+
+    private final BasicDocumentRevision rev;
+    private final List<String> revisionHistory;
+    private final Map<String, Object> attachments;
+
+    /**
+     * @param rev the revision to insert
+     * @param revisionHistory the history of the revision, including the rev
+     *                        ID of {@code rev}, sorted in ascending order
+     * @param attachments the {@code _attachments} of the revision, or null
+     */
+    public ForceInsertItem(BasicDocumentRevision rev,
+                           List<String> revisionHistory,
+                           Map<String, Object> attachments) {
+        Preconditions.checkNotNull(rev, "Input document revision can not be null");
+        Preconditions.checkNotNull(revisionHistory, "Input revision history must not be null");
+        this.rev = rev;
+        this.revisionHistory = revisionHistory;
+        this.attachments = attachments;
+    }
+
+    public BasicDocumentRevision getRev() {
+        return rev;
+    }
+
+    public List<String> getRevisionHistory() {
+        return revisionHistory;
+    }
+
+    public Map<String, Object> getAttachments() {
+        return attachments;
+    }
+}
@@ -0,0 +1,251 @@
+/**
+ * Copyright (c) 2015 Cloudant, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.cloudant.sync.datastore;
+
+import com.cloudant.sync.datastore.CompactionProgress.Stage;
+import com.cloudant.sync.sqlite.ContentValues;
+import com.cloudant.sync.sqlite.Cursor;
+import com.cloudant.sync.sqlite.SQLDatabase;
+import com.cloudant.sync.util.DatabaseUtils;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <p>Compacts a datastore a step at a time, so that it can be done in short
+ * bursts without blocking other use of the datastore for long.</p>
+ *
+ * <p>It does the same work as {@link BasicDatastore#compact()}, in the
+ * {@link Stage stages} listed in {@link CompactionProgress}:</p>
+ *
+ * <ul>
+ *     <li>If the datastore has a revs limit, revisions beyond it are
+ *     removed by a {@link RevisionHistoryPruner}, a batch of documents at a
+ *     time.</li>
+ *     <li>Revisions are pruned in chunks of {@link #REVISIONS_PER_STEP},
+ *     in order of sequence number, each chunk in its own transaction.</li>
+ *     <li>Attachment files are checked in batches of
+ *     {@link #ATTACHMENT_FILES_PER_STEP}. Files created after the stage
+ *     started are kept, as they may belong to attachments being added
+ *     while the compaction is paused.</li>
+ *     <li>Free pages are returned to the file system with
+ *     {@code PRAGMA incremental_vacuum}, {@link #PAGES_PER_STEP} at a time,
+ *     rather than by rewriting the whole file with {@code VACUUM}. This
+ *     needs the database to be in {@code auto_vacuum = INCREMENTAL} mode;
+ *     otherwise the stage is skipped. New datastores use this mode, and
+ *     {@link BasicDatastore#compact()} switches existing ones to it.</li>
+ * </ul>
+ *
+ * <p>Revisions made non-current after the pruning stage has passed their
+ * sequence number are pruned by the next compaction.</p>
+ */
+class IncrementalCompactor {
+
+    private static final Logger logger = Logger.getLogger(IncrementalCompactor.class.getCanonicalName());
+
+    static final int REVISIONS_PER_STEP = 500;
+    static final int ATTACHMENT_FILES_PER_STEP = 100;
+    static final int PAGES_PER_STEP = 128;
+
+    // PRAGMA auto_vacuum value for incremental mode
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+    private static final String SQL_NEXT_REVISIONS_TO_PRUNE = "SELECT MAX(sequence), COUNT(*) " +
+            "FROM (SELECT sequence FROM revs WHERE current = 0 AND json IS NOT NULL " +
+            "AND sequence > ? ORDER BY sequence LIMIT " + REVISIONS_PER_STEP + ")";
+
+    private final SQLDatabase sqlDb;
+    private final AttachmentManager attachmentManager;
+    private final RevisionHistoryPruner revisionHistoryPruner;
+
+    private Stage stage;
+
+    private long lastPrunedSequence = 0;
+    private long revisionsPruned = 0;
+
+    private String[] attachmentFiles = null;
+    private long attachmentFilesStartedAt;
+    private int attachmentFilesChecked = 0;
+    private long attachmentFilesDeleted = 0;
+
+    private long pagesVacuumed = 0;
+    private long pagesFree = 0;
+
+    /**
+     * @param revsLimit the datastore's revs limit, or 0 if it has none
+     */
+    IncrementalCompactor(SQLDatabase sqlDb, AttachmentManager attachmentManager, int revsLimit) {
+        this.sqlDb = sqlDb;
+        this.attachmentManager = attachmentManager;
+        if (revsLimit > 0) {
+            this.revisionHistoryPruner = new RevisionHistoryPruner(sqlDb, revsLimit);
+            this.stage = Stage.PRUNING_REVISION_HISTORIES;
+        } else {
+            this.revisionHistoryPruner = null;
+            this.stage = Stage.PRUNING_REVISIONS;
+        }
+    }
+
+    /**
+     * Runs steps of the compaction until it's complete or the deadline has
+     * passed. At least one step is run, so each call makes progress.
+     *
+     * @param deadline value of {@link System#nanoTime()} after which no more
+     *                 steps are started
+     */
+    CompactionProgress run(long deadline) {
+        do {
+            step();
+        } while (stage != Stage.COMPLETE && System.nanoTime() - deadline < 0);
+        CompactionProgress progress = getProgress();
+        logger.finer(progress.toString());
+        return progress;
+    }
+
+    CompactionProgress getProgress() {
+        return new CompactionProgress(stage,
+                revisionHistoryPruner != null ? revisionHistoryPruner.getRevisionsRemoved() : 0,
+                revisionsPruned, attachmentFilesChecked,
+                attachmentFiles != null ? attachmentFiles.length : attachmentFilesChecked,
+                attachmentFilesDeleted, pagesVacuumed, pagesFree);
+    }
+
+    private void step() {
+        try {
+            switch (stage) {
+                case PRUNING_REVISION_HISTORIES:
+                    if (!revisionHistoryPruner.step()) {
+                        stage = Stage.PRUNING_REVISIONS;
+                    }
+                    break;
+                case PRUNING_REVISIONS:
+                    pruneRevisions();
+                    break;
+                case PURGING_ATTACHMENT_FILES:
+                    purgeAttachmentFiles();
+                    break;
+                case VACUUMING:
+                    vacuum();
+                    break;
+                default:
+                    break;
+            }
+        } catch (SQLException e) {
+            throw new SQLRuntimeException("Error compacting datastore during " + stage, e);
+        }
+    }
+
+    private void pruneRevisions() throws SQLException {
+        this.sqlDb.beginTransaction();
+        try {
+            long upToSequence;
+            long count;
+            Cursor cursor = null;
+            try {
+                cursor = this.sqlDb.rawQuery(SQL_NEXT_REVISIONS_TO_PRUNE,
+                        new String[]{Long.toString(lastPrunedSequence)});
+                cursor.moveToFirst();
+                count = cursor.getLong(1);
+                upToSequence = count > 0 ? cursor.getLong(0) : lastPrunedSequence;
+            } finally {
+                DatabaseUtils.closeCursorQuietly(cursor);
+            }
+
+            if (count == 0) {
+                stage = Stage.PURGING_ATTACHMENT_FILES;
+            } else {
+                String[] range = new String[]{Long.toString(lastPrunedSequence),
+                        Long.toString(upToSequence)};
+                ContentValues args = new ContentValues();
+                args.put("json", (String) null);
+                this.sqlDb.update("revs", args,
+                        "current=0 AND json IS NOT NULL AND sequence > ? AND sequence <= ?", range);
+                this.sqlDb.delete("attachments", "sequence IN " +
+                        "(SELECT sequence FROM revs WHERE json IS NULL " +
+                        "AND sequence > ? AND sequence <= ?)", range);
+                revisionsPruned += count;
+                lastPrunedSequence = upToSequence;
+            }
+            this.sqlDb.setTransactionSuccessful();
+        } finally {
+            this.sqlDb.endTransaction();
+        }
+    }
+
+    private void purgeAttachmentFiles() {
+        if (attachmentFiles == null) {
+            attachmentFiles = attachmentManager.attachmentFileNames();
+            attachmentFilesStartedAt = System.currentTimeMillis();
+        }
+        if (attachmentFilesChecked >= attachmentFiles.length) {
+            stage = Stage.VACUUMING;
+            return;
+        }
+        int end = Math.min(attachmentFilesChecked + ATTACHMENT_FILES_PER_STEP,
+                attachmentFiles.length);
+        attachmentFilesDeleted += attachmentManager.purgeAttachmentFiles(
+                Arrays.asList(attachmentFiles).subList(attachmentFilesChecked, end),
+                attachmentFilesStartedAt);
+        attachmentFilesChecked = end;
+    }
+
+    private void vacuum() throws SQLException {
+        // Pragmas are read in a transaction so they run on the connection
+        // which writes to the database
+        this.sqlDb.beginTransaction();
+        try {
+            if (longForPragma("auto_vacuum") != AUTO_VACUUM_INCREMENTAL) {
+                logger.log(Level.FINE, "Database isn't in incremental auto_vacuum mode, " +
+                        "skipping vacuum; compact() switches it to this mode");
+                stage = Stage.COMPLETE;
+            } else {
+                long before = longForPragma("freelist_count");
+                if (before > 0) {
+                    // Pages are freed as the pragma is stepped, so step it to the end
+                    Cursor cursor = null;
+                    try {
+                        cursor = this.sqlDb.rawQuery(
+                                "PRAGMA incremental_vacuum(" + PAGES_PER_STEP + ")", null);
+                        while (cursor.moveToNext()) {
+                            // nothing to read
+                        }
+                    } finally {
+                        DatabaseUtils.closeCursorQuietly(cursor);
+                    }
+                }
+                pagesFree = longForPragma("freelist_count");
+                pagesVacuumed += before - pagesFree;
+                // Stop if nothing could be freed, rather than trying forever
+                if (pagesFree == 0 || pagesFree == before) {
+                    stage = Stage.COMPLETE;
+                }
+            }
+            this.sqlDb.setTransactionSuccessful();
+        } finally {
+            this.sqlDb.endTransaction();
+        }
+    }
+
+    private long longForPragma(String pragma) throws SQLException {
+        Cursor cursor = null;
+        try {
+            cursor = this.sqlDb.rawQuery("PRAGMA " + pragma, null);
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            DatabaseUtils.closeCursorQuietly(cursor);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/**
+ * Copyright (c) 2015 Cloudant, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.datastore;
+
+import com.cloudant.sync.sqlite.Cursor;
+import com.cloudant.sync.sqlite.SQLDatabase;
+import com.cloudant.sync.util.DatabaseUtils;
+import com.cloudant.sync.util.JSONUtils;
+
+import java.sql.SQLException;
+import java.util.Map;
+
+/**
+ * <p>The body of a revision which isn't read from the database until it's
+ * first used.</p>
+ *
+ * <p>Used for the revisions of a {@link DocumentRevisionTree} loaded without
+ * bodies, where usually only the metadata of the revisions is needed. The
+ * body of a revision whose JSON has been removed by compaction is
+ * empty.</p>
+ */
+final class LazyDocumentBody implements DocumentBody {
+
+    private static final String GET_REVISION_JSON = "SELECT json FROM revs WHERE sequence=?";
+
+    private final SQLDatabase sqlDb;
+    private final long sequence;
+    private DocumentBody body;
+
+    LazyDocumentBody(SQLDatabase sqlDb, long sequence) {
+        this.sqlDb = sqlDb;
+        this.sequence = sequence;
+    }
+
+    @Override
+    public Map<String, Object> asMap() {
+        return getBody().asMap();
+    }
+
+    @Override
+    public byte[] asBytes() {
+        return getBody().asBytes();
+    }
+
+    /**
+     * @return {@code true} if the body has been read from the database
+     */
+    synchronized boolean isLoaded() {
+        return body != null;
+    }
+
+    @Override
+    public String toString() {
+        return getBody().toString();
+    }
+
+    private synchronized DocumentBody getBody() {
+        if (body == null) {
+            Cursor cursor = null;
+            try {
+                cursor = sqlDb.rawQuery(GET_REVISION_JSON,
+                        new String[]{Long.toString(sequence)});
+                if (!cursor.moveToFirst()) {
+                    throw new DocumentNotFoundException("No revision with sequence: " + sequence);
+                }
+                byte[] json = cursor.getBlob(0);
+                body = BasicDocumentBody.bodyWith(json != null ? json : JSONUtils.EMPTY_JSON);
+            } catch (SQLException e) {
+                throw new SQLRuntimeException("Error getting body of revision with sequence: " +
+                        sequence, e);
+            } finally {
+                DatabaseUtils.closeCursorQuietly(cursor);
+            }
+        }
+        return body;
+    }
+}
@@ -0,0 +1,186 @@
+/**
+ * Copyright (c) 2015 Cloudant, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.datastore;
+
+import com.cloudant.sync.sqlite.ContentValues;
+import com.cloudant.sync.sqlite.Cursor;
+import com.cloudant.sync.sqlite.SQLDatabase;
+import com.cloudant.sync.util.DatabaseUtils;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <p>Removes the revisions of documents which are more than a limit of
+ * revisions away from every leaf revision, like CouchDB's
+ * {@code _revs_limit}.</p>
+ *
+ * <p>Each branch of a document's tree keeps its leaf and up to
+ * {@code revsLimit - 1} of its ancestors. The oldest kept revision of a
+ * branch becomes a root. The {@code _revisions} of a pruned revision start
+ * at its generation and list only the revisions kept, which CouchDB
+ * accepts, as it stems revision histories the same way.</p>
+ *
+ * <p>Documents are pruned in batches of {@link #DOCUMENTS_PER_STEP}, in
+ * order of their numeric ID, each batch in its own transaction. Only
+ * documents with more than {@code revsLimit} revisions are looked at.</p>
+ */
+class RevisionHistoryPruner {
+
+    static final int DOCUMENTS_PER_STEP = 100;
+
+    private static final String SQL_NEXT_DOCUMENTS_TO_PRUNE = "SELECT doc_id FROM revs " +
+            "WHERE doc_id > ? GROUP BY doc_id HAVING COUNT(*) > CAST(? AS INTEGER) " +
+            "ORDER BY doc_id LIMIT " + DOCUMENTS_PER_STEP;
+
+    private static final String SQL_REVISIONS_OF_DOCUMENT = "SELECT sequence, IFNULL(parent, 0) " +
+            "FROM revs WHERE doc_id = ?";
+
+    private final SQLDatabase sqlDb;
+    private final int revsLimit;
+
+    private long lastDocNumericId = 0;
+    private long revisionsRemoved = 0;
+
+    /**
+     * @param revsLimit maximum depth of revisions to keep below each leaf,
+     *                  which must be positive
+     */
+    RevisionHistoryPruner(SQLDatabase sqlDb, int revsLimit) {
+        Preconditions.checkArgument(revsLimit > 0, "Revs limit must be positive");
+        this.sqlDb = sqlDb;
+        this.revsLimit = revsLimit;
+    }
+
+    /**
+     * Prunes all the documents which haven't been pruned yet.
+     */
+    void pruneAll() throws SQLException {
+        while (step()) {
+            // keep going
+        }
+    }
+
+    /**
+     * Prunes the next batch of documents.
+     *
+     * @return {@code false} if there were no more documents to prune
+     */
+    boolean step() throws SQLException {
+        this.sqlDb.beginTransaction();
+        try {
+            List<Long> docNumericIds = new ArrayList<Long>(DOCUMENTS_PER_STEP);
+            Cursor cursor = null;
+            try {
+                cursor = this.sqlDb.rawQuery(SQL_NEXT_DOCUMENTS_TO_PRUNE, new String[]{
+                        Long.toString(lastDocNumericId), Integer.toString(revsLimit)});
+                while (cursor.moveToNext()) {
+                    docNumericIds.add(cursor.getLong(0));
+                }
+            } finally {
+                DatabaseUtils.closeCursorQuietly(cursor);
+            }
+
+            for (long docNumericId : docNumericIds) {
+                revisionsRemoved += pruneDocument(docNumericId);
+            }
+            if (!docNumericIds.isEmpty()) {
+                lastDocNumericId = docNumericIds.get(docNumericIds.size() - 1);
+            }
+            this.sqlDb.setTransactionSuccessful();
+            return !docNumericIds.isEmpty();
+        } finally {
+            this.sqlDb.endTransaction();
+        }
+    }
+
+    /**
+     * @return number of revisions removed so far
+     */
+    long getRevisionsRemoved() {
+        return revisionsRemoved;
+    }
+
+    private int pruneDocument(long docNumericId) throws SQLException {
+        // Parent sequence of each revision, 0 for roots
+        Map<Long, Long> parents = new HashMap<Long, Long>();
+        Cursor cursor = null;
+        try {
+            cursor = this.sqlDb.rawQuery(SQL_REVISIONS_OF_DOCUMENT,
+                    new String[]{Long.toString(docNumericId)});
+            while (cursor.moveToNext()) {
+                parents.put(cursor.getLong(0), cursor.getLong(1));
+            }
+        } finally {
+            DatabaseUtils.closeCursorQuietly(cursor);
+        }
+
+        // Keep each leaf and its nearest ancestors. A revision on several
+        // branches is kept if it's near enough to the leaf of any of them.
+        Set<Long> keep = new HashSet<Long>();
+        Set<Long> nonLeaves = new HashSet<Long>(parents.values());
+        for (long sequence : parents.keySet()) {
+            if (nonLeaves.contains(sequence)) {
+                continue;
+            }
+            long ancestor = sequence;
+            for (int depth = 0; depth < revsLimit && parents.containsKey(ancestor); depth++) {
+                keep.add(ancestor);
+                ancestor = parents.get(ancestor);
+            }
+        }
+
+        List<String> remove = new ArrayList<String>();
+        for (long sequence : parents.keySet()) {
+            if (!keep.contains(sequence)) {
+                remove.add(Long.toString(sequence));
+            }
+        }
+        if (remove.isEmpty()) {
+            return 0;
+        }
+
+        // The oldest revisions kept become roots
+        ContentValues noParent = new ContentValues();
+        noParent.putNull("parent");
+        for (long sequence : keep) {
+            long parent = parents.get(sequence);
+            if (parent > 0 && !keep.contains(parent)) {
+                this.sqlDb.update("revs", noParent, "sequence=?",
+                        new String[]{Long.toString(sequence)});
+            }
+        }
+        // Foreign keys are only enforced on the connection which opened the
+        // datastore, so the rows which refer to the removed revisions are
+        // deleted here rather than left to ON DELETE CASCADE
+        for (List<String> batch : Lists.partition(remove,
+                BasicDatastore.SQLITE_QUERY_PLACEHOLDERS_LIMIT)) {
+            String whereClause = String.format("sequence IN ( %s )",
+                    DatabaseUtils.makePlaceholders(batch.size()));
+            String[] whereArgs = batch.toArray(new String[batch.size()]);
+            this.sqlDb.delete("attachments", whereClause, whereArgs);
+            this.sqlDb.delete("maps", whereClause, whereArgs);
+            this.sqlDb.delete("revs", whereClause, whereArgs);
+        }
+        return remove.size();
+    }
+}
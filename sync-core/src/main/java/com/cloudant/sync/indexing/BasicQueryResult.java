@@ -18,8 +18,6 @@ import com.cloudant.sync.datastore.Datastore;
 import com.cloudant.sync.datastore.BasicDocumentRevision;
 import com.google.common.collect.Lists;
 
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
@@ -117,19 +115,8 @@ class BasicQueryResult implements QueryResult {
              * @return an iterator over the DocumentRevision objects for `ids`.
              */
             private Iterator<BasicDocumentRevision> nextSubIterator(List<String> ids) {
-                HashMap<String, BasicDocumentRevision> map = new HashMap<String, BasicDocumentRevision>();
-                for(BasicDocumentRevision revision : datastore.getDocumentsWithIds(ids)) {
-                    map.put(revision.getId(), revision);
-                }
-                List<BasicDocumentRevision> revisions = new ArrayList<BasicDocumentRevision>(ids.size());
-                // return list of DocumentRevision that in the same order as input "ids"
-                for(String id : ids) {
-                    BasicDocumentRevision revision = map.get(id);
-                    if(revision != null ) {
-                        revisions.add(revision);
-                    }
-                }
-                return revisions.iterator();
+                // revisions are returned in the same order as input "ids"
+                return datastore.getDocumentsWithIds(ids).iterator();
             }
         };
     }
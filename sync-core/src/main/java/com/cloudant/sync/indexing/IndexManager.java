@@ -30,6 +30,7 @@ import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -264,6 +265,10 @@ public class IndexManager {
 
     private void updateIndex(String indexName) {
         Index index = this.getIndex(indexName);
+        if (index.getLastSequence() == Datastore.SEQUENCE_NUMBER_START) {
+            buildIndex(index);
+            index = this.getIndex(indexName);
+        }
         Changes changes = datastore.changes(index.getLastSequence(), 100);
         while (changes.size() > 0) {
             this.updateIndex(index, changes);
@@ -271,6 +276,23 @@ public class IndexManager {
         }
     }
 
+    /**
+     * Indexes all the documents for a new index. Reading the documents
+     * themselves, rather than the changes feed, skips deleted documents and
+     * the sequence numbers of all the revisions which aren't current.
+     */
+    private void buildIndex(Index index) {
+        // Documents changed while the index is built are indexed again from
+        // the changes feed, which is harmless
+        long lastSequence = datastore.getLastSequence();
+        Iterator<BasicDocumentRevision> documents = datastore.iterateAllDocuments(false);
+        while (documents.hasNext()) {
+            BasicDocumentRevision ob = documents.next();
+            indexDocument(index, ob.getId(), ob.asMap());
+        }
+        updateIndexLastSequence(index.getName(), lastSequence);
+    }
+
     private void updateIndex(Index index, Changes changes) {
         for (BasicDocumentRevision ob : changes.getResults()) {
             indexDocument(index, ob.getId(), ob.asMap());
@@ -0,0 +1,41 @@
+/**
+ * Copyright (c) 2015 Cloudant, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.cloudant.sync.notifications;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * <p>Event for a batch of document creates, updates and deletes.</p>
+ *
+ * <p>This event is posted by a {@link DocumentsModifiedDispatcher}, which
+ * collects the {@link DocumentModified} events a datastore posts and
+ * delivers them in batches.</p>
+ */
+public class DocumentsModified {
+
+    /**
+     * @param events the events in the batch, in the order they were posted
+     */
+    public DocumentsModified(List<DocumentModified> events) {
+        this.events = Collections.unmodifiableList(events);
+    }
+
+    /**
+     * The events in the batch, in the order they were posted. A document
+     * changed more than once has an event for each change.
+     */
+    public final List<DocumentModified> events;
+
+}
@@ -0,0 +1,298 @@
+/**
+ * Copyright (c) 2015 Cloudant, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+package com.cloudant.sync.notifications;
+
+import com.google.common.base.Preconditions;
+import com.google.common.eventbus.EventBus;
+import com.google.common.eventbus.Subscribe;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <p>Delivers the {@link DocumentModified} events posted to an event bus
+ * in batches, as {@link DocumentsModified} events, on an executor.</p>
+ *
+ * <p>A datastore posts its document events synchronously, from the thread
+ * which changed the document, so slow subscribers slow down writes,
+ * including those made by replication. Subscribers registered with the
+ * dispatcher's own {@link #getEventBus() event bus} are instead called on
+ * the executor, with the events which have been posted since they were
+ * last called:</p>
+ *
+ * <pre>
+ * DocumentsModifiedDispatcher dispatcher = new DocumentsModifiedDispatcher(
+ *         datastore.getEventBus(), Executors.newSingleThreadExecutor());
+ * dispatcher.getEventBus().register(subscriber);
+ * </pre>
+ *
+ * <p>Events wait to be delivered in a bounded queue. When the queue is
+ * full, the {@link OverflowPolicy} decides whether the thread posting an
+ * event waits for space, or the event is dropped.</p>
+ *
+ * <p>Batches are delivered one at a time, in the order the events were
+ * posted, so the executor doesn't need to be single threaded.</p>
+ */
+public class DocumentsModifiedDispatcher {
+
+    /**
+     * What to do with an event when the queue of events waiting to be
+     * delivered is full.
+     */
+    public enum OverflowPolicy {
+        /**
+         * The thread posting the event waits until there's space in the
+         * queue. This slows down writes to the datastore until subscribers
+         * catch up, but no events are lost.
+         */
+        BLOCK,
+        /**
+         * The event is dropped, and counted by {@link #getEventsDropped()}.
+         * Writes to the datastore are never slowed down.
+         */
+        DROP
+    }
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 10000;
+    public static final int DEFAULT_MAX_BATCH_SIZE = 500;
+
+    private static final Logger logger =
+            Logger.getLogger(DocumentsModifiedDispatcher.class.getCanonicalName());
+
+    private final EventBus source;
+    private final EventBus eventBus = new EventBus();
+    private final Executor executor;
+    private final BlockingQueue<QueuedEvent> queue;
+    private final int maxBatchSize;
+    private final OverflowPolicy overflowPolicy;
+
+    private final AtomicBoolean dispatchScheduled = new AtomicBoolean(false);
+    private volatile boolean closed = false;
+
+    private final AtomicLong eventsDispatched = new AtomicLong();
+    private final AtomicLong batchesDispatched = new AtomicLong();
+    private final AtomicLong eventsDropped = new AtomicLong();
+    private final AtomicLong totalDispatchLag = new AtomicLong();
+    private final AtomicLong maxDispatchLag = new AtomicLong();
+    private final AtomicLong lastDispatchLag = new AtomicLong();
+
+    private final Runnable dispatchTask = new Runnable() {
+        @Override
+        public void run() {
+            dispatchQueuedEvents();
+        }
+    };
+
+    /**
+     * Creates a dispatcher with a queue of {@link #DEFAULT_QUEUE_CAPACITY}
+     * events, batches of up to {@link #DEFAULT_MAX_BATCH_SIZE} events and
+     * the {@link OverflowPolicy#BLOCK BLOCK} overflow policy.
+     *
+     * @param source event bus the datastore posts its events to
+     * @param executor executor to deliver the batches of events on
+     */
+    public DocumentsModifiedDispatcher(EventBus source, Executor executor) {
+        this(source, executor, DEFAULT_QUEUE_CAPACITY, DEFAULT_MAX_BATCH_SIZE,
+                OverflowPolicy.BLOCK);
+    }
+
+    /**
+     * @param source event bus the datastore posts its events to
+     * @param executor executor to deliver the batches of events on
+     * @param queueCapacity maximum number of events waiting to be delivered
+     * @param maxBatchSize maximum number of events in a batch
+     * @param overflowPolicy what to do when {@code queueCapacity} events are
+     *                       waiting to be delivered
+     */
+    public DocumentsModifiedDispatcher(EventBus source, Executor executor, int queueCapacity,
+                                       int maxBatchSize, OverflowPolicy overflowPolicy) {
+        Preconditions.checkNotNull(source, "Source event bus must not be null");
+        Preconditions.checkNotNull(executor, "Executor must not be null");
+        Preconditions.checkArgument(queueCapacity > 0, "Queue capacity must be positive");
+        Preconditions.checkArgument(maxBatchSize > 0, "Maximum batch size must be positive");
+        Preconditions.checkNotNull(overflowPolicy, "Overflow policy must not be null");
+        this.source = source;
+        this.executor = executor;
+        this.queue = new ArrayBlockingQueue<QueuedEvent>(queueCapacity);
+        this.maxBatchSize = maxBatchSize;
+        this.overflowPolicy = overflowPolicy;
+        this.source.register(this);
+    }
+
+    /**
+     * <p>Returns the event bus which this dispatcher posts
+     * {@link DocumentsModified} events to.</p>
+     */
+    public EventBus getEventBus() {
+        return eventBus;
+    }
+
+    /**
+     * <p>Stops collecting events from the source event bus. Events which
+     * have already been collected are still delivered.</p>
+     */
+    public void close() {
+        if (!closed) {
+            closed = true;
+            source.unregister(this);
+        }
+    }
+
+    @Subscribe
+    public void onDocumentModified(DocumentModified event) {
+        if (closed) {
+            return;
+        }
+        QueuedEvent queued = new QueuedEvent(event, System.nanoTime());
+        if (overflowPolicy == OverflowPolicy.BLOCK) {
+            // If the queue is full, a dispatch is already scheduled to empty it
+            try {
+                queue.put(queued);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                eventsDropped.incrementAndGet();
+                logger.log(Level.WARNING, "Interrupted waiting to queue event, event dropped");
+                return;
+            }
+        } else if (!queue.offer(queued)) {
+            eventsDropped.incrementAndGet();
+            logger.log(Level.FINE, "Event queue full, event dropped");
+            return;
+        }
+        scheduleDispatch();
+    }
+
+    private void scheduleDispatch() {
+        if (dispatchScheduled.compareAndSet(false, true)) {
+            try {
+                executor.execute(dispatchTask);
+            } catch (RejectedExecutionException e) {
+                dispatchScheduled.set(false);
+                logger.log(Level.SEVERE, "Executor rejected event dispatch", e);
+            }
+        }
+    }
+
+    private void dispatchQueuedEvents() {
+        try {
+            List<QueuedEvent> batch = new ArrayList<QueuedEvent>(maxBatchSize);
+            while (queue.drainTo(batch, maxBatchSize) > 0) {
+                dispatch(batch);
+                batch.clear();
+            }
+        } finally {
+            dispatchScheduled.set(false);
+        }
+        // An event may have been queued after the queue was found to be empty,
+        // but before the flag was cleared, without scheduling a dispatch
+        if (!queue.isEmpty()) {
+            scheduleDispatch();
+        }
+    }
+
+    private void dispatch(List<QueuedEvent> batch) {
+        long now = System.nanoTime();
+        List<DocumentModified> events = new ArrayList<DocumentModified>(batch.size());
+        for (QueuedEvent queued : batch) {
+            events.add(queued.event);
+            totalDispatchLag.addAndGet(now - queued.queuedAt);
+        }
+        // The first event has waited longest
+        long lag = now - batch.get(0).queuedAt;
+        lastDispatchLag.set(lag);
+        long max;
+        do {
+            max = maxDispatchLag.get();
+        } while (lag > max && !maxDispatchLag.compareAndSet(max, lag));
+
+        eventsDispatched.addAndGet(batch.size());
+        batchesDispatched.incrementAndGet();
+        eventBus.post(new DocumentsModified(events));
+    }
+
+    /**
+     * @return number of events waiting to be delivered
+     */
+    public int getEventsQueued() {
+        return queue.size();
+    }
+
+    /**
+     * @return number of events which have been delivered
+     */
+    public long getEventsDispatched() {
+        return eventsDispatched.get();
+    }
+
+    /**
+     * @return number of batches of events which have been delivered
+     */
+    public long getBatchesDispatched() {
+        return batchesDispatched.get();
+    }
+
+    /**
+     * @return number of events which were dropped because the queue was full
+     */
+    public long getEventsDropped() {
+        return eventsDropped.get();
+    }
+
+    /**
+     * @return time the oldest event of the last batch waited to be
+     *         delivered, in the given unit
+     */
+    public long getLastDispatchLag(TimeUnit unit) {
+        return unit.convert(lastDispatchLag.get(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return longest time any event has waited to be delivered, in the
+     *         given unit
+     */
+    public long getMaxDispatchLag(TimeUnit unit) {
+        return unit.convert(maxDispatchLag.get(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return mean time events have waited to be delivered, in the given
+     *         unit
+     */
+    public long getMeanDispatchLag(TimeUnit unit) {
+        long dispatched = eventsDispatched.get();
+        if (dispatched == 0) {
+            return 0;
+        }
+        return unit.convert(totalDispatchLag.get() / dispatched, TimeUnit.NANOSECONDS);
+    }
+
+    private static class QueuedEvent {
+        final DocumentModified event;
+        final long queuedAt;
+
+        QueuedEvent(DocumentModified event, long queuedAt) {
+            this.event = event;
+            this.queuedAt = queuedAt;
+        }
+    }
+}
@@ -150,6 +150,7 @@ class IndexCreator {
                     parameters.put("index_type", indexType);
                     parameters.put("field_name", fieldName);
                     parameters.put("last_sequence", 0);
+                    parameters.put("array_values", 0);
                     long rowId = database.insert(IndexManager.INDEX_METADATA_TABLE_NAME,
                                                  parameters);
                     if (rowId < 0) {
@@ -13,13 +13,16 @@
 //
 // The metadata for an index is represented in the database table as follows:
 //
-//   index_name  |  index_type  |  field_name  |  last_sequence
-//   -----------------------------------------------------------
-//     name      |  json        |   _id        |     0
-//     name      |  json        |   _rev       |     0
-//     name      |  json        |   firstName  |     0
-//     name      |  json        |   lastName   |     0
-//     age       |  json        |   age        |     0
+//   index_name  |  index_type  |  field_name  |  last_sequence  |  array_values
+//   ----------------------------------------------------------------------------
+//     name      |  json        |   _id        |     0           |     0
+//     name      |  json        |   _rev       |     0           |     0
+//     name      |  json        |   firstName  |     0           |     0
+//     name      |  json        |   lastName   |     0           |     1
+//     age       |  json        |   age        |     0           |     0
+//
+// array_values is 1 once a document has been indexed with an array in the field, as a field
+// with a one-element array can't be told apart from a single value in the index table.
 //
 // The index itself is a single table, with a column for docId and each of the indexed fields:
 //
@@ -37,10 +40,13 @@
 package com.cloudant.sync.query;
 
 import com.cloudant.sync.datastore.Datastore;
+import com.cloudant.sync.notifications.DocumentsModified;
+import com.cloudant.sync.notifications.DocumentsModifiedDispatcher;
 import com.cloudant.sync.sqlite.Cursor;
 import com.cloudant.sync.sqlite.SQLDatabase;
 import com.cloudant.sync.sqlite.SQLDatabaseFactory;
 import com.cloudant.sync.util.DatabaseUtils;
+import com.google.common.eventbus.Subscribe;
 
 import java.io.File;
 import java.io.IOException;
@@ -54,6 +60,9 @@ import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
@@ -76,19 +85,69 @@ public class IndexManager {
     private static final String EXTENSION_NAME = "com.cloudant.sync.query";
     private static final String INDEX_FIELD_NAME_PATTERN = "^[a-zA-Z][a-zA-Z0-9_]*$";
 
-    public static final int VERSION = 1;
+    public static final int VERSION = 2;
 
     private static final Logger logger = Logger.getLogger(IndexManager.class.getName());
 
+    /**
+     *  When to bring indexes up to date with the datastore for a query, after the
+     *  {@code update} parameter of CouchDB queries.
+     *
+     *  Unless the IndexManager was constructed without background updates, indexes are also
+     *  kept up to date as documents change, so even without updating them for a query they
+     *  are usually no more than a few changes behind.
+     */
+    public enum Update {
+        /**
+         *  Update the indexes before the query is executed, so the results include every
+         *  change made before the query. This is the default.
+         */
+        TRUE,
+        /**
+         *  Execute the query using the indexes as they are, without waiting for them to be
+         *  updated.
+         */
+        FALSE,
+        /**
+         *  Execute the query using the indexes as they are, then update them in the
+         *  background.
+         */
+        LAZY
+    }
+
     private final Datastore datastore;
     private final SQLDatabase database;
     private final Pattern validFieldName;
     private final ExecutorService queue;
+    // Kept between queries, and invalidated as indexes change
+    private final IndexStatistics statistics;
+
+    // Held while creating, deleting or updating indexes, so that updates made for queries
+    // and in the background run one at a time. Otherwise an update which read the changes
+    // earlier could overwrite a document's rows with an older revision.
+    private final Object updateLock = new Object();
+    private final ExecutorService maintenanceExecutor;
+    private final DocumentsModifiedDispatcher dispatcher;
+    private final AtomicBoolean backgroundUpdateScheduled = new AtomicBoolean(false);
+    private volatile boolean closed = false;
 
     /**
-     *  Constructs a new IndexManager which indexes documents in 'datastore'
+     *  Constructs a new IndexManager which indexes documents in 'datastore', keeping its
+     *  indexes up to date in the background as documents change.
      */
     public IndexManager(Datastore datastore) {
+        this(datastore, true);
+    }
+
+    /**
+     *  Constructs a new IndexManager which indexes documents in 'datastore'.
+     *
+     *  @param datastore the datastore whose documents are indexed
+     *  @param updateInBackground whether to keep the indexes up to date as documents change.
+     *                            Otherwise they're only updated by updateAllIndexes() and
+     *                            by queries which ask for them to be.
+     */
+    public IndexManager(Datastore datastore, boolean updateInBackground) {
         this.datastore = datastore;
         validFieldName = Pattern.compile(INDEX_FIELD_NAME_PATTERN);
         queue = Executors.newSingleThreadExecutor();
@@ -102,19 +161,61 @@ public class IndexManager {
             logger.log(Level.SEVERE, "Problem opening or creating database.", e);
         }
         database = sqlDatabase;
+        statistics = new IndexStatistics(database, queue);
         try {
             String[] schemaIndex = { "CREATE TABLE " + INDEX_METADATA_TABLE_NAME + " ( "
                                                      + "        index_name TEXT NOT NULL, "
                                                      + "        index_type TEXT NOT NULL, "
                                                      + "        field_name TEXT NOT NULL, "
                                                      + "        last_sequence INTEGER NOT NULL);" };
-            SQLDatabaseFactory.updateSchema(database, schemaIndex, VERSION);
+            SQLDatabaseFactory.updateSchema(database, schemaIndex, 1);
+            // Indexes created before array_values was added may hold arrays in any field
+            String[] schemaArrayValues = { "ALTER TABLE " + INDEX_METADATA_TABLE_NAME + " "
+                                         + "ADD COLUMN array_values INTEGER NOT NULL DEFAULT 1;" };
+            SQLDatabaseFactory.updateSchema(database, schemaArrayValues, VERSION);
         } catch (SQLException e) {
             logger.log(Level.SEVERE, "Failed to update schema.", e);
         }
+
+        // Background updates are run from their own thread, as updating an index waits for
+        // tasks it runs on the queue.
+        maintenanceExecutor = Executors.newSingleThreadExecutor();
+        if (!updateInBackground) {
+            dispatcher = null;
+            return;
+        }
+
+        // Keep the indexes up to date as documents change. Events are only a signal that
+        // there are changes to index, so they're dropped rather than slowing down writes
+        // when they arrive faster than the indexes can be updated.
+        dispatcher = new DocumentsModifiedDispatcher(datastore.getEventBus(),
+                                                     maintenanceExecutor,
+                                                     DocumentsModifiedDispatcher.DEFAULT_QUEUE_CAPACITY,
+                                                     DocumentsModifiedDispatcher.DEFAULT_MAX_BATCH_SIZE,
+                                                     DocumentsModifiedDispatcher.OverflowPolicy.DROP);
+        dispatcher.getEventBus().register(new Object() {
+            @Subscribe
+            public void onDocumentsModified(DocumentsModified event) {
+                updateIndexesInBackground();
+            }
+        });
     }
 
     public void close() {
+        closed = true;
+        if (dispatcher != null) {
+            dispatcher.close();
+        }
+        // Interrupting a background update stops it once its current step on the queue
+        // is done, so it must finish before the queue is shut down.
+        maintenanceExecutor.shutdownNow();
+        try {
+            if (!maintenanceExecutor.awaitTermination(30, TimeUnit.SECONDS)) {
+                logger.log(Level.WARNING, "Timed out waiting for background index update.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
         queue.shutdown();
         database.close();
     }
@@ -221,12 +322,16 @@ public class IndexManager {
             return null;
         }
 
-        return IndexCreator.ensureIndexed(fieldNames,
-                                          indexName,
-                                          indexType,
-                                          database,
-                                          datastore,
-                                          queue);
+        synchronized (updateLock) {
+            String name = IndexCreator.ensureIndexed(fieldNames,
+                                                     indexName,
+                                                     indexType,
+                                                     database,
+                                                     datastore,
+                                                     queue);
+            statistics.invalidate(indexName);
+            return name;
+        }
     }
 
     /**
@@ -241,6 +346,14 @@ public class IndexManager {
             return false;
         }
 
+        synchronized (updateLock) {
+            boolean success = deleteIndexNamedLocked(indexName);
+            statistics.invalidate(indexName);
+            return success;
+        }
+    }
+
+    private boolean deleteIndexNamedLocked(final String indexName) {
         Future<Boolean> result = queue.submit(new Callable<Boolean>() {
             @Override
             public Boolean call() {
@@ -291,9 +404,48 @@ public class IndexManager {
      *  @return update status as true/false
      */
     public boolean updateAllIndexes() {
-        Map<String, Object> indexes = listIndexes();
+        return updateAllIndexes(listIndexes());
+    }
+
+    private boolean updateAllIndexes(Map<String, Object> indexes) {
+        synchronized (updateLock) {
+            return IndexUpdater.updateAllIndexes(indexes, database, datastore, queue, statistics);
+        }
+    }
+
+    /**
+     *  Schedules an update of all indexes on the maintenance thread, unless one is already
+     *  waiting to run.
+     */
+    private void scheduleBackgroundUpdate() {
+        if (closed || !backgroundUpdateScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            maintenanceExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    updateIndexesInBackground();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            backgroundUpdateScheduled.set(false);
+        }
+    }
 
-        return IndexUpdater.updateAllIndexes(indexes, database, datastore, queue);
+    private void updateIndexesInBackground() {
+        backgroundUpdateScheduled.set(false);
+        if (closed) {
+            return;
+        }
+        try {
+            if (!updateAllIndexes()) {
+                logger.log(Level.WARNING, "Background index update failed.");
+            }
+        } catch (RuntimeException e) {
+            // For example, the datastore was closed
+            logger.log(Level.WARNING, "Background index update failed.", e);
+        }
     }
 
     public QueryResult find(Map<String, Object> query) {
@@ -305,19 +457,76 @@ public class IndexManager {
                             long limit,
                             List<String> fields,
                             List<Map<String, String>> sortDocument) {
+        return find(query, skip, limit, fields, sortDocument, Update.TRUE);
+    }
+
+    /**
+     *  Execute a query.
+     *
+     *  @param query the selector to match documents against
+     *  @param skip how many results to skip before returning results to caller
+     *  @param limit number of documents the result should be limited to, 0 for no limit
+     *  @param fields fields to project from the result documents, or null for all fields
+     *  @param sortDocument document specifying the order to return results, or null to
+     *                      have no sorting
+     *  @param update whether to bring the indexes up to date before executing the query
+     *  @return the query result, or null if the query is invalid or couldn't be executed
+     */
+    public QueryResult find(Map<String, Object> query,
+                            long skip,
+                            long limit,
+                            List<String> fields,
+                            List<Map<String, String>> sortDocument,
+                            Update update) {
         if (query == null) {
             logger.log(Level.SEVERE, "-find called with null selector; bailing.");
             return null;
         }
 
-        if (!updateAllIndexes()) {
+        Map<String, Object> indexes = listIndexes();
+
+        if (update == Update.TRUE && !updateAllIndexes(indexes)) {
+            return null;
+        }
+
+        QueryExecutor queryExecutor = new QueryExecutor(database, datastore, queue, statistics);
+        QueryResult result = queryExecutor.find(query, indexes, skip, limit, fields, sortDocument);
+
+        if (update == Update.LAZY) {
+            scheduleBackgroundUpdate();
+        }
+
+        return result;
+    }
+
+    /**
+     *  Explain how a query would be executed, without executing it.
+     *
+     *  The result has the normalised "selector", whether "indexesCoverQuery" (if not, each
+     *  candidate document is loaded and matched against the selector) and the "plan": a
+     *  tree of "$and" and "$or" nodes whose leaves are the SQL queries run, each with the
+     *  "index" it uses and the "estimatedRows" it returns. The branches of an "$and" are
+     *  run in the order given, except that those which are SQL queries are run first as
+     *  the single statement in its "intersection".
+     *
+     *  @param query query to explain
+     *  @return the query plan, or null if the query is invalid
+     */
+    public Map<String, Object> explain(Map<String, Object> query) {
+        if (query == null) {
+            logger.log(Level.SEVERE, "-explain called with null selector; bailing.");
             return null;
         }
 
-        QueryExecutor queryExecutor = new QueryExecutor(database, datastore, queue);
         Map<String, Object> indexes = listIndexes();
 
-        return queryExecutor.find(query, indexes, skip, limit, fields, sortDocument);
+        if (!updateAllIndexes(indexes)) {
+            return null;
+        }
+
+        QueryExecutor queryExecutor = new QueryExecutor(database, datastore, queue, statistics);
+
+        return queryExecutor.explain(query, indexes);
     }
 
     protected static String tableNameForIndex(String indexName) {
@@ -0,0 +1,194 @@
+//  Copyright (c) 2015 Cloudant. All rights reserved.
+//
+//  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+//  except in compliance with the License. You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software distributed under the
+//  License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+//  either express or implied. See the License for the specific language governing permissions
+//  and limitations under the License.
+
+package com.cloudant.sync.query;
+
+import com.cloudant.sync.datastore.DocumentBodyFactory;
+import com.cloudant.sync.datastore.DocumentRevision;
+import com.cloudant.sync.sqlite.Cursor;
+import com.cloudant.sync.sqlite.SQLDatabase;
+import com.cloudant.sync.util.DatabaseUtils;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ *  Builds projected revisions from the values stored in an index table, so that documents
+ *  whose projected fields are all in the index needn't be loaded from the datastore.
+ *
+ *  Only values which the index holds exactly are used. A document isn't projected from the
+ *  index, and must be loaded instead, if it has more than one row in the index (one of its
+ *  indexed fields is an array) or any of its projected fields isn't a string in the index:
+ *  booleans are indexed as integers, and a NULL can be either a missing field or a null
+ *  value, so neither can be told apart in the index. Nothing is projected from the index if
+ *  any projected field has held an array, as a one-element array has a single row holding
+ *  its element, which can't be told apart from a string value.
+ */
+class IndexProjector {
+
+    private final SQLDatabase database;
+    private final ExecutorService queue;
+    private final String indexName;
+    private final String tableName;
+    private final List<String> fields;
+
+    private static final Logger logger = Logger.getLogger(IndexProjector.class.getName());
+
+    /**
+     *  @param database database containing the index
+     *  @param queue executor which the index database is accessed on
+     *  @param indexName name of an index containing all of 'fields'
+     *  @param fields fields to project
+     */
+    IndexProjector(SQLDatabase database,
+                   ExecutorService queue,
+                   String indexName,
+                   List<String> fields) {
+        this.database = database;
+        this.queue = queue;
+        this.indexName = indexName;
+        this.tableName = IndexManager.tableNameForIndex(indexName);
+        this.fields = new ArrayList<String>();
+        for (String field: fields) {
+            // _id and _rev are attributes of the revision, so aren't part of the body
+            if (!field.equals("_id") && !field.equals("_rev") && !this.fields.contains(field)) {
+                this.fields.add(field);
+            }
+        }
+    }
+
+    /**
+     *  Returns projected revisions for the documents in 'docIds' which can be projected
+     *  from the index, keyed by document ID. Documents which can't be projected from the
+     *  index aren't in the result.
+     */
+    Map<String, DocumentRevision> projectFromIndex(final List<String> docIds) {
+        if (docIds.isEmpty()) {
+            return Collections.emptyMap();
+        }
+
+        Future<Map<String, DocumentRevision>> result;
+        result = queue.submit(new Callable<Map<String, DocumentRevision>>() {
+            @Override
+            public Map<String, DocumentRevision> call() {
+                return readRevisions(docIds);
+            }
+        });
+
+        try {
+            return result.get();
+        } catch (ExecutionException e) {
+            logger.log(Level.SEVERE, "Execution error reading projected fields:", e);
+        } catch (InterruptedException e) {
+            logger.log(Level.SEVERE, "Execution interrupted reading projected fields:", e);
+        }
+        return Collections.emptyMap();
+    }
+
+    private Map<String, DocumentRevision> readRevisions(List<String> docIds) {
+        if (!fields.isEmpty() && hasArrayFields()) {
+            return Collections.emptyMap();
+        }
+
+        StringBuilder columns = new StringBuilder("_id, _rev");
+        for (String field: fields) {
+            columns.append(String.format(", \"%s\"", field));
+        }
+        String sql = String.format("SELECT %s FROM %s WHERE _id IN (%s)",
+                                   columns,
+                                   tableName,
+                                   DatabaseUtils.makePlaceholders(docIds.size()));
+
+        Map<String, DocumentRevision> revisions = new HashMap<String, DocumentRevision>();
+        Set<String> unprojectable = new HashSet<String>();
+        Cursor cursor = null;
+        try {
+            cursor = database.rawQuery(sql, docIds.toArray(new String[docIds.size()]));
+            while (cursor.moveToNext()) {
+                String docId = cursor.getString(0);
+                if (unprojectable.contains(docId)) {
+                    continue;
+                }
+                Map<String, Object> body = readBody(cursor);
+                if (body == null || revisions.containsKey(docId)) {
+                    revisions.remove(docId);
+                    unprojectable.add(docId);
+                    continue;
+                }
+                revisions.put(docId, new ProjectedDocumentRevision(docId,
+                        cursor.getString(1),
+                        DocumentBodyFactory.create(body)));
+            }
+        } catch (SQLException e) {
+            logger.log(Level.SEVERE, "Failed to read projected fields from index.", e);
+            return Collections.emptyMap();
+        } finally {
+            DatabaseUtils.closeCursorQuietly(cursor);
+        }
+
+        return revisions;
+    }
+
+    /**
+     *  Returns whether any of the fields has held an array in the index, or true if that
+     *  can't be read.
+     */
+    private boolean hasArrayFields() {
+        String sql = String.format("SELECT COUNT(*) FROM %s WHERE index_name = ? "
+                                   + "AND array_values != 0 AND field_name IN (%s)",
+                                   IndexManager.INDEX_METADATA_TABLE_NAME,
+                                   DatabaseUtils.makePlaceholders(fields.size()));
+        List<String> args = new ArrayList<String>();
+        args.add(indexName);
+        args.addAll(fields);
+
+        Cursor cursor = null;
+        try {
+            cursor = database.rawQuery(sql, args.toArray(new String[args.size()]));
+            return !cursor.moveToNext() || cursor.getInt(0) > 0;
+        } catch (SQLException e) {
+            logger.log(Level.SEVERE, "Failed to read array fields of index.", e);
+            return true;
+        } finally {
+            DatabaseUtils.closeCursorQuietly(cursor);
+        }
+    }
+
+    /**
+     *  Returns the projected body held in the cursor's current row, or null if any of the
+     *  fields can't be read exactly from the index.
+     */
+    private Map<String, Object> readBody(Cursor cursor) {
+        Map<String, Object> body = new HashMap<String, Object>();
+        for (int i = 0; i < fields.size(); i++) {
+            int column = i + 2;
+            if (cursor.columnType(column) != Cursor.FIELD_TYPE_STRING) {
+                return null;
+            }
+            body.put(fields.get(i), cursor.getString(column));
+        }
+        return body;
+    }
+
+}
@@ -0,0 +1,241 @@
+//  Copyright (c) 2015 Cloudant. All rights reserved.
+//
+//  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+//  except in compliance with the License. You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software distributed under the
+//  License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+//  either express or implied. See the License for the specific language governing permissions
+//  and limitations under the License.
+
+package com.cloudant.sync.query;
+
+import com.cloudant.sync.sqlite.Cursor;
+import com.cloudant.sync.sqlite.SQLDatabase;
+import com.cloudant.sync.util.DatabaseUtils;
+
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ *  Statistics about the contents of index tables, used to estimate the cost of a query
+ *  plan when choosing between indexes and ordering the branches of an AND.
+ *
+ *  Row counts are exact. The share of rows with a value for a field, and the number of
+ *  distinct values of that field, are estimated from a sample of the table's rows.
+ *  Statistics are read when first needed and cached until the index is invalidated, which
+ *  is done whenever the index is updated with new changes, so an instance is shared by
+ *  all the queries of an IndexManager, whichever thread they run on.
+ *
+ *  The index database is read on 'queue', so the methods mustn't be called from a task
+ *  running on that queue.
+ */
+class IndexStatistics {
+
+    private static final int SAMPLE_SIZE = 1000;
+
+    // Without knowing how values are distributed, a range matches about a third of them
+    private static final double RANGE_SELECTIVITY = 1.0 / 3.0;
+
+    private final SQLDatabase database;
+    private final ExecutorService queue;
+    private final Map<String, Long> rowCounts;
+    // Statistics of each field, by index name
+    private final Map<String, Map<String, FieldStatistics>> fieldStatistics;
+
+    private static final Logger logger = Logger.getLogger(IndexStatistics.class.getName());
+
+    IndexStatistics(SQLDatabase database, ExecutorService queue) {
+        this.database = database;
+        this.queue = queue;
+        this.rowCounts = new HashMap<String, Long>();
+        this.fieldStatistics = new HashMap<String, Map<String, FieldStatistics>>();
+    }
+
+    /**
+     *  Discards the statistics of an index, so they're read again when next needed.
+     */
+    synchronized void invalidate(String indexName) {
+        rowCounts.remove(indexName);
+        fieldStatistics.remove(indexName);
+    }
+
+    /**
+     *  Returns the number of rows in the table of an index, or 0 if it can't be read.
+     */
+    synchronized long rowCount(final String indexName) {
+        Long rowCount = rowCounts.get(indexName);
+        if (rowCount == null) {
+            rowCount = read(new Callable<Long>() {
+                @Override
+                public Long call() throws SQLException {
+                    String sql = String.format("SELECT COUNT(*) FROM %s",
+                                               IndexManager.tableNameForIndex(indexName));
+                    Cursor cursor = null;
+                    try {
+                        cursor = database.rawQuery(sql, new String[]{});
+                        return cursor.moveToFirst() ? cursor.getLong(0) : 0L;
+                    } finally {
+                        DatabaseUtils.closeCursorQuietly(cursor);
+                    }
+                }
+            }, 0L);
+            rowCounts.put(indexName, rowCount);
+        }
+        return rowCount;
+    }
+
+    /**
+     *  Estimates the cost of scanning the table of an index, as the number of values read.
+     *
+     *  Index tables are queried by scanning them, as their SQL index is led by _id, so
+     *  every query over an index reads all of its rows and columns.
+     */
+    double scanCost(String indexName, int fieldCount) {
+        return (double) rowCount(indexName) * fieldCount;
+    }
+
+    /**
+     *  Estimates the number of rows of an index table which match all the clauses of an
+     *  AND.
+     *
+     *  @param indexName index whose table the clauses are matched against
+     *  @param clause list of '{ "fieldName": { "$operator": value } }' predicates
+     */
+    @SuppressWarnings("unchecked")
+    double estimateRows(String indexName, List<Object> clause) {
+        double selectivity = 1.0;
+        for (Object rawComponent: clause) {
+            Map<String, Object> component = (Map<String, Object>) rawComponent;
+            String fieldName = (String) component.keySet().toArray()[0];
+            Object predicate = component.get(fieldName);
+            if (predicate instanceof Map) {
+                selectivity *= selectivity(indexName, fieldName, (Map<String, Object>) predicate);
+            }
+        }
+        return rowCount(indexName) * selectivity;
+    }
+
+    /**
+     *  Estimates the share of an index table's rows which match a predicate on a field.
+     *  Predicates on different fields are assumed to be independent.
+     */
+    @SuppressWarnings("unchecked")
+    private double selectivity(String indexName, String fieldName, Map<String, Object> predicate) {
+        if (predicate.size() != 1) {
+            return 1.0;
+        }
+        String operator = (String) predicate.keySet().toArray()[0];
+        Object value = predicate.get(operator);
+
+        if (operator.equals("$not") && value instanceof Map) {
+            return 1.0 - selectivity(indexName, fieldName, (Map<String, Object>) value);
+        }
+
+        FieldStatistics field = fieldStatistics(indexName, fieldName);
+        if (operator.equals("$eq")) {
+            return field.valueFraction / field.distinctValues;
+        } else if (operator.equals("$ne")) {
+            return field.valueFraction * (1.0 - 1.0 / field.distinctValues);
+        } else if (operator.equals("$gt") || operator.equals("$gte") ||
+                   operator.equals("$lt") || operator.equals("$lte")) {
+            return field.valueFraction * RANGE_SELECTIVITY;
+        } else if (operator.equals("$exists")) {
+            return Boolean.FALSE.equals(value) ? 1.0 - field.valueFraction : field.valueFraction;
+        }
+        return 1.0;
+    }
+
+    private synchronized FieldStatistics fieldStatistics(final String indexName,
+                                                         final String fieldName) {
+        Map<String, FieldStatistics> fields = fieldStatistics.get(indexName);
+        if (fields == null) {
+            fields = new HashMap<String, FieldStatistics>();
+            fieldStatistics.put(indexName, fields);
+        }
+        FieldStatistics statistics = fields.get(fieldName);
+        if (statistics == null) {
+            final long rowCount = rowCount(indexName);
+            statistics = read(new Callable<FieldStatistics>() {
+                @Override
+                public FieldStatistics call() throws SQLException {
+                    String sql = String.format("SELECT COUNT(*), COUNT(\"%1$s\"), " +
+                                               "COUNT(DISTINCT \"%1$s\") FROM " +
+                                               "(SELECT \"%1$s\" FROM %2$s LIMIT %3$d)",
+                                               fieldName,
+                                               IndexManager.tableNameForIndex(indexName),
+                                               SAMPLE_SIZE);
+                    Cursor cursor = null;
+                    try {
+                        cursor = database.rawQuery(sql, new String[]{});
+                        if (!cursor.moveToFirst()) {
+                            return FieldStatistics.UNKNOWN;
+                        }
+                        return FieldStatistics.fromSample(rowCount,
+                                                          cursor.getLong(0),
+                                                          cursor.getLong(1),
+                                                          cursor.getLong(2));
+                    } finally {
+                        DatabaseUtils.closeCursorQuietly(cursor);
+                    }
+                }
+            }, FieldStatistics.UNKNOWN);
+            fields.put(fieldName, statistics);
+        }
+        return statistics;
+    }
+
+    private <T> T read(Callable<T> callable, T defaultValue) {
+        Future<T> result = queue.submit(callable);
+        try {
+            return result.get();
+        } catch (ExecutionException e) {
+            logger.log(Level.SEVERE, "Execution error reading index statistics:", e);
+        } catch (InterruptedException e) {
+            logger.log(Level.SEVERE, "Execution interrupted reading index statistics:", e);
+        }
+        return defaultValue;
+    }
+
+    private static class FieldStatistics {
+
+        static final FieldStatistics UNKNOWN = new FieldStatistics(1.0, 1.0);
+
+        // Share of rows where the field has a value
+        final double valueFraction;
+        // Estimated number of distinct values of the field, at least 1
+        final double distinctValues;
+
+        private FieldStatistics(double valueFraction, double distinctValues) {
+            this.valueFraction = valueFraction;
+            this.distinctValues = distinctValues;
+        }
+
+        static FieldStatistics fromSample(long rowCount,
+                                          long sampledRows,
+                                          long sampledValues,
+                                          long sampledDistinctValues) {
+            if (sampledRows == 0 || sampledValues == 0) {
+                return new FieldStatistics(sampledRows == 0 ? 1.0 : 0.0, 1.0);
+            }
+            double valueFraction = (double) sampledValues / sampledRows;
+            double distinctValues = sampledDistinctValues;
+            if (sampledRows < rowCount && sampledDistinctValues == sampledValues) {
+                // Every value in the sample was different, so assume they all are
+                distinctValues = rowCount * valueFraction;
+            }
+            return new FieldStatistics(valueFraction, Math.max(distinctValues, 1.0));
+        }
+    }
+
+}
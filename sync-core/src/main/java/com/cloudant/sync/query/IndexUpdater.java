@@ -19,11 +19,16 @@ import com.cloudant.sync.sqlite.ContentValues;
 import com.cloudant.sync.sqlite.Cursor;
 import com.cloudant.sync.sqlite.SQLDatabase;
 import com.cloudant.sync.util.DatabaseUtils;
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
 
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
@@ -33,6 +38,10 @@ import java.util.logging.Logger;
 
 /**
  *  Handles updating indexes for a given datastore.
+ *
+ *  Updates of the same index database mustn't run at the same time, as an update which read
+ *  the changes earlier could overwrite a document's rows with an older revision. IndexManager
+ *  runs them one at a time.
  */
 class IndexUpdater {
 
@@ -41,16 +50,37 @@ class IndexUpdater {
 
     private final ExecutorService queue;
 
+    // Statistics to invalidate when an index changes, or null
+    private final IndexStatistics statistics;
+
     private static final Logger logger = Logger.getLogger(IndexUpdater.class.getName());
 
+    /**
+     *  Number of revisions whose index rows are deleted by a single statement. This is kept
+     *  well below SQLite's default limit of 999 placeholders in one statement.
+     */
+    private static final int BATCH_SIZE = 500;
+
     /**
      *  Constructs a new CDTQQueryExecutor using the indexes in 'database' to index documents from
      *  'datastore'.
      */
     public IndexUpdater(SQLDatabase database, Datastore datastore, ExecutorService queue) {
+        this(database, datastore, queue, null);
+    }
+
+    /**
+     *  Constructs a new IndexUpdater which invalidates the 'statistics' of each index it
+     *  adds changes to.
+     */
+    public IndexUpdater(SQLDatabase database,
+                        Datastore datastore,
+                        ExecutorService queue,
+                        IndexStatistics statistics) {
         this.datastore = datastore;
         this.database = database;
         this.queue = queue;
+        this.statistics = statistics;
     }
 
     /**
@@ -68,7 +98,21 @@ class IndexUpdater {
                                            SQLDatabase database,
                                            Datastore datastore,
                                            ExecutorService queue) {
-        IndexUpdater updater = new IndexUpdater(database, datastore, queue);
+        return updateAllIndexes(indexes, database, datastore, queue, null);
+    }
+
+    /**
+     *  Update all indexes in a set, invalidating the statistics of each index which changes.
+     *
+     *  @param statistics statistics of the indexes, or null
+     *  @see IndexUpdater#updateAllIndexes(Map, SQLDatabase, Datastore, ExecutorService)
+     */
+    public static boolean updateAllIndexes(Map<String, Object> indexes,
+                                           SQLDatabase database,
+                                           Datastore datastore,
+                                           ExecutorService queue,
+                                           IndexStatistics statistics) {
+        IndexUpdater updater = new IndexUpdater(database, datastore, queue, statistics);
 
         return updater.updateAllIndexes(indexes);
     }
@@ -114,6 +158,7 @@ class IndexUpdater {
     private boolean updateIndex(String indexName, List<String> fieldNames) {
         boolean success;
         Changes changes;
+
         long lastSequence = sequenceNumberForIndex(indexName);
 
         do {
@@ -143,39 +188,40 @@ class IndexUpdater {
             public Boolean call() {
                 boolean transactionSuccess = true;
                 database.beginTransaction();
-                for (BasicDocumentRevision rev: changes.getResults()) {
-                    // Delete existing values
+                try {
                     String tableName = IndexManager.tableNameForIndex(indexName);
-                    database.delete(tableName, " _id = ? ", new String[]{rev.getId()});
-
-                    // Insert new values if the rev isn't deleted
-                    if (!rev.isDeleted()) {
-                        // If we are indexing a document where one field is an array, we
-                        // have multiple rows to insert into the index.
-                        List<DBParameter> parameters = parametersToIndexRevision(rev,
-                                                                                 indexName,
-                                                                                 fieldNames);
-                        if (parameters == null) {
-                            continue;
-                        }
-                        for (DBParameter parameter: parameters) {
-                            if (parameter != null) {
-                                long rowId = database.insert(parameter.tableName,
-                                                             parameter.contentValues);
-                                if (rowId < 0) {
-                                    transactionSuccess = false;
-                                }
+                    Map<List<String>, String> insertStatements = new HashMap<List<String>, String>();
+                    Set<String> arrayFields = new HashSet<String>();
+                    for (List<BasicDocumentRevision> batch :
+                            Lists.partition(changes.getResults(), BATCH_SIZE)) {
+                        // Delete existing values
+                        deleteRows(tableName, batch);
+
+                        // Insert new values if the rev isn't deleted
+                        for (BasicDocumentRevision rev : batch) {
+                            if (rev.isDeleted()) {
+                                continue;
                             }
-                            if (!transactionSuccess) {
-                                String msg = String.format("Updating index %s failed.", indexName);
-                                logger.log(Level.SEVERE, msg);
-                                break;
+                            // If we are indexing a document where one field is an array, we
+                            // have multiple rows to insert into the index.
+                            List<DBParameter> parameters = parametersToIndexRevision(rev,
+                                                                                     indexName,
+                                                                                     fieldNames,
+                                                                                     arrayFields);
+                            if (parameters == null) {
+                                continue;
+                            }
+                            for (DBParameter parameter : parameters) {
+                                insertRow(parameter, insertStatements);
                             }
                         }
                     }
-                    if (!transactionSuccess) {
-                        break;
-                    }
+
+                    markArrayFields(indexName, arrayFields);
+                } catch (SQLException e) {
+                    String msg = String.format("Updating index %s failed.", indexName);
+                    logger.log(Level.SEVERE, msg, e);
+                    transactionSuccess = false;
                 }
                 if (transactionSuccess) {
                     database.setTransactionSuccessful();
@@ -202,20 +248,83 @@ class IndexUpdater {
             success = updateMetadataForIndex(indexName, lastSequence);
         }
 
+        if (statistics != null && changes.size() > 0) {
+            statistics.invalidate(indexName);
+        }
+
         return success;
     }
 
     /**
-     *  Returns a List of DBParameters containing table name and ContentValues to index
+     *  Deletes the index rows for a batch of revisions with a single statement.
+     */
+    private void deleteRows(String tableName, List<BasicDocumentRevision> revs)
+            throws SQLException {
+        String[] ids = new String[revs.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = revs.get(i).getId();
+        }
+        String sql = String.format("DELETE FROM %s WHERE _id IN (%s)",
+                                   tableName,
+                                   DatabaseUtils.makePlaceholders(ids.length));
+        database.execSQL(sql, ids);
+    }
+
+    /**
+     *  Inserts a row into an index.
+     *
+     *  Rows for the same table and set of columns share the same SQL, built once per update
+     *  and kept in insertStatements, so the database can reuse the compiled statement.
+     */
+    private void insertRow(DBParameter parameter, Map<List<String>, String> insertStatements)
+            throws SQLException {
+        String sql = insertStatements.get(parameter.columnNames);
+        if (sql == null) {
+            sql = String.format("INSERT INTO %s ( %s ) VALUES ( %s )",
+                                parameter.tableName,
+                                Joiner.on(", ").join(parameter.columnNames),
+                                DatabaseUtils.makePlaceholders(parameter.columnNames.size()));
+            insertStatements.put(parameter.columnNames, sql);
+        }
+        database.execSQL(sql, parameter.values);
+    }
+
+    /**
+     *  Records in the metadata that fields of an index have held arrays, so they aren't
+     *  projected from the index. The mark is kept when the documents change, as there's
+     *  no cheap way to tell whether any other document still has an array in the field.
+     */
+    private void markArrayFields(String indexName, Set<String> arrayFields)
+            throws SQLException {
+        for (String fieldName: arrayFields) {
+            ContentValues v = new ContentValues();
+            v.put("array_values", 1);
+            int row = database.update(IndexManager.INDEX_METADATA_TABLE_NAME,
+                                      v,
+                                      "index_name = ? AND field_name = ?",
+                                      new String[]{ indexName, fieldName });
+            if (row <= 0) {
+                String msg = String.format("Failed to mark field %s of index %s as an array",
+                                           fieldName,
+                                           indexName);
+                throw new SQLException(msg);
+            }
+        }
+    }
+
+    /**
+     *  Returns a List of DBParameters containing table name, columns and values to index
      *  a document in an index.
      *
      *  For most revisions, a single entry will be returned. If a field
-     *  is an array, however, multiple entries are required.
+     *  is an array, however, multiple entries are required, and the field is added to
+     *  'arrayFields'.
      */
     @SuppressWarnings("unchecked")
     private List<DBParameter> parametersToIndexRevision (BasicDocumentRevision rev,
                                                          String indexName,
-                                                         List<String> fieldNames) {
+                                                         List<String> fieldNames,
+                                                         Set<String> arrayFields) {
         if (rev == null) {
             return null;
         }
@@ -270,6 +379,7 @@ class IndexUpdater {
             parameters.add(parameter);
         } else if (arrayFieldName != null) {
             // We know the value is an array, we found this out in the check above
+            arrayFields.add(arrayFieldName);
             List<Object> arrayFieldValues;
             arrayFieldValues = (ArrayList) ValueExtractor.extractValueForFieldName(arrayFieldName,
                                                                                    rev.getBody());
@@ -330,38 +440,22 @@ class IndexUpdater {
             }
         }
 
-        ContentValues contentValues = new ContentValues();
-        int argIndex = 0;
-        for (String fieldName: includeFieldNames) {
-            fieldName = String.format("\"%s\"", fieldName);
-            Object argument = args.get(argIndex);
-            if (argument instanceof Boolean) {
-                contentValues.put(fieldName, (Boolean) argument);
-            } else if (argument instanceof Byte) {
-                contentValues.put(fieldName, (Byte) argument);
-            } else if (argument instanceof byte[]) {
-                contentValues.put(fieldName, (byte[]) argument);
-            } else if (argument instanceof Double) {
-                contentValues.put(fieldName, (Double) argument);
-            } else if (argument instanceof Float) {
-                contentValues.put(fieldName, (Float) argument);
-            } else if (argument instanceof Integer) {
-                contentValues.put(fieldName, (Integer) argument);
-            } else if (argument instanceof Long) {
-                contentValues.put(fieldName, (Long) argument);
-            } else if (argument instanceof Short) {
-                contentValues.put(fieldName, (Short) argument);
-            } else if (argument instanceof String) {
-                contentValues.put(fieldName, (String) argument);
-            } else {
+        List<String> columnNames = new ArrayList<String>(includeFieldNames.size());
+        for (int i = 0; i < includeFieldNames.size(); i++) {
+            Object argument = args.get(i);
+            if (!(argument instanceof Boolean || argument instanceof Byte ||
+                  argument instanceof byte[] || argument instanceof Double ||
+                  argument instanceof Float || argument instanceof Integer ||
+                  argument instanceof Long || argument instanceof Short ||
+                  argument instanceof String)) {
                 logger.log(Level.SEVERE, "Invalid argument type.");
                 return null;
             }
-            argIndex = argIndex + 1;
+            columnNames.add(String.format("\"%s\"", includeFieldNames.get(i)));
         }
         String tableName = IndexManager.tableNameForIndex(indexName);
 
-        return new DBParameter(tableName, contentValues);
+        return new DBParameter(tableName, columnNames, args.toArray());
     }
 
     private long sequenceNumberForIndex(final String indexName) {
@@ -434,11 +528,13 @@ class IndexUpdater {
 
     private class DBParameter {
         private final String tableName;
-        private final ContentValues contentValues;
+        private final List<String> columnNames;
+        private final Object[] values;
 
-        public DBParameter(String tableName, ContentValues contentValues) {
+        public DBParameter(String tableName, List<String> columnNames, Object[] values) {
             this.tableName = tableName;
-            this.contentValues = contentValues;
+            this.columnNames = columnNames;
+            this.values = values;
         }
     }
 
@@ -0,0 +1,66 @@
+//  Copyright (c) 2015 Cloudant. All rights reserved.
+//
+//  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+//  except in compliance with the License. You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software distributed under the
+//  License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+//  either express or implied. See the License for the specific language governing permissions
+//  and limitations under the License.
+
+package com.cloudant.sync.query;
+
+import com.cloudant.sync.datastore.Attachment;
+import com.cloudant.sync.datastore.DocumentBody;
+import com.cloudant.sync.datastore.DocumentRevision;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ *  A revision returned by a query with a projection, whose body only contains the
+ *  projected fields.
+ *
+ *  As the body isn't the full body of the revision, it has no attachments and can't be
+ *  used to update the document.
+ */
+class ProjectedDocumentRevision implements DocumentRevision {
+
+    private final String id;
+    private final String revision;
+    private final DocumentBody body;
+
+    ProjectedDocumentRevision(String id, String revision, DocumentBody body) {
+        this.id = id;
+        this.revision = revision;
+        this.body = body;
+    }
+
+    @Override
+    public String getId() {
+        return id;
+    }
+
+    @Override
+    public String getRevision() {
+        return revision;
+    }
+
+    @Override
+    public DocumentBody getBody() {
+        return body;
+    }
+
+    @Override
+    public Map<String, Attachment> getAttachments() {
+        return Collections.emptyMap();
+    }
+
+    @Override
+    public String toString() {
+        return "{ id: " + id + ", rev: " + revision + " }";
+    }
+
+}
@@ -13,16 +13,26 @@
 package com.cloudant.sync.query;
 
 import com.cloudant.sync.datastore.Datastore;
+import com.cloudant.sync.datastore.DocumentRevision;
 import com.cloudant.sync.sqlite.Cursor;
 import com.cloudant.sync.sqlite.SQLDatabase;
 import com.cloudant.sync.util.DatabaseUtils;
-import com.google.common.collect.Sets;
+import com.google.common.base.Joiner;
 
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
@@ -39,6 +49,13 @@ class QueryExecutor {
     private final SQLDatabase database;
     private final Datastore datastore;
     private final ExecutorService queue;
+    private final IndexStatistics statistics;
+
+    // Result sets smaller than this are sorted by selecting their ids from an index;
+    // larger ones by reading the whole index, to keep below SQLite's placeholder limit.
+    private static final int SMALL_RESULT_SET_SIZE_THRESHOLD = 500;
+
+    private static final int SORT_BATCH_SIZE = 50;
 
     private static final Logger logger = Logger.getLogger(QueryExecutor.class.getName());
 
@@ -47,9 +64,21 @@ class QueryExecutor {
      *  'datastore'.
      */
     QueryExecutor(SQLDatabase database, Datastore datastore, ExecutorService queue) {
+        this(database, datastore, queue, new IndexStatistics(database, queue));
+    }
+
+    /**
+     *  Constructs a new QueryExecutor which plans queries using 'statistics', which are kept
+     *  between queries.
+     */
+    QueryExecutor(SQLDatabase database,
+                  Datastore datastore,
+                  ExecutorService queue,
+                  IndexStatistics statistics) {
         this.database = database;
         this.datastore = datastore;
         this.queue = queue;
+        this.statistics = statistics;
     }
 
     /**
@@ -105,6 +134,11 @@ class QueryExecutor {
             return null;
         }
 
+        final UnindexedMatcher matcher = matcherForIndexCoverage(indexesCoverQuery, query);
+
+        // Sorting only needs to order the documents which can be returned
+        final long sortLimit = limit > 0 ? skip + limit : 0;
+
         Future<List<String>> result = queue.submit(new Callable<List<String>>() {
             @Override
             public List<String> call() throws Exception {
@@ -112,8 +146,13 @@ class QueryExecutor {
                 List<String> docIdList;
 
                 // sorting
-                if (sortDocument != null && !sortDocument.isEmpty()) {
-                    docIdList = sortIds(docIdSet, sortDocument, indexes, database);
+                if (docIdSet != null && sortDocument != null && !sortDocument.isEmpty()) {
+                    docIdList = sortIds(docIdSet,
+                                        sortDocument,
+                                        indexes,
+                                        database,
+                                        sortLimit,
+                                        matcher);
                 } else {
                     docIdList = docIdSet != null ? new ArrayList<String>(docIdSet) : null;
                 }
@@ -137,8 +176,6 @@ class QueryExecutor {
             return null;
         }
 
-        UnindexedMatcher matcher = matcherForIndexCoverage(indexesCoverQuery, query);
-
         if (matcher != null) {
             String msg = "Query could not be executed using indexes alone; falling back to ";
             msg += "filtering documents themselves. This will be VERY SLOW as each candidate ";
@@ -146,7 +183,99 @@ class QueryExecutor {
             logger.log(Level.WARNING, msg);
         }
 
-        return new QueryResult(docIds, datastore, fields, skip, limit, matcher);
+        IndexProjector projector = null;
+        if (fields != null && matcher == null) {
+            projector = projectorForFields(fields, indexes);
+        }
+
+        return new QueryResult(docIds, datastore, fields, skip, limit, matcher, projector);
+    }
+
+    /**
+     *  Returns a projector reading 'fields' from an index containing all of them, or null
+     *  if there is no such index.
+     */
+    private IndexProjector projectorForFields(List<String> fields, Map<String, Object> indexes) {
+        if (indexes == null || indexes.isEmpty()) {
+            return null;
+        }
+
+        Set<String> neededFields = new HashSet<String>(fields);
+        String chosenIndex = QuerySqlTranslator.chooseIndexForFields(neededFields, indexes);
+        if (chosenIndex == null) {
+            return null;
+        }
+
+        return new IndexProjector(database, queue, chosenIndex, fields);
+    }
+
+    /**
+     *  Returns the plan used to execute a query, without executing it.
+     *
+     *  The plan is a tree of maps. The "$and" and "$or" keys of a node hold a list of its
+     *  branches, whose results are intersected or unioned. The branches of an "$and" are
+     *  executed in order; where several of them are SQL queries, those are run as a
+     *  single statement, given by the node's "intersection". A leaf is a SQL query, with
+     *  the "index" it selects from (absent for unions over several indexes), the "sql" and
+     *  its "args", and the "estimatedRows" it returns.
+     *
+     *  @param query query to explain.
+     *  @param indexes indexes to use (this method will select the most appropriate).
+     *  @return map with the normalised "selector", the "plan" and whether "indexesCoverQuery",
+     *          that is, whether the results are found using the indexes alone, without
+     *          matching documents against the selector; null if the query is invalid.
+     */
+    public Map<String, Object> explain(Map<String, Object> query, Map<String, Object> indexes) {
+        query = QueryValidator.normaliseAndValidateQuery(query);
+
+        if (query == null) {
+            return null;
+        }
+
+        Boolean[] indexesCoverQuery = new Boolean[]{ false };
+        ChildrenQueryNode root = translateQuery(query, indexes, indexesCoverQuery);
+
+        if (root == null) {
+            return null;
+        }
+
+        Map<String, Object> explanation = new HashMap<String, Object>();
+        explanation.put("selector", query);
+        explanation.put("indexesCoverQuery", indexesCoverQuery[0]);
+        explanation.put("plan", explainNode(root));
+        return explanation;
+    }
+
+    private static Map<String, Object> explainNode(QueryNode node) {
+        Map<String, Object> explanation = new LinkedHashMap<String, Object>();
+        if (node instanceof ChildrenQueryNode) {
+            List<Object> children = new ArrayList<Object>();
+            for (QueryNode child: ((ChildrenQueryNode) node).children) {
+                children.add(explainNode(child));
+            }
+            explanation.put(node instanceof OrQueryNode ? "$or" : "$and", children);
+            if (node instanceof AndQueryNode) {
+                SqlParts intersection = intersectionForAndNode((AndQueryNode) node,
+                                                               new ArrayList<QueryNode>());
+                if (intersection != null) {
+                    Map<String, Object> sql = new LinkedHashMap<String, Object>();
+                    sql.put("sql", intersection.sqlWithPlaceHolders);
+                    sql.put("args", Arrays.asList(intersection.placeHolderValues));
+                    explanation.put("intersection", sql);
+                }
+            }
+        } else if (node instanceof SqlQueryNode) {
+            SqlQueryNode sqlNode = (SqlQueryNode) node;
+            if (sqlNode.indexName != null) {
+                explanation.put("index", sqlNode.indexName);
+            }
+            explanation.put("sql", sqlNode.sql.sqlWithPlaceHolders);
+            explanation.put("args", Arrays.asList(sqlNode.sql.placeHolderValues));
+            if (sqlNode.estimatedRows >= 0) {
+                explanation.put("estimatedRows", Math.round(sqlNode.estimatedRows));
+            }
+        }
+        return explanation;
     }
 
     protected ChildrenQueryNode translateQuery(Map<String, Object> query,
@@ -154,7 +283,8 @@ class QueryExecutor {
                                                Boolean[] indexesCoverQuery) {
         return (ChildrenQueryNode) QuerySqlTranslator.translateQuery(query,
                                                                      indexes,
-                                                                     indexesCoverQuery);
+                                                                     indexesCoverQuery,
+                                                                     statistics);
     }
 
     protected UnindexedMatcher matcherForIndexCoverage(Boolean[] indexesCoverQuery,
@@ -199,47 +329,114 @@ class QueryExecutor {
         if (node instanceof AndQueryNode) {
             Set<String> accumulator = null;
 
-            AndQueryNode andNode = (AndQueryNode) node;
-            for (QueryNode qNode: andNode.children) {
+            // The branches which are SQL queries are intersected in a single statement,
+            // then the rest are intersected with its result, in order.
+            List<QueryNode> otherChildren = new ArrayList<QueryNode>();
+            SqlParts intersection = intersectionForAndNode((AndQueryNode) node, otherChildren);
+            if (intersection != null) {
+                accumulator = executeSql(intersection, db);
+            }
+
+            for (QueryNode qNode: otherChildren) {
+                if (accumulator != null && accumulator.isEmpty()) {
+                    // Nothing more can be in the intersection
+                    break;
+                }
+
                 Set<String> childIds = executeQueryTree(qNode, db);
+                if (childIds == null) {
+                    return null;
+                }
                 if (accumulator == null) {
                     accumulator = new HashSet<String>(childIds);
                 } else {
-                    accumulator = Sets.intersection(accumulator, childIds);
+                    accumulator.retainAll(childIds);
                 }
-
-                // TODO optimisation is to bail here if accumulator is empty
             }
 
             return accumulator;
         }
         if (node instanceof OrQueryNode) {
-            Set<String> accumulator = null;
-            // TODO - OR execute query tree logic...
+            Set<String> accumulator = new HashSet<String>();
+
+            OrQueryNode orNode = (OrQueryNode) node;
+            for (QueryNode qNode: orNode.children) {
+                Set<String> childIds = executeQueryTree(qNode, db);
+                if (childIds != null) {
+                    accumulator.addAll(childIds);
+                }
+            }
+
             return accumulator;
         } else if (node instanceof SqlQueryNode) {
             SqlQueryNode sqlNode = (SqlQueryNode) node;
-            SqlParts sqlParts = sqlNode.sql;
+            return executeSql(sqlNode.sql, db);
+        } else {
+            return null;
+        }
+    }
 
-            List<String> docIds = new ArrayList<String>();
+    private Set<String> executeSql(SqlParts sqlParts, SQLDatabase db) {
+        Set<String> docIds = new HashSet<String>();
 
-            Cursor cursor = null;
-            try {
-                cursor = db.rawQuery(sqlParts.sqlWithPlaceHolders, sqlParts.placeHolderValues);
-                while (cursor.moveToNext()) {
-                    String docId = cursor.getString(0);
-                    docIds.add(docId);
-                }
-            } catch (SQLException e) {
-                logger.log(Level.SEVERE, "Failed to get a list of doc ids.", e);
-            } finally {
-                DatabaseUtils.closeCursorQuietly(cursor);
+        Cursor cursor = null;
+        try {
+            cursor = db.rawQuery(sqlParts.sqlWithPlaceHolders, sqlParts.placeHolderValues);
+            while (cursor.moveToNext()) {
+                String docId = cursor.getString(0);
+                docIds.add(docId);
+            }
+        } catch (SQLException e) {
+            logger.log(Level.SEVERE, "Failed to get a list of doc ids.", e);
+        } finally {
+            DatabaseUtils.closeCursorQuietly(cursor);
+        }
+
+        return docIds;
+    }
+
+    /**
+     *  Returns a single statement intersecting the results of those branches of an AND
+     *  node which are SQL queries, or null if fewer than two of them are.
+     *
+     *  A branch is a SQL query if it's a SQL node, or has a single branch which is. The
+     *  branches which aren't intersected in the statement are added to 'otherChildren',
+     *  in order.
+     */
+    protected static SqlParts intersectionForAndNode(AndQueryNode node,
+                                                     List<QueryNode> otherChildren) {
+        List<SqlParts> queries = new ArrayList<SqlParts>();
+        List<QueryNode> nonSqlChildren = new ArrayList<QueryNode>();
+        for (QueryNode child: node.children) {
+            SqlParts sql = sqlForNode(child);
+            if (sql != null) {
+                queries.add(sql);
+            } else {
+                nonSqlChildren.add(child);
             }
+        }
 
-            return new HashSet<String>(docIds);
+        SqlParts intersection = null;
+        if (queries.size() > 1) {
+            intersection = QuerySqlTranslator.intersectionSql(queries);
+        }
+
+        if (intersection == null) {
+            otherChildren.addAll(node.children);
         } else {
-            return null;
+            otherChildren.addAll(nonSqlChildren);
         }
+        return intersection;
+    }
+
+    private static SqlParts sqlForNode(QueryNode node) {
+        if (node instanceof SqlQueryNode) {
+            return ((SqlQueryNode) node).sql;
+        } else if (node instanceof ChildrenQueryNode) {
+            List<QueryNode> children = ((ChildrenQueryNode) node).children;
+            return children.size() == 1 ? sqlForNode(children.get(0)) : null;
+        }
+        return null;
     }
 
     /**
@@ -247,19 +444,255 @@ class QueryExecutor {
      *
      *  Method assumes 'sortDocument' is valid.
      *
+     *  If an index contains all the fields in 'sortDocument' the ordering is done by SQLite
+     *  using that index. Otherwise the documents are loaded and ordered by the values of
+     *  their fields; when 'sortLimit' is set only that many documents are kept while doing
+     *  so, rather than the whole result set.
+     *
      *  @param docIdSet Set of current results which are sorted
      *  @param sortDocument Array of ordering definitions
      *                      '[ {"fieldName": "asc"}, {"fieldName2", "desc"} ]'
      *  @param indexes dictionary of indexes
      *  @param db database containing 'indexes' to use when sorting documents
+     *  @param sortLimit number of leading results needed, 0 to return them all
+     *  @param matcher post hoc matcher which results will be filtered with, or null
      *  @return an ordered list of document IDs using provided indexes.
      */
-    private List<String> sortIds(Set<String> docIdSet,
-                                 List<Map<String, String>> sortDocument,
-                                 Map<String, Object> indexes,
-                                 SQLDatabase db) {
-        // TODO - sort logic...
-        return null;
+    protected List<String> sortIds(Set<String> docIdSet,
+                                   List<Map<String, String>> sortDocument,
+                                   Map<String, Object> indexes,
+                                   SQLDatabase db,
+                                   long sortLimit,
+                                   UnindexedMatcher matcher) {
+        if (docIdSet.isEmpty()) {
+            return new ArrayList<String>();
+        }
+
+        SqlParts orderBy = sqlToSortIds(docIdSet, sortDocument, indexes);
+        if (orderBy == null) {
+            String msg = "No index contains all the fields in the sort document; falling back to ";
+            msg += "sorting the documents themselves. This will be SLOW as each candidate ";
+            msg += "document is loaded from the datastore.";
+            logger.log(Level.WARNING, msg);
+            return sortIdsByDocumentValues(docIdSet, sortDocument, sortLimit, matcher);
+        }
+
+        // When there is no post hoc matcher every id read is a result, so reading can stop
+        // once enough have been found.
+        long idsNeeded = matcher == null ? sortLimit : 0;
+        boolean smallResultSet = docIdSet.size() < SMALL_RESULT_SET_SIZE_THRESHOLD;
+
+        // A document is in an index table once for each value of an array field, so ids may
+        // be repeated; the first row for a document gives its position.
+        Set<String> sortedIds = new LinkedHashSet<String>();
+        Cursor cursor = null;
+        try {
+            cursor = db.rawQuery(orderBy.sqlWithPlaceHolders, orderBy.placeHolderValues);
+            while (cursor.moveToNext()) {
+                String candidateId = cursor.getString(0);
+                if (smallResultSet || docIdSet.contains(candidateId)) {
+                    sortedIds.add(candidateId);
+                    if (idsNeeded > 0 && sortedIds.size() >= idsNeeded) {
+                        break;
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            logger.log(Level.SEVERE, "Failed to sort doc ids.", e);
+            return null;
+        } finally {
+            DatabaseUtils.closeCursorQuietly(cursor);
+        }
+
+        return new ArrayList<String>(sortedIds);
+    }
+
+    /**
+     *  Return the SQL to select the ids in 'docIdSet' ordered by 'sortDocument', or null if
+     *  there is no index containing all the fields to sort by.
+     *
+     *  For small result sets the ids are selected from the index:
+     *
+     *  SELECT _id FROM idx WHERE _id IN (?, ?) ORDER BY "fieldName" ASC, "fieldName2" DESC
+     *
+     *  For large result sets, which would exceed SQLite's limit on the number of
+     *  placeholders, all the ids in the index are selected and the caller filters them:
+     *
+     *  SELECT _id FROM idx ORDER BY "fieldName" ASC, "fieldName2" DESC
+     */
+    protected static SqlParts sqlToSortIds(Set<String> docIdSet,
+                                           List<Map<String, String>> sortDocument,
+                                           Map<String, Object> indexes) {
+        Set<String> neededFields = new HashSet<String>();
+        List<String> orderClauses = new ArrayList<String>();
+        for (Map<String, String> clause: sortDocument) {
+            String fieldName = clause.keySet().iterator().next();
+            String direction = clause.get(fieldName).toUpperCase(Locale.ENGLISH);
+            neededFields.add(fieldName);
+            orderClauses.add(String.format("\"%s\" %s", fieldName, direction));
+        }
+
+        String chosenIndex = indexes == null ? null :
+                             QuerySqlTranslator.chooseIndexForFields(neededFields, indexes);
+        if (chosenIndex == null) {
+            return null;
+        }
+
+        String tableName = IndexManager.tableNameForIndex(chosenIndex);
+        String orderBy = Joiner.on(", ").join(orderClauses);
+
+        String sql;
+        String[] parameters;
+        if (docIdSet.size() < SMALL_RESULT_SET_SIZE_THRESHOLD) {
+            parameters = docIdSet.toArray(new String[docIdSet.size()]);
+            sql = String.format("SELECT _id FROM %s WHERE _id IN (%s) ORDER BY %s",
+                                tableName,
+                                DatabaseUtils.makePlaceholders(parameters.length),
+                                orderBy);
+        } else {
+            parameters = new String[]{};
+            sql = String.format("SELECT _id FROM %s ORDER BY %s", tableName, orderBy);
+        }
+
+        return SqlParts.partsForSql(sql, parameters);
+    }
+
+    /**
+     *  Order the documents in 'docIdSet' by the values of their fields, for sort documents
+     *  which no index can be used for.
+     *
+     *  The documents are read in batches. If 'sortLimit' is set, the documents at or before
+     *  that position are kept in a heap ordered with the last at the top, so at most
+     *  'sortLimit' documents' sort values are held at once.
+     */
+    private List<String> sortIdsByDocumentValues(Set<String> docIdSet,
+                                                 List<Map<String, String>> sortDocument,
+                                                 long sortLimit,
+                                                 UnindexedMatcher matcher) {
+        Comparator<SortKey> order = new SortKeyComparator(sortDocument);
+        Queue<SortKey> heap = new PriorityQueue<SortKey>(11, Collections.reverseOrder(order));
+
+        List<String> fieldNames = new ArrayList<String>();
+        for (Map<String, String> clause: sortDocument) {
+            fieldNames.add(clause.keySet().iterator().next());
+        }
+
+        List<String> docIds = new ArrayList<String>(docIdSet);
+        for (int i = 0; i < docIds.size(); i += SORT_BATCH_SIZE) {
+            List<String> batch = docIds.subList(i, Math.min(i + SORT_BATCH_SIZE, docIds.size()));
+            for (DocumentRevision rev: datastore.getDocumentsWithIds(batch)) {
+                if (matcher != null && !matcher.matches(rev)) {
+                    continue;
+                }
+                Object[] values = new Object[fieldNames.size()];
+                for (int j = 0; j < values.length; j++) {
+                    values[j] = ValueExtractor.extractValueForFieldName(fieldNames.get(j), rev);
+                }
+                heap.add(new SortKey(rev.getId(), values));
+                if (sortLimit > 0 && heap.size() > sortLimit) {
+                    heap.remove();
+                }
+            }
+        }
+
+        List<SortKey> sortKeys = new ArrayList<SortKey>(heap);
+        Collections.sort(sortKeys, order);
+        List<String> sortedIds = new ArrayList<String>(sortKeys.size());
+        for (SortKey sortKey: sortKeys) {
+            sortedIds.add(sortKey.docId);
+        }
+
+        return sortedIds;
+    }
+
+    /**
+     *  The id of a document along with the values of its fields named in a sort document.
+     */
+    private static class SortKey {
+        private final String docId;
+        private final Object[] values;
+
+        private SortKey(String docId, Object[] values) {
+            this.docId = docId;
+            this.values = values;
+        }
+    }
+
+    /**
+     *  Orders {@link SortKey}s in the same way SQLite orders the values in an index table:
+     *  missing values come first, then numbers and booleans, then strings. Documents whose
+     *  values are equal are ordered by id.
+     */
+    private static class SortKeyComparator implements Comparator<SortKey> {
+        private final boolean[] descending;
+
+        private SortKeyComparator(List<Map<String, String>> sortDocument) {
+            descending = new boolean[sortDocument.size()];
+            for (int i = 0; i < descending.length; i++) {
+                Map<String, String> clause = sortDocument.get(i);
+                String direction = clause.values().iterator().next();
+                descending[i] = direction.equalsIgnoreCase("DESC");
+            }
+        }
+
+        @Override
+        public int compare(SortKey l, SortKey r) {
+            for (int i = 0; i < descending.length; i++) {
+                int result = compareValues(l.values[i], r.values[i]);
+                if (result != 0) {
+                    return descending[i] ? -result : result;
+                }
+            }
+            return l.docId.compareTo(r.docId);
+        }
+
+        private static int compareValues(Object l, Object r) {
+            int result = typeRank(l) - typeRank(r);
+            if (result != 0 || l == null) {
+                return result;
+            }
+            if (l instanceof String) {
+                return ((String) l).compareTo((String) r);
+            }
+            if (isNumeric(l)) {
+                if (isIntegral(l) && isIntegral(r)) {
+                    long lLong = numericValue(l).longValue();
+                    long rLong = numericValue(r).longValue();
+                    return lLong < rLong ? -1 : (lLong == rLong ? 0 : 1);
+                }
+                return Double.compare(numericValue(l).doubleValue(),
+                                      numericValue(r).doubleValue());
+            }
+            return 0;
+        }
+
+        private static int typeRank(Object value) {
+            if (value == null) {
+                return 0;
+            } else if (isNumeric(value)) {
+                return 1;
+            } else if (value instanceof String) {
+                return 2;
+            } else {
+                return 3;
+            }
+        }
+
+        private static boolean isNumeric(Object value) {
+            return value instanceof Number || value instanceof Boolean;
+        }
+
+        private static boolean isIntegral(Object value) {
+            return value instanceof Boolean || value instanceof Long ||
+                   value instanceof Integer || value instanceof Short || value instanceof Byte;
+        }
+
+        private static Number numericValue(Object value) {
+            if (value instanceof Boolean) {
+                return (Boolean) value ? 1 : 0;
+            }
+            return (Number) value;
+        }
     }
 
     /**
@@ -270,7 +703,7 @@ class QueryExecutor {
             return true;
         }
         for (String field: fields) {
-            if (field.contains("\\.")) {
+            if (field.contains(".")) {
                 String msg = String.format("Projection field cannot use dotted notation: %s",
                                            field);
                 logger.log(Level.SEVERE, msg);
@@ -14,12 +14,15 @@ package com.cloudant.sync.query;
 
 import com.cloudant.sync.datastore.BasicDocumentRevision;
 import com.cloudant.sync.datastore.Datastore;
+import com.cloudant.sync.datastore.DocumentBodyFactory;
 import com.cloudant.sync.datastore.DocumentRevision;
 import com.google.common.collect.Lists;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 
 /**
@@ -37,6 +40,7 @@ public class QueryResult implements Iterable<DocumentRevision> {
     private final long skip;
     private final long limit;
     private final UnindexedMatcher matcher;
+    private final IndexProjector projector;
 
     public QueryResult(List<String> originalDocIds,
                        Datastore datastore,
@@ -44,12 +48,27 @@ public class QueryResult implements Iterable<DocumentRevision> {
                        long skip,
                        long limit,
                        UnindexedMatcher matcher) {
+        this(originalDocIds, datastore, fields, skip, limit, matcher, null);
+    }
+
+    /**
+     *  @param projector reads the projected 'fields' of documents from an index, or null to
+     *                   project the fields from the documents themselves
+     */
+    QueryResult(List<String> originalDocIds,
+                Datastore datastore,
+                List<String> fields,
+                long skip,
+                long limit,
+                UnindexedMatcher matcher,
+                IndexProjector projector) {
         this.originalDocIds = originalDocIds;
         this.datastore = datastore;
         this.fields = fields;
         this.skip = skip;
         this.limit = limit;
         this.matcher = matcher;
+        this.projector = projector;
     }
 
     /**
@@ -127,8 +146,7 @@ public class QueryResult implements Iterable<DocumentRevision> {
                 range.length = Math.min(DEFAULT_BATCH_SIZE, originalDocIds.size() - range.location);
                 List<String> batch = originalDocIds.subList(range.location,
                                                             range.location + range.length);
-                List<BasicDocumentRevision> docs = datastore.getDocumentsWithIds(batch);
-                for (DocumentRevision rev : docs) {
+                for (DocumentRevision rev : documentsWithIds(batch)) {
                     DocumentRevision innerRev;
                     innerRev = rev;  // Allows us to replace later if projecting
 
@@ -143,7 +161,9 @@ public class QueryResult implements Iterable<DocumentRevision> {
                         continue;
                     }
 
-                    // TODO - Add projection logic
+                    if (fields != null && !(innerRev instanceof ProjectedDocumentRevision)) {
+                        innerRev = projectFields(fields, innerRev);
+                    }
 
                     docList.add(innerRev);
 
@@ -168,6 +188,57 @@ public class QueryResult implements Iterable<DocumentRevision> {
             }
             return docList.iterator();
         }
+
+        /**
+         *  Returns the documents with the given IDs, in the same order, reading them from
+         *  the index where they can be projected from it.
+         */
+        private List<DocumentRevision> documentsWithIds(List<String> batch) {
+            if (projector == null) {
+                return new ArrayList<DocumentRevision>(datastore.getDocumentsWithIds(batch));
+            }
+
+            Map<String, DocumentRevision> docs = new HashMap<String, DocumentRevision>();
+            docs.putAll(projector.projectFromIndex(batch));
+            List<String> unprojectedIds = new ArrayList<String>();
+            for (String docId : batch) {
+                if (!docs.containsKey(docId)) {
+                    unprojectedIds.add(docId);
+                }
+            }
+            if (!unprojectedIds.isEmpty()) {
+                for (BasicDocumentRevision rev : datastore.getDocumentsWithIds(unprojectedIds)) {
+                    docs.put(rev.getId(), rev);
+                }
+            }
+
+            List<DocumentRevision> docList = new ArrayList<DocumentRevision>(batch.size());
+            for (String docId : batch) {
+                DocumentRevision rev = docs.get(docId);
+                if (rev != null) {
+                    docList.add(rev);
+                }
+            }
+            return docList;
+        }
+    }
+
+    /**
+     *  Returns a revision whose body only contains those of 'fieldNames' which are in the
+     *  body of 'rev'.
+     */
+    private static DocumentRevision projectFields(List<String> fieldNames,
+                                                  DocumentRevision rev) {
+        Map<String, Object> body = rev.getBody().asMap();
+        Map<String, Object> projectedBody = new HashMap<String, Object>();
+        for (String fieldName : fieldNames) {
+            if (body.containsKey(fieldName)) {
+                projectedBody.put(fieldName, body.get(fieldName));
+            }
+        }
+        return new ProjectedDocumentRevision(rev.getId(),
+                                             rev.getRevision(),
+                                             DocumentBodyFactory.create(projectedBody));
     }
 
     private class Range {
@@ -16,11 +16,14 @@ import com.google.common.base.Joiner;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -100,20 +103,41 @@ class QuerySqlTranslator {
     private static final String NOT = "$not";
     private static final String EXISTS = "$exists";
 
+    // SQLite's default SQLITE_MAX_COMPOUND_SELECT and SQLITE_MAX_VARIABLE_NUMBER
+    private static final int SQLITE_COMPOUND_SELECT_LIMIT = 500;
+    private static final int SQLITE_VARIABLE_LIMIT = 999;
+
     private static final Logger logger = Logger.getLogger(QuerySqlTranslator.class.getName());
 
     public static QueryNode translateQuery(Map<String, Object> query,
                                            Map<String, Object> indexes,
                                            Boolean[] indexesCoverQuery) {
-        TranslatorState state = new TranslatorState();
+        return translateQuery(query, indexes, indexesCoverQuery, null);
+    }
+
+    /**
+     *  Translates a query, using 'statistics' to choose the cheapest index for each clause
+     *  and to order the branches of AND nodes so those expected to return the fewest
+     *  documents are executed first.
+     *
+     *  @param statistics statistics for 'indexes', or null to choose the narrowest index
+     *                    for each clause and leave branches in query order
+     */
+    public static QueryNode translateQuery(Map<String, Object> query,
+                                           Map<String, Object> indexes,
+                                           Boolean[] indexesCoverQuery,
+                                           IndexStatistics statistics) {
+        TranslatorState state = new TranslatorState(statistics);
         QueryNode node = translateQuery(query, indexes, state);
 
         // If we haven't used a single index, we need to return a query
         // which returns every document, so the posthoc matcher can
         // run over every document to manually carry out the query.
-        if (!state.atLeastOneIndexUsed) {
+        // The same goes for an OR with a branch that no index can
+        // satisfy, as that branch could match any document.
+        if (!state.atLeastOneIndexUsed || state.atLeastOneORIndexMissing) {
             Set<String> neededFields = new HashSet<String>(Arrays.asList("_id"));
-            String allDocsIndex = chooseIndexForFields(neededFields, indexes);
+            String allDocsIndex = chooseIndexForFields(neededFields, indexes, statistics);
 
             if (allDocsIndex == null || allDocsIndex.isEmpty()) {
                 String msg = "No indexes defined, cannot execute query for all documents";
@@ -128,6 +152,10 @@ class QuerySqlTranslator {
 
             SqlQueryNode sqlNode = new SqlQueryNode();
             sqlNode.sql = parts;
+            sqlNode.indexName = allDocsIndex;
+            if (statistics != null) {
+                sqlNode.estimatedRows = statistics.rowCount(allDocsIndex);
+            }
 
             AndQueryNode root = new AndQueryNode();
             root.children.add(sqlNode);
@@ -176,11 +204,11 @@ class QuerySqlTranslator {
             }
         }
 
-        if (query.get(AND) != null) {
+        if (query.get(AND) != null && !basicClauses.isEmpty()) {
             // For an AND query, we require a single compound index and we generate a
             // single SQL statement to use that index to satisfy the clauses.
 
-            String chosenIndex = chooseIndexForAndClause(basicClauses, indexes);
+            String chosenIndex = chooseIndexForAndClause(basicClauses, indexes, state.statistics);
             if (chosenIndex == null || chosenIndex.isEmpty()) {
                 state.atLeastOneIndexMissing = true;
                 String msg = String.format("No single index contains all of %s; %s",
@@ -199,8 +227,10 @@ class QuerySqlTranslator {
                     return null;
                 }
 
-                SqlQueryNode sqlNode = new SqlQueryNode();
-                sqlNode.sql = select;
+                SqlQueryNode sqlNode = sqlNodeForAndClause(select,
+                                                           basicClauses,
+                                                           chosenIndex,
+                                                           state.statistics);
 
                 if (root != null) {
                     root.children.add(sqlNode);
@@ -217,7 +247,45 @@ class QuerySqlTranslator {
             // We could optimise for OR parts where we have an appropriate compound index,
             // but we don't for now.
 
-            // TODO - implement OR logic...
+            for (Object rawClause: basicClauses) {
+                List<Object> wrappedClause = new ArrayList<Object>();
+                wrappedClause.add(rawClause);
+
+                String chosenIndex = chooseIndexForAndClause(wrappedClause,
+                                                             indexes,
+                                                             state.statistics);
+                if (chosenIndex == null || chosenIndex.isEmpty()) {
+                    // Without an index for this branch its results can only be found by
+                    // looking at every document, so there's no point using indexes for
+                    // any other branch of the OR.
+                    state.atLeastOneIndexMissing = true;
+                    state.atLeastOneORIndexMissing = true;
+                    String msg = String.format("No single index contains all of %s; %s",
+                                               wrappedClause.toString(),
+                                               "add index for these fields to query efficiently.");
+                    logger.log(Level.WARNING, msg);
+                } else {
+                    state.atLeastOneIndexUsed = true;
+
+                    // Execute SQL on that index with appropriate values
+                    SqlParts select = selectStatementForAndClause(wrappedClause, chosenIndex);
+                    if (select == null) {
+                        String msg = String.format("Error generating SELECT clause for %s",
+                                                   wrappedClause);
+                        logger.log(Level.SEVERE, msg);
+                        return null;
+                    }
+
+                    SqlQueryNode sqlNode = sqlNodeForAndClause(select,
+                                                               wrappedClause,
+                                                               chosenIndex,
+                                                               state.statistics);
+
+                    if (root != null) {
+                        root.children.add(sqlNode);
+                    }
+                }
+            }
         }
 
         //
@@ -227,14 +295,184 @@ class QuerySqlTranslator {
         //
 
         // Add subclauses that are OR
-        // TODO
+        for (Object rawClause: clauses) {
+            Map<String, Object> clause = (Map<String, Object>) rawClause;
+            String field = (String) clause.keySet().toArray()[0];
+            if (field.equals(OR)) {
+                QueryNode orNode = translateQuery(clause, indexes, state);
+                if (orNode == null) {
+                    return null;
+                }
+                if (root != null) {
+                    root.children.add(orNode);
+                }
+            }
+        }
 
         // Add subclauses that are AND
-        // TODO
+        for (Object rawClause: clauses) {
+            Map<String, Object> clause = (Map<String, Object>) rawClause;
+            String field = (String) clause.keySet().toArray()[0];
+            if (field.equals(AND)) {
+                QueryNode andNode = translateQuery(clause, indexes, state);
+                if (andNode == null) {
+                    return null;
+                }
+                if (andNode instanceof AndQueryNode
+                        && ((AndQueryNode) andNode).children.isEmpty()) {
+                    // No index covers any part of this AND, so it can't narrow the
+                    // results of an AND parent; the matcher applies it instead. Like
+                    // an unindexed OR branch, it could match any document.
+                    if (root instanceof OrQueryNode) {
+                        state.atLeastOneORIndexMissing = true;
+                    }
+                    continue;
+                }
+                if (root != null) {
+                    root.children.add(andNode);
+                }
+            }
+        }
+
+        if (root instanceof OrQueryNode) {
+            return unionForOrNode((OrQueryNode) root);
+        }
+
+        if (root instanceof AndQueryNode && state.statistics != null) {
+            // Execute the branches expected to return the fewest documents first, so the
+            // intersection is as small as possible as early as possible. The sort is stable,
+            // so branches without estimates keep their order at the end.
+            Collections.sort(root.children, new Comparator<QueryNode>() {
+                @Override
+                public int compare(QueryNode l, QueryNode r) {
+                    return Double.compare(sortableEstimate(l), sortableEstimate(r));
+                }
+
+                private double sortableEstimate(QueryNode node) {
+                    double estimate = estimatedRows(node);
+                    return estimate < 0 ? Double.MAX_VALUE : estimate;
+                }
+            });
+        }
 
         return root;
     }
 
+    private static SqlQueryNode sqlNodeForAndClause(SqlParts select,
+                                                    List<Object> clause,
+                                                    String indexName,
+                                                    IndexStatistics statistics) {
+        SqlQueryNode sqlNode = new SqlQueryNode();
+        sqlNode.sql = select;
+        sqlNode.indexName = indexName;
+        if (statistics != null) {
+            sqlNode.estimatedRows = statistics.estimateRows(indexName, clause);
+        }
+        return sqlNode;
+    }
+
+    /**
+     *  Returns the estimated number of document IDs a node of a query tree returns, or -1
+     *  if it wasn't estimated.
+     *
+     *  An AND returns no more than its smallest branch, and an OR no more than the total
+     *  of its branches.
+     */
+    protected static double estimatedRows(QueryNode node) {
+        if (node instanceof SqlQueryNode) {
+            return ((SqlQueryNode) node).estimatedRows;
+        } else if (node instanceof AndQueryNode) {
+            double estimate = -1;
+            for (QueryNode child: ((AndQueryNode) node).children) {
+                double childEstimate = estimatedRows(child);
+                if (childEstimate >= 0 && (estimate < 0 || childEstimate < estimate)) {
+                    estimate = childEstimate;
+                }
+            }
+            return estimate;
+        } else if (node instanceof OrQueryNode) {
+            double estimate = 0;
+            for (QueryNode child: ((OrQueryNode) node).children) {
+                double childEstimate = estimatedRows(child);
+                if (childEstimate < 0) {
+                    return -1;
+                }
+                estimate += childEstimate;
+            }
+            return estimate;
+        }
+        return -1;
+    }
+
+    /**
+     *  Where every child of an OR node is a SQL query, the node can be executed as a
+     *  single compound SELECT which unions the children's results in SQLite, saving
+     *  a round trip to the database for each of them.
+     *
+     *  @return an OR node with a single SQL child for the union, or the original node if
+     *          its children can't be combined.
+     */
+    private static OrQueryNode unionForOrNode(OrQueryNode node) {
+        if (node.children.size() < 2 || node.children.size() > SQLITE_COMPOUND_SELECT_LIMIT) {
+            return node;
+        }
+
+        List<String> selects = new ArrayList<String>();
+        List<String> placeHolderValues = new ArrayList<String>();
+        double estimatedRows = estimatedRows(node);
+        for (QueryNode child: node.children) {
+            if (!(child instanceof SqlQueryNode)) {
+                return node;
+            }
+            SqlParts parts = ((SqlQueryNode) child).sql;
+            selects.add(parts.sqlWithPlaceHolders);
+            placeHolderValues.addAll(Arrays.asList(parts.placeHolderValues));
+        }
+        if (placeHolderValues.size() > SQLITE_VARIABLE_LIMIT) {
+            return node;
+        }
+
+        SqlQueryNode sqlNode = new SqlQueryNode();
+        sqlNode.sql = SqlParts.partsForSql(Joiner.on(" UNION ").join(selects),
+                placeHolderValues.toArray(new String[placeHolderValues.size()]));
+        sqlNode.estimatedRows = estimatedRows;
+
+        OrQueryNode union = new OrQueryNode();
+        union.children.add(sqlNode);
+        return union;
+    }
+
+    /**
+     *  Returns a single statement selecting the document IDs common to all of the given
+     *  SQL queries, so the intersection is done by SQLite rather than in code:
+     *
+     *  SELECT _id FROM ( sql1 ) INTERSECT SELECT _id FROM ( sql2 ) ...
+     *
+     *  Each query is wrapped in a sub-select, as the compound operators of SQLite all have
+     *  the same precedence and a query may itself be a UNION.
+     *
+     *  @return the statement, or null if there are too many queries, or placeholders in
+     *          them, for a single statement.
+     */
+    protected static SqlParts intersectionSql(List<SqlParts> queries) {
+        if (queries.isEmpty() || queries.size() > SQLITE_COMPOUND_SELECT_LIMIT) {
+            return null;
+        }
+
+        List<String> selects = new ArrayList<String>();
+        List<String> placeHolderValues = new ArrayList<String>();
+        for (SqlParts parts: queries) {
+            selects.add(String.format("SELECT _id FROM ( %s )", parts.sqlWithPlaceHolders));
+            placeHolderValues.addAll(Arrays.asList(parts.placeHolderValues));
+        }
+        if (placeHolderValues.size() > SQLITE_VARIABLE_LIMIT) {
+            return null;
+        }
+
+        return SqlParts.partsForSql(Joiner.on(" INTERSECT ").join(selects),
+                placeHolderValues.toArray(new String[placeHolderValues.size()]));
+    }
+
     private static List<String> fieldsForAndClause(List<Object> clause) {
         if (clause == null) {
             return null;
@@ -253,6 +491,12 @@ class QuerySqlTranslator {
 
     protected static String chooseIndexForAndClause(List<Object> clause,
                                                     Map<String, Object> indexes) {
+        return chooseIndexForAndClause(clause, indexes, null);
+    }
+
+    protected static String chooseIndexForAndClause(List<Object> clause,
+                                                    Map<String, Object> indexes,
+                                                    IndexStatistics statistics) {
         if (clause == null || clause.isEmpty()) {
             return null;
         }
@@ -270,20 +514,42 @@ class QuerySqlTranslator {
             return null;
         }
 
-        return chooseIndexForFields(neededFields, indexes);
+        return chooseIndexForFields(neededFields, indexes, statistics);
     }
 
-    @SuppressWarnings("unchecked")
     protected static String chooseIndexForFields(Set<String> neededFields,
                                                  Map<String, Object> indexes) {
+        return chooseIndexForFields(neededFields, indexes, null);
+    }
+
+    /**
+     *  Chooses the index containing all of 'neededFields' which is cheapest to query.
+     *
+     *  With statistics, the cost of an index is the number of values in its table. Without
+     *  them, it's the number of fields in the index. Indexes of the same cost are chosen
+     *  between by name, so the same index is chosen each time.
+     *
+     *  @return the name of the chosen index, or null if no index contains all the fields
+     */
+    @SuppressWarnings("unchecked")
+    protected static String chooseIndexForFields(Set<String> neededFields,
+                                                 Map<String, Object> indexes,
+                                                 IndexStatistics statistics) {
         String chosenIndex = null;
-        for (String indexName: indexes.keySet()) {
+        double chosenCost = 0;
+        for (String indexName: new TreeSet<String>(indexes.keySet())) {
             Map<String, Object> indexDefinition = (Map<String, Object>) indexes.get(indexName);
             List<String> fieldList = (List<String>) indexDefinition.get("fields");
             Set<String> providedFields = new HashSet<String>(fieldList);
-            if (providedFields.containsAll(neededFields)) {
+            if (!providedFields.containsAll(neededFields)) {
+                continue;
+            }
+            double cost = statistics != null ?
+                          statistics.scanCost(indexName, fieldList.size()) :
+                          fieldList.size();
+            if (chosenIndex == null || cost < chosenCost) {
                 chosenIndex = indexName;
-                break;
+                chosenCost = cost;
             }
         }
 
@@ -22,4 +22,10 @@ class SqlQueryNode implements QueryNode {
 
     public SqlParts sql;
 
+    // Index the SQL selects from, or null if it selects from more than one
+    public String indexName;
+
+    // Estimated number of document IDs the SQL returns, or -1 if it wasn't estimated
+    public double estimatedRows = -1;
+
 }
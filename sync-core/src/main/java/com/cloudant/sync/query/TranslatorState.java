@@ -26,10 +26,17 @@ class TranslatorState {
 
     public boolean atLeastOneIndexUsed;
     public boolean atLeastOneIndexMissing;
+    public boolean atLeastOneORIndexMissing;
 
-    TranslatorState() {
+    // Used to choose indexes by cost and estimate the size of results; when null,
+    // the narrowest index containing the needed fields is chosen.
+    public IndexStatistics statistics;
+
+    TranslatorState(IndexStatistics statistics) {
         atLeastOneIndexUsed = false;
         atLeastOneIndexMissing = false;
+        atLeastOneORIndexMissing = false;
+        this.statistics = statistics;
     }
 
 }
@@ -154,10 +154,22 @@ class UnindexedMatcher {
         //
 
         // Add subclauses that are OR
-        // TODO - Handle OR subclauses
+        for (Object rawClause: clauses) {
+            Map<String, Object> clause = (Map<String, Object>) rawClause;
+            String field = (String) clause.keySet().toArray()[0];
+            if (field.equals(OR) && root != null) {
+                root.children.add(buildExecutionTreeForSelector(clause));
+            }
+        }
 
         // Add subclauses that are AND
-        // TODO - Handle AND subclauses
+        for (Object rawClause: clauses) {
+            Map<String, Object> clause = (Map<String, Object>) rawClause;
+            String field = (String) clause.keySet().toArray()[0];
+            if (field.equals(AND) && root != null) {
+                root.children.add(buildExecutionTreeForSelector(clause));
+            }
+        }
 
         return root;
     }
@@ -14,7 +14,8 @@
 
 package com.cloudant.sync.replication;
 
-import com.cloudant.mazha.ChangesResult;
+import com.cloudant.common.RetriableTask;
+import com.cloudant.mazha.BulkGetRequest;
 import com.cloudant.mazha.CouchConfig;
 import com.cloudant.mazha.DocumentRevs;
 import com.cloudant.sync.datastore.Attachment;
@@ -23,6 +24,7 @@ import com.cloudant.sync.datastore.BasicDocumentRevision;
 import com.cloudant.sync.datastore.DocumentRevsList;
 import com.cloudant.sync.datastore.PreparedAttachment;
 import com.cloudant.sync.datastore.UnsavedStreamAttachment;
+import com.cloudant.sync.sqlite.SQLDatabase;
 import com.cloudant.sync.util.JSONUtils;
 import com.cloudant.sync.util.Misc;
 import com.google.common.base.Preconditions;
@@ -35,10 +37,12 @@ import org.apache.commons.codec.binary.Hex;
 import java.io.ByteArrayInputStream;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
@@ -53,6 +57,20 @@ class BasicPullStrategy implements ReplicationStrategy {
 
     private static final Logger logger = Logger.getLogger(BasicPullStrategy.class.getCanonicalName());
     private static final String LOG_TAG = "BasicPullStrategy";
+
+    // Milliseconds between heartbeats and before an empty response for a
+    // longpoll changes request. Both are below the default socket timeout,
+    // CouchClientWrapper.SOCKET_TIMEOUT_DEFAULT.
+    static final int LONGPOLL_HEARTBEAT = 10000;
+    static final int LONGPOLL_TIMEOUT = 20000;
+
+    // A continuous replication retries a failed changes request this many
+    // times, backing off from RetriableTask.DEFAULT_WAIT_TIME up to
+    // CHANGES_RETRY_MAX_WAIT milliseconds between attempts, so it rides out
+    // a couple of minutes without a network before giving up.
+    static final int CHANGES_RETRIES = 10;
+    static final long CHANGES_RETRY_MAX_WAIT = 30000;
+
     CouchDB sourceDb;
     Replication.Filter filter;
     DatastoreWrapper targetDb;
@@ -118,6 +136,10 @@ class BasicPullStrategy implements ReplicationStrategy {
         this.executor.shutdownNow();
     }
 
+    boolean isCancelled() {
+        return this.cancel;
+    }
+
     public int getDocumentCounter() {
         return this.documentCounter;
     }
@@ -188,6 +210,28 @@ class BasicPullStrategy implements ReplicationStrategy {
         }
 
         this.documentCounter = 0;
+        if (this.config.continuous) {
+            replicateContinuously();
+        } else if (this.config.pipelineDepth > 0) {
+            new PullPipeline(this, this.config).run();
+        } else {
+            replicateInSequence();
+        }
+
+        long endTime = System.currentTimeMillis();
+        long deltaTime = endTime - startTime;
+        String msg =  String.format(
+            "Pull completed in %sms (%s total changes processed)",
+            deltaTime,
+            this.documentCounter
+        );
+        logger.info(msg);
+    }
+
+    /**
+     * Fetches and inserts each batch of changes in turn, one stage at a time.
+     */
+    private void replicateInSequence() throws ExecutionException, InterruptedException {
         for (this.batchCounter = 1; this.batchCounter < config.batchLimitPerRun; this.batchCounter++) {
 
             if (this.cancel) { return; }
@@ -232,23 +276,87 @@ class BasicPullStrategy implements ReplicationStrategy {
                 break;
             }
         }
+    }
 
-        long endTime = System.currentTimeMillis();
-        long deltaTime = endTime - startTime;
-        String msg =  String.format(
-            "Pull completed in %sms (%s total changes processed)",
-            deltaTime,
-            this.documentCounter
-        );
-        logger.info(msg);
+    /**
+     * <p>Applies batches of changes until cancelled. Once a batch comes back
+     * smaller than {@code changeLimitPerBatch}, we've caught up, and
+     * further batches are requested with {@code feed=longpoll} so they
+     * return as soon as there are new changes.</p>
+     *
+     * <p>Rather than after every batch, which could be a single change once
+     * caught up, the checkpoint is written once
+     * {@code checkpointChangeInterval} changes or
+     * {@code checkpointTimeInterval} seconds have gone by since the last
+     * one, and when the replication is stopped. It only ever moves to the end
+     * of a batch which has been completely applied.</p>
+     *
+     * <p>A failed changes request is retried with exponential backoff, up
+     * to {@code CHANGES_RETRIES} times, rather than ending the
+     * replication.</p>
+     *
+     * <p>A longpoll request can't be interrupted, so once caught up it can
+     * take up to {@code LONGPOLL_TIMEOUT} for a cancel to take effect, or up
+     * to {@code CHANGES_RETRY_MAX_WAIT} while waiting to retry a failed
+     * request.</p>
+     */
+    private void replicateContinuously() throws ExecutionException, InterruptedException {
+        String since = this.targetDb.getCheckpoint(this.getReplicationId());
+        logger.fine("last checkpoint " + since);
+
+        String checkpointed = since;
+        int changesSinceCheckpoint = 0;
+        long lastCheckpointTime = System.currentTimeMillis();
+        boolean caughtUp = false;
+
+        for (this.batchCounter = 1; !this.cancel; this.batchCounter++) {
+            ChangesResultWrapper changeFeeds = changesSinceWithRetries(since, caughtUp);
+            if (this.cancel) { break; }
+
+            if (changeFeeds.size() > 0) {
+                logger.info(String.format("Batch %s contains %s changes",
+                        this.batchCounter, changeFeeds.size()));
+                documentCounter += processOneChangesBatch(changeFeeds, false);
+                // the batch may only have been partly applied
+                if (this.cancel) { break; }
+            }
+            since = changeFeeds.getLastSeq();
+            changesSinceCheckpoint += changeFeeds.size();
+            caughtUp = changeFeeds.size() < this.config.changeLimitPerBatch;
+
+            long now = System.currentTimeMillis();
+            if (changesSinceCheckpoint >= this.config.checkpointChangeInterval ||
+                    now - lastCheckpointTime >= this.config.checkpointTimeInterval * 1000L) {
+                if (!since.equals(checkpointed)) {
+                    this.targetDb.putCheckpoint(this.getReplicationId(), since);
+                    checkpointed = since;
+                }
+                changesSinceCheckpoint = 0;
+                lastCheckpointTime = now;
+            }
+        }
+
+        // Don't lose the progress made since the last checkpoint
+        if (since != null && !since.equals(checkpointed)) {
+            this.targetDb.putCheckpoint(this.getReplicationId(), since);
+        }
     }
 
     private int processOneChangesBatch(ChangesResultWrapper changeFeeds)
+        throws ExecutionException, InterruptedException {
+        return processOneChangesBatch(changeFeeds, true);
+    }
+
+    /**
+     * @param checkpoint whether to move the checkpoint to the batch's last
+     *                   sequence once all of its changes have been applied
+     */
+    private int processOneChangesBatch(ChangesResultWrapper changeFeeds, boolean checkpoint)
         throws ExecutionException, InterruptedException {
         String feed = String.format(
                 "Change feed: { last_seq: %s, change size: %s}",
                 changeFeeds.getLastSeq(),
-                changeFeeds.getResults().size()
+                changeFeeds.size()
         );
         logger.info(feed);
 
@@ -256,105 +364,27 @@ class BasicPullStrategy implements ReplicationStrategy {
         Map<String, Collection<String>> missingRevisions = this.targetDb.getDbCore().revsDiff(openRevs);
 
         int changesProcessed = 0;
+        boolean checkpointWritten = false;
 
         // Process the changes in batches
         List<String> ids = Lists.newArrayList(missingRevisions.keySet());
         List<List<String>> batches = Lists.partition(ids, this.config.insertBatchSize);
-        for (List<String> batch : batches) {
+        for (int i = 0; i < batches.size(); i++) {
 
             if (this.cancel) { break; }
 
-            List<Callable<DocumentRevsList>> tasks = createTasks(batch, missingRevisions);
+            List<String> batch = batches.get(i);
             try {
-                List<Future<DocumentRevsList>> futures = executor.invokeAll(tasks);
-                for(Future<DocumentRevsList> future : futures) {
-                    DocumentRevsList result = future.get();
-
-                    // We promise not to insert documents after cancel is set
-                    if (this.cancel) { break; }
-
-                    // attachments, keyed by docId and revId, so that
-                    // we can add the attachments to the correct leaf
-                    // nodes
-                    HashMap<String[], List<PreparedAttachment>> atts = new HashMap<String[], List<PreparedAttachment>>();
-
-                    // now put together a list of attachments we need to download
-                    if (!config.pullAttachmentsInline) {
-                        try {
-                            for (DocumentRevs documentRevs : result) {
-                                Map<String, Object> attachments = documentRevs.getAttachments();
-                                // keep track of attachments we are going to prepare
-                                ArrayList<PreparedAttachment> preparedAtts = new ArrayList<PreparedAttachment>();
-                                atts.put(new String[]{documentRevs.getId(), documentRevs.getRev()}, preparedAtts);
-
-                                for (String attachmentName : attachments.keySet()) {
-                                    int revpos = (Integer) ((Map<String, Object>) attachments.get(attachmentName)).get("revpos");
-                                    // do we already have the attachment @ this revpos?
-                                    // look back up the tree for this document and see:
-                                    // if we already have it, then we don't need to fetch it
-                                    DocumentRevs.Revisions revs = documentRevs.getRevisions();
-                                    int offset = revs.getStart() - revpos;
-                                    if (offset >= 0 && offset < revs.getIds().size()) {
-                                        String revId = String.valueOf(revpos) + "-" + revs.getIds().get(offset);
-                                        BasicDocumentRevision dr = this.targetDb.getDbCore().getDocument(documentRevs.getId(), revId);
-                                        if (dr != null) {
-                                            Attachment a = this.targetDb.getDbCore().getAttachment(dr, attachmentName);
-                                            if (a != null) {
-                                                // skip attachment, already got it
-                                                continue;
-                                            }
-                                        }
-                                    }
-                                    String contentType = ((Map<String, String>) attachments.get(attachmentName)).get("content_type");
-                                    String encoding = (String) ((Map<String, Object>) attachments.get(attachmentName)).get("encoding");
-                                    UnsavedStreamAttachment usa = this.sourceDb.getAttachmentStream(documentRevs.getId(), documentRevs.getRev(), attachmentName, contentType, encoding);
-                                    BasicDocumentRevision doc = this.targetDb.getDbCore().getDocument(documentRevs.getId());
-
-                                    // by preparing the attachment here, it is downloaded outside of the database transaction
-                                    preparedAtts.add(this.targetDb.prepareAttachment(usa, doc));
-                                }
-                            }
-                        } catch (Exception e) {
-                            logger.log(Level.SEVERE,
-                                    "There was a problem downloading an attachment to the" +
-                                            " datastore, terminating replication",
-                                    e);
-                            this.cancel = true;
-                        }
-                    }
-
-                    if (this.cancel)
-                        break;
-
-                    boolean ok = true;
-                    // start tx
-                    this.targetDb.getDbCore().getSQLDatabase().beginTransaction();
-                    this.targetDb.bulkInsert(result, config.pullAttachmentsInline);
-
-                    // now add the attachments we have just downloaded
-                    try {
-                        for (String[] key : atts.keySet()) {
-                            String id = key[0];
-                            String rev = key[1];
-                            BasicDocumentRevision doc = this.targetDb.getDbCore().getDocument(id, rev);
-                            for (PreparedAttachment att : atts.get(key)) {
-                                this.targetDb.addAttachment(att, doc);
-                            }
-                        }
-                    } catch (Exception e) {
-                        logger.log(Level.SEVERE, "There was a problem adding an attachment to " +
-                                "the datastore, terminating replication",e);
-                        this.cancel = true;
-                        ok = false;
-                    }
-
-                    if (ok) {
-                        this.targetDb.getDbCore().getSQLDatabase().setTransactionSuccessful();
-                    }
-                    // end tx
-                    this.targetDb.getDbCore().getSQLDatabase().endTransaction();
-
-                    changesProcessed++;
+                List<DocumentRevsList> results = fetchRevisions(batch, missingRevisions);
+                if (config.groupCommit) {
+                    // With group commit, the checkpoint goes into the same
+                    // transaction as the last window of the changes batch
+                    boolean lastWindow = i == batches.size() - 1;
+                    String lastSeq = lastWindow && checkpoint ? changeFeeds.getLastSeq() : null;
+                    changesProcessed += insertGroup(results, lastSeq);
+                    checkpointWritten = lastSeq != null && !this.cancel;
+                } else {
+                    changesProcessed += insertEach(results);
                 }
             } catch (InterruptedException ex) {
                 // invokeAll() or future.get() was interrupted, expected on
@@ -367,13 +397,175 @@ class BasicPullStrategy implements ReplicationStrategy {
             }
         }
 
-        if (!this.cancel) {
+        if (checkpoint && !this.cancel && !checkpointWritten) {
             this.targetDb.putCheckpoint(this.getReplicationId(), changeFeeds.getLastSeq());
         }
 
         return changesProcessed;
     }
 
+    /**
+     * Inserts the revisions of each document in its own transaction.
+     *
+     * @return number of documents inserted
+     */
+    private int insertEach(List<DocumentRevsList> results) {
+        int changesProcessed = 0;
+        for(DocumentRevsList result : results) {
+            // We promise not to insert documents after cancel is set
+            if (this.cancel) { break; }
+
+            Map<String[], List<PreparedAttachment>> atts = prepareAttachments(result);
+
+            if (this.cancel)
+                break;
+
+            if (insertRevisions(Collections.singletonList(result), atts, null)) {
+                changesProcessed++;
+            }
+        }
+        return changesProcessed;
+    }
+
+    /**
+     * Inserts the revisions of all the documents, and their attachments, in
+     * a single transaction. Attachments are downloaded before the
+     * transaction is started.
+     *
+     * @param lastSequence if not null, the checkpoint is moved to this
+     *                     sequence in the same transaction
+     * @return number of documents inserted
+     */
+    private int insertGroup(List<DocumentRevsList> results, String lastSequence) {
+        Map<String[], List<PreparedAttachment>> atts = new HashMap<String[], List<PreparedAttachment>>();
+        for(DocumentRevsList result : results) {
+            // We promise not to insert documents after cancel is set
+            if (this.cancel) { return 0; }
+
+            atts.putAll(prepareAttachments(result));
+        }
+
+        if (this.cancel || results.isEmpty()) {
+            return 0;
+        }
+
+        return insertRevisions(results, atts, lastSequence) ? results.size() : 0;
+    }
+
+    /**
+     * Downloads the attachments of the revisions which aren't already in the
+     * local datastore, so that they can be added outside of the database
+     * transaction. Sets {@code cancel} if any attachment couldn't be
+     * downloaded.
+     *
+     * @return attachments, keyed by docId and revId, so that we can add the
+     *         attachments to the correct leaf nodes
+     */
+    Map<String[], List<PreparedAttachment>> prepareAttachments(DocumentRevsList result) {
+        HashMap<String[], List<PreparedAttachment>> atts = new HashMap<String[], List<PreparedAttachment>>();
+
+        // now put together a list of attachments we need to download
+        if (!config.pullAttachmentsInline) {
+            try {
+                for (DocumentRevs documentRevs : result) {
+                    Map<String, Object> attachments = documentRevs.getAttachments();
+                    // keep track of attachments we are going to prepare
+                    ArrayList<PreparedAttachment> preparedAtts = new ArrayList<PreparedAttachment>();
+                    atts.put(new String[]{documentRevs.getId(), documentRevs.getRev()}, preparedAtts);
+
+                    for (String attachmentName : attachments.keySet()) {
+                        int revpos = (Integer) ((Map<String, Object>) attachments.get(attachmentName)).get("revpos");
+                        // do we already have the attachment @ this revpos?
+                        // look back up the tree for this document and see:
+                        // if we already have it, then we don't need to fetch it
+                        DocumentRevs.Revisions revs = documentRevs.getRevisions();
+                        int offset = revs.getStart() - revpos;
+                        if (offset >= 0 && offset < revs.getIds().size()) {
+                            String revId = String.valueOf(revpos) + "-" + revs.getIds().get(offset);
+                            BasicDocumentRevision dr = this.targetDb.getDbCore().getDocument(documentRevs.getId(), revId);
+                            if (dr != null) {
+                                Attachment a = this.targetDb.getDbCore().getAttachment(dr, attachmentName);
+                                if (a != null) {
+                                    // skip attachment, already got it
+                                    continue;
+                                }
+                            }
+                        }
+                        String contentType = ((Map<String, String>) attachments.get(attachmentName)).get("content_type");
+                        String encoding = (String) ((Map<String, Object>) attachments.get(attachmentName)).get("encoding");
+                        UnsavedStreamAttachment usa = this.sourceDb.getAttachmentStream(documentRevs.getId(), documentRevs.getRev(), attachmentName, contentType, encoding);
+                        BasicDocumentRevision doc = this.targetDb.getDbCore().getDocument(documentRevs.getId());
+
+                        // by preparing the attachment here, it is downloaded outside of the database transaction
+                        preparedAtts.add(this.targetDb.prepareAttachment(usa, doc));
+                    }
+                }
+            } catch (Exception e) {
+                logger.log(Level.SEVERE,
+                        "There was a problem downloading an attachment to the" +
+                                " datastore, terminating replication",
+                        e);
+                this.cancel = true;
+            }
+        }
+        return atts;
+    }
+
+    /**
+     * Inserts the revisions and their prepared attachments in one
+     * transaction. If any of them can't be inserted, none are, the
+     * checkpoint isn't moved and the replication is cancelled.
+     *
+     * @param lastSequence if not null, the checkpoint is moved to this
+     *                     sequence in the same transaction
+     * @return true if the transaction was committed
+     */
+    boolean insertRevisions(List<DocumentRevsList> results,
+                            Map<String[], List<PreparedAttachment>> atts,
+                            String lastSequence) {
+        boolean ok = true;
+        SQLDatabase db = this.targetDb.getDbCore().getSQLDatabase();
+        // start tx
+        db.beginTransaction();
+        try {
+            if (!this.targetDb.bulkInsert(results, config.pullAttachmentsInline)) {
+                logger.log(Level.SEVERE, "There was a problem adding an inline attachment " +
+                        "to the datastore, terminating replication");
+                this.cancel = true;
+                return false;
+            }
+
+            // now add the attachments we have just downloaded
+            try {
+                for (String[] key : atts.keySet()) {
+                    String id = key[0];
+                    String rev = key[1];
+                    BasicDocumentRevision doc = this.targetDb.getDbCore().getDocument(id, rev);
+                    for (PreparedAttachment att : atts.get(key)) {
+                        this.targetDb.addAttachment(att, doc);
+                    }
+                }
+            } catch (Exception e) {
+                logger.log(Level.SEVERE, "There was a problem adding an attachment to " +
+                        "the datastore, terminating replication",e);
+                this.cancel = true;
+                ok = false;
+            }
+
+            if (ok && lastSequence != null) {
+                this.targetDb.putCheckpoint(this.getReplicationId(), lastSequence);
+            }
+
+            if (ok) {
+                db.setTransactionSuccessful();
+            }
+        } finally {
+            // end tx
+            db.endTransaction();
+        }
+        return ok;
+    }
+
     public String getReplicationId() {
         HashMap<String, String> dict = new HashMap<String, String>();
         dict.put("source", this.sourceDb.getIdentifier());
@@ -391,12 +583,83 @@ class BasicPullStrategy implements ReplicationStrategy {
     private ChangesResultWrapper nextBatch() {
         final String lastCheckpoint = this.targetDb.getCheckpoint(this.getReplicationId());
         logger.fine("last checkpoint "+lastCheckpoint);
-        ChangesResult changeFeeds = this.sourceDb.changes(
+        return changesSince(lastCheckpoint);
+    }
+
+    ChangesResultWrapper changesSince(String since) {
+        // Stream the rows rather than deserialising the whole response, so
+        // only the ids and open revisions of the batch are kept in memory
+        ChangesResultWrapper.Builder changeFeeds = new ChangesResultWrapper.Builder();
+        String lastSeq = this.sourceDb.changes(
+                filter,
+                since,
+                this.config.changeLimitPerBatch,
+                changeFeeds);
+        return changeFeeds.build(lastSeq);
+    }
+
+    private ChangesResultWrapper changesSinceWithRetries(final String since,
+                                                         final boolean longpoll)
+            throws InterruptedException {
+        Callable<ChangesResultWrapper> task = new Callable<ChangesResultWrapper>() {
+            @Override
+            public ChangesResultWrapper call() {
+                return longpoll ? longpollChangesSince(since) : changesSince(since);
+            }
+
+            @Override
+            public String toString() {
+                return String.format("Changes since %s (longpoll %s)", since, longpoll);
+            }
+        };
+        try {
+            return new RetriableTask<ChangesResultWrapper>(CHANGES_RETRIES,
+                    RetriableTask.DEFAULT_WAIT_TIME, CHANGES_RETRY_MAX_WAIT, task).call();
+        } catch (InterruptedException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            // RetriableTask only throws RetryException and InterruptedException
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private ChangesResultWrapper longpollChangesSince(String since) {
+        ChangesResultWrapper.Builder changeFeeds = new ChangesResultWrapper.Builder();
+        String lastSeq = this.sourceDb.longpollChanges(
                 filter,
-                lastCheckpoint,
-                this.config.changeLimitPerBatch);
-        logger.finer("changes feed: "+JSONUtils.toPrettyJson(changeFeeds));
-        return new ChangesResultWrapper(changeFeeds);
+                since,
+                this.config.changeLimitPerBatch,
+                LONGPOLL_HEARTBEAT,
+                LONGPOLL_TIMEOUT,
+                changeFeeds);
+        return changeFeeds.build(lastSeq);
+    }
+
+    /**
+     * Fetches the missing revisions of the given documents from the source
+     * database. If the source supports it this is a single bulk request,
+     * otherwise it's one request per document.
+     *
+     * @return the revisions of each document, in the order of {@code ids}
+     */
+    List<DocumentRevsList> fetchRevisions(List<String> ids,
+                                          Map<String, Collection<String>> revisions)
+            throws ExecutionException, InterruptedException {
+        List<DocumentRevsList> results = new ArrayList<DocumentRevsList>(ids.size());
+        if (this.sourceDb.isBulkSupported()) {
+            Callable<List<DocumentRevsList>> task = GetRevisionTaskBulk.createGetRevisionTaskBulk(
+                    this.sourceDb,
+                    createBulkGetRequests(ids, revisions),
+                    config.pullAttachmentsInline);
+            results.addAll(executor.submit(task).get());
+        } else {
+            for (Future<DocumentRevsList> future : executor.invokeAll(createTasks(ids, revisions))) {
+                results.add(future.get());
+            }
+        }
+        return results;
     }
 
     public List<Callable<DocumentRevsList>> createTasks(List<String> ids,
@@ -405,24 +668,39 @@ class BasicPullStrategy implements ReplicationStrategy {
 
         List<Callable<DocumentRevsList>> tasks = new ArrayList<Callable<DocumentRevsList>>();
         for(String id : ids) {
-            // get list for atts_since (these are possible ancestors we have, it's ok to be eager
-            // and get all revision IDs higher up in the tree even if they're not our ancestors and
-            // belong to a different subtree)
-            HashSet<String> possibleAncestors = new HashSet<String>();
-            for (String revId : revisions.get(id)) {
-                List<String> thesePossibleAncestors = targetDb.getDbCore().getPossibleAncestorRevisionIDs(id, revId, 50);
-                if (thesePossibleAncestors != null) {
-                    possibleAncestors.addAll(thesePossibleAncestors);
-                }
-            }
             tasks.add(GetRevisionTask.createGetRevisionTask(this.sourceDb,
                     id,
                     revisions.get(id),
-                    possibleAncestors,
+                    possibleAncestors(id, revisions.get(id)),
                     config.pullAttachmentsInline));
         }
         return tasks;
     }
+
+    List<BulkGetRequest> createBulkGetRequests(List<String> ids,
+                                               Map<String, Collection<String>> revisions) {
+        List<BulkGetRequest> requests = new ArrayList<BulkGetRequest>(ids.size());
+        for (String id : ids) {
+            requests.add(new BulkGetRequest(id,
+                    revisions.get(id),
+                    possibleAncestors(id, revisions.get(id))));
+        }
+        return requests;
+    }
+
+    // get list for atts_since (these are possible ancestors we have, it's ok to be eager
+    // and get all revision IDs higher up in the tree even if they're not our ancestors and
+    // belong to a different subtree)
+    private Set<String> possibleAncestors(String id, Collection<String> revIds) {
+        HashSet<String> possibleAncestors = new HashSet<String>();
+        for (String revId : revIds) {
+            List<String> thesePossibleAncestors = targetDb.getDbCore().getPossibleAncestorRevisionIDs(id, revId, 50);
+            if (thesePossibleAncestors != null) {
+                possibleAncestors.addAll(thesePossibleAncestors);
+            }
+        }
+        return possibleAncestors;
+    }
     
     @Override
     public EventBus getEventBus() {
@@ -52,8 +52,8 @@ class BasicPushStrategy implements ReplicationStrategy {
 
     private final PushConfiguration config;
 
-    private int documentCounter = 0;
-    private int batchCounter = 0;
+    int documentCounter = 0;
+    int batchCounter = 0;
 
     private final String name;
 
@@ -102,6 +102,10 @@ class BasicPushStrategy implements ReplicationStrategy {
         this.cancel = true;
     }
 
+    boolean isCancelled() {
+        return this.cancel;
+    }
+
     public int getDocumentCounter() {
         return this.documentCounter;
     }
@@ -124,6 +128,9 @@ class BasicPushStrategy implements ReplicationStrategy {
 
             replicate();
 
+        } catch (ExecutionException ex) {
+            logger.log(Level.SEVERE,String.format("Batch %s ended with error:", this.batchCounter),ex);
+            errorInfo = new ErrorInfo(ex.getCause());
         } catch (Throwable e) {
             logger.log(Level.SEVERE,String.format("Batch %s ended with error:", this.batchCounter),e);
             errorInfo = new ErrorInfo(e);
@@ -157,6 +164,26 @@ class BasicPushStrategy implements ReplicationStrategy {
         }
 
         this.documentCounter = 0;
+        if (this.config.concurrentUploads > 0) {
+            new PushPipeline(this, this.config).run();
+        } else {
+            replicateInSequence();
+        }
+
+        long endTime = System.currentTimeMillis();
+        long deltaTime = endTime - startTime;
+        String msg =  String.format(
+            "Push completed in %sms (%s total changes processed)",
+            deltaTime,
+            this.documentCounter
+        );
+        logger.info(msg);
+    }
+
+    /**
+     * Reads and uploads each window of changes in turn.
+     */
+    private void replicateInSequence() throws ExecutionException, InterruptedException {
         for(this.batchCounter = 1 ; this.batchCounter < config.batchLimitPerRun; this.batchCounter ++) {
 
             if (this.cancel) { return; }
@@ -201,15 +228,6 @@ class BasicPushStrategy implements ReplicationStrategy {
                 break;
             }
         }
-
-        long endTime = System.currentTimeMillis();
-        long deltaTime = endTime - startTime;
-        String msg =  String.format(
-            "Push completed in %sms (%s total changes processed)",
-            deltaTime,
-            this.documentCounter
-        );
-        logger.info(msg);
     }
 
     private Changes getNextBatch() throws ExecutionException, InterruptedException {
@@ -223,7 +241,7 @@ class BasicPushStrategy implements ReplicationStrategy {
      * A small value class containing a set of documents to push, some
      * via multipart and some via _bulk_docs
      */
-    private class ItemsToPush
+    static class ItemsToPush
     {
         public ItemsToPush() {
             serializedDocs = new ArrayList<String>();
@@ -232,6 +250,12 @@ class BasicPushStrategy implements ReplicationStrategy {
 
         List<String> serializedDocs;
         List<MultipartAttachmentWriter> multiparts;
+        // number of documents with revisions missing from the remote database
+        int documentCount;
+
+        boolean isEmpty() {
+            return serializedDocs.isEmpty() && multiparts.isEmpty();
+        }
     }
 
     private int processOneChangesBatch(Changes changes) {
@@ -248,18 +272,11 @@ class BasicPushStrategy implements ReplicationStrategy {
 
             if (this.cancel) { break; }
 
-            Map<String, DocumentRevisionTree> allTrees = this.sourceDb.getDocumentTrees(batch);
-            Map<String, Set<String>> docOpenRevs = this.openRevisions(allTrees);
-            Map<String, Set<String>> docMissingRevs = this.targetDb.revsDiff(docOpenRevs);
-
-            ItemsToPush itemsToPush = missingRevisionsToJsonDocs(allTrees, docMissingRevs);
-            List<String> serialisedMissingRevs = itemsToPush.serializedDocs;
-            List<MultipartAttachmentWriter> multiparts = itemsToPush.multiparts;
+            ItemsToPush itemsToPush = prepareItemsToPush(batch);
 
             if (!this.cancel) {
-                this.targetDb.putMultiparts(multiparts);
-                this.targetDb.bulkSerializedDocs(serialisedMissingRevs);
-                changesProcessed += docMissingRevs.size();
+                uploadItemsToPush(itemsToPush);
+                changesProcessed += itemsToPush.documentCount;
             }
         }
 
@@ -270,6 +287,25 @@ class BasicPushStrategy implements ReplicationStrategy {
         return changesProcessed;
     }
 
+    /**
+     * Loads the revision trees of a window of changes and works out which of
+     * their revisions the remote database is missing, ready to upload.
+     */
+    ItemsToPush prepareItemsToPush(List<BasicDocumentRevision> batch) {
+        Map<String, DocumentRevisionTree> allTrees = this.sourceDb.getDocumentTrees(batch);
+        Map<String, Set<String>> docOpenRevs = this.openRevisions(allTrees);
+        Map<String, Set<String>> docMissingRevs = this.targetDb.revsDiff(docOpenRevs);
+
+        ItemsToPush itemsToPush = missingRevisionsToJsonDocs(allTrees, docMissingRevs);
+        itemsToPush.documentCount = docMissingRevs.size();
+        return itemsToPush;
+    }
+
+    void uploadItemsToPush(ItemsToPush itemsToPush) {
+        this.targetDb.putMultiparts(itemsToPush.multiparts);
+        this.targetDb.bulkSerializedDocs(itemsToPush.serializedDocs);
+    }
+
     private ItemsToPush missingRevisionsToJsonDocs(
             Map<String, DocumentRevisionTree> allTrees,
             Map<String, Set<String>> revisions)  {
@@ -324,13 +360,13 @@ class BasicPushStrategy implements ReplicationStrategy {
         return new String(sha1Hex);
     }
 
-    private long getLastCheckpointSequence() {
+    long getLastCheckpointSequence() {
         String lastSequence =  targetDb.getCheckpoint(this.getReplicationId());
         // As we are pretty sure the checkpoint is a number
         return Strings.isNullOrEmpty(lastSequence) ? 0 : Long.valueOf(lastSequence);
     }
 
-    private void putCheckpoint(String checkpoint) {
+    void putCheckpoint(String checkpoint) {
         targetDb.putCheckpoint(this.getReplicationId(), checkpoint);
     }
     
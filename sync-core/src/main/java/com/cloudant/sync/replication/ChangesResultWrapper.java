@@ -14,38 +14,62 @@
 
 package com.cloudant.sync.replication;
 
+import com.cloudant.mazha.ChangesFeedParser;
 import com.cloudant.mazha.ChangesResult;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.HashMultimap;
-import com.google.common.collect.Lists;
 import com.google.common.collect.Multimap;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 
+/**
+ * <p>A batch of changes from the remote database's changes feed.</p>
+ *
+ * <p>It either wraps a {@link ChangesResult}, or is built row by row from a
+ * streamed feed using a {@link Builder}. A streamed batch only keeps the id
+ * and open revisions of each row, so {@link #getResults()} isn't available
+ * for it.</p>
+ */
 class ChangesResultWrapper {
 
     private final ChangesResult changes;
 
+    private final String lastSeq;
+    private final List<String> ids;
+    private final List<String[]> revs;
+
     public ChangesResultWrapper(ChangesResult changes) {
         Preconditions.checkNotNull(changes, "Changes feed can not be null");
         this.changes = changes;
+        this.lastSeq = changes.getLastSeq();
+        this.ids = null;
+        this.revs = null;
     }
 
+    private ChangesResultWrapper(String lastSeq, List<String> ids, List<String[]> revs) {
+        this.changes = null;
+        this.lastSeq = lastSeq;
+        this.ids = ids;
+        this.revs = revs;
+    }
 
     public int size() {
-        return this.changes.size();
+        return this.changes != null ? this.changes.size() : this.ids.size();
     }
 
     public String getLastSeq() {
-        return this.changes.getLastSeq();
+        return this.lastSeq;
     }
 
+    /**
+     * @throws IllegalStateException if this batch was streamed
+     */
     public List<ChangesResult.Row> getResults() {
+        Preconditions.checkState(this.changes != null, "Rows are not kept for a streamed changes feed");
         return this.changes.getResults();
     }
 
@@ -55,6 +79,12 @@ class ChangesResultWrapper {
         Preconditions.checkArgument(end <= this.size(), "End position must be smaller than changes feed size.");
 
         Multimap<String, String> openRevisions = HashMultimap.create();
+        if (this.changes == null) {
+            for (int i = start; i < end; i++) {
+                openRevisions.putAll(this.ids.get(i), Arrays.asList(this.revs.get(i)));
+            }
+            return openRevisions;
+        }
         for(int i = start; i < end ; i ++) {
             ChangesResult.Row row = this.getResults().get(i);
             List<ChangesResult.Row.Rev> revisions = row.getChanges();
@@ -66,4 +96,26 @@ class ChangesResultWrapper {
         }
         return openRevisions;
     }
+
+    /**
+     * Collects the rows of a streamed changes feed into a
+     * {@code ChangesResultWrapper}, keeping only what the pull replicator
+     * needs from each row.
+     */
+    static class Builder implements ChangesFeedParser.RowListener {
+
+        private final List<String> ids = new ArrayList<String>();
+        private final List<String[]> revs = new ArrayList<String[]>();
+
+        @Override
+        public void onRow(String seq, String id, List<String> revs, boolean deleted) {
+            this.ids.add(id);
+            this.revs.add(revs.toArray(new String[revs.size()]));
+        }
+
+        ChangesResultWrapper build(String lastSeq) {
+            Preconditions.checkNotNull(lastSeq, "Last sequence can not be null");
+            return new ChangesResultWrapper(lastSeq, ids, revs);
+        }
+    }
 }
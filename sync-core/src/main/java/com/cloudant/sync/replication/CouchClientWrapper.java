@@ -14,6 +14,8 @@
 
 package com.cloudant.sync.replication;
 
+import com.cloudant.mazha.BulkGetRequest;
+import com.cloudant.mazha.ChangesFeedParser;
 import com.cloudant.mazha.ChangesResult;
 import com.cloudant.mazha.CouchClient;
 import com.cloudant.mazha.CouchConfig;
@@ -24,6 +26,7 @@ import com.cloudant.mazha.OpenRevision;
 import com.cloudant.mazha.Response;
 import com.cloudant.sync.datastore.Attachment;
 import com.cloudant.sync.datastore.BasicDocumentRevision;
+import com.cloudant.sync.datastore.DocumentRevsList;
 import com.cloudant.sync.datastore.MultipartAttachmentWriter;
 import com.cloudant.sync.datastore.UnsavedStreamAttachment;
 import com.google.common.base.Preconditions;
@@ -47,6 +50,9 @@ public class CouchClientWrapper implements CouchDB {
 
     final CouchClient couchClient;
 
+    // Whether the server supports _bulk_get, null until we've asked it
+    private volatile Boolean bulkGetSupported;
+
     public CouchClientWrapper(CouchClient client) {
         Preconditions.checkNotNull(client, "Couch client must not be null");
         this.couchClient = client;
@@ -123,6 +129,29 @@ public class CouchClientWrapper implements CouchDB {
         }
     }
 
+    @Override
+    public String changes(Replication.Filter filter, String lastSequence, int limit,
+                          ChangesFeedParser.RowListener listener) {
+        if(filter == null) {
+            return couchClient.changes(null, null, lastSequence, limit, listener);
+        } else {
+            return couchClient.changes(filter.name, filter.parameters, lastSequence, limit, listener);
+        }
+    }
+
+    @Override
+    public String longpollChanges(Replication.Filter filter, String lastSequence, int limit,
+                                  int heartbeat, int timeout,
+                                  ChangesFeedParser.RowListener listener) {
+        if(filter == null) {
+            return couchClient.longpollChanges(null, null, lastSequence, limit, heartbeat, timeout,
+                    listener);
+        } else {
+            return couchClient.longpollChanges(filter.name, filter.parameters, lastSequence, limit,
+                    heartbeat, timeout, listener);
+        }
+    }
+
     /**
      * For each open revision, there should be a response of <code>DocumentRevs</code> returned.
      *
@@ -150,6 +179,51 @@ public class CouchClientWrapper implements CouchDB {
         return documentRevs;
     }
 
+    @Override
+    public boolean isBulkSupported() {
+        if (bulkGetSupported == null) {
+            try {
+                couchClient.bulkReadDocsWithOpenRevisions(new ArrayList<BulkGetRequest>(), false);
+                bulkGetSupported = true;
+            } catch (CouchException e) {
+                // Servers without _bulk_get treat it as a document id, or
+                // reject the method
+                if (e.getStatusCode() == 400 || e.getStatusCode() == 404
+                        || e.getStatusCode() == 405 || e.getStatusCode() == 501) {
+                    logger.info(String.format("%s doesn't support _bulk_get, " +
+                            "revisions will be fetched one document at a time", getIdentifier()));
+                    bulkGetSupported = false;
+                } else {
+                    throw e;
+                }
+            }
+        }
+        return bulkGetSupported;
+    }
+
+    @Override
+    public List<DocumentRevsList> bulkGetRevisions(List<BulkGetRequest> requests,
+                                                   boolean pullAttachmentsInline) {
+        Map<String, List<OpenRevision>> openRevisions =
+                couchClient.bulkReadDocsWithOpenRevisions(requests, pullAttachmentsInline);
+
+        // as with getRevisions, expect all the open revisions to be ok
+        List<DocumentRevsList> results = new ArrayList<DocumentRevsList>(requests.size());
+        for (BulkGetRequest request : requests) {
+            List<DocumentRevs> documentRevs = new ArrayList<DocumentRevs>();
+            for (OpenRevision openRev : openRevisions.get(request.getId())) {
+                if (openRev instanceof OkOpenRevision) {
+                    documentRevs.add(((OkOpenRevision) openRev).getDocumentRevs());
+                } else {
+                    throw new RuntimeException("Missing open revision for document:"
+                            + request.getId() + ", revisions: " + request.getRevs());
+                }
+            }
+            results.add(new DocumentRevsList(documentRevs));
+        }
+        return results;
+    }
+
     @Override
     public Response create(Object object) {
         return couchClient.create(object);
@@ -14,10 +14,13 @@
 
 package com.cloudant.sync.replication;
 
+import com.cloudant.mazha.BulkGetRequest;
+import com.cloudant.mazha.ChangesFeedParser;
 import com.cloudant.mazha.ChangesResult;
 import com.cloudant.mazha.DocumentRevs;
 import com.cloudant.mazha.Response;
 import com.cloudant.sync.datastore.BasicDocumentRevision;
+import com.cloudant.sync.datastore.DocumentRevsList;
 import com.cloudant.sync.datastore.MultipartAttachmentWriter;
 import com.cloudant.sync.datastore.UnsavedStreamAttachment;
 
@@ -45,10 +48,50 @@ interface CouchDB {
 
     public ChangesResult changes(String lastSequence, int limit);
     public ChangesResult changes(Replication.Filter filter,String lastSequence, int limit);
+
+    /**
+     * Streams a batch of changes to {@code listener} one row at a time,
+     * rather than returning them all as a {@code ChangesResult}.
+     *
+     * @return the last sequence of the batch
+     */
+    public String changes(Replication.Filter filter, String lastSequence, int limit,
+                          ChangesFeedParser.RowListener listener);
+
+    /**
+     * Like {@link #changes(Replication.Filter, String, int, ChangesFeedParser.RowListener)},
+     * but if there are no changes since {@code lastSequence}, waits up to
+     * {@code timeout} milliseconds for some, with a heartbeat sent every
+     * {@code heartbeat} milliseconds to keep the connection open.
+     *
+     * @return the last sequence of the batch
+     */
+    public String longpollChanges(Replication.Filter filter, String lastSequence, int limit,
+                                  int heartbeat, int timeout,
+                                  ChangesFeedParser.RowListener listener);
+
     public List<DocumentRevs> getRevisions(String documentId,
                                            Collection<String> revisionIds,
                                            Collection<String> attsSince,
                                            boolean pullAttachmentsInline);
+
+    /**
+     * Returns true if the database can return the open revisions of many
+     * documents in a single request, using
+     * {@link #bulkGetRevisions(List, boolean)}.
+     */
+    public boolean isBulkSupported();
+
+    /**
+     * Gets the open revisions of many documents in a single request. This
+     * is the bulk equivalent of
+     * {@link #getRevisions(String, Collection, Collection, boolean)}, and
+     * should only be used if {@link #isBulkSupported()} returns true.
+     *
+     * @return the revisions of each document, in the order of the requests
+     */
+    public List<DocumentRevsList> bulkGetRevisions(List<BulkGetRequest> requests,
+                                                   boolean pullAttachmentsInline);
     public void bulk(List<BasicDocumentRevision> revisions);
     public void bulkSerializedDocs(List<String> serializedDocs);
     public List<Response> putMultiparts(List<MultipartAttachmentWriter> multiparts);
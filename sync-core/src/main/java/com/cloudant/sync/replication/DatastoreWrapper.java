@@ -22,11 +22,13 @@ import com.cloudant.sync.datastore.BasicDocumentRevision;
 import com.cloudant.sync.datastore.DocumentRevisionTree;
 import com.cloudant.sync.datastore.DocumentRevsList;
 import com.cloudant.sync.datastore.DocumentRevsUtils;
+import com.cloudant.sync.datastore.ForceInsertItem;
 import com.cloudant.sync.datastore.PreparedAttachment;
 import com.cloudant.sync.util.JSONUtils;
 
 import java.io.IOException;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -85,24 +87,34 @@ class DatastoreWrapper {
         return "_local/" + replicatorIdentifier;
     }
 
-    public void bulkInsert(DocumentRevsList documentRevsList, boolean pullAttachmentsInline) {
-        for(DocumentRevs documentRevs: documentRevsList) {
-            logger.log(Level.FINEST,"Bulk inserting document revs: %s",documentRevs);
-
-            BasicDocumentRevision doc = DocumentRevsUtils.createDocument(documentRevs);
-
-            List<String> revisions = DocumentRevsUtils.createRevisionIdHistory(documentRevs);
-            Map<String, Object> attachments = documentRevs.getAttachments();
-            dbCore.forceInsert(doc, revisions, attachments, pullAttachmentsInline);
+    /**
+     * @return true if the revisions were inserted, or false if the inline
+     *         attachments of any of them couldn't be added
+     */
+    public boolean bulkInsert(List<DocumentRevsList> documentRevsLists, boolean pullAttachmentsInline) {
+        List<ForceInsertItem> items = new ArrayList<ForceInsertItem>();
+        for(DocumentRevsList documentRevsList: documentRevsLists) {
+            for(DocumentRevs documentRevs: documentRevsList) {
+                logger.log(Level.FINEST,"Bulk inserting document revs: %s",documentRevs);
+
+                BasicDocumentRevision doc = DocumentRevsUtils.createDocument(documentRevs);
+
+                List<String> revisions = DocumentRevsUtils.createRevisionIdHistory(documentRevs);
+                Map<String, Object> attachments = documentRevs.getAttachments();
+                items.add(new ForceInsertItem(doc, revisions, attachments));
+            }
         }
+        return dbCore.forceInsert(items, pullAttachmentsInline);
     }
 
     Map<String, DocumentRevisionTree> getDocumentTrees(List<BasicDocumentRevision> documents) {
         Map<String, DocumentRevisionTree> allDocumentTrees =
                 new HashMap<String, DocumentRevisionTree>();
         for(BasicDocumentRevision doc: documents) {
+            // Only the bodies of the revisions actually pushed are needed,
+            // and they're read when the revisions are serialised
             DocumentRevisionTree tree =
-                    this.dbCore.getAllRevisionsOfDocument(doc.getId());
+                    this.dbCore.getAllRevisionsOfDocument(doc.getId(), false);
             allDocumentTrees.put(doc.getId(), tree);
         }
         return allDocumentTrees;
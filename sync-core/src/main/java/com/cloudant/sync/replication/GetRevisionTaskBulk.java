@@ -0,0 +1,74 @@
+/**
+ * Copyright (c) 2015 Cloudant, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.replication;
+
+import com.cloudant.common.RetriableTask;
+import com.cloudant.mazha.BulkGetRequest;
+import com.cloudant.sync.datastore.DocumentRevsList;
+import com.google.common.base.Preconditions;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.logging.Logger;
+
+/**
+ * GetRevisionTaskBulk gets the revision trees for many documents and their
+ * open revisions in a single request, as a Callable. It does the work of
+ * one {@link GetRevisionTask} per document in one round trip, for databases
+ * which support it.
+ *
+ * @see CouchDB#isBulkSupported()
+ */
+class GetRevisionTaskBulk implements Callable<List<DocumentRevsList>> {
+
+    private static final Logger logger = Logger.getLogger(GetRevisionTaskBulk.class.getCanonicalName());
+
+    private final List<BulkGetRequest> requests;
+    private final boolean pullAttachmentsInline;
+    private final CouchDB sourceDb;
+
+    public static Callable<List<DocumentRevsList>> createGetRevisionTaskBulk(CouchDB sourceDb,
+                                                                           List<BulkGetRequest> requests,
+                                                                           boolean pullAttachmentsInline) {
+        GetRevisionTaskBulk task = new GetRevisionTaskBulk(sourceDb, requests, pullAttachmentsInline);
+        return new RetriableTask<List<DocumentRevsList>>(task);
+    }
+
+    public GetRevisionTaskBulk(CouchDB sourceDb,
+                               List<BulkGetRequest> requests,
+                               boolean pullAttachmentsInline) {
+        Preconditions.checkNotNull(sourceDb, "sourceDb cannot be null");
+        Preconditions.checkNotNull(requests, "requests cannot be null");
+
+        this.sourceDb = sourceDb;
+        this.requests = requests;
+        this.pullAttachmentsInline = pullAttachmentsInline;
+    }
+
+    @Override
+    public List<DocumentRevsList> call() throws Exception {
+        logger.finer("Fetching " + this.requests.size() + " documents");
+        return this.sourceDb.bulkGetRevisions(requests, pullAttachmentsInline);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder s = new StringBuilder("GetRevisionTaskBulk: { documentIds : [");
+        for (int i = 0; i < requests.size(); i++) {
+            s.append(i == 0 ? "\"" : ", \"").append(requests.get(i).getId()).append("\"");
+        }
+        return s.append("] }").toString();
+    }
+}
@@ -24,11 +24,21 @@ class PullConfiguration {
     public static final int DEFAULT_MAX_BATCH_COUNTER_PER_RUN = 100;
     public static final int DEFAULT_INSERT_BATCH_SIZE = 10;
     public static final boolean DEFAULT_PULL_ATTACHMENTS_INLINE = false;
+    public static final boolean DEFAULT_GROUP_COMMIT = true;
+    public static final int DEFAULT_PIPELINE_DEPTH = 0;
+    public static final boolean DEFAULT_CONTINUOUS = false;
+    public static final int DEFAULT_CHECKPOINT_CHANGE_INTERVAL = 1000;
+    public static final int DEFAULT_CHECKPOINT_TIME_INTERVAL = 10;
 
     final int changeLimitPerBatch;
     final int batchLimitPerRun;
     final int insertBatchSize;
     final boolean pullAttachmentsInline;
+    final boolean groupCommit;
+    final int pipelineDepth;
+    final boolean continuous;
+    final int checkpointChangeInterval;
+    final int checkpointTimeInterval;
 
     /**
      * <p>Construct a {@code PullConfiguration} with the default settings.</p>
@@ -37,6 +47,30 @@ class PullConfiguration {
         this(DEFAULT_CHANGES_LIMIT_PER_BATCH, DEFAULT_MAX_BATCH_COUNTER_PER_RUN, DEFAULT_INSERT_BATCH_SIZE, DEFAULT_PULL_ATTACHMENTS_INLINE);
     }
 
+    /**
+     * <p>Construct a {@code PullConfiguration} with custom settings and
+     * the default group commit and pipeline settings.</p>
+     *
+     * @see PullConfiguration#PullConfiguration(int, int, int, boolean, boolean, int, boolean, int, int)
+     */
+    public PullConfiguration(int changeLimitPerBatch, int batchLimitPerRun, int insertBatchSize, boolean pullAttachmentsInline) {
+        this(changeLimitPerBatch, batchLimitPerRun, insertBatchSize, pullAttachmentsInline,
+                DEFAULT_GROUP_COMMIT, DEFAULT_PIPELINE_DEPTH);
+    }
+
+    /**
+     * <p>Construct a {@code PullConfiguration} with custom settings which
+     * stops once it has caught up with the remote database.</p>
+     *
+     * @see PullConfiguration#PullConfiguration(int, int, int, boolean, boolean, int, boolean, int, int)
+     */
+    public PullConfiguration(int changeLimitPerBatch, int batchLimitPerRun, int insertBatchSize,
+                             boolean pullAttachmentsInline, boolean groupCommit, int pipelineDepth) {
+        this(changeLimitPerBatch, batchLimitPerRun, insertBatchSize, pullAttachmentsInline,
+                groupCommit, pipelineDepth, DEFAULT_CONTINUOUS,
+                DEFAULT_CHECKPOINT_CHANGE_INTERVAL, DEFAULT_CHECKPOINT_TIME_INTERVAL);
+    }
+
     /**
      * <p>Construct a {@code PullConfiguration} with custom settings.</p>
      * @param changeLimitPerBatch  {@code limit} on {@code _changes} calls.
@@ -46,11 +80,44 @@ class PullConfiguration {
      *             Its intended use is to stop replications running for ever.
      * @param insertBatchSize Number of changes inserted into local datastore
      *                        at a time.
+     * @param pullAttachmentsInline Whether attachments are pulled inline
+     *                              with the document or downloaded separately.
+     * @param groupCommit If true, all the revisions fetched for one
+     *                    {@code insertBatchSize} window are written in a single
+     *                    transaction, rather than one transaction per document.
+     *                    The checkpoint for a batch of changes is written in the
+     *                    same transaction as the batch's last window.
+     * @param pipelineDepth If greater than zero, fetching changes, diffing
+     *                      revisions, fetching revisions and inserting them
+     *                      run concurrently as a pipeline, with up to this many
+     *                      items queued between each stage. Zero runs each
+     *                      batch through the stages in turn.
+     * @param continuous If true, the replication doesn't stop once it has
+     *                   caught up with the remote database. Instead it waits
+     *                   for new changes using a {@code feed=longpoll} changes
+     *                   request and applies them as they arrive, until it's
+     *                   stopped. {@code batchLimitPerRun} and
+     *                   {@code pipelineDepth} are ignored.
+     * @param checkpointChangeInterval For a continuous replication, the
+     *                                 checkpoint is written once at least this
+     *                                 many changes have been applied since the
+     *                                 last checkpoint...
+     * @param checkpointTimeInterval ...or once this many seconds have passed
+     *                               since the last checkpoint, whichever is
+     *                               first.
      */
-    public PullConfiguration(int changeLimitPerBatch, int batchLimitPerRun, int insertBatchSize, boolean pullAttachmentsInline) {
+    public PullConfiguration(int changeLimitPerBatch, int batchLimitPerRun, int insertBatchSize,
+                             boolean pullAttachmentsInline, boolean groupCommit, int pipelineDepth,
+                             boolean continuous, int checkpointChangeInterval,
+                             int checkpointTimeInterval) {
         this.changeLimitPerBatch = changeLimitPerBatch;
         this.batchLimitPerRun = batchLimitPerRun;
         this.insertBatchSize = insertBatchSize;
         this.pullAttachmentsInline = pullAttachmentsInline;
+        this.groupCommit = groupCommit;
+        this.pipelineDepth = pipelineDepth;
+        this.continuous = continuous;
+        this.checkpointChangeInterval = checkpointChangeInterval;
+        this.checkpointTimeInterval = checkpointTimeInterval;
     }
 }
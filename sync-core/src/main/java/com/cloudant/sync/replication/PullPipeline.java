@@ -0,0 +1,303 @@
+/**
+ * Copyright (c) 2015 Cloudant, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.replication;
+
+import com.cloudant.sync.datastore.DocumentRevsList;
+import com.cloudant.sync.datastore.PreparedAttachment;
+import com.google.common.collect.Lists;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * <p>Runs a pull replication as a pipeline of stages connected by bounded
+ * queues, so that network and database work overlap:</p>
+ *
+ * <ol>
+ *     <li>read batches of changes from the remote {@code _changes} feed</li>
+ *     <li>work out which revisions are missing locally ({@code revsDiff})</li>
+ *     <li>fetch the missing revisions and their attachments, one
+ *     {@code insertBatchSize} window at a time</li>
+ *     <li>write each window to the local datastore</li>
+ * </ol>
+ *
+ * <p>The first three stages each run on their own thread; the writer runs on
+ * the calling (replication) thread. Each queue holds at most
+ * {@code pipelineDepth} items, so batch N+1 is fetched while batch N is
+ * being written, but the fetching stages can't run arbitrarily far ahead.</p>
+ *
+ * <p>Windows are written in the order their changes appear in the feed, and
+ * the checkpoint for a batch of changes is only written after the last
+ * window of that batch, so the checkpoint never moves past changes which
+ * aren't yet in the datastore.</p>
+ */
+class PullPipeline {
+
+    private static final Logger logger = Logger.getLogger(PullPipeline.class.getCanonicalName());
+
+    /**
+     * How often the writer checks whether an upstream stage failed while
+     * waiting for the next window.
+     */
+    private static final long POLL_INTERVAL_MS = 100;
+
+    /**
+     * A batch of changes and the revisions from it missing locally.
+     */
+    private static class ChangesBatch {
+        final int batchNumber;
+        final ChangesResultWrapper changes;
+        Map<String, Collection<String>> missingRevisions;
+
+        ChangesBatch(int batchNumber, ChangesResultWrapper changes) {
+            this.batchNumber = batchNumber;
+            this.changes = changes;
+        }
+    }
+
+    /**
+     * Revisions fetched for one {@code insertBatchSize} window. If
+     * {@code lastSequence} is not null, this is the last window of its batch
+     * and the checkpoint is moved to {@code lastSequence} once it's written.
+     */
+    private static class InsertWindow {
+        final int batchNumber;
+        final List<DocumentRevsList> results = new ArrayList<DocumentRevsList>();
+        final List<Map<String[], List<PreparedAttachment>>> attachments =
+                new ArrayList<Map<String[], List<PreparedAttachment>>>();
+        String lastSequence;
+
+        InsertWindow(int batchNumber) {
+            this.batchNumber = batchNumber;
+        }
+    }
+
+    // Marks the end of the stream of items in a queue
+    private static final ChangesBatch END_OF_CHANGES = new ChangesBatch(-1, null);
+    private static final InsertWindow END_OF_WINDOWS = new InsertWindow(-1);
+
+    private final BasicPullStrategy strategy;
+    private final PullConfiguration config;
+
+    private final BlockingQueue<ChangesBatch> changesQueue;
+    private final BlockingQueue<ChangesBatch> missingQueue;
+    private final BlockingQueue<InsertWindow> windowQueue;
+
+    private final ExecutorService stageExecutor = Executors.newFixedThreadPool(3);
+    private final List<Future<Void>> stages = new ArrayList<Future<Void>>();
+
+    PullPipeline(BasicPullStrategy strategy, PullConfiguration config) {
+        this.strategy = strategy;
+        this.config = config;
+        this.changesQueue = new ArrayBlockingQueue<ChangesBatch>(config.pipelineDepth);
+        this.missingQueue = new ArrayBlockingQueue<ChangesBatch>(config.pipelineDepth);
+        this.windowQueue = new ArrayBlockingQueue<InsertWindow>(config.pipelineDepth);
+    }
+
+    /**
+     * Runs the pipeline to completion, cancellation or the first error in any
+     * stage.
+     */
+    void run() throws ExecutionException, InterruptedException {
+        stages.add(stageExecutor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                readChanges();
+                return null;
+            }
+        }));
+        stages.add(stageExecutor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                diffRevisions();
+                return null;
+            }
+        }));
+        stages.add(stageExecutor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                fetchRevisions();
+                return null;
+            }
+        }));
+
+        try {
+            writeRevisions();
+        } finally {
+            // Unblocks any stage still waiting on a queue
+            stageExecutor.shutdownNow();
+        }
+    }
+
+    private void readChanges() throws InterruptedException {
+        try {
+            String since = strategy.targetDb.getCheckpoint(strategy.getReplicationId());
+            logger.fine("last checkpoint " + since);
+            for (int batchNumber = 1; batchNumber < config.batchLimitPerRun; batchNumber++) {
+                if (strategy.isCancelled()) { return; }
+
+                ChangesResultWrapper changes = strategy.changesSince(since);
+                logger.info(String.format("Batch %s contains %s changes",
+                        batchNumber, changes.size()));
+                changesQueue.put(new ChangesBatch(batchNumber, changes));
+                since = changes.getLastSeq();
+
+                // This logic depends on the changes in the feed rather than the
+                // changes we actually processed.
+                if (changes.size() < config.changeLimitPerBatch) {
+                    break;
+                }
+            }
+        } finally {
+            changesQueue.put(END_OF_CHANGES);
+        }
+    }
+
+    private void diffRevisions() throws InterruptedException {
+        try {
+            ChangesBatch batch;
+            while ((batch = changesQueue.take()) != END_OF_CHANGES) {
+                if (strategy.isCancelled()) { return; }
+
+                if (batch.changes.size() > 0) {
+                    batch.missingRevisions = strategy.targetDb.getDbCore().revsDiff(
+                            batch.changes.openRevisions(0, batch.changes.size()));
+                } else {
+                    batch.missingRevisions = Collections.emptyMap();
+                }
+                missingQueue.put(batch);
+            }
+        } finally {
+            missingQueue.put(END_OF_CHANGES);
+        }
+    }
+
+    private void fetchRevisions() throws InterruptedException, ExecutionException {
+        try {
+            ChangesBatch batch;
+            while ((batch = missingQueue.take()) != END_OF_CHANGES) {
+                List<String> ids = Lists.newArrayList(batch.missingRevisions.keySet());
+                List<List<String>> partitions = Lists.partition(ids, config.insertBatchSize);
+                if (partitions.isEmpty()) {
+                    // Nothing to insert, but the checkpoint still needs to move on
+                    InsertWindow window = new InsertWindow(batch.batchNumber);
+                    window.lastSequence = batch.changes.getLastSeq();
+                    windowQueue.put(window);
+                }
+                for (int i = 0; i < partitions.size(); i++) {
+                    if (strategy.isCancelled()) { return; }
+
+                    InsertWindow window = new InsertWindow(batch.batchNumber);
+                    for (DocumentRevsList result :
+                            strategy.fetchRevisions(partitions.get(i), batch.missingRevisions)) {
+                        // by preparing the attachments here, they are downloaded
+                        // while the previous window is being written
+                        window.attachments.add(strategy.prepareAttachments(result));
+                        window.results.add(result);
+                        if (strategy.isCancelled()) { return; }
+                    }
+                    if (i == partitions.size() - 1) {
+                        window.lastSequence = batch.changes.getLastSeq();
+                    }
+                    windowQueue.put(window);
+                }
+            }
+        } finally {
+            windowQueue.put(END_OF_WINDOWS);
+        }
+    }
+
+    private void writeRevisions() throws InterruptedException, ExecutionException {
+        InsertWindow window;
+        while ((window = nextWindow()) != END_OF_WINDOWS) {
+            // We promise not to insert documents after cancel is set
+            if (strategy.isCancelled()) { return; }
+
+            strategy.batchCounter = window.batchNumber;
+            if (window.results.isEmpty()) {
+                strategy.targetDb.putCheckpoint(strategy.getReplicationId(), window.lastSequence);
+            } else if (config.groupCommit) {
+                Map<String[], List<PreparedAttachment>> atts =
+                        new HashMap<String[], List<PreparedAttachment>>();
+                for (Map<String[], List<PreparedAttachment>> a : window.attachments) {
+                    atts.putAll(a);
+                }
+                if (strategy.insertRevisions(window.results, atts, window.lastSequence)) {
+                    strategy.documentCounter += window.results.size();
+                }
+            } else {
+                for (int i = 0; i < window.results.size(); i++) {
+                    if (strategy.isCancelled()) { return; }
+                    if (strategy.insertRevisions(Collections.singletonList(window.results.get(i)),
+                            window.attachments.get(i), null)) {
+                        strategy.documentCounter++;
+                    }
+                }
+                if (window.lastSequence != null && !strategy.isCancelled()) {
+                    strategy.targetDb.putCheckpoint(strategy.getReplicationId(), window.lastSequence);
+                }
+            }
+        }
+
+        if (strategy.isCancelled()) { return; }
+
+        // A failed stage still ends its output, so make sure the pipeline
+        // drained because every stage completed rather than because one of
+        // them threw. Stages are checked downstream first: a failed stage
+        // stops taking from its queue, which can leave the stages upstream of
+        // it blocked forever.
+        for (Future<Void> stage : Lists.reverse(stages)) {
+            stage.get();
+        }
+    }
+
+    /**
+     * Waits for the next window, rethrowing the error if any upstream stage
+     * failed in the meantime.
+     *
+     * @return the next window, or {@code END_OF_WINDOWS} if replication was
+     *         cancelled
+     */
+    private InsertWindow nextWindow() throws InterruptedException, ExecutionException {
+        while (true) {
+            InsertWindow window = windowQueue.poll(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+            if (window != null) {
+                return window;
+            }
+            if (strategy.isCancelled()) {
+                return END_OF_WINDOWS;
+            }
+            for (Future<Void> stage : stages) {
+                if (stage.isDone()) {
+                    // throws ExecutionException if the stage failed
+                    stage.get();
+                }
+            }
+        }
+    }
+}
@@ -31,6 +31,34 @@ public class PullReplication extends Replication {
      * @see <a href="http://docs.couchdb.org/en/latest/couchapp/ddocs.html#filter-functions">CouchDB docs on filter functions</a>
      */
     public Filter filter;
+    /**
+     * If greater than zero, fetching changes, fetching revisions and
+     * inserting them into the datastore run concurrently, with up to this
+     * many items queued between each stage. This hides the latency of the
+     * remote database. Zero, the default, runs each batch of changes through
+     * the stages in turn.
+     */
+    public int pipelineDepth = PullConfiguration.DEFAULT_PIPELINE_DEPTH;
+    /**
+     * If true, the replication doesn't stop once it has caught up with the
+     * remote database. It waits for new changes, using a
+     * {@code feed=longpoll} changes request, and applies them as they arrive
+     * until the replicator is stopped. {@code pipelineDepth} is ignored.
+     */
+    public boolean continuous = PullConfiguration.DEFAULT_CONTINUOUS;
+    /**
+     * For a continuous replication, the checkpoint is written once at least
+     * this many changes have been applied since the last checkpoint, or once
+     * {@code checkpointTimeInterval} seconds have passed, whichever is first.
+     */
+    public int checkpointChangeInterval = PullConfiguration.DEFAULT_CHECKPOINT_CHANGE_INTERVAL;
+    /**
+     * For a continuous replication, the most seconds between checkpoints
+     * while changes are being applied.
+     *
+     * @see #checkpointChangeInterval
+     */
+    public int checkpointTimeInterval = PullConfiguration.DEFAULT_CHECKPOINT_TIME_INTERVAL;
 
     /**
      * Constructs a PullReplication object, configured by assigning to the
@@ -45,6 +73,11 @@ public class PullReplication extends Replication {
         Preconditions.checkNotNull(this.target);
         Preconditions.checkNotNull(this.source);
         checkURI(this.source);
+        Preconditions.checkArgument(this.pipelineDepth >= 0, "Pipeline depth must not be negative");
+        Preconditions.checkArgument(this.checkpointChangeInterval > 0,
+                "Checkpoint change interval must be positive");
+        Preconditions.checkArgument(this.checkpointTimeInterval > 0,
+                "Checkpoint time interval must be positive");
     }
 
     @Override
@@ -62,6 +95,18 @@ public class PullReplication extends Replication {
 
     @Override
     ReplicationStrategy createReplicationStrategy() {
-        return new BasicPullStrategy(this, null, null);
+        return new BasicPullStrategy(this, null, createPullConfiguration());
+    }
+
+    PullConfiguration createPullConfiguration() {
+        return new PullConfiguration(PullConfiguration.DEFAULT_CHANGES_LIMIT_PER_BATCH,
+                PullConfiguration.DEFAULT_MAX_BATCH_COUNTER_PER_RUN,
+                PullConfiguration.DEFAULT_INSERT_BATCH_SIZE,
+                PullConfiguration.DEFAULT_PULL_ATTACHMENTS_INLINE,
+                PullConfiguration.DEFAULT_GROUP_COMMIT,
+                this.pipelineDepth,
+                this.continuous,
+                this.checkpointChangeInterval,
+                this.checkpointTimeInterval);
     }
 }
@@ -25,11 +25,13 @@ class PushConfiguration {
     public static final int DEFAULT_BULK_INSERT_SIZE = 10;
     // by default push small attachments as inline base64, and larger ones as multipart
     public static final PushAttachmentsInline DEFAULT_PUSH_ATTACHMENTS_INLINE = PushAttachmentsInline.Small;
+    public static final int DEFAULT_CONCURRENT_UPLOADS = 0;
 
     final int changeLimitPerBatch;
     final int batchLimitPerRun;
     final int bulkInsertSize;
     final PushAttachmentsInline pushAttachmentsInline;
+    final int concurrentUploads;
 
     /**
      * <p>Construct a {@code PushConfiguration} with the default settings.</p>
@@ -53,9 +55,28 @@ class PushConfiguration {
      *                              inline or separately.
      */
     public PushConfiguration(int changeLimitPerBatch, int batchLimitPerRun, int insertBatchSize, PushAttachmentsInline pushAttachmentsInline) {
+        this(changeLimitPerBatch, batchLimitPerRun, insertBatchSize, pushAttachmentsInline,
+                DEFAULT_CONCURRENT_UPLOADS);
+    }
+
+    /**
+     * <p>Construct a {@code PushConfiguration} with custom settings.</p>
+     *
+     * @param concurrentUploads If greater than zero, up to this many
+     *                          {@code insertBatchSize} windows are uploaded
+     *                          to the remote database at once, while the
+     *                          following windows are read from the local
+     *                          datastore. Zero reads and uploads each window
+     *                          in turn.
+     *
+     * @see PushConfiguration#PushConfiguration(int, int, int, PushAttachmentsInline)
+     */
+    public PushConfiguration(int changeLimitPerBatch, int batchLimitPerRun, int insertBatchSize,
+                             PushAttachmentsInline pushAttachmentsInline, int concurrentUploads) {
         this.changeLimitPerBatch = changeLimitPerBatch;
         this.batchLimitPerRun = batchLimitPerRun;
         this.bulkInsertSize = insertBatchSize;
         this.pushAttachmentsInline = pushAttachmentsInline;
+        this.concurrentUploads = concurrentUploads;
     }
 }
@@ -0,0 +1,174 @@
+/**
+ * Copyright (c) 2015 Cloudant, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.replication;
+
+import com.cloudant.sync.datastore.BasicDocumentRevision;
+import com.cloudant.sync.datastore.Changes;
+import com.google.common.collect.Lists;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+/**
+ * <p>Runs a push replication with up to {@code concurrentUploads} windows of
+ * changes being uploaded to the remote database at once.</p>
+ *
+ * <p>Each {@code bulkInsertSize} window of changes is prepared on the
+ * calling (replication) thread: the revision trees are loaded from the local
+ * datastore, the revisions missing remotely found with {@code revsDiff}, and
+ * the missing revisions serialised. The window's {@code putMultipart} and
+ * {@code _bulk_docs} requests are then made on one of the upload threads,
+ * while the next window is prepared. Once {@code concurrentUploads} windows
+ * are in flight, the next prepared window waits for the oldest to
+ * finish.</p>
+ *
+ * <p>Uploads can finish in any order, but they're completed in the order
+ * they were started, and the checkpoint for a batch of changes is only
+ * written once its last window and every window before it have been
+ * uploaded. So the checkpoint never moves past changes which aren't yet in
+ * the remote database.</p>
+ */
+class PushPipeline {
+
+    private static final Logger logger = Logger.getLogger(PushPipeline.class.getCanonicalName());
+
+    /**
+     * A window of changes which has been started uploading. If
+     * {@code checkpoint} is not null, this is the last window of its batch
+     * and the checkpoint is moved to {@code checkpoint} once it, and all the
+     * windows before it, have been uploaded.
+     */
+    private static class Upload {
+        // null if there was nothing in the window to upload
+        final Future<Void> future;
+        final int documentCount;
+        final String checkpoint;
+
+        Upload(Future<Void> future, int documentCount, String checkpoint) {
+            this.future = future;
+            this.documentCount = documentCount;
+            this.checkpoint = checkpoint;
+        }
+    }
+
+    private final BasicPushStrategy strategy;
+    private final PushConfiguration config;
+
+    private final ExecutorService uploadExecutor;
+    // Uploads in the order they were started
+    private final Deque<Upload> uploads = new ArrayDeque<Upload>();
+
+    PushPipeline(BasicPushStrategy strategy, PushConfiguration config) {
+        this.strategy = strategy;
+        this.config = config;
+        this.uploadExecutor = Executors.newFixedThreadPool(config.concurrentUploads);
+    }
+
+    /**
+     * Runs the replication to completion, cancellation or the first failed
+     * upload.
+     */
+    void run() throws ExecutionException, InterruptedException {
+        try {
+            long since = strategy.getLastCheckpointSequence();
+            logger.fine("Last push sequence from remote database: " + since);
+            for (strategy.batchCounter = 1; strategy.batchCounter < config.batchLimitPerRun;
+                 strategy.batchCounter++) {
+                if (strategy.isCancelled()) { return; }
+
+                Changes changes = strategy.sourceDb.getDbCore().changes(since,
+                        config.changeLimitPerBatch);
+                logger.info(String.format("Batch %s contains %s changes",
+                        strategy.batchCounter, changes.size()));
+
+                // This logic depends on the changes in the feed rather than the
+                // changes we actually processed.
+                if (changes.size() == 0) {
+                    break;
+                }
+
+                List<List<BasicDocumentRevision>> windows = Lists.partition(
+                        changes.getResults(), config.bulkInsertSize);
+                for (int i = 0; i < windows.size(); i++) {
+                    if (strategy.isCancelled()) { return; }
+
+                    BasicPushStrategy.ItemsToPush itemsToPush =
+                            strategy.prepareItemsToPush(windows.get(i));
+                    String checkpoint = i == windows.size() - 1
+                            ? String.valueOf(changes.getLastSequence())
+                            : null;
+
+                    // Make room for this upload
+                    completeUploads(config.concurrentUploads - 1);
+                    if (strategy.isCancelled()) { return; }
+                    uploads.add(new Upload(startUpload(itemsToPush), itemsToPush.documentCount,
+                            checkpoint));
+                    // Don't leave finished uploads waiting to be checkpointed
+                    completeUploads(config.concurrentUploads);
+                }
+                since = changes.getLastSequence();
+            }
+            completeUploads(0);
+        } finally {
+            uploadExecutor.shutdownNow();
+        }
+    }
+
+    private Future<Void> startUpload(final BasicPushStrategy.ItemsToPush itemsToPush) {
+        if (itemsToPush.isEmpty()) {
+            return null;
+        }
+        return uploadExecutor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                strategy.uploadItemsToPush(itemsToPush);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Completes uploads in the order they were started, waiting for them
+     * until no more than {@code maxPending} are left, then carrying on with
+     * any which have already finished.
+     *
+     * @throws ExecutionException if one of the completed uploads failed
+     */
+    private void completeUploads(int maxPending) throws ExecutionException, InterruptedException {
+        while (!uploads.isEmpty()) {
+            Upload upload = uploads.peek();
+            boolean done = upload.future == null || upload.future.isDone();
+            if (!done && uploads.size() <= maxPending) {
+                return;
+            }
+            if (upload.future != null) {
+                // throws ExecutionException if the upload failed
+                upload.future.get();
+            }
+            uploads.remove();
+            strategy.documentCounter += upload.documentCount;
+            if (upload.checkpoint != null && !strategy.isCancelled()) {
+                strategy.putCheckpoint(upload.checkpoint);
+            }
+        }
+    }
+}
@@ -25,6 +25,13 @@ public class PushReplication extends Replication {
      * The local datastore for this replication.
      */
     public Datastore source;
+    /**
+     * If greater than zero, up to this many batches of revisions are
+     * uploaded to the remote database at once, while the following batches
+     * are read from the local datastore. Zero, the default, reads and
+     * uploads each batch in turn.
+     */
+    public int concurrentUploads = PushConfiguration.DEFAULT_CONCURRENT_UPLOADS;
 
     /**
      * Constructs a PushReplication object, configured by assigning to the
@@ -39,6 +46,8 @@ public class PushReplication extends Replication {
         Preconditions.checkNotNull(this.target);
         Preconditions.checkNotNull(this.source);
         checkURI(this.target);
+        Preconditions.checkArgument(this.concurrentUploads >= 0,
+                "Concurrent uploads must not be negative");
     }
 
     @Override
@@ -52,7 +61,15 @@ public class PushReplication extends Replication {
 
     @Override
     ReplicationStrategy createReplicationStrategy() {
-        return new BasicPushStrategy(this);
+        return new BasicPushStrategy(this, createPushConfiguration());
+    }
+
+    PushConfiguration createPushConfiguration() {
+        return new PushConfiguration(PushConfiguration.DEFAULT_CHANGES_LIMIT_PER_BATCH,
+                PushConfiguration.DEFAULT_MAX_BATCH_COUNTER_PER_RUN,
+                PushConfiguration.DEFAULT_BULK_INSERT_SIZE,
+                PushConfiguration.DEFAULT_PUSH_ATTACHMENTS_INLINE,
+                this.concurrentUploads);
     }
 
 }
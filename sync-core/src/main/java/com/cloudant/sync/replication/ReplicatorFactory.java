@@ -33,6 +33,10 @@ public final class ReplicatorFactory {
      * <p>Creates a Replicator object set up to replicate changes in one
      * direction between a local datastore and remote database.</p>
      *
+     * <p>A {@link PullReplication} with {@code continuous} set keeps
+     * applying changes from the remote database until
+     * {@link Replicator#stop()} is called.</p>
+     *
      * @param replication replication configuration information
      *
      * @return a {@link Replicator} instance which can be used to start and
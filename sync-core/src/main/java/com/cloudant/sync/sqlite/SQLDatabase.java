@@ -18,8 +18,28 @@
 
 package com.cloudant.sync.sqlite;
 
+import java.sql.SQLException;
+
 public abstract class SQLDatabase implements com.cloudant.android.SQLDatabase {
 
     public String filename;
 
+    /**
+     * Runs the provided SQL and returns a forward-only {@link Cursor} over
+     * the result set, which may read rows from the database as the cursor
+     * is moved rather than all at once.
+     *
+     * <p>Only {@link Cursor#moveToNext()} may be used to move through the
+     * results, and {@link Cursor#getCount()} may not be supported. The cursor
+     * must be closed, on the thread which created it, once it's no longer
+     * needed.</p>
+     *
+     * <p>By default this is the same as {@link #rawQuery(String, String[])}.</p>
+     *
+     * @see #rawQuery(String, String[])
+     */
+    public Cursor rawQueryForwardOnly(String sql, String[] selectionArgs) throws SQLException {
+        return rawQuery(sql, selectionArgs);
+    }
+
 }
\ No newline at end of file
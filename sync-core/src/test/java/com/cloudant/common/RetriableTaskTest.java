@@ -65,6 +65,19 @@ public class RetriableTaskTest {
         retriableTask.call();
     }
 
+    @Test
+    public void call_threeFailuresWithBackoff_waitDoublesUpToMaximum() throws Exception {
+        TestCallable task = new TestCallable(3, 1);
+
+        RetriableTask<Integer> retriableTask = new RetriableTask<Integer>(4, 50, 80, task);
+        long start = System.currentTimeMillis();
+        Assert.assertTrue(1 == retriableTask.call());
+
+        // waits of 50, 80 and 80ms
+        Assert.assertTrue(System.currentTimeMillis() - start >= 210);
+        Assert.assertEquals(1, retriableTask.getTriesRemaining());
+    }
+
     @Test(expected = InterruptedException.class)
     public void call_interruptException() throws Exception {
         Callable<Integer> task = mock(TestCallable.class);
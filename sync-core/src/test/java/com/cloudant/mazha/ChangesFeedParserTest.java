@@ -0,0 +1,132 @@
+/**
+ * Copyright (c) 2015 Cloudant, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.mazha;
+
+import com.cloudant.sync.util.TestUtils;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class ChangesFeedParserTest {
+
+    ChangesFeedParser parser;
+    List<String> seqs;
+    List<String> ids;
+    List<List<String>> revs;
+    List<Boolean> deleted;
+
+    ChangesFeedParser.RowListener listener = new ChangesFeedParser.RowListener() {
+        @Override
+        public void onRow(String seq, String id, List<String> revs, boolean deleted) {
+            ChangesFeedParserTest.this.seqs.add(seq);
+            ChangesFeedParserTest.this.ids.add(id);
+            ChangesFeedParserTest.this.revs.add(revs);
+            ChangesFeedParserTest.this.deleted.add(deleted);
+        }
+    };
+
+    @Before
+    public void setUp() {
+        parser = new ChangesFeedParser();
+        seqs = new ArrayList<String>();
+        ids = new ArrayList<String>();
+        revs = new ArrayList<List<String>>();
+        deleted = new ArrayList<Boolean>();
+    }
+
+    private String parseFixture(String fileName) throws IOException {
+        InputStream in = new FileInputStream(TestUtils.loadFixture(fileName));
+        try {
+            return parser.parse(in, listener);
+        } finally {
+            in.close();
+        }
+    }
+
+    private String parseString(String json) {
+        return parser.parse(new ByteArrayInputStream(json.getBytes()), listener);
+    }
+
+    @Test
+    public void parse_longSequences_sequencesAndRowsRead() throws Exception {
+        String lastSeq = parseFixture("fixture/change_feed_0.json");
+        Assert.assertTrue(lastSeq.startsWith("7-g1AAAADfeJzLYWBgYMlgTmGQS0lKzi9KdUhJMjTUy"));
+        Assert.assertEquals(3, ids.size());
+        Assert.assertEquals("c2b329f4dbe6d44499dfa25b3a8e6910", ids.get(1));
+        Assert.assertTrue(seqs.get(1).startsWith("6-g1AAAADfeJzLYWBgYMlgTmGQS0lKzi9"));
+        Assert.assertEquals(Arrays.asList(false, true, false), deleted);
+    }
+
+    @Test
+    public void parse_manyOpenRevisions_allRevisionsRead() throws Exception {
+        String lastSeq = parseFixture("fixture/change_feed_1.json");
+        Assert.assertEquals("35", lastSeq);
+        Assert.assertEquals(Arrays.asList("tom@gamil.com", "jerry@gmail.com"), ids);
+        Assert.assertEquals(Arrays.asList("27", "35"), seqs);
+        Assert.assertEquals(Arrays.asList(
+                "29-3f4dabfb32290e557ac1d16b2e8f069c",
+                "29-01fcbf8a3f1457eff21e18f7766d3b45",
+                "26-30722da17ad35cf1860f126dba391d67"), revs.get(1));
+    }
+
+    @Test
+    public void parse_tenKRows_allRowsRead() throws Exception {
+        String lastSeq = parseFixture("fixture/10K_changes_feeds.json");
+        Assert.assertEquals("234307", lastSeq);
+        Assert.assertEquals(10000, ids.size());
+        Assert.assertEquals("express-cachebuster", ids.get(9999));
+    }
+
+    @Test
+    public void parse_includedDocsAndUnknownFields_skipped() {
+        String lastSeq = parseString("{\"results\":[" +
+                "{\"seq\":1,\"id\":\"a\",\"changes\":[{\"rev\":\"1-a\",\"other\":[1,2]}]," +
+                "\"doc\":{\"_id\":\"a\",\"_rev\":\"1-a\",\"nested\":{\"changes\":[{\"rev\":\"x\"}]}}," +
+                "\"unknown\":{\"id\":\"b\"}}" +
+                "],\"last_seq\":1,\"pending\":0}");
+        Assert.assertEquals("1", lastSeq);
+        Assert.assertEquals(Arrays.asList("a"), ids);
+        Assert.assertEquals(Arrays.asList("1-a"), revs.get(0));
+    }
+
+    @Test
+    public void parse_arraySequences_readAsJson() {
+        String lastSeq = parseString("{\"results\":[" +
+                "{\"seq\":[2,\"g1AAAA\"],\"id\":\"a\",\"changes\":[{\"rev\":\"1-a\"}]}" +
+                "],\"last_seq\":[2,\"g1AAAA\"]}");
+        Assert.assertEquals("[2,\"g1AAAA\"]", lastSeq);
+        Assert.assertEquals("[2,\"g1AAAA\"]", seqs.get(0));
+    }
+
+    @Test
+    public void parse_noResults_noRows() {
+        Assert.assertEquals("10", parseString("{\"results\":[],\"last_seq\":10}"));
+        Assert.assertTrue(ids.isEmpty());
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void parse_notAnObject_exception() {
+        parseString("[]");
+    }
+}
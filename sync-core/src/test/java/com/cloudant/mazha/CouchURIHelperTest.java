@@ -83,6 +83,15 @@ public class CouchURIHelperTest {
         Assert.assertEquals(expected, actual);
     }
 
+    @Test
+    public void buildBulkGetUri() throws Exception {
+        URI expected = new URI(uriBase + "/test/_bulk_get?revs=true");
+        Map<String, Object> options = new HashMap<String, Object>();
+        options.put("revs", true);
+        URI actual = helper(path+"/test").bulkGetUri(options);
+        Assert.assertEquals(expected, actual);
+    }
+
     @Test
     public void revsDiffUri() throws Exception {
         URI expected = new URI(uriBase + "/test/_revs_diff");
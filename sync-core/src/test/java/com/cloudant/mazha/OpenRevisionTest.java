@@ -90,6 +90,24 @@ public class OpenRevisionTest {
             Assert.assertTrue(openRevision instanceof OkOpenRevision);
         }
     }
+    @Test
+    public void deserialization_bulkGetOkAndMissingRevision() throws IOException {
+        String s = FileUtils.readFileToString(TestUtils.loadFixture("fixture/bulk_get_ok_and_missing.json"));
+        BulkGetResponse response = jsonHelper.fromJson(new StringReader(s), BulkGetResponse.class);
+        Assert.assertThat(response.getResults(), hasSize(2));
+
+        BulkGetResponse.Result ok = response.getResults().get(0);
+        Assert.assertEquals("a", ok.getId());
+        Assert.assertThat(ok.getDocs(), hasSize(1));
+        Assert.assertTrue(ok.getDocs().get(0) instanceof OkOpenRevision);
+        Assert.assertEquals("1-a", ((OkOpenRevision) ok.getDocs().get(0)).getDocumentRevs().getRev());
+
+        BulkGetResponse.Result missing = response.getResults().get(1);
+        Assert.assertEquals("b", missing.getId());
+        Assert.assertTrue(missing.getDocs().get(0) instanceof MissingOpenRevision);
+        Assert.assertEquals("2-x", ((MissingOpenRevision) missing.getDocs().get(0)).getRevision());
+    }
+
     @Test
     public void deserialization_empty() throws IOException {
         String s = FileUtils.readFileToString(TestUtils.loadFixture("fixture/open_revisions_empty.json"));
@@ -28,6 +28,7 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -216,6 +217,57 @@ public class AttachmentTest extends BasicDatastoreTestBase {
         }
     }
 
+    @Test
+    public void bulkReadsIncludeAttachmentsTest() throws Exception {
+        Attachment att1 = new UnsavedFileAttachment(TestUtils.loadFixture("fixture/attachment_1.txt"), "text/plain");
+        Attachment att2 = new UnsavedFileAttachment(TestUtils.loadFixture("fixture/attachment_2.txt"), "text/plain");
+
+        MutableDocumentRevision twoAttsMut = new MutableDocumentRevision();
+        twoAttsMut.docId = "twoAtts";
+        twoAttsMut.body = bodyOne;
+        twoAttsMut.attachments.put(att1.name, att1);
+        twoAttsMut.attachments.put(att2.name, att2);
+        datastore.createDocumentFromRevision(twoAttsMut);
+
+        MutableDocumentRevision oneAttMut = new MutableDocumentRevision();
+        oneAttMut.docId = "oneAtt";
+        oneAttMut.body = bodyTwo;
+        oneAttMut.attachments.put(att1.name, att1);
+        BasicDocumentRevision oneAtt = datastore.createDocumentFromRevision(oneAttMut);
+
+        MutableDocumentRevision noAttsMut = new MutableDocumentRevision();
+        noAttsMut.docId = "noAtts";
+        noAttsMut.body = bodyOne;
+        datastore.createDocumentFromRevision(noAttsMut);
+
+        // a second revision, so the document's tree has revisions with
+        // and without attachments
+        MutableDocumentRevision oneAttUpdate = oneAtt.mutableCopy();
+        oneAttUpdate.attachments.remove(att1.name);
+        datastore.updateDocumentFromRevision(oneAttUpdate);
+
+        List<BasicDocumentRevision> changes = datastore.changes(0, 100).getResults();
+        Assert.assertEquals(3, changes.size());
+        assertAttachmentCounts(changes);
+
+        assertAttachmentCounts(datastore.getAllDocuments(0, 100, false));
+
+        assertAttachmentCounts(datastore.getDocumentsWithIds(
+                Arrays.asList("twoAtts", "oneAtt", "noAtts")));
+
+        DocumentRevisionTree tree = datastore.getAllRevisionsOfDocument("oneAtt");
+        Assert.assertEquals(0, tree.getCurrentRevision().getAttachments().size());
+        Assert.assertEquals(1, tree.lookup("oneAtt", oneAtt.getRevision()).getAttachments().size());
+    }
+
+    private static void assertAttachmentCounts(List<BasicDocumentRevision> revs) {
+        for (BasicDocumentRevision rev : revs) {
+            int expected = rev.getId().equals("twoAtts") ? 2 : 0;
+            Assert.assertEquals("Didn't get expected number of attachments for " + rev.getId(),
+                    expected, rev.getAttachments().size());
+        }
+    }
+
     @Test
     public void duplicateAttachmentTest() throws Exception {
 
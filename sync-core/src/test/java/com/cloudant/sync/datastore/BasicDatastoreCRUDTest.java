@@ -14,6 +14,7 @@
 
 package com.cloudant.sync.datastore;
 
+import com.cloudant.sync.sqlite.ContentValues;
 import com.cloudant.sync.sqlite.Cursor;
 import com.cloudant.sync.util.CouchUtils;
 import com.cloudant.sync.util.DatabaseUtils;
@@ -27,6 +28,7 @@ import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
@@ -232,6 +234,54 @@ public class BasicDatastoreCRUDTest extends BasicDatastoreTestBase {
         this.datastore.deleteDocumentFromRevision(rev1);
     }
 
+    @Test
+    public void getAllRevisionsOfDocument_withoutBodies_bodiesReadWhenUsed()
+            throws ConflictException, IOException {
+        MutableDocumentRevision rev_1Mut = new MutableDocumentRevision();
+        rev_1Mut.body = bodyOne;
+        BasicDocumentRevision rev1 = datastore.createDocumentFromRevision(rev_1Mut);
+        MutableDocumentRevision rev1_mut = rev1.mutableCopy();
+        rev1_mut.body = bodyTwo;
+        BasicDocumentRevision rev2 = datastore.updateDocumentFromRevision(rev1_mut);
+
+        DocumentRevisionTree tree = datastore.getAllRevisionsOfDocument(rev1.getId(), false);
+        Assert.assertEquals(Collections.singleton(rev2.getRevision()), tree.leafRevisionIds());
+
+        BasicDocumentRevision treeRev1 = tree.lookup(rev1.getId(), rev1.getRevision());
+        Assert.assertEquals(rev1.getSequence(), treeRev1.getSequence());
+        Assert.assertFalse(treeRev1.isCurrent());
+        BasicDocumentRevision treeRev2 = tree.getCurrentRevision();
+        Assert.assertEquals(rev2.getRevision(), treeRev2.getRevision());
+        Assert.assertEquals(rev1.getSequence(), treeRev2.getParent());
+
+        LazyDocumentBody body = (LazyDocumentBody) treeRev1.getBody();
+        Assert.assertFalse(body.isLoaded());
+        Assert.assertEquals(bodyOne.asMap(), body.asMap());
+        Assert.assertTrue(body.isLoaded());
+        Assert.assertFalse(((LazyDocumentBody) treeRev2.getBody()).isLoaded());
+        Assert.assertEquals(bodyTwo.asMap(), treeRev2.getBody().asMap());
+    }
+
+    @Test
+    public void getAllRevisionsOfDocument_withoutBodies_compactedRevisionHasEmptyBody()
+            throws ConflictException, IOException {
+        MutableDocumentRevision rev_1Mut = new MutableDocumentRevision();
+        rev_1Mut.body = bodyOne;
+        BasicDocumentRevision rev1 = datastore.createDocumentFromRevision(rev_1Mut);
+        MutableDocumentRevision rev1_mut = rev1.mutableCopy();
+        rev1_mut.body = bodyTwo;
+        datastore.updateDocumentFromRevision(rev1_mut);
+        // remove the JSON of old revisions, as compaction does
+        ContentValues values = new ContentValues();
+        values.put("json", (String) null);
+        datastore.getSQLDatabase().update("revs", values, "current=0", null);
+
+        DocumentRevisionTree tree = datastore.getAllRevisionsOfDocument(rev1.getId(), false);
+        BasicDocumentRevision treeRev1 = tree.lookup(rev1.getId(), rev1.getRevision());
+        Assert.assertTrue(treeRev1.getBody().asMap().isEmpty());
+        Assert.assertEquals(bodyTwo.asMap(), tree.getCurrentRevision().getBody().asMap());
+    }
+
     @Test
     public void deleteDocument_previousRevisionWasWinner_newRevisionInsertedAsWinner()
             throws ConflictException, IOException {
@@ -444,6 +494,55 @@ public class BasicDatastoreCRUDTest extends BasicDatastoreTestBase {
         }
     }
 
+    @Test
+    public void getDocumentsWithIds_moreIdsThanSQLiteParameterLimit_returnedInInputOrder() throws
+            ConflictException, IOException {
+        int n_docs = 1200;
+        List<String> ids = new ArrayList<String>(n_docs);
+        for (int i = 0; i < n_docs; i++) {
+            MutableDocumentRevision rev = new MutableDocumentRevision();
+            rev.body = bodyOne;
+            ids.add(datastore.createDocumentFromRevision(rev).getId());
+        }
+        // Not the order the documents are stored in, with a missing document
+        // at a batch boundary
+        Collections.reverse(ids);
+        ids.add(500, "missing");
+
+        List<BasicDocumentRevision> docs = datastore.getDocumentsWithIds(ids);
+        Assert.assertEquals(n_docs, docs.size());
+        ids.remove("missing");
+        for (int i = 0; i < n_docs; i++) {
+            Assert.assertEquals(ids.get(i), docs.get(i).getId());
+        }
+    }
+
+    @Test
+    public void iterateDocumentsWithIds_moreIdsThanSQLiteParameterLimit_returnedInInputOrder() throws
+            ConflictException, IOException {
+        int n_docs = 1200;
+        List<String> ids = new ArrayList<String>(n_docs);
+        for (int i = 0; i < n_docs; i++) {
+            MutableDocumentRevision rev = new MutableDocumentRevision();
+            rev.body = bodyOne;
+            ids.add(datastore.createDocumentFromRevision(rev).getId());
+        }
+        Collections.reverse(ids);
+        // A whole batch of missing documents is skipped
+        List<String> idsWithMissing = new ArrayList<String>(ids.subList(0, 600));
+        for (int i = 0; i < 600; i++) {
+            idsWithMissing.add("missing-" + i);
+        }
+        idsWithMissing.addAll(ids.subList(600, n_docs));
+
+        Iterator<BasicDocumentRevision> docs = datastore.iterateDocumentsWithIds(idsWithMissing);
+        for (String id : ids) {
+            Assert.assertTrue(docs.hasNext());
+            Assert.assertEquals(id, docs.next().getId());
+        }
+        Assert.assertFalse(docs.hasNext());
+    }
+
     private BasicDocumentRevision[] createTwoDocumentsForGetDocumentsWithInternalIdsTest() throws ConflictException, IOException {
         MutableDocumentRevision rev_1Mut = new MutableDocumentRevision();
         rev_1Mut.body = bodyOne;
@@ -574,6 +673,42 @@ public class BasicDatastoreCRUDTest extends BasicDatastoreTestBase {
         getAllDocuments_testCountAndOffset(objectCount, reversedObjects, true);
     }
 
+    @Test
+    public void iterateAllDocuments_severalPages_sameDocumentsAsGetAllDocuments() throws
+            ConflictException, IOException {
+        int objectCount = BasicDatastore.ALL_DOCUMENTS_PAGE_SIZE * 2 + 10;
+        List<DocumentBody> bodies = this.generateDocuments(objectCount);
+        for (int i = 0; i < objectCount; i++) {
+            MutableDocumentRevision rev = new MutableDocumentRevision();
+            rev.body = bodies.get(i);
+            BasicDocumentRevision saved = datastore.createDocumentFromRevision(rev);
+            if (i % 7 == 0) {
+                datastore.deleteDocumentFromRevision(saved);
+            } else if (i % 5 == 0) {
+                MutableDocumentRevision update = saved.mutableCopy();
+                update.body = bodyTwo;
+                datastore.updateDocumentFromRevision(update);
+            }
+        }
+
+        for (boolean descending : new boolean[]{false, true}) {
+            List<BasicDocumentRevision> expected =
+                    datastore.getAllDocuments(0, objectCount, descending);
+            Iterator<BasicDocumentRevision> documents = datastore.iterateAllDocuments(descending);
+            for (BasicDocumentRevision expectedRevision : expected) {
+                Assert.assertTrue(documents.hasNext());
+                assertIdAndRevisionAndShallowContent(expectedRevision, documents.next());
+            }
+            Assert.assertFalse(documents.hasNext());
+        }
+    }
+
+    @Test
+    public void iterateAllDocuments_emptyDatastore_noDocuments() {
+        Assert.assertFalse(datastore.iterateAllDocuments(false).hasNext());
+        Assert.assertFalse(datastore.iterateAllDocuments(true).hasNext());
+    }
+
     @Test
     public void createDbWithSlashAndCreateDocument() throws IOException {
             Datastore datastore = datastoreManager.openDatastore("dbwith/aslash");
@@ -91,6 +91,42 @@ public class BasicDatastoreConflictsTest extends BasicDatastoreTestBase {
         testWithConflictCount(1000);
     }
 
+    @Test
+    public void getConflictedDocumentIds_resolvedWhileIterating_allReturned()
+            throws ConflictException, IOException {
+        List<String> expectedConflicts =
+                createConflictDocuments(BasicDatastore.CONFLICTED_DOCUMENTS_PAGE_SIZE + 10);
+        List<String> actualConflicts = new ArrayList<String>();
+        Iterator<String> iterator = this.datastore.getConflictedDocumentIds();
+        while (iterator.hasNext()) {
+            String docId = iterator.next();
+            actualConflicts.add(docId);
+            this.datastore.resolveConflictsForDocument(docId, new ConflictResolver() {
+                @Override
+                public DocumentRevision resolve(String docId, List<BasicDocumentRevision> conflicts) {
+                    return conflicts.get(0);
+                }
+            });
+        }
+        Assert.assertEquals(expectedConflicts, actualConflicts);
+        Assert.assertFalse(this.datastore.getConflictedDocumentIds().hasNext());
+    }
+
+    @Test
+    public void getConflictedDocumentIds_conflictsBeforeSchemaUpgrade_found() throws Exception {
+        String docId = this.createConflictedDocument();
+        this.createDocumentRevision("Tom");
+        this.database.execSQL("DROP TABLE conflicts;");
+        this.database.execSQL("PRAGMA user_version = 5;");
+        String name = this.datastore.getDatastoreName();
+        this.datastore.close();
+
+        this.datastore = new BasicDatastore(this.datastore.datastoreDir, name);
+        this.database = this.datastore.getSQLDatabase();
+        List<String> conflictedDocId = Lists.newArrayList(this.datastore.getConflictedDocumentIds());
+        Assert.assertEquals(Lists.newArrayList(docId), conflictedDocId);
+    }
+
     @Test
     public void resolveConflictsForDocument_twoConflictAndException_nothing()
             throws ConflictException, IOException {
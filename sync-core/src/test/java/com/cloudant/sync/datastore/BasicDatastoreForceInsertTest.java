@@ -430,6 +430,81 @@ public class BasicDatastoreForceInsertTest {
         assertDocumentHasRevAndBody(OBJECT_ID, "2-c", bodyTwo);
     }
 
+    @Test
+    public void forceInsert_batchOfNewAndExistingDocuments_allRevisionsInserted() {
+        datastore.forceInsert(createDbObject(), "1-rev", "2-rev", "4-rev");
+
+        List<ForceInsertItem> items = new ArrayList<ForceInsertItem>();
+        items.add(new ForceInsertItem(createDbObject("5-rev", bodyTwo),
+                Arrays.asList("1-rev", "2-rev", "4-rev", "5-rev"), null));
+        for (int i = 0; i < 3; i++) {
+            items.add(new ForceInsertItem(createDbObject("doc-" + i, "3-rev", bodyOne),
+                    Arrays.asList("1-rev", "2-rev", "3-rev"), null));
+        }
+        datastore.forceInsert(items, false);
+
+        assertDBObjectIsCorrect(OBJECT_ID, 5, bodyTwo);
+        for (int i = 0; i < 3; i++) {
+            BasicDocumentRevision obj = datastore.getDocument("doc-" + i);
+            Assert.assertEquals("3-rev", obj.getRevision());
+            Assert.assertTrue(obj.isCurrent());
+            DocumentRevisionTree tree = datastore.getAllRevisionsOfDocument("doc-" + i);
+            Assert.assertThat(tree.getPath(obj.getSequence()),
+                    equalTo(Arrays.asList("3-rev", "2-rev", "1-rev")));
+        }
+    }
+
+    @Test
+    public void forceInsert_batchWithConflictingRevisionsOfSameDocument_winnerPicked() {
+        List<ForceInsertItem> items = new ArrayList<ForceInsertItem>();
+        items.add(new ForceInsertItem(createDbObject("3-a", bodyOne),
+                Arrays.asList("1-rev", "2-rev", "3-a"), null));
+        items.add(new ForceInsertItem(createDbObject("4-b", bodyTwo),
+                Arrays.asList("1-rev", "2-rev", "3-b", "4-b"), null));
+        items.add(new ForceInsertItem(createDbObject("1-x", bodyOne),
+                Arrays.asList("1-x"), null));
+        datastore.forceInsert(items, false);
+
+        DocumentRevisionTree tree = datastore.getAllRevisionsOfDocument(OBJECT_ID);
+        Assert.assertThat(tree.leafs(), hasSize(3));
+        Assert.assertThat(tree.leafRevisionIds(), hasItems("3-a", "4-b", "1-x"));
+        assertDocumentHasRevAndBody(OBJECT_ID, "4-b", bodyTwo);
+
+        int current = 0;
+        for (BasicDocumentRevision leaf : tree.leafRevisions()) {
+            if (leaf.isCurrent()) {
+                current++;
+            }
+        }
+        Assert.assertEquals(1, current);
+    }
+
+    @Test
+    public void forceInsert_batchWithInvalidRevision_nothingInserted() {
+        List<ForceInsertItem> items = new ArrayList<ForceInsertItem>();
+        items.add(new ForceInsertItem(createDbObject("doc-1", "2-rev", bodyOne),
+                Arrays.asList("1-rev", "2-rev"), null));
+        items.add(new ForceInsertItem(createDbObject("doc-2", "2-rev", bodyOne),
+                Arrays.asList("2-rev", "1-rev"), null));
+        try {
+            datastore.forceInsert(items, false);
+            Assert.fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        Assert.assertFalse(datastore.containsDocument("doc-1"));
+        Assert.assertFalse(datastore.containsDocument("doc-2"));
+    }
+
+    private BasicDocumentRevision createDbObject(String docId, String rev, DocumentBody body) {
+        DocumentRevisionBuilder builder = new DocumentRevisionBuilder();
+        builder.setDocId(docId);
+        builder.setRevId(rev);
+        builder.setDeleted(false);
+        builder.setBody(body);
+        return builder.build();
+    }
+
     private void assertDocumentHasRevAndBody(String id, String rev, DocumentBody body) {
         BasicDocumentRevision obj = datastore.getDocument(id);
         Assert.assertEquals(rev, obj.getRevision());
@@ -0,0 +1,336 @@
+/**
+ * Copyright (c) 2015 Cloudant, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.datastore;
+
+import com.cloudant.sync.sqlite.Cursor;
+import com.cloudant.sync.sqlite.SQLDatabase;
+import com.cloudant.sync.util.DatabaseUtils;
+import com.cloudant.sync.util.TestUtils;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+public class CompactionTest extends BasicDatastoreTestBase {
+
+    @Test
+    public void compact_noAttachments_compacts() throws Exception {
+        BasicDocumentRevision rev_1 = createDocumentWithUpdates("doc", 2);
+        datastore.compact();
+        Assert.assertEquals(0, countRevisionsWithBodies(false));
+        Assert.assertEquals(1, countRevisionsWithBodies(true));
+        Assert.assertNotNull(datastore.getDocument(rev_1.getId()));
+    }
+
+    @Test
+    public void newDatastore_isInIncrementalAutoVacuumMode() throws Exception {
+        Assert.assertEquals(2, longForQuery("PRAGMA auto_vacuum"));
+    }
+
+    @Test
+    public void compactIncrementally_manyRevisions_prunedInSeveralSteps() throws Exception {
+        int docs = IncrementalCompactor.REVISIONS_PER_STEP / 2 + 10;
+        for (int i = 0; i < docs; i++) {
+            createDocumentWithUpdates("doc-" + i, 3);
+        }
+        Assert.assertEquals(docs * 2, countRevisionsWithBodies(false));
+
+        int calls = 0;
+        CompactionProgress progress;
+        do {
+            progress = datastore.compact(0, TimeUnit.MILLISECONDS);
+            calls++;
+            Assert.assertTrue("Compaction didn't finish", calls < 1000);
+        } while (!progress.isComplete());
+
+        // A zero budget runs one step per call
+        Assert.assertTrue(calls > 2);
+        Assert.assertEquals(docs * 2, progress.getRevisionsPruned());
+        Assert.assertEquals(0, countRevisionsWithBodies(false));
+        Assert.assertEquals(docs, countRevisionsWithBodies(true));
+        for (int i = 0; i < docs; i++) {
+            Assert.assertEquals(3, datastore.getDocument("doc-" + i).getBody().asMap().get("count"));
+        }
+    }
+
+    @Test
+    public void compactIncrementally_attachments_unusedFilesDeleted() throws Exception {
+        MutableDocumentRevision rev_1Mut = new MutableDocumentRevision();
+        rev_1Mut.body = bodyOne;
+        BasicDocumentRevision rev_1 = datastore.createDocumentFromRevision(rev_1Mut);
+        Attachment att1 = new UnsavedFileAttachment(TestUtils.loadFixture("fixture/attachment_1.txt"), "text/plain");
+        Attachment att2 = new UnsavedFileAttachment(TestUtils.loadFixture("fixture/attachment_2.txt"), "text/plain");
+        MutableDocumentRevision rev_1_mut = rev_1.mutableCopy();
+        rev_1_mut.attachments.put(att1.name, att1);
+        rev_1_mut.attachments.put(att2.name, att2);
+        BasicDocumentRevision rev2 = datastore.updateDocumentFromRevision(rev_1_mut);
+        MutableDocumentRevision rev2_mut = rev2.mutableCopy();
+        rev2_mut.attachments.remove(att1.name);
+        BasicDocumentRevision rev3 = datastore.updateDocumentFromRevision(rev2_mut);
+
+        File attachments = new File(datastore.datastoreDir + "/extensions/com.cloudant.attachments");
+        Assert.assertEquals(2, attachments.listFiles().length);
+
+        // Files are kept if they're modified after the purge starts
+        for (File f : attachments.listFiles()) {
+            Assert.assertTrue(f.setLastModified(System.currentTimeMillis() - 60 * 1000));
+        }
+
+        CompactionProgress progress = datastore.compact(1, TimeUnit.MINUTES);
+        Assert.assertTrue(progress.isComplete());
+        Assert.assertEquals(2, progress.getAttachmentFilesChecked());
+        Assert.assertEquals(1, progress.getAttachmentFilesDeleted());
+
+        Assert.assertNull(datastore.getAttachment(rev3, "attachment_1.txt"));
+        Attachment savedAtt2 = datastore.getAttachment(rev3, "attachment_2.txt");
+        Assert.assertNotNull(savedAtt2);
+        Assert.assertTrue(savedAtt2.getInputStream().read() >= 0);
+        Assert.assertEquals(1, attachments.listFiles().length);
+    }
+
+    @Test
+    public void compactIncrementally_largeBodiesPruned_freePagesVacuumed() throws Exception {
+        StringBuilder padding = new StringBuilder();
+        for (int i = 0; i < 4096; i++) {
+            padding.append('x');
+        }
+        for (int i = 0; i < 100; i++) {
+            Map<String, Object> body = new HashMap<String, Object>();
+            body.put("padding", padding.toString());
+            MutableDocumentRevision rev = new MutableDocumentRevision();
+            rev.body = DocumentBodyFactory.create(body);
+            BasicDocumentRevision saved = datastore.createDocumentFromRevision(rev);
+            MutableDocumentRevision update = saved.mutableCopy();
+            update.body = bodyOne;
+            datastore.updateDocumentFromRevision(update);
+        }
+
+        CompactionProgress progress;
+        int calls = 0;
+        do {
+            progress = datastore.compact(0, TimeUnit.MILLISECONDS);
+            calls++;
+            Assert.assertTrue("Compaction didn't finish", calls < 1000);
+        } while (!progress.isComplete());
+
+        Assert.assertTrue(progress.getPagesVacuumed() > 100);
+        Assert.assertEquals(0, progress.getPagesFree());
+        Assert.assertEquals(0, longForQuery("PRAGMA freelist_count"));
+    }
+
+    @Test
+    public void revsLimit_default_keepsAllRevisions() throws Exception {
+        Assert.assertEquals(0, datastore.getRevsLimit());
+        createDocumentWithUpdates("doc", 5);
+        datastore.compact();
+        Assert.assertEquals(5, longForQuery("SELECT COUNT(*) FROM revs"));
+    }
+
+    @Test
+    public void revsLimit_set_isStored() throws Exception {
+        datastore.setRevsLimit(3);
+        Assert.assertEquals(3, datastore.getRevsLimit());
+        datastore.setRevsLimit(0);
+        Assert.assertEquals(0, datastore.getRevsLimit());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void revsLimit_negative_exception() {
+        datastore.setRevsLimit(-1);
+    }
+
+    @Test
+    public void compact_revsLimit_oldRevisionsRemoved() throws Exception {
+        BasicDocumentRevision rev_10 = createDocumentWithUpdates("doc", 10);
+        datastore.setRevsLimit(3);
+        datastore.compact();
+
+        Assert.assertEquals(3, longForQuery("SELECT COUNT(*) FROM revs"));
+        Assert.assertEquals(1, longForQuery("SELECT COUNT(*) FROM revs WHERE parent IS NULL"));
+        Assert.assertEquals(rev_10.getRevision(), datastore.getDocument("doc").getRevision());
+        Assert.assertEquals(10, datastore.getDocument("doc").getBody().asMap().get("count"));
+
+        // The _revisions sent by push start from the oldest revision kept
+        DocumentRevisionTree tree = datastore.getAllRevisionsOfDocument("doc", false);
+        List<BasicDocumentRevision> path = tree.getPathForNode(rev_10.getSequence());
+        Assert.assertEquals(3, path.size());
+        @SuppressWarnings("unchecked")
+        Map<String, Object> revisions = (Map<String, Object>) RevisionHistoryHelper
+                .revisionHistoryToJson(path).get("_revisions");
+        Assert.assertEquals(10, revisions.get("start"));
+        Assert.assertEquals(3, ((List) revisions.get("ids")).size());
+    }
+
+    @Test
+    public void compact_revsLimitConflictedDocument_branchesKeepLimit() throws Exception {
+        BasicDocumentRevision rev = new DocumentRevisionBuilder().setDocId("doc")
+                .setRevId("6-a").setBody(bodyOne).build();
+        datastore.forceInsert(rev, "1-a", "2-a", "3-a", "4-a", "5-a", "6-a");
+        BasicDocumentRevision conflict = new DocumentRevisionBuilder().setDocId("doc")
+                .setRevId("5-b").setBody(bodyTwo).build();
+        datastore.forceInsert(conflict, "1-a", "2-a", "3-a", "4-b", "5-b");
+
+        datastore.setRevsLimit(2);
+        datastore.compact();
+
+        DocumentRevisionTree tree = datastore.getAllRevisionsOfDocument("doc", false);
+        Assert.assertEquals(new HashSet<String>(Arrays.asList("5-a", "6-a", "4-b", "5-b")),
+                revisionIds(tree));
+        Assert.assertEquals(2, tree.roots().size());
+        Assert.assertTrue(tree.hasConflicts());
+        Assert.assertEquals("6-a", datastore.getDocument("doc").getRevision());
+    }
+
+    @Test
+    public void forceInsert_fullHistoryAfterRevsLimitCompaction_noConflict() throws Exception {
+        BasicDocumentRevision rev_10 = createDocumentWithUpdates("doc", 10);
+        List<String> history = new ArrayList<String>(datastore.getAllRevisionsOfDocument("doc", false)
+                .getPath(rev_10.getSequence()));
+        Collections.reverse(history);
+        datastore.setRevsLimit(3);
+        datastore.compact();
+
+        BasicDocumentRevision rev_11 = new DocumentRevisionBuilder().setDocId("doc")
+                .setRevId("11-remote").setBody(bodyTwo).build();
+        history.add("11-remote");
+        datastore.forceInsert(rev_11, history.toArray(new String[history.size()]));
+
+        DocumentRevisionTree tree = datastore.getAllRevisionsOfDocument("doc", false);
+        Assert.assertFalse(tree.hasConflicts());
+        Assert.assertEquals(1, tree.roots().size());
+        Assert.assertEquals(4, longForQuery("SELECT COUNT(*) FROM revs"));
+        Assert.assertEquals("11-remote", datastore.getDocument("doc").getRevision());
+    }
+
+    @Test
+    public void compactIncrementally_revsLimit_oldRevisionsRemoved() throws Exception {
+        int docs = RevisionHistoryPruner.DOCUMENTS_PER_STEP + 10;
+        for (int i = 0; i < docs; i++) {
+            createDocumentWithUpdates("doc-" + i, 5);
+        }
+        datastore.setRevsLimit(2);
+
+        int calls = 0;
+        CompactionProgress progress;
+        do {
+            progress = datastore.compact(0, TimeUnit.MILLISECONDS);
+            calls++;
+            Assert.assertTrue("Compaction didn't finish", calls < 1000);
+        } while (!progress.isComplete());
+
+        Assert.assertEquals(docs * 3, progress.getRevisionsRemoved());
+        Assert.assertEquals(docs, progress.getRevisionsPruned());
+        Assert.assertEquals(docs * 2, longForQuery("SELECT COUNT(*) FROM revs"));
+        for (int i = 0; i < docs; i++) {
+            Assert.assertEquals(5, datastore.getDocument("doc-" + i).getBody().asMap().get("count"));
+        }
+    }
+
+    @Test
+    public void compactIncrementally_revsLimitOnOtherThread_attachmentsOfRemovedRevisionsDeleted()
+            throws Exception {
+        MutableDocumentRevision rev_1Mut = new MutableDocumentRevision();
+        rev_1Mut.body = bodyOne;
+        BasicDocumentRevision rev_1 = datastore.createDocumentFromRevision(rev_1Mut);
+        Attachment att1 = new UnsavedFileAttachment(TestUtils.loadFixture("fixture/attachment_1.txt"), "text/plain");
+        MutableDocumentRevision rev_1_mut = rev_1.mutableCopy();
+        rev_1_mut.attachments.put(att1.name, att1);
+        BasicDocumentRevision rev2 = datastore.updateDocumentFromRevision(rev_1_mut);
+        MutableDocumentRevision rev2_mut = rev2.mutableCopy();
+        rev2_mut.attachments.remove(att1.name);
+        rev2_mut.body = bodyTwo;
+        datastore.updateDocumentFromRevision(rev2_mut);
+
+        File attachments = new File(datastore.datastoreDir + "/extensions/com.cloudant.attachments");
+        Assert.assertEquals(1, attachments.listFiles().length);
+        for (File f : attachments.listFiles()) {
+            Assert.assertTrue(f.setLastModified(System.currentTimeMillis() - 60 * 1000));
+        }
+        datastore.setRevsLimit(1);
+
+        // Compaction usually runs in the background, on a connection other
+        // than the one which opened the datastore
+        final CompactionProgress[] progress = new CompactionProgress[1];
+        Thread compaction = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                progress[0] = datastore.compact(1, TimeUnit.MINUTES);
+            }
+        });
+        compaction.start();
+        compaction.join();
+
+        Assert.assertTrue(progress[0].isComplete());
+        Assert.assertEquals(1, longForQuery("SELECT COUNT(*) FROM revs"));
+        Assert.assertEquals(0, longForQuery("SELECT COUNT(*) FROM attachments"));
+        Assert.assertEquals(1, progress[0].getAttachmentFilesDeleted());
+        Assert.assertEquals(0, attachments.listFiles().length);
+    }
+
+    private BasicDocumentRevision createDocumentWithUpdates(String docId, int revisions)
+            throws Exception {
+        Map<String, Object> body = new HashMap<String, Object>();
+        body.put("count", 1);
+        MutableDocumentRevision rev = new MutableDocumentRevision();
+        rev.docId = docId;
+        rev.body = DocumentBodyFactory.create(body);
+        BasicDocumentRevision saved = datastore.createDocumentFromRevision(rev);
+        for (int i = 2; i <= revisions; i++) {
+            body.put("count", i);
+            MutableDocumentRevision update = saved.mutableCopy();
+            update.body = DocumentBodyFactory.create(body);
+            saved = datastore.updateDocumentFromRevision(update);
+        }
+        return saved;
+    }
+
+    private Set<String> revisionIds(DocumentRevisionTree tree) {
+        Set<String> revisionIds = new HashSet<String>();
+        for (long sequence = 1; sequence <= datastore.getLastSequence(); sequence++) {
+            BasicDocumentRevision revision = tree.bySequence(sequence);
+            if (revision != null) {
+                revisionIds.add(revision.getRevision());
+            }
+        }
+        return revisionIds;
+    }
+
+    private long countRevisionsWithBodies(boolean current) throws Exception {
+        return longForQuery("SELECT COUNT(*) FROM revs WHERE json IS NOT NULL AND current = " +
+                (current ? 1 : 0));
+    }
+
+    private long longForQuery(String sql) throws Exception {
+        SQLDatabase db = datastore.getSQLDatabase();
+        Cursor cursor = null;
+        try {
+            cursor = db.rawQuery(sql, null);
+            Assert.assertTrue(cursor.moveToFirst());
+            return cursor.getLong(0);
+        } finally {
+            DatabaseUtils.closeCursorQuietly(cursor);
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/**
+ * Copyright (c) 2015 Cloudant, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.datastore;
+
+import com.cloudant.sync.notifications.DocumentCreated;
+import com.cloudant.sync.notifications.DocumentUpdated;
+import com.cloudant.sync.notifications.DocumentsModified;
+import com.cloudant.sync.notifications.DocumentsModifiedDispatcher;
+import com.google.common.eventbus.Subscribe;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public class DocumentsModifiedDispatcherTest extends BasicDatastoreTestBase {
+
+    private final List<DocumentsModified> received = new ArrayList<DocumentsModified>();
+    private final ManualExecutor executor = new ManualExecutor();
+    private DocumentsModifiedDispatcher dispatcher;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (dispatcher != null) {
+            dispatcher.close();
+        }
+        super.tearDown();
+    }
+
+    @Test
+    public void dispatcher_severalChanges_deliveredInOneBatchInOrder() throws Exception {
+        dispatcher = new DocumentsModifiedDispatcher(datastore.getEventBus(), executor);
+        dispatcher.getEventBus().register(this);
+
+        BasicDocumentRevision rev_1 = createDocument();
+        MutableDocumentRevision rev_2Mut = rev_1.mutableCopy();
+        rev_2Mut.body = bodyTwo;
+        BasicDocumentRevision rev_2 = datastore.updateDocumentFromRevision(rev_2Mut);
+        BasicDocumentRevision other = createDocument();
+
+        // Nothing is delivered on the writing thread
+        Assert.assertEquals(0, received.size());
+        Assert.assertEquals(3, dispatcher.getEventsQueued());
+
+        executor.runAll();
+
+        Assert.assertEquals(1, received.size());
+        DocumentsModified batch = received.get(0);
+        Assert.assertEquals(3, batch.events.size());
+        Assert.assertTrue(batch.events.get(0) instanceof DocumentCreated);
+        Assert.assertEquals(rev_1.getRevision(), batch.events.get(0).newDocument.getRevision());
+        Assert.assertTrue(batch.events.get(1) instanceof DocumentUpdated);
+        Assert.assertEquals(rev_2.getRevision(), batch.events.get(1).newDocument.getRevision());
+        Assert.assertEquals(other.getId(), batch.events.get(2).newDocument.getId());
+
+        Assert.assertEquals(0, dispatcher.getEventsQueued());
+        Assert.assertEquals(3, dispatcher.getEventsDispatched());
+        Assert.assertEquals(1, dispatcher.getBatchesDispatched());
+        Assert.assertEquals(0, dispatcher.getEventsDropped());
+        Assert.assertTrue(dispatcher.getMaxDispatchLag(TimeUnit.NANOSECONDS) > 0);
+        Assert.assertTrue(dispatcher.getMaxDispatchLag(TimeUnit.NANOSECONDS) >=
+                dispatcher.getMeanDispatchLag(TimeUnit.NANOSECONDS));
+    }
+
+    @Test
+    public void dispatcher_moreChangesThanMaxBatchSize_deliveredInSeveralBatches() throws Exception {
+        dispatcher = new DocumentsModifiedDispatcher(datastore.getEventBus(), executor, 10, 2,
+                DocumentsModifiedDispatcher.OverflowPolicy.BLOCK);
+        dispatcher.getEventBus().register(this);
+
+        for (int i = 0; i < 5; i++) {
+            createDocument();
+        }
+        executor.runAll();
+
+        Assert.assertEquals(3, received.size());
+        Assert.assertEquals(2, received.get(0).events.size());
+        Assert.assertEquals(2, received.get(1).events.size());
+        Assert.assertEquals(1, received.get(2).events.size());
+        Assert.assertEquals(5, dispatcher.getEventsDispatched());
+    }
+
+    @Test
+    public void dispatcher_queueFullWithDropPolicy_eventsDropped() throws Exception {
+        dispatcher = new DocumentsModifiedDispatcher(datastore.getEventBus(), executor, 2, 10,
+                DocumentsModifiedDispatcher.OverflowPolicy.DROP);
+        dispatcher.getEventBus().register(this);
+
+        for (int i = 0; i < 5; i++) {
+            createDocument();
+        }
+        Assert.assertEquals(2, dispatcher.getEventsQueued());
+        Assert.assertEquals(3, dispatcher.getEventsDropped());
+
+        executor.runAll();
+        Assert.assertEquals(1, received.size());
+        Assert.assertEquals(2, received.get(0).events.size());
+    }
+
+    @Test
+    public void dispatcher_queueFullWithBlockPolicy_writerWaitsForSubscribers() throws Exception {
+        ExecutorService executorService = Executors.newSingleThreadExecutor();
+        try {
+            dispatcher = new DocumentsModifiedDispatcher(datastore.getEventBus(),
+                    executorService, 1, 1, DocumentsModifiedDispatcher.OverflowPolicy.BLOCK);
+            final CountDownLatch allDelivered = new CountDownLatch(20);
+            dispatcher.getEventBus().register(new Object() {
+                @Subscribe
+                public void onDocumentsModified(DocumentsModified dm) throws Exception {
+                    Thread.sleep(1);
+                    for (int i = 0; i < dm.events.size(); i++) {
+                        allDelivered.countDown();
+                    }
+                }
+            });
+
+            for (int i = 0; i < 20; i++) {
+                createDocument();
+            }
+            Assert.assertTrue(NotificationTestUtils.waitForSignal(allDelivered));
+            Assert.assertEquals(0, dispatcher.getEventsDropped());
+            Assert.assertEquals(20, dispatcher.getEventsDispatched());
+        } finally {
+            executorService.shutdown();
+        }
+    }
+
+    @Test
+    public void dispatcher_closed_noMoreEventsCollected() throws Exception {
+        dispatcher = new DocumentsModifiedDispatcher(datastore.getEventBus(), executor);
+        dispatcher.getEventBus().register(this);
+
+        createDocument();
+        dispatcher.close();
+        createDocument();
+        executor.runAll();
+
+        Assert.assertEquals(1, received.size());
+        Assert.assertEquals(1, received.get(0).events.size());
+    }
+
+    @Subscribe
+    public void onDocumentsModified(DocumentsModified dm) {
+        received.add(dm);
+    }
+
+    private BasicDocumentRevision createDocument() throws Exception {
+        MutableDocumentRevision rev = new MutableDocumentRevision();
+        rev.body = bodyOne;
+        return datastore.createDocumentFromRevision(rev);
+    }
+
+    /**
+     * Runs tasks only when asked to, so tests can see what's queued.
+     */
+    private static class ManualExecutor implements Executor {
+        private final Queue<Runnable> tasks = new LinkedList<Runnable>();
+
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+
+        void runAll() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/**
+ * Copyright (c) 2015 Cloudant, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.datastore;
+
+import com.cloudant.common.PerformanceTest;
+import com.cloudant.sync.sqlite.SQLDatabase;
+import com.cloudant.sync.sqlite.sqlite4java.SQLiteWrapper;
+import com.cloudant.sync.util.TestUtils;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Measures the throughput of inserting documents with long revision
+ * histories, as pulled by replication, one at a time with
+ * {@link BasicDatastore#forceInsert(BasicDocumentRevision, List, Map, boolean)}
+ * and in batches with {@link BasicDatastore#forceInsert(List, boolean)}.
+ */
+@Category(PerformanceTest.class)
+public class ForceInsertPerformanceTest {
+
+    private static final int DOCUMENT_COUNT = 500;
+    private static final int REVISIONS_PER_DOCUMENT = 50;
+    private static final int BATCH_SIZE = 100;
+
+    private String datastoreManagerPath;
+    private DatastoreManager datastoreManager;
+    private int datastoreCount = 0;
+
+    @Before
+    public void setUp() throws Exception {
+        datastoreManagerPath = TestUtils.createTempTestingDir(this.getClass().getName());
+        datastoreManager = new DatastoreManager(this.datastoreManagerPath);
+    }
+
+    @After
+    public void tearDown() {
+        TestUtils.deleteTempTestingDir(datastoreManagerPath);
+    }
+
+    @Test
+    public void test_forceInsert() throws Exception {
+        // Warm up both paths before timing them
+        insertOneByOne(openDatastore());
+        insertInBatches(openDatastore());
+
+        DatastoreExtended single = openDatastore();
+        long singleStatements = statements(single);
+        long start = System.nanoTime();
+        insertOneByOne(single);
+        long singleElapsed = System.nanoTime() - start;
+        singleStatements = statements(single) - singleStatements;
+
+        DatastoreExtended batched = openDatastore();
+        long batchedStatements = statements(batched);
+        start = System.nanoTime();
+        insertInBatches(batched);
+        long batchedElapsed = System.nanoTime() - start;
+        batchedStatements = statements(batched) - batchedStatements;
+
+        System.out.println(String.format("forceInsert, one at a time: %.0f docs/sec, " +
+                        "%.1f statements/doc", DOCUMENT_COUNT / (singleElapsed / 1e9),
+                (double) singleStatements / DOCUMENT_COUNT));
+        System.out.println(String.format("forceInsert, batches of %d: %.0f docs/sec, " +
+                        "%.1f statements/doc", BATCH_SIZE, DOCUMENT_COUNT / (batchedElapsed / 1e9),
+                (double) batchedStatements / DOCUMENT_COUNT));
+
+        Assert.assertEquals(DOCUMENT_COUNT, single.getDocumentCount());
+        Assert.assertEquals(DOCUMENT_COUNT, batched.getDocumentCount());
+    }
+
+    private DatastoreExtended openDatastore() throws Exception {
+        DatastoreExtended datastore = (DatastoreExtended) datastoreManager.openDatastore(
+                getClass().getSimpleName() + datastoreCount++);
+        Assume.assumeTrue(datastore.getSQLDatabase() instanceof SQLiteWrapper);
+        return datastore;
+    }
+
+    private static long statements(DatastoreExtended datastore) {
+        SQLiteWrapper wrapper = (SQLiteWrapper) datastore.getSQLDatabase();
+        return wrapper.getStatementCacheHits() + wrapper.getStatementCacheMisses();
+    }
+
+    private void insertOneByOne(DatastoreExtended datastore) {
+        SQLDatabase database = datastore.getSQLDatabase();
+        for (int i = 0; i < DOCUMENT_COUNT; i += BATCH_SIZE) {
+            // Replication inserts each batch in a transaction
+            database.beginTransaction();
+            try {
+                for (ForceInsertItem item : createItems(i)) {
+                    datastore.forceInsert(item.getRev(), item.getRevisionHistory(),
+                            item.getAttachments(), false);
+                }
+                database.setTransactionSuccessful();
+            } finally {
+                database.endTransaction();
+            }
+        }
+    }
+
+    private void insertInBatches(DatastoreExtended datastore) {
+        for (int i = 0; i < DOCUMENT_COUNT; i += BATCH_SIZE) {
+            datastore.forceInsert(createItems(i), false);
+        }
+    }
+
+    private List<ForceInsertItem> createItems(int start) {
+        List<ForceInsertItem> items = new ArrayList<ForceInsertItem>();
+        for (int i = start; i < start + BATCH_SIZE; i++) {
+            List<String> history = new ArrayList<String>();
+            for (int r = 1; r <= REVISIONS_PER_DOCUMENT; r++) {
+                history.add(r + "-" + Integer.toHexString(i * 31 + r));
+            }
+            Map<String, Object> body = new HashMap<String, Object>();
+            body.put("name", "document " + i);
+            BasicDocumentRevision rev = new DocumentRevisionBuilder()
+                    .setDocId("document-" + i)
+                    .setRevId(history.get(history.size() - 1))
+                    .setDeleted(false)
+                    .setBody(DocumentBodyFactory.create(body))
+                    .build();
+            items.add(new ForceInsertItem(rev, history, null));
+        }
+        return items;
+    }
+}
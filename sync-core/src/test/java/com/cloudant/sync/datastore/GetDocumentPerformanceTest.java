@@ -0,0 +1,133 @@
+/**
+ * Copyright (c) 2015 Cloudant, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.datastore;
+
+import com.cloudant.common.PerformanceTest;
+import com.cloudant.sync.sqlite.SQLDatabase;
+import com.cloudant.sync.sqlite.sqlite4java.SQLiteWrapper;
+import com.cloudant.sync.util.TestUtils;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Measures the throughput of {@link BasicDatastore#getDocument(String)},
+ * and how well the statement cache of the sqlite4java database serves it,
+ * and of reading documents in bulk with {@link BasicDatastore#changes(long, int)}.
+ */
+@Category(PerformanceTest.class)
+public class GetDocumentPerformanceTest {
+
+    private static final int DOCUMENT_COUNT = 1000;
+    private static final int WARM_UP_ROUNDS = 5;
+    private static final int ROUNDS = 20;
+
+    private String datastoreManagerPath;
+    private DatastoreExtended datastore;
+    private List<String> ids = new ArrayList<String>();
+
+    @Before
+    public void setUp() throws Exception {
+        datastoreManagerPath = TestUtils.createTempTestingDir(this.getClass().getName());
+        DatastoreManager datastoreManager = new DatastoreManager(this.datastoreManagerPath);
+        datastore = (DatastoreExtended) datastoreManager.openDatastore(getClass().getSimpleName());
+
+        for (int i = 0; i < DOCUMENT_COUNT; i++) {
+            Map<String, Object> body = new HashMap<String, Object>();
+            body.put("name", "document " + i);
+            body.put("count", i);
+            MutableDocumentRevision rev = new MutableDocumentRevision();
+            rev.body = DocumentBodyFactory.create(body);
+            ids.add(datastore.createDocumentFromRevision(rev).getId());
+        }
+    }
+
+    @After
+    public void tearDown() {
+        datastore.close();
+        TestUtils.deleteTempTestingDir(datastoreManagerPath);
+    }
+
+    @Test
+    public void test_getDocument() {
+        SQLDatabase database = datastore.getSQLDatabase();
+        Assume.assumeTrue(database instanceof SQLiteWrapper);
+        SQLiteWrapper wrapper = (SQLiteWrapper) database;
+
+        for (int i = 0; i < WARM_UP_ROUNDS; i++) {
+            getAllDocuments();
+        }
+
+        long hits = wrapper.getStatementCacheHits();
+        long misses = wrapper.getStatementCacheMisses();
+        long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            getAllDocuments();
+        }
+        long elapsed = System.nanoTime() - start;
+        hits = wrapper.getStatementCacheHits() - hits;
+        misses = wrapper.getStatementCacheMisses() - misses;
+
+        System.out.println(String.format("getDocument: %.1f us/op, %.0f ops/sec",
+                elapsed / 1000.0 / (ROUNDS * DOCUMENT_COUNT),
+                ROUNDS * DOCUMENT_COUNT / (elapsed / 1e9)));
+        System.out.println(String.format("statement cache: %d hits, %d misses", hits, misses));
+
+        // Once warmed up, every statement getDocument runs should be cached
+        Assert.assertEquals(0, misses);
+    }
+
+    @Test
+    public void test_changes() {
+        SQLDatabase database = datastore.getSQLDatabase();
+        Assume.assumeTrue(database instanceof SQLiteWrapper);
+        SQLiteWrapper wrapper = (SQLiteWrapper) database;
+
+        for (int i = 0; i < WARM_UP_ROUNDS; i++) {
+            Assert.assertEquals(DOCUMENT_COUNT, datastore.changes(0, DOCUMENT_COUNT).size());
+        }
+
+        long statements = wrapper.getStatementCacheHits() + wrapper.getStatementCacheMisses();
+        long start = System.nanoTime();
+        for (int i = 0; i < ROUNDS; i++) {
+            Assert.assertEquals(DOCUMENT_COUNT, datastore.changes(0, DOCUMENT_COUNT).size());
+        }
+        long elapsed = System.nanoTime() - start;
+        statements = wrapper.getStatementCacheHits() + wrapper.getStatementCacheMisses() -
+                statements;
+
+        System.out.println(String.format("changes: %.1f ms/page of %d, %.1f statements/page",
+                elapsed / 1e6 / ROUNDS, DOCUMENT_COUNT, (double) statements / ROUNDS));
+
+        // Attachments are read for a page in a few batched queries, rather
+        // than a query per document
+        Assert.assertTrue(statements / ROUNDS < DOCUMENT_COUNT / 100);
+    }
+
+    private void getAllDocuments() {
+        for (String id : ids) {
+            Assert.assertNotNull(datastore.getDocument(id));
+        }
+    }
+}
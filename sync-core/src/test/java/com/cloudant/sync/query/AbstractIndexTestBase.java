@@ -43,7 +43,7 @@ public abstract class AbstractIndexTestBase {
         assertThat(factory, is(notNullValue()));
         ds = (DatastoreExtended) factory.openDatastore(AbstractIndexTestBase.class.getSimpleName());
         assertThat(ds, is(notNullValue()));
-        im = new IndexManager(ds);
+        im = new IndexManager(ds, updateIndexesInBackground());
         assertThat(im, is(notNullValue()));
         db = im.getDatabase();
         assertThat(db, is(notNullValue()));
@@ -52,6 +52,15 @@ public abstract class AbstractIndexTestBase {
         SQLDatabaseTestUtils.assertTablesExist(db, metadataTableList);
     }
 
+    /**
+     *  Whether the IndexManager keeps its indexes up to date as documents change. Tests which
+     *  update indexes without going through the IndexManager turn this off, so their updates
+     *  don't run at the same time as the IndexManager's.
+     */
+    boolean updateIndexesInBackground() {
+        return true;
+    }
+
     @After
     public void tearDown() {
         im.close();
@@ -35,6 +35,7 @@ import org.junit.Test;
 import java.io.IOException;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -112,6 +113,7 @@ public abstract class AbstractQueryTestBase {
         bodyMap.put("name", "fred");
         bodyMap.put("age", 34);
         bodyMap.put("pet", "cat");
+        bodyMap.put("town", "bristol");
         rev.body = DocumentBodyFactory.create(bodyMap);
         try {
             ds.createDocumentFromRevision(rev);
@@ -401,4 +403,246 @@ public abstract class AbstractQueryTestBase {
         assertThat(queryResult.size(), is(0l));
     }
 
-}
\ No newline at end of file
+    @Test
+    public void canQueryOverORedFields() {
+        // query - { "$or" : [ { "name" : "fred" }, { "pet" : "dog" } ] }
+        Map<String, Object> nameMap = new HashMap<String, Object>();
+        nameMap.put("name", "fred");
+        Map<String, Object> petMap = new HashMap<String, Object>();
+        petMap.put("pet", "dog");
+        Map<String, Object> query = new HashMap<String, Object>();
+        query.put("$or", Arrays.<Object>asList(nameMap, petMap));
+        QueryResult queryResult = im.find(query);
+        assertThat(queryResult.size(), is(3l));
+        assertThat(queryResult.documentIds(), containsInAnyOrder("fred34", "fred12", "mike34"));
+    }
+
+    @Test
+    public void canQueryOverORedFieldsFromDifferentIndexes() {
+        // query - { "$or" : [ { "age" : 72 }, { "pet" : "dog" }, { "name" : "fred" } ] }
+        Map<String, Object> ageMap = new HashMap<String, Object>();
+        ageMap.put("age", 72);
+        Map<String, Object> petMap = new HashMap<String, Object>();
+        petMap.put("pet", "dog");
+        Map<String, Object> nameMap = new HashMap<String, Object>();
+        nameMap.put("name", "fred");
+        Map<String, Object> query = new HashMap<String, Object>();
+        query.put("$or", Arrays.<Object>asList(ageMap, petMap, nameMap));
+        QueryResult queryResult = im.find(query);
+        assertThat(queryResult.size(), is(4l));
+        assertThat(queryResult.documentIds(),
+                   containsInAnyOrder("mike72", "mike34", "fred34", "fred12"));
+    }
+
+    @Test
+    public void noResultsWhenORedFieldsAreMismatched() {
+        // query - { "$or" : [ { "name" : "bill" }, { "pet" : "fish" } ] }
+        Map<String, Object> nameMap = new HashMap<String, Object>();
+        nameMap.put("name", "bill");
+        Map<String, Object> petMap = new HashMap<String, Object>();
+        petMap.put("pet", "fish");
+        Map<String, Object> query = new HashMap<String, Object>();
+        query.put("$or", Arrays.<Object>asList(nameMap, petMap));
+        QueryResult queryResult = im.find(query);
+        assertThat(queryResult.size(), is(0l));
+    }
+
+    @Test
+    public void canQueryOverORNestedInAND() {
+        // query - { "name" : "mike", "$or" : [ { "age" : 12 }, { "pet" : "dog" } ] }
+        Map<String, Object> ageMap = new HashMap<String, Object>();
+        ageMap.put("age", 12);
+        Map<String, Object> petMap = new HashMap<String, Object>();
+        petMap.put("pet", "dog");
+        Map<String, Object> query = new HashMap<String, Object>();
+        query.put("name", "mike");
+        query.put("$or", Arrays.<Object>asList(ageMap, petMap));
+        QueryResult queryResult = im.find(query);
+        assertThat(queryResult.size(), is(2l));
+        assertThat(queryResult.documentIds(), containsInAnyOrder("mike12", "mike34"));
+    }
+
+    @Test
+    public void canQueryOverANDNestedInOR() {
+        // query - { "$or" : [ { "$and" : [ { "name" : "mike" }, { "age" : 72 } ] },
+        //                     { "pet" : "dog" } ] }
+        Map<String, Object> nameMap = new HashMap<String, Object>();
+        nameMap.put("name", "mike");
+        Map<String, Object> ageMap = new HashMap<String, Object>();
+        ageMap.put("age", 72);
+        Map<String, Object> andMap = new HashMap<String, Object>();
+        andMap.put("$and", Arrays.<Object>asList(nameMap, ageMap));
+        Map<String, Object> petMap = new HashMap<String, Object>();
+        petMap.put("pet", "dog");
+        Map<String, Object> query = new HashMap<String, Object>();
+        query.put("$or", Arrays.<Object>asList(andMap, petMap));
+        QueryResult queryResult = im.find(query);
+        assertThat(queryResult.size(), is(2l));
+        assertThat(queryResult.documentIds(), containsInAnyOrder("mike72", "mike34"));
+    }
+
+    @Test
+    public void canQueryOverUnindexedANDNestedInOR() {
+        // query - { "$or" : [ { "pet" : "dog" },
+        //                     { "$and" : [ { "name" : "fred" }, { "town" : "bristol" } ] } ] }
+        QueryResult queryResult = im.find(unindexedANDNestedIn("$or", "dog"));
+        assertThat(queryResult.size(), is(2l));
+        assertThat(queryResult.documentIds(), containsInAnyOrder("mike34", "fred34"));
+    }
+
+    @Test
+    public void canQueryOverUnindexedANDNestedInAND() {
+        // query - { "$and" : [ { "pet" : "cat" },
+        //                      { "$and" : [ { "name" : "fred" }, { "town" : "bristol" } ] } ] }
+        QueryResult queryResult = im.find(unindexedANDNestedIn("$and", "cat"));
+        assertThat(queryResult.size(), is(1l));
+        assertThat(queryResult.documentIds(), contains("fred34"));
+    }
+
+    /**
+     *  Returns a selector combining a clause for 'pet' with an AND of clauses which
+     *  no single index covers using 'operator', "$or" or "$and".
+     */
+    protected static Map<String, Object> unindexedANDNestedIn(String operator, String pet) {
+        Map<String, Object> nameMap = new HashMap<String, Object>();
+        nameMap.put("name", "fred");
+        Map<String, Object> townMap = new HashMap<String, Object>();
+        townMap.put("town", "bristol");
+        Map<String, Object> andMap = new HashMap<String, Object>();
+        andMap.put("$and", Arrays.<Object>asList(nameMap, townMap));
+        Map<String, Object> petMap = new HashMap<String, Object>();
+        petMap.put("pet", pet);
+        Map<String, Object> query = new HashMap<String, Object>();
+        query.put(operator, Arrays.<Object>asList(petMap, andMap));
+        return query;
+    }
+
+    // When sorting results
+
+    @Test
+    public void sortsResultsByOneField() {
+        // query - { "name" : "mike" }, sort - [ { "age" : "desc" } ]
+        Map<String, Object> query = new HashMap<String, Object>();
+        query.put("name", "mike");
+        List<Map<String, String>> sortDocument = new ArrayList<Map<String, String>>();
+        sortDocument.add(sortClause("age", "desc"));
+        QueryResult queryResult = im.find(query, 0, 0, null, sortDocument);
+        assertThat(queryResult.documentIds(), contains("mike72", "mike34", "mike12"));
+    }
+
+    @Test
+    public void sortsResultsByTwoFields() {
+        // query - { "$or" : [ { "name" : "mike" }, { "name" : "fred" } ] },
+        // sort - [ { "name" : "asc" }, { "age" : "desc" } ]
+        Map<String, Object> mikeMap = new HashMap<String, Object>();
+        mikeMap.put("name", "mike");
+        Map<String, Object> fredMap = new HashMap<String, Object>();
+        fredMap.put("name", "fred");
+        Map<String, Object> query = new HashMap<String, Object>();
+        query.put("$or", Arrays.<Object>asList(mikeMap, fredMap));
+        List<Map<String, String>> sortDocument = new ArrayList<Map<String, String>>();
+        sortDocument.add(sortClause("name", "asc"));
+        sortDocument.add(sortClause("age", "desc"));
+        QueryResult queryResult = im.find(query, 0, 0, null, sortDocument);
+        assertThat(queryResult.documentIds(),
+                   contains("fred34", "fred12", "mike72", "mike34", "mike12"));
+    }
+
+    @Test
+    public void sortsResultsWithSkipAndLimit() {
+        // query - { "name" : "mike" }, sort - [ { "age" : "asc" } ]
+        Map<String, Object> query = new HashMap<String, Object>();
+        query.put("name", "mike");
+        List<Map<String, String>> sortDocument = new ArrayList<Map<String, String>>();
+        sortDocument.add(sortClause("age", "asc"));
+        QueryResult queryResult = im.find(query, 1, 1, null, sortDocument);
+        assertThat(queryResult.documentIds(), contains("mike34"));
+        queryResult = im.find(query, 0, 2, null, sortDocument);
+        assertThat(queryResult.documentIds(), contains("mike12", "mike34"));
+        queryResult = im.find(query, 2, 5, null, sortDocument);
+        assertThat(queryResult.documentIds(), contains("mike72"));
+    }
+
+    @Test
+    public void sortsResultsUsingFieldsNotInQuery() {
+        // query - { "name" : "mike" }, sort - [ { "pet" : "desc" }, { "age" : "asc" } ]
+        Map<String, Object> query = new HashMap<String, Object>();
+        query.put("name", "mike");
+        List<Map<String, String>> sortDocument = new ArrayList<Map<String, String>>();
+        sortDocument.add(sortClause("pet", "desc"));
+        sortDocument.add(sortClause("age", "asc"));
+        QueryResult queryResult = im.find(query, 0, 0, null, sortDocument);
+        assertThat(queryResult.documentIds(), contains("mike34", "mike12", "mike72"));
+    }
+
+    @Test
+    public void returnsNullForInvalidSortDirection() {
+        Map<String, Object> query = new HashMap<String, Object>();
+        query.put("name", "mike");
+        List<Map<String, String>> sortDocument = new ArrayList<Map<String, String>>();
+        sortDocument.add(sortClause("age", "up"));
+        assertThat(im.find(query, 0, 0, null, sortDocument), is(nullValue()));
+    }
+
+    // When projecting fields
+
+    @Test
+    public void projectsRequestedFields() {
+        // query - { "name" : "mike" }, fields - [ "name", "pet" ]
+        Map<String, Object> query = new HashMap<String, Object>();
+        query.put("name", "mike");
+        QueryResult queryResult = im.find(query, 0, 0, Arrays.asList("name", "pet"), null);
+        assertThat(queryResult.documentIds(), containsInAnyOrder("mike12", "mike34", "mike72"));
+        for (DocumentRevision rev : queryResult) {
+            Map<String, Object> body = rev.getBody().asMap();
+            assertThat(body.size(), is(2));
+            assertThat(body.get("name"), is((Object) "mike"));
+            assertThat(body.containsKey("age"), is(false));
+            assertThat(rev.getRevision(), is(notNullValue()));
+        }
+    }
+
+    @Test
+    public void projectsOnlyFieldsInDocument() {
+        // query - { "name" : "fred" }, fields - [ "pet", "age" ]
+        Map<String, Object> query = new HashMap<String, Object>();
+        query.put("name", "fred");
+        List<Map<String, String>> sortDocument = new ArrayList<Map<String, String>>();
+        sortDocument.add(sortClause("age", "asc"));
+        QueryResult queryResult = im.find(query, 0, 0, Arrays.asList("pet", "age"), sortDocument);
+        List<Map<String, Object>> bodies = new ArrayList<Map<String, Object>>();
+        for (DocumentRevision rev : queryResult) {
+            bodies.add(rev.getBody().asMap());
+        }
+        Map<String, Object> fred12 = new HashMap<String, Object>();
+        fred12.put("age", 12);
+        Map<String, Object> fred34 = new HashMap<String, Object>();
+        fred34.put("age", 34);
+        fred34.put("pet", "cat");
+        List<Map<String, Object>> expected = new ArrayList<Map<String, Object>>();
+        expected.add(fred12);
+        expected.add(fred34);
+        assertThat(bodies, is(expected));
+    }
+
+    @Test
+    public void returnsNullWhenProjectingDottedField() {
+        // query - { "name" : "mike" }, fields - [ "name", "pet.species" ]
+        Map<String, Object> query = new HashMap<String, Object>();
+        query.put("name", "mike");
+        List<String> fields = Arrays.asList("name", "pet.species");
+        assertThat(im.find(query, 0, 0, fields, null), is(nullValue()));
+
+        // Even when an index could supply the field
+        assertThat(im.ensureIndexed(Arrays.<Object>asList("name", "pet.species"), "species"),
+                   is("species"));
+        assertThat(im.find(query, 0, 0, fields, null), is(nullValue()));
+    }
+
+    private static Map<String, String> sortClause(String fieldName, String direction) {
+        Map<String, String> clause = new HashMap<String, String>();
+        clause.put(fieldName, direction);
+        return clause;
+    }
+
+}
@@ -13,6 +13,7 @@
 package com.cloudant.sync.query;
 
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
 import static org.hamcrest.Matchers.containsInAnyOrder;
 import static org.hamcrest.Matchers.hasKey;
 import static org.hamcrest.Matchers.is;
@@ -134,4 +135,71 @@ public class IndexManagerTest extends AbstractIndexTestBase {
         assertThat(im.deleteIndexNamed("basic2"), is(true));
         assertThat(im.listIndexes().keySet(), containsInAnyOrder("basic", "basic3"));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void findWithUpdateSeesNewDocuments() throws IOException {
+        im.ensureIndexed(Arrays.<Object>asList("name"), "basic");
+
+        createDocument("mike12", "mike");
+        Map<String, Object> query = new HashMap<String, Object>();
+        query.put("name", "mike");
+        QueryResult queryResult = im.find(query, 0, 0, null, null, IndexManager.Update.TRUE);
+        assertThat(queryResult.documentIds(), contains("mike12"));
+    }
+
+    @Test
+    public void indexesUpdatedInBackgroundAfterDocumentsChange() throws Exception {
+        im.ensureIndexed(Arrays.<Object>asList("name"), "basic");
+
+        createDocument("mike12", "mike");
+        createDocument("fred34", "fred");
+        Map<String, Object> query = new HashMap<String, Object>();
+        query.put("name", "mike");
+
+        // Without updating the indexes for the query, the new documents are only found
+        // once the background update has indexed them
+        long timeout = System.currentTimeMillis() + 10000;
+        QueryResult queryResult = im.find(query, 0, 0, null, null, IndexManager.Update.FALSE);
+        while (queryResult.size() == 0 && System.currentTimeMillis() < timeout) {
+            Thread.sleep(50);
+            queryResult = im.find(query, 0, 0, null, null, IndexManager.Update.FALSE);
+        }
+        assertThat(queryResult.documentIds(), contains("mike12"));
+    }
+
+    @Test
+    public void findWithLazyUpdateUpdatesIndexesAfterQuery() throws Exception {
+        // Without background updates, only the lazy query can update the index
+        im.close();
+        im = new IndexManager(ds, false);
+        db = im.getDatabase();
+        im.ensureIndexed(Arrays.<Object>asList("name"), "basic");
+
+        createDocument("mike12", "mike");
+        Map<String, Object> query = new HashMap<String, Object>();
+        query.put("name", "mike");
+        assertThat(im.find(query, 0, 0, null, null, IndexManager.Update.FALSE).size(), is(0l));
+        Thread.sleep(200);
+        assertThat(im.find(query, 0, 0, null, null, IndexManager.Update.FALSE).size(), is(0l));
+
+        // The lazy query uses the index as it is, then updates it
+        assertThat(im.find(query, 0, 0, null, null, IndexManager.Update.LAZY).size(), is(0l));
+        long timeout = System.currentTimeMillis() + 10000;
+        QueryResult queryResult = im.find(query, 0, 0, null, null, IndexManager.Update.FALSE);
+        while (queryResult.size() == 0 && System.currentTimeMillis() < timeout) {
+            Thread.sleep(50);
+            queryResult = im.find(query, 0, 0, null, null, IndexManager.Update.FALSE);
+        }
+        assertThat(queryResult.documentIds(), contains("mike12"));
+    }
+
+    private void createDocument(String docId, String name) throws IOException {
+        MutableDocumentRevision rev = new MutableDocumentRevision();
+        rev.docId = docId;
+        Map<String, Object> bodyMap = new HashMap<String, Object>();
+        bodyMap.put("name", name);
+        rev.body = DocumentBodyFactory.create(bodyMap);
+        ds.createDocumentFromRevision(rev);
+    }
+
+}
@@ -0,0 +1,120 @@
+//  Copyright (c) 2015 Cloudant. All rights reserved.
+//
+//  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+//  except in compliance with the License. You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software distributed under the
+//  License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+//  either express or implied. See the License for the specific language governing permissions
+//  and limitations under the License.
+
+package com.cloudant.sync.query;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+
+import com.cloudant.sync.datastore.DocumentBodyFactory;
+import com.cloudant.sync.datastore.DocumentRevision;
+import com.cloudant.sync.datastore.MutableDocumentRevision;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+public class IndexProjectorTest extends AbstractIndexTestBase {
+
+    @Override
+    public void setUp() throws SQLException {
+        super.setUp();
+        createDocument("mike12", "name", "mike", "pet", "cat");
+        createDocument("fred34", "name", "fred", "pet", "dog",
+                       "toys", Arrays.asList("ball", "bone"));
+        createDocument("john44", "name", "john", "pet", true);
+        createDocument("bill22", "name", "bill", "toys", Arrays.asList("ball"));
+        assertThat(im.ensureIndexed(Arrays.<Object>asList("name", "pet"), "pet"), is("pet"));
+        assertThat(im.ensureIndexed(Arrays.<Object>asList("name", "toys"), "toys"), is("toys"));
+    }
+
+    @Test
+    public void projectsStringFieldsFromIndex() {
+        IndexProjector projector = new IndexProjector(db, im.getQueue(), "pet",
+                Arrays.asList("_id", "name", "pet"));
+        Map<String, DocumentRevision> revs = projector.projectFromIndex(Arrays.asList("mike12"));
+        assertThat(revs.keySet(), containsInAnyOrder("mike12"));
+
+        DocumentRevision rev = revs.get("mike12");
+        assertThat(rev.getRevision(), is(notNullValue()));
+        assertThat(rev.getAttachments().isEmpty(), is(true));
+        Map<String, Object> expected = new HashMap<String, Object>();
+        expected.put("name", "mike");
+        expected.put("pet", "cat");
+        assertThat(rev.getBody().asMap(), is(expected));
+    }
+
+    @Test
+    public void doesNotProjectValuesIndexTablesCannotHoldExactly() {
+        IndexProjector projector = new IndexProjector(db, im.getQueue(), "pet",
+                Arrays.asList("name", "pet"));
+        Map<String, DocumentRevision> revs = projector.projectFromIndex(
+                Arrays.asList("mike12", "fred34", "john44", "bill22", "missing"));
+
+        // john44's pet is a boolean and bill22 has no pet
+        assertThat(revs.keySet(), containsInAnyOrder("mike12", "fred34"));
+    }
+
+    @Test
+    public void doesNotProjectDocumentsWithSeveralRows() {
+        IndexProjector projector = new IndexProjector(db, im.getQueue(), "toys",
+                Arrays.asList("name"));
+        Map<String, DocumentRevision> revs = projector.projectFromIndex(
+                Arrays.asList("fred34", "bill22"));
+
+        // fred34 has a row for each toy
+        assertThat(revs.keySet(), containsInAnyOrder("bill22"));
+    }
+
+    @Test
+    public void doesNotProjectFieldsWhichHeldArrays() {
+        IndexProjector projector = new IndexProjector(db, im.getQueue(), "toys",
+                Arrays.asList("name", "toys"));
+
+        // bill22's single toy has a single row, which looks like a string
+        Map<String, DocumentRevision> revs = projector.projectFromIndex(
+                Arrays.asList("bill22"));
+        assertThat(revs.isEmpty(), is(true));
+    }
+
+    @Test
+    public void projectsFieldsPresentInIndex() {
+        IndexProjector projector = new IndexProjector(db, im.getQueue(), "pet",
+                Arrays.asList("name"));
+        Map<String, DocumentRevision> revs = projector.projectFromIndex(
+                Arrays.asList("mike12", "john44", "bill22"));
+        assertThat(revs.keySet(), containsInAnyOrder("mike12", "john44", "bill22"));
+        assertThat(revs.get("bill22").getBody().asMap().get("name"), is((Object) "bill"));
+    }
+
+    private void createDocument(String docId, Object... keysAndValues) {
+        MutableDocumentRevision rev = new MutableDocumentRevision();
+        rev.docId = docId;
+        Map<String, Object> bodyMap = new HashMap<String, Object>();
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            bodyMap.put((String) keysAndValues[i], keysAndValues[i + 1]);
+        }
+        rev.body = DocumentBodyFactory.create(bodyMap);
+        try {
+            ds.createDocumentFromRevision(rev);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+}
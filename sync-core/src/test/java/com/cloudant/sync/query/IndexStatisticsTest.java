@@ -0,0 +1,67 @@
+//  Copyright (c) 2015 Cloudant. All rights reserved.
+//
+//  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+//  except in compliance with the License. You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software distributed under the
+//  License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+//  either express or implied. See the License for the specific language governing permissions
+//  and limitations under the License.
+
+package com.cloudant.sync.query;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+import com.cloudant.sync.datastore.DocumentBodyFactory;
+import com.cloudant.sync.datastore.MutableDocumentRevision;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+public class IndexStatisticsTest extends AbstractIndexTestBase {
+
+    @Test
+    public void cachesRowCountsUntilInvalidated() throws IOException {
+        assertThat(im.ensureIndexed(Arrays.<Object>asList("name"), "basic"), is("basic"));
+        IndexStatistics statistics = new IndexStatistics(db, im.getQueue());
+        assertThat(statistics.rowCount("basic"), is(0l));
+
+        createDocument("mike12", "mike");
+        assertThat(im.updateAllIndexes(), is(true));
+        assertThat(statistics.rowCount("basic"), is(0l));
+
+        statistics.invalidate("basic");
+        assertThat(statistics.rowCount("basic"), is(1l));
+    }
+
+    @Test
+    public void invalidatesOnlyTheNamedIndex() throws IOException {
+        assertThat(im.ensureIndexed(Arrays.<Object>asList("name"), "basic"), is("basic"));
+        assertThat(im.ensureIndexed(Arrays.<Object>asList("name", "age"), "age"), is("age"));
+        IndexStatistics statistics = new IndexStatistics(db, im.getQueue());
+        assertThat(statistics.rowCount("basic"), is(0l));
+        assertThat(statistics.rowCount("age"), is(0l));
+
+        createDocument("mike12", "mike");
+        assertThat(im.updateAllIndexes(), is(true));
+
+        statistics.invalidate("age");
+        assertThat(statistics.rowCount("basic"), is(0l));
+        assertThat(statistics.rowCount("age"), is(1l));
+    }
+
+    private void createDocument(String docId, String name) throws IOException {
+        MutableDocumentRevision rev = new MutableDocumentRevision();
+        rev.docId = docId;
+        rev.body = DocumentBodyFactory.create(Collections.<String, Object>singletonMap("name",
+                                                                                      name));
+        ds.createDocumentFromRevision(rev);
+    }
+
+}
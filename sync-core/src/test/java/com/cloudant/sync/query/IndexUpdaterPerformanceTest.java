@@ -0,0 +1,91 @@
+//  Copyright (c) 2015 Cloudant. All rights reserved.
+//
+//  Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+//  except in compliance with the License. You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software distributed under the
+//  License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+//  either express or implied. See the License for the specific language governing permissions
+//  and limitations under the License.
+
+package com.cloudant.sync.query;
+
+import com.cloudant.common.PerformanceTest;
+import com.cloudant.sync.datastore.DatastoreExtended;
+import com.cloudant.sync.datastore.DatastoreManager;
+import com.cloudant.sync.datastore.DocumentBodyFactory;
+import com.cloudant.sync.datastore.MutableDocumentRevision;
+import com.cloudant.sync.util.TestUtils;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Measures how long it takes to index all the documents in a datastore.
+ */
+@Category(PerformanceTest.class)
+public class IndexUpdaterPerformanceTest {
+
+    private static final int DOCUMENT_COUNT = 10000;
+
+    private String datastoreManagerPath;
+    private DatastoreExtended datastore;
+    private IndexManager indexManager;
+
+    @Before
+    public void setUp() throws Exception {
+        datastoreManagerPath = TestUtils.createTempTestingDir(this.getClass().getName());
+        DatastoreManager datastoreManager = new DatastoreManager(this.datastoreManagerPath);
+        datastore = (DatastoreExtended) datastoreManager.openDatastore(getClass().getSimpleName());
+        indexManager = new IndexManager(datastore);
+
+        String[] names = {"mike", "fred", "john", "bill", "anne"};
+        for (int i = 0; i < DOCUMENT_COUNT; i++) {
+            Map<String, Object> body = new HashMap<String, Object>();
+            body.put("name", names[i % names.length]);
+            body.put("age", i % 80);
+            body.put("pets", Arrays.asList("cat", "dog", "fish-" + (i % 10)));
+            MutableDocumentRevision rev = new MutableDocumentRevision();
+            rev.body = DocumentBodyFactory.create(body);
+            datastore.createDocumentFromRevision(rev);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        indexManager.close();
+        datastore.close();
+        TestUtils.deleteTempTestingDir(datastoreManagerPath);
+    }
+
+    @Test
+    public void test_indexAllDocuments() {
+        System.out.println(String.format("Index of two fields: %d docs/sec",
+                index("basic", Arrays.<Object>asList("name", "age"))));
+        // one row per array element
+        System.out.println(String.format("Index of an array field: %d docs/sec",
+                index("pets", Arrays.<Object>asList("name", "pets"))));
+    }
+
+    /**
+     * Creates an index on {@code fields}, indexing every document.
+     *
+     * @return documents indexed per second
+     */
+    private long index(String indexName, List<Object> fields) {
+        long t0 = System.currentTimeMillis();
+        Assert.assertEquals(indexName, indexManager.ensureIndexed(fields, indexName));
+        long t1 = System.currentTimeMillis();
+        return DOCUMENT_COUNT * 1000L / Math.max(1, t1 - t0);
+    }
+}
@@ -41,6 +41,11 @@ public class IndexUpdaterTest extends AbstractIndexTestBase {
 
     List<String> fields;
 
+    @Override
+    boolean updateIndexesInBackground() {
+        return false;
+    }
+
     @Override
     public void tearDown() {
         super.tearDown();
@@ -727,6 +732,37 @@ public class IndexUpdaterTest extends AbstractIndexTestBase {
         }
     }
 
+    @Test
+    public void updateInvalidatesStatisticsOfChangedIndexes() {
+        createIndex("basic", Arrays.<Object>asList("name"));
+        createIndex("age", Arrays.<Object>asList("age"));
+        IndexStatistics statistics = new IndexStatistics(db, im.getQueue());
+        assertThat(IndexUpdater.updateAllIndexes(im.listIndexes(), db, ds, im.getQueue(),
+                                                 statistics), is(true));
+        assertThat(statistics.rowCount("basic"), is(0l));
+        assertThat(statistics.rowCount("age"), is(0l));
+
+        MutableDocumentRevision rev = new MutableDocumentRevision();
+        rev.docId = "mike12";
+        // body content: { "name" : "mike" }
+        Map<String, Object> bodyMap = new HashMap<String, Object>();
+        bodyMap.put("name", "mike");
+        rev.body = DocumentBodyFactory.create(bodyMap);
+        try {
+            ds.createDocumentFromRevision(rev);
+        } catch (IOException e) {
+            Assert.fail(String.format("IOException occurred creating document revision: %s", e));
+        }
+
+        Map<String, Object> indexes = im.listIndexes();
+        indexes.remove("age");
+        assertThat(IndexUpdater.updateAllIndexes(indexes, db, ds, im.getQueue(), statistics),
+                   is(true));
+        assertThat(statistics.rowCount("basic"), is(1l));
+        // not updated, so still cached
+        assertThat(statistics.rowCount("age"), is(0l));
+    }
+
     private long getIndexSequenceNumber(String indexName) {
         String where = String.format("index_name = \"%s\" group by last_sequence", indexName);
         String sql = String.format("SELECT last_sequence FROM %s where %s",
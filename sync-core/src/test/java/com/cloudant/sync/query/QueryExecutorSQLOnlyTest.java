@@ -13,11 +13,14 @@
 package com.cloudant.sync.query;
 
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsInAnyOrder;
 import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.notNullValue;
 
 import com.cloudant.sync.util.SQLDatabaseTestUtils;
 
+import org.junit.Test;
+
 import java.sql.SQLException;
 import java.util.Arrays;
 
@@ -46,4 +49,23 @@ public class QueryExecutorSQLOnlyTest extends AbstractQueryTestBase {
         assertThat(im.ensureIndexed(Arrays.<Object>asList("name", "age"), "basic"), is("basic"));
         assertThat(im.ensureIndexed(Arrays.<Object>asList("name", "pet"), "pet"), is("pet"));
     }
+
+    // Without the matcher, clauses no index covers can't be applied, so these queries return
+    // the documents SQL narrows the results to. They must still include every match.
+
+    @Override
+    @Test
+    public void canQueryOverUnindexedANDNestedInOR() {
+        QueryResult queryResult = im.find(unindexedANDNestedIn("$or", "dog"));
+        assertThat(queryResult.documentIds(),
+                   containsInAnyOrder("mike12", "mike34", "mike72", "fred34", "fred12"));
+    }
+
+    @Override
+    @Test
+    public void canQueryOverUnindexedANDNestedInAND() {
+        QueryResult queryResult = im.find(unindexedANDNestedIn("$and", "cat"));
+        assertThat(queryResult.documentIds(),
+                   containsInAnyOrder("mike12", "mike72", "fred34"));
+    }
 }
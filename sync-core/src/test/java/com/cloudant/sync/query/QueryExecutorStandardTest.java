@@ -13,13 +13,27 @@
 package com.cloudant.sync.query;
 
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
 import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
 
+import com.cloudant.sync.datastore.DocumentBodyFactory;
+import com.cloudant.sync.datastore.MutableDocumentRevision;
+import com.cloudant.sync.sqlite.SQLDatabase;
 import com.cloudant.sync.util.SQLDatabaseTestUtils;
 
+import org.junit.Test;
+
+import java.io.IOException;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * This class uses the {@link IndexManager}, to allow all tests defined in
@@ -44,4 +58,156 @@ public class QueryExecutorStandardTest extends AbstractQueryTestBase {
         assertThat(im.ensureIndexed(Arrays.<Object>asList("name", "age"), "basic"), is("basic"));
         assertThat(im.ensureIndexed(Arrays.<Object>asList("name", "pet"), "pet"), is("pet"));
     }
+
+    @Test
+    public void sortsLargeResultSetsWithLimit() throws IOException {
+        for (int i = 0; i < 600; i++) {
+            MutableDocumentRevision rev = new MutableDocumentRevision();
+            rev.docId = "bob" + i;
+            Map<String, Object> bodyMap = new HashMap<String, Object>();
+            bodyMap.put("name", "bob");
+            bodyMap.put("age", i);
+            bodyMap.put("rank", 600 - i);
+            rev.body = DocumentBodyFactory.create(bodyMap);
+            ds.createDocumentFromRevision(rev);
+        }
+
+        Map<String, Object> query = new HashMap<String, Object>();
+        query.put("name", "bob");
+
+        // Ordered using the "basic" index
+        List<Map<String, String>> sortDocument = new ArrayList<Map<String, String>>();
+        Map<String, String> clause = new HashMap<String, String>();
+        clause.put("age", "desc");
+        sortDocument.add(clause);
+        QueryResult queryResult = im.find(query, 1, 3, null, sortDocument);
+        assertThat(queryResult.documentIds(), contains("bob598", "bob597", "bob596"));
+
+        // No index contains "rank", so the documents are ordered
+        sortDocument = new ArrayList<Map<String, String>>();
+        clause = new HashMap<String, String>();
+        clause.put("rank", "asc");
+        sortDocument.add(clause);
+        queryResult = im.find(query, 1, 3, null, sortDocument);
+        assertThat(queryResult.documentIds(), contains("bob598", "bob597", "bob596"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void explainChoosesCheapestIndex() {
+        assertThat(im.ensureIndexed(Arrays.<Object>asList("name", "age", "pet"), "all"),
+                   is("all"));
+
+        // query - { "name" : "mike", "pet" : "cat" }
+        Map<String, Object> query = new HashMap<String, Object>();
+        query.put("name", "mike");
+        query.put("pet", "cat");
+        Map<String, Object> explanation = im.explain(query);
+        assertThat(explanation.get("indexesCoverQuery"), is((Object) true));
+        Map<String, Object> plan = planNode(explanation.get("plan"));
+        List<Object> branches = (List<Object>) plan.get("$and");
+        assertThat(branches.size(), is(1));
+        Map<String, Object> sqlNode = planNode(branches.get(0));
+        assertThat(sqlNode.get("index"), is((Object) "pet"));
+        assertThat((Long) sqlNode.get("estimatedRows") > 0, is(true));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void explainOrdersAndBranchesByEstimatedRows() throws IOException {
+        for (int i = 0; i < 100; i++) {
+            MutableDocumentRevision rev = new MutableDocumentRevision();
+            rev.docId = "bob" + i;
+            Map<String, Object> bodyMap = new HashMap<String, Object>();
+            bodyMap.put("name", "bob");
+            bodyMap.put("age", i);
+            rev.body = DocumentBodyFactory.create(bodyMap);
+            ds.createDocumentFromRevision(rev);
+        }
+
+        // query - { "name" : "bob", "$or" : [ { "pet" : "dog" } ] }
+        Map<String, Object> petMap = new HashMap<String, Object>();
+        petMap.put("pet", "dog");
+        Map<String, Object> query = new HashMap<String, Object>();
+        query.put("name", "bob");
+        query.put("$or", Arrays.<Object>asList(petMap));
+        Map<String, Object> explanation = im.explain(query);
+
+        // Few documents have a pet, so the $or is run first
+        List<Object> branches = (List<Object>) planNode(explanation.get("plan")).get("$and");
+        assertThat(branches.size(), is(2));
+        assertThat(planNode(branches.get(0)).containsKey("$or"), is(true));
+        Map<String, Object> sqlNode = planNode(branches.get(1));
+        assertThat(sqlNode.get("index"), is((Object) "basic"));
+        assertThat(sqlNode.get("args"), is((Object) Arrays.asList("bob")));
+
+        QueryResult queryResult = im.find(query);
+        assertThat(queryResult.size(), is(0l));
+    }
+
+    @Test
+    public void explainReturnsNullForInvalidQuery() {
+        Map<String, Object> query = new HashMap<String, Object>();
+        query.put("name", Arrays.asList("mike"));
+        assertThat(im.explain(query), is(nullValue()));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void explainShowsIntersectionOfSqlBranches() {
+        // query - { "name" : "mike", "$or" : [ { "pet" : "cat" }, { "age" : 12 } ] }
+        Map<String, Object> petMap = new HashMap<String, Object>();
+        petMap.put("pet", "cat");
+        Map<String, Object> ageMap = new HashMap<String, Object>();
+        ageMap.put("age", 12);
+        Map<String, Object> query = new HashMap<String, Object>();
+        query.put("name", "mike");
+        query.put("$or", Arrays.<Object>asList(petMap, ageMap));
+
+        Map<String, Object> plan = planNode(im.explain(query).get("plan"));
+        assertThat(((List<Object>) plan.get("$and")).size(), is(2));
+        Map<String, Object> intersection = planNode(plan.get("intersection"));
+        assertThat(((String) intersection.get("sql")).contains(" INTERSECT "), is(true));
+        assertThat(((List<Object>) intersection.get("args")).size(), is(3));
+
+        assertThat(im.find(query).documentIds(), containsInAnyOrder("mike12", "mike72"));
+    }
+
+    @Test
+    public void stopsIntersectingWhenNoDocumentsLeft() {
+        final List<QueryNode> executed = new ArrayList<QueryNode>();
+        QueryExecutor executor = new QueryExecutor(db, ds, im.getQueue()) {
+            @Override
+            protected Set<String> executeQueryTree(QueryNode node, SQLDatabase db) {
+                executed.add(node);
+                return super.executeQueryTree(node, db);
+            }
+        };
+
+        String table = IndexManager.tableNameForIndex("basic");
+        SqlQueryNode noMatches = sqlNode(table, "bill");
+        OrQueryNode orNode = new OrQueryNode();
+        orNode.children.add(sqlNode(table, "mike"));
+        orNode.children.add(sqlNode(table, "fred"));
+        AndQueryNode andNode = new AndQueryNode();
+        andNode.children.add(noMatches);
+        andNode.children.add(orNode);
+
+        assertThat(executor.executeQueryTree(andNode, db).isEmpty(), is(true));
+        // The OR isn't executed, as the first branch matched no documents
+        assertThat(executed, contains((QueryNode) andNode, noMatches));
+    }
+
+    private static SqlQueryNode sqlNode(String table, String name) {
+        SqlQueryNode sqlNode = new SqlQueryNode();
+        sqlNode.sql = SqlParts.partsForSql(
+                String.format("SELECT _id FROM %s WHERE \"name\" = ?", table),
+                new String[]{ name });
+        return sqlNode;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> planNode(Object node) {
+        return (Map<String, Object>) node;
+    }
 }
@@ -140,8 +140,128 @@ public class QuerySqlTranslatorTest extends AbstractIndexTestBase {
         assertThat(placeHolderValues, is(arrayContainingInAnyOrder("mike", "cat")));
     }
 
+    @Test
+    public void copesWithSingleLevelORedQuery() {
+        // query - { "$or" : [ { "name" : "mike" }, { "pet" : "cat" } ] }
+        Map<String, Object> nameMap = new HashMap<String, Object>();
+        nameMap.put("name", "mike");
+        Map<String, Object> petMap = new HashMap<String, Object>();
+        petMap.put("pet", "cat");
+        List<Object> fields = Arrays.<Object>asList(nameMap, petMap);
+        Map<String, Object> query = new LinkedHashMap<String, Object>();
+        query.put("$or", fields);
+        query = QueryValidator.normaliseAndValidateQuery(query);
+
+        QueryNode node = QuerySqlTranslator.translateQuery(query, indexes, indexesCoverQuery);
+        assertThat(node, is(instanceOf(OrQueryNode.class)));
+        OrQueryNode orNode = (OrQueryNode) node;
+        assertThat(indexesCoverQuery[0], is(true));
+        assertThat(orNode.children.size(), is(1));
+        assertThat(orNode.children.get(0), is(instanceOf(SqlQueryNode.class)));
+        SqlQueryNode sqlNode = (SqlQueryNode) orNode.children.get(0);
+        String sql = sqlNode.sql.sqlWithPlaceHolders;
+        String[] placeHolderValues = sqlNode.sql.placeHolderValues;
+        String select = "SELECT _id FROM _t_cloudant_sync_query_index_basic";
+        String nameSelect = String.format("%s WHERE \"name\" = ?", select);
+        String petSelect = String.format("%s WHERE \"pet\" = ?", select);
+        assertThat(sql, is(String.format("%s UNION %s", nameSelect, petSelect)));
+        assertThat(placeHolderValues, is(arrayContaining("mike", "cat")));
+    }
+
+    @Test
+    public void copesWithORedQueryWhenOneFieldIsNotIndexed() {
+        // query - { "$or" : [ { "name" : "mike" }, { "town" : "bristol" } ] }
+        Map<String, Object> nameMap = new HashMap<String, Object>();
+        nameMap.put("name", "mike");
+        Map<String, Object> townMap = new HashMap<String, Object>();
+        townMap.put("town", "bristol");
+        List<Object> fields = Arrays.<Object>asList(nameMap, townMap);
+        Map<String, Object> query = new LinkedHashMap<String, Object>();
+        query.put("$or", fields);
+        query = QueryValidator.normaliseAndValidateQuery(query);
+
+        QueryNode node = QuerySqlTranslator.translateQuery(query, indexes, indexesCoverQuery);
+        assertThat(node, is(instanceOf(AndQueryNode.class)));
+        AndQueryNode andNode = (AndQueryNode) node;
+        assertThat(indexesCoverQuery[0], is(false));
+        assertThat(andNode.children.size(), is(1));
+        assertThat(andNode.children.get(0), is(instanceOf(SqlQueryNode.class)));
+        SqlQueryNode sqlNode = (SqlQueryNode) andNode.children.get(0);
+        String sql = sqlNode.sql.sqlWithPlaceHolders;
+        assertThat(sql, is("SELECT _id FROM _t_cloudant_sync_query_index_basic"));
+        assertThat(sqlNode.sql.placeHolderValues, is(emptyArray()));
+    }
+
+    @Test
+    public void copesWithORedQueryNestedInANDedQuery() {
+        // query - { "$and" : [ { "name" : "mike" },
+        //                      { "$or" : [ { "age" : 12 }, { "pet" : "cat" } ] } ] }
+        Map<String, Object> ageMap = new HashMap<String, Object>();
+        ageMap.put("age", 12);
+        Map<String, Object> petMap = new HashMap<String, Object>();
+        petMap.put("pet", "cat");
+        Map<String, Object> orMap = new HashMap<String, Object>();
+        orMap.put("$or", Arrays.<Object>asList(ageMap, petMap));
+        Map<String, Object> nameMap = new HashMap<String, Object>();
+        nameMap.put("name", "mike");
+        Map<String, Object> query = new LinkedHashMap<String, Object>();
+        query.put("$and", Arrays.<Object>asList(nameMap, orMap));
+        query = QueryValidator.normaliseAndValidateQuery(query);
+
+        QueryNode node = QuerySqlTranslator.translateQuery(query, indexes, indexesCoverQuery);
+        assertThat(node, is(instanceOf(AndQueryNode.class)));
+        AndQueryNode andNode = (AndQueryNode) node;
+        assertThat(indexesCoverQuery[0], is(true));
+        assertThat(andNode.children.size(), is(2));
+        assertThat(andNode.children.get(0), is(instanceOf(SqlQueryNode.class)));
+        assertThat(andNode.children.get(1), is(instanceOf(OrQueryNode.class)));
+
+        SqlQueryNode sqlNode = (SqlQueryNode) andNode.children.get(0);
+        String select = "SELECT _id FROM _t_cloudant_sync_query_index_basic";
+        assertThat(sqlNode.sql.sqlWithPlaceHolders,
+                   is(String.format("%s WHERE \"name\" = ?", select)));
+        assertThat(sqlNode.sql.placeHolderValues, is(arrayContaining("mike")));
+
+        OrQueryNode orNode = (OrQueryNode) andNode.children.get(1);
+        assertThat(orNode.children.size(), is(1));
+        sqlNode = (SqlQueryNode) orNode.children.get(0);
+        String ageSelect = String.format("%s WHERE \"age\" = ?", select);
+        String petSelect = String.format("%s WHERE \"pet\" = ?", select);
+        assertThat(sqlNode.sql.sqlWithPlaceHolders,
+                   is(String.format("%s UNION %s", ageSelect, petSelect)));
+        assertThat(sqlNode.sql.placeHolderValues, is(arrayContaining("12", "cat")));
+    }
+
     // When selecting an index to use
 
+    // When intersecting queries
+
+    @Test
+    public void intersectsQueriesInOneStatement() {
+        SqlParts name = SqlParts.partsForSql("SELECT _id FROM a WHERE \"name\" = ?",
+                                             new String[]{ "mike" });
+        SqlParts pet = SqlParts.partsForSql("SELECT _id FROM b WHERE \"pet\" = ? UNION " +
+                                            "SELECT _id FROM c WHERE \"age\" = ?",
+                                            new String[]{ "cat", "12" });
+        SqlParts intersection = QuerySqlTranslator.intersectionSql(Arrays.asList(name, pet));
+        assertThat(intersection.sqlWithPlaceHolders,
+                   is("SELECT _id FROM ( SELECT _id FROM a WHERE \"name\" = ? ) INTERSECT " +
+                      "SELECT _id FROM ( SELECT _id FROM b WHERE \"pet\" = ? UNION " +
+                      "SELECT _id FROM c WHERE \"age\" = ? )"));
+        assertThat(intersection.placeHolderValues, arrayContaining("mike", "cat", "12"));
+    }
+
+    @Test
+    public void noIntersectionWhenTooManyPlaceholders() {
+        List<SqlParts> queries = new ArrayList<SqlParts>();
+        for (int i = 0; i < 2; i++) {
+            String[] values = new String[500];
+            Arrays.fill(values, "mike");
+            queries.add(SqlParts.partsForSql("SELECT _id FROM a WHERE \"name\" IN (?)", values));
+        }
+        assertThat(QuerySqlTranslator.intersectionSql(queries), is(nullValue()));
+    }
+
     @Test
     public void indexSelectionFailsWhenNoIndexes() {
         Map<String, Object> eq = new HashMap<String, Object>();
@@ -270,6 +390,40 @@ public class QuerySqlTranslatorTest extends AbstractIndexTestBase {
         assertThat(idx, either(is("named")).or(is("bopped")));
     }
 
+    @Test
+    public void selectsNarrowestIndexWhenSeveralMatch() {
+        Map<String, Object> indexes = new HashMap<String, Object>();
+
+        Map<String, Object> wide = new HashMap<String, Object>();
+        wide.put("name", "a_wide");
+        wide.put("type", "json");
+        wide.put("fields", Arrays.<Object>asList("_id", "_rev", "name", "age", "pet"));
+
+        Map<String, Object> narrow = new HashMap<String, Object>();
+        narrow.put("name", "narrow");
+        narrow.put("type", "json");
+        narrow.put("fields", Arrays.<Object>asList("_id", "_rev", "pet", "name"));
+
+        Map<String, Object> alsoNarrow = new HashMap<String, Object>();
+        alsoNarrow.put("name", "z_narrow");
+        alsoNarrow.put("type", "json");
+        alsoNarrow.put("fields", Arrays.<Object>asList("_id", "_rev", "name", "pet"));
+
+        indexes.put("a_wide", wide);
+        indexes.put("narrow", narrow);
+        indexes.put("z_narrow", alsoNarrow);
+
+        Map<String, Object> name = new HashMap<String, Object>();
+        name.put("name", "mike");
+        Map<String, Object> pet = new HashMap<String, Object>();
+        pet.put("pet", "cat");
+
+        // Ties are broken by name
+        String idx = QuerySqlTranslator.chooseIndexForAndClause(Arrays.<Object>asList(name, pet),
+                                                                indexes);
+        assertThat(idx, is("narrow"));
+    }
+
     @Test
     public void nullWhenNoSuitableIndexAvailable() {
         Map<String, Object> indexes = new HashMap<String, Object>();
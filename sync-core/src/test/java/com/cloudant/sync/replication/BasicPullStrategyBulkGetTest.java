@@ -0,0 +1,91 @@
+/**
+ * Copyright (c) 2015 Cloudant, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.replication;
+
+import com.cloudant.sync.datastore.BasicDocumentRevision;
+import com.cloudant.sync.datastore.DatastoreExtended;
+import com.cloudant.sync.datastore.DatastoreManager;
+import com.cloudant.sync.util.TestUtils;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class BasicPullStrategyBulkGetTest {
+
+    private String datastoreManagerPath;
+    private DatastoreExtended datastore;
+    private DatastoreWrapper datastoreWrapper;
+
+    @Before
+    public void setUp() {
+        datastoreManagerPath = TestUtils.createTempTestingDir(this.getClass().getName());
+        DatastoreManager datastoreManager = new DatastoreManager(this.datastoreManagerPath);
+        datastore = (DatastoreExtended) datastoreManager.openDatastore(getClass().getSimpleName());
+        datastoreWrapper = new DatastoreWrapper(datastore);
+    }
+
+    @After
+    public void tearDown() {
+        datastore.close();
+        TestUtils.deleteTempTestingDir(datastoreManagerPath);
+    }
+
+    private int pull(boolean bulkSupported, int pipelineDepth) throws Exception {
+        InMemoryCouchDB source = new InMemoryCouchDB(25, 3, 0);
+        source.bulkSupported = bulkSupported;
+        PullConfiguration config = new PullConfiguration(10,
+                PullConfiguration.DEFAULT_MAX_BATCH_COUNTER_PER_RUN,
+                4,
+                PullConfiguration.DEFAULT_PULL_ATTACHMENTS_INLINE,
+                PullConfiguration.DEFAULT_GROUP_COMMIT,
+                pipelineDepth);
+        BasicPullStrategy strategy = source.createPullStrategy(datastore, config);
+        TestStrategyListener listener = new TestStrategyListener();
+        strategy.getEventBus().register(listener);
+
+        strategy.run();
+
+        Assert.assertTrue(listener.finishCalled);
+        Assert.assertFalse(listener.errorCalled);
+        Assert.assertEquals(25, strategy.getDocumentCounter());
+        Assert.assertEquals(25, datastore.getDocumentCount());
+        Assert.assertEquals("25", datastoreWrapper.getCheckpoint(strategy.getReplicationId()));
+        BasicDocumentRevision doc = datastore.getDocument("doc-00000013");
+        Assert.assertEquals(3, datastore.getAllRevisionsOfDocument(doc.getId())
+                .getPath(doc.getSequence()).size());
+        return source.requestCount.get();
+    }
+
+    @Test
+    public void replicate_bulkNotSupported_oneRequestPerDocument() throws Exception {
+        // exists check, 3 _changes requests, 25 documents
+        Assert.assertEquals(1 + 3 + 25, pull(false, PullConfiguration.DEFAULT_PIPELINE_DEPTH));
+    }
+
+    @Test
+    public void replicate_bulkSupported_oneRequestPerInsertBatch() throws Exception {
+        // exists check, 3 _changes requests, windows of 4, 4, 2 documents
+        // for the first two batches and 4, 1 for the last
+        Assert.assertEquals(1 + 3 + 8, pull(true, PullConfiguration.DEFAULT_PIPELINE_DEPTH));
+    }
+
+    @Test
+    public void replicate_bulkSupportedPipelined_oneRequestPerInsertBatch() throws Exception {
+        Assert.assertEquals(1 + 3 + 8, pull(true, 2));
+    }
+}
@@ -0,0 +1,229 @@
+/**
+ * Copyright (c) 2015 Cloudant, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.replication;
+
+import com.cloudant.mazha.ChangesFeedParser;
+import com.cloudant.sync.datastore.DatastoreExtended;
+import com.cloudant.sync.datastore.DatastoreManager;
+import com.cloudant.sync.util.TestUtils;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.URI;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class BasicPullStrategyContinuousTest {
+
+    private static final long WAIT_TIMEOUT = 10000;
+
+    private String datastoreManagerPath;
+    private DatastoreExtended datastore;
+    private DatastoreWrapper datastoreWrapper;
+
+    @Before
+    public void setUp() {
+        datastoreManagerPath = TestUtils.createTempTestingDir(this.getClass().getName());
+        DatastoreManager datastoreManager = new DatastoreManager(this.datastoreManagerPath);
+        datastore = (DatastoreExtended) datastoreManager.openDatastore(getClass().getSimpleName());
+        datastoreWrapper = new DatastoreWrapper(datastore);
+    }
+
+    @After
+    public void tearDown() {
+        datastore.close();
+        TestUtils.deleteTempTestingDir(datastoreManagerPath);
+    }
+
+    private BasicPullStrategy createStrategy(InMemoryCouchDB source, int checkpointChangeInterval,
+                                             int checkpointTimeInterval) throws Exception {
+        PullConfiguration config = new PullConfiguration(10,
+                PullConfiguration.DEFAULT_MAX_BATCH_COUNTER_PER_RUN,
+                4,
+                PullConfiguration.DEFAULT_PULL_ATTACHMENTS_INLINE,
+                PullConfiguration.DEFAULT_GROUP_COMMIT,
+                PullConfiguration.DEFAULT_PIPELINE_DEPTH,
+                true,
+                checkpointChangeInterval,
+                checkpointTimeInterval);
+        return source.createPullStrategy(datastore, config);
+    }
+
+    private Thread start(BasicPullStrategy strategy) {
+        Thread thread = new Thread(strategy);
+        thread.start();
+        return thread;
+    }
+
+    private void waitForDocumentCount(BasicPullStrategy strategy, int count) throws Exception {
+        long end = System.currentTimeMillis() + WAIT_TIMEOUT;
+        while (strategy.getDocumentCounter() < count && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(count, strategy.getDocumentCounter());
+    }
+
+    private void waitForCheckpoint(BasicPullStrategy strategy, String sequence) throws Exception {
+        long end = System.currentTimeMillis() + WAIT_TIMEOUT;
+        while (!sequence.equals(datastoreWrapper.getCheckpoint(strategy.getReplicationId()))
+                && System.currentTimeMillis() < end) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(sequence, datastoreWrapper.getCheckpoint(strategy.getReplicationId()));
+    }
+
+    @Test
+    public void replicate_continuous_newChangesAppliedUntilCancelled() throws Exception {
+        InMemoryCouchDB source = new InMemoryCouchDB(25, 2, 0);
+        BasicPullStrategy strategy = createStrategy(source,
+                PullConfiguration.DEFAULT_CHECKPOINT_CHANGE_INTERVAL,
+                PullConfiguration.DEFAULT_CHECKPOINT_TIME_INTERVAL);
+        TestStrategyListener listener = new TestStrategyListener();
+        strategy.getEventBus().register(listener);
+
+        Thread thread = start(strategy);
+        waitForDocumentCount(strategy, 25);
+        Assert.assertFalse(strategy.isReplicationTerminated());
+
+        source.addDocuments(7, 2);
+        waitForDocumentCount(strategy, 32);
+        Assert.assertTrue(source.longpollCount.get() > 0);
+
+        strategy.setCancel();
+        thread.join(WAIT_TIMEOUT);
+
+        Assert.assertTrue(strategy.isReplicationTerminated());
+        Assert.assertTrue(listener.finishCalled);
+        Assert.assertFalse(listener.errorCalled);
+        Assert.assertEquals(32, datastore.getDocumentCount());
+        // the changes since the last checkpoint are checkpointed on stopping
+        Assert.assertEquals("32", datastoreWrapper.getCheckpoint(strategy.getReplicationId()));
+    }
+
+    @Test
+    public void replicate_continuous_checkpointEveryNChanges() throws Exception {
+        InMemoryCouchDB source = new InMemoryCouchDB(25, 1, 0);
+        // batches of 10, 10 and 5 changes
+        BasicPullStrategy strategy = createStrategy(source, 10, 3600);
+
+        Thread thread = start(strategy);
+        waitForDocumentCount(strategy, 25);
+        // wait for a few longpoll requests to make sure no more checkpoints
+        // are written while idle
+        int longpolls = source.longpollCount.get();
+        while (source.longpollCount.get() < longpolls + 3) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals("20", datastoreWrapper.getCheckpoint(strategy.getReplicationId()));
+
+        source.addDocuments(5, 1);
+        waitForCheckpoint(strategy, "30");
+
+        strategy.setCancel();
+        thread.join(WAIT_TIMEOUT);
+        Assert.assertEquals("30", datastoreWrapper.getCheckpoint(strategy.getReplicationId()));
+    }
+
+    @Test
+    public void replicate_continuous_checkpointAfterTSeconds() throws Exception {
+        InMemoryCouchDB source = new InMemoryCouchDB(25, 1, 0);
+        BasicPullStrategy strategy = createStrategy(source, 1000, 1);
+
+        Thread thread = start(strategy);
+        waitForDocumentCount(strategy, 25);
+        // idle longpoll requests return every 100ms, so the checkpoint is
+        // written within a second or so of the last one
+        waitForCheckpoint(strategy, "25");
+
+        strategy.setCancel();
+        thread.join(WAIT_TIMEOUT);
+        Assert.assertTrue(strategy.isReplicationTerminated());
+    }
+
+    @Test
+    public void pullReplication_continuousSet_replicatesUntilCancelled() throws Exception {
+        InMemoryCouchDB source = new InMemoryCouchDB(25, 1, 0);
+        PullReplication pull = new PullReplication();
+        pull.source = new URI(source.getIdentifier());
+        pull.target = datastore;
+        pull.continuous = true;
+        pull.checkpointChangeInterval = 5;
+        pull.validate();
+        PullConfiguration config = pull.createPullConfiguration();
+        Assert.assertTrue(config.continuous);
+        Assert.assertEquals(5, config.checkpointChangeInterval);
+        Assert.assertEquals(PullConfiguration.DEFAULT_CHECKPOINT_TIME_INTERVAL,
+                config.checkpointTimeInterval);
+
+        BasicPullStrategy strategy = source.createPullStrategy(datastore, config);
+        Thread thread = start(strategy);
+        waitForDocumentCount(strategy, 25);
+        source.addDocuments(3, 1);
+        waitForDocumentCount(strategy, 28);
+        Assert.assertFalse(strategy.isReplicationTerminated());
+
+        strategy.setCancel();
+        thread.join(WAIT_TIMEOUT);
+        Assert.assertTrue(strategy.isReplicationTerminated());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void pullReplication_zeroCheckpointChangeInterval_invalid() throws Exception {
+        PullReplication pull = new PullReplication();
+        pull.source = new URI("http://in-memory.example.com/db");
+        pull.target = datastore;
+        pull.continuous = true;
+        pull.checkpointChangeInterval = 0;
+        pull.validate();
+    }
+
+    @Test
+    public void replicate_continuous_failedLongpollRetried() throws Exception {
+        final AtomicInteger failures = new AtomicInteger(2);
+        InMemoryCouchDB source = new InMemoryCouchDB(25, 1, 0) {
+            @Override
+            public String longpollChanges(Replication.Filter filter, String lastSequence,
+                                          int limit, int heartbeat, int timeout,
+                                          ChangesFeedParser.RowListener listener) {
+                if (failures.getAndDecrement() > 0) {
+                    throw new RuntimeException("Simulated network error");
+                }
+                return super.longpollChanges(filter, lastSequence, limit, heartbeat, timeout,
+                        listener);
+            }
+        };
+        BasicPullStrategy strategy = createStrategy(source,
+                PullConfiguration.DEFAULT_CHECKPOINT_CHANGE_INTERVAL,
+                PullConfiguration.DEFAULT_CHECKPOINT_TIME_INTERVAL);
+        TestStrategyListener listener = new TestStrategyListener();
+        strategy.getEventBus().register(listener);
+
+        Thread thread = start(strategy);
+        waitForDocumentCount(strategy, 25);
+        source.addDocuments(5, 1);
+        // the first two longpoll requests fail, and are retried after 1s
+        // and 2s
+        waitForDocumentCount(strategy, 30);
+        Assert.assertFalse(strategy.isReplicationTerminated());
+
+        strategy.setCancel();
+        thread.join(WAIT_TIMEOUT);
+        Assert.assertTrue(listener.finishCalled);
+        Assert.assertFalse(listener.errorCalled);
+        Assert.assertEquals(30, datastore.getDocumentCount());
+    }
+}
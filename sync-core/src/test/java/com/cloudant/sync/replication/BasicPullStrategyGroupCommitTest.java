@@ -0,0 +1,122 @@
+/**
+ * Copyright (c) 2015 Cloudant, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.replication;
+
+import com.cloudant.sync.datastore.BasicDocumentRevision;
+import com.cloudant.sync.datastore.DatastoreExtended;
+import com.cloudant.sync.datastore.DatastoreManager;
+import com.cloudant.sync.util.TestUtils;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+
+public class BasicPullStrategyGroupCommitTest {
+
+    private String datastoreManagerPath;
+    private DatastoreExtended datastore;
+    private DatastoreWrapper datastoreWrapper;
+
+    @Before
+    public void setUp() {
+        datastoreManagerPath = TestUtils.createTempTestingDir(this.getClass().getName());
+        DatastoreManager datastoreManager = new DatastoreManager(this.datastoreManagerPath);
+        datastore = (DatastoreExtended) datastoreManager.openDatastore(getClass().getSimpleName());
+        datastoreWrapper = new DatastoreWrapper(datastore);
+    }
+
+    @After
+    public void tearDown() {
+        datastore.close();
+        TestUtils.deleteTempTestingDir(datastoreManagerPath);
+    }
+
+    private PullConfiguration groupCommitConfig(int changeLimitPerBatch, int insertBatchSize) {
+        return groupCommitConfig(changeLimitPerBatch, insertBatchSize,
+                PullConfiguration.DEFAULT_PULL_ATTACHMENTS_INLINE);
+    }
+
+    private PullConfiguration groupCommitConfig(int changeLimitPerBatch, int insertBatchSize,
+                                                boolean pullAttachmentsInline) {
+        return new PullConfiguration(changeLimitPerBatch,
+                PullConfiguration.DEFAULT_MAX_BATCH_COUNTER_PER_RUN,
+                insertBatchSize,
+                pullAttachmentsInline,
+                true,
+                PullConfiguration.DEFAULT_PIPELINE_DEPTH);
+    }
+
+    @Test
+    public void replicate_groupCommit_allDocumentsAndCheckpointWritten() throws Exception {
+        InMemoryCouchDB source = new InMemoryCouchDB(25, 3, 0);
+        BasicPullStrategy strategy = source.createPullStrategy(datastore, groupCommitConfig(10, 4));
+        TestStrategyListener listener = new TestStrategyListener();
+        strategy.getEventBus().register(listener);
+
+        strategy.run();
+
+        Assert.assertTrue(listener.finishCalled);
+        Assert.assertFalse(listener.errorCalled);
+        Assert.assertEquals(25, strategy.getDocumentCounter());
+        Assert.assertEquals(25, datastore.getDocumentCount());
+        Assert.assertEquals("25", datastoreWrapper.getCheckpoint(strategy.getReplicationId()));
+        BasicDocumentRevision doc = datastore.getDocument("doc-00000007");
+        Assert.assertEquals(3, datastore.getAllRevisionsOfDocument(doc.getId())
+                .getPath(doc.getSequence()).size());
+    }
+
+    @Test
+    public void replicate_groupCommitTwice_secondRunInsertsNothing() throws Exception {
+        InMemoryCouchDB source = new InMemoryCouchDB(12, 1, 0);
+
+        BasicPullStrategy first = source.createPullStrategy(datastore, groupCommitConfig(5, 3));
+        first.run();
+        Assert.assertEquals(12, first.getDocumentCounter());
+
+        BasicPullStrategy second = source.createPullStrategy(datastore, groupCommitConfig(5, 3));
+        second.run();
+        Assert.assertEquals(0, second.getDocumentCounter());
+        Assert.assertEquals(12, datastore.getDocumentCount());
+        Assert.assertEquals("12", datastoreWrapper.getCheckpoint(second.getReplicationId()));
+    }
+
+    @Test
+    public void replicate_groupCommitMalformedInlineAttachment_nothingInserted()
+            throws Exception {
+        InMemoryCouchDB source = new InMemoryCouchDB(12, 1, 0);
+        // An inline attachment without its data can't be added
+        Map<String, Object> attachment = new HashMap<String, Object>();
+        attachment.put("content_type", "text/plain");
+        Map<String, Object> attachments = new HashMap<String, Object>();
+        attachments.put("att1", attachment);
+        source.setAttachments("doc-00000001", attachments);
+
+        // The first of three windows fails, so the later ones would move the checkpoint
+        // past it if they were inserted
+        BasicPullStrategy strategy = source.createPullStrategy(datastore,
+                groupCommitConfig(12, 4, true));
+        strategy.run();
+
+        Assert.assertTrue(strategy.isCancelled());
+        Assert.assertEquals(0, strategy.getDocumentCounter());
+        Assert.assertEquals(0, datastore.getDocumentCount());
+        Assert.assertNull(datastoreWrapper.getCheckpoint(strategy.getReplicationId()));
+    }
+}
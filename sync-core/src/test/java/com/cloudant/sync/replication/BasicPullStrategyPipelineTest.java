@@ -0,0 +1,155 @@
+/**
+ * Copyright (c) 2015 Cloudant, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.replication;
+
+import com.cloudant.mazha.DocumentRevs;
+import com.cloudant.sync.datastore.BasicDocumentRevision;
+import com.cloudant.sync.datastore.DatastoreExtended;
+import com.cloudant.sync.datastore.DatastoreManager;
+import com.cloudant.sync.util.TestUtils;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.URI;
+import java.util.Collection;
+import java.util.List;
+
+public class BasicPullStrategyPipelineTest {
+
+    private String datastoreManagerPath;
+    private DatastoreExtended datastore;
+    private DatastoreWrapper datastoreWrapper;
+
+    @Before
+    public void setUp() {
+        datastoreManagerPath = TestUtils.createTempTestingDir(this.getClass().getName());
+        DatastoreManager datastoreManager = new DatastoreManager(this.datastoreManagerPath);
+        datastore = (DatastoreExtended) datastoreManager.openDatastore(getClass().getSimpleName());
+        datastoreWrapper = new DatastoreWrapper(datastore);
+    }
+
+    @After
+    public void tearDown() {
+        datastore.close();
+        TestUtils.deleteTempTestingDir(datastoreManagerPath);
+    }
+
+    private PullConfiguration pipelineConfig(int changeLimitPerBatch, int insertBatchSize,
+                                             boolean groupCommit) {
+        return new PullConfiguration(changeLimitPerBatch,
+                PullConfiguration.DEFAULT_MAX_BATCH_COUNTER_PER_RUN,
+                insertBatchSize,
+                PullConfiguration.DEFAULT_PULL_ATTACHMENTS_INLINE,
+                groupCommit,
+                2);
+    }
+
+    private void assertAllDocumentsPulled(boolean groupCommit) throws Exception {
+        InMemoryCouchDB source = new InMemoryCouchDB(37, 2, 0);
+        BasicPullStrategy strategy = source.createPullStrategy(datastore, pipelineConfig(10, 4, groupCommit));
+        TestStrategyListener listener = new TestStrategyListener();
+        strategy.getEventBus().register(listener);
+
+        strategy.run();
+
+        Assert.assertTrue(listener.finishCalled);
+        Assert.assertFalse(listener.errorCalled);
+        Assert.assertEquals(37, strategy.getDocumentCounter());
+        Assert.assertEquals(37, datastore.getDocumentCount());
+        Assert.assertEquals("37", datastoreWrapper.getCheckpoint(strategy.getReplicationId()));
+        BasicDocumentRevision doc = datastore.getDocument("doc-00000036");
+        Assert.assertEquals(2, datastore.getAllRevisionsOfDocument(doc.getId())
+                .getPath(doc.getSequence()).size());
+    }
+
+    @Test
+    public void replicate_pipelined_allDocumentsAndCheckpointWritten() throws Exception {
+        assertAllDocumentsPulled(false);
+    }
+
+    @Test
+    public void replicate_pipelinedGroupCommit_allDocumentsAndCheckpointWritten() throws Exception {
+        assertAllDocumentsPulled(true);
+    }
+
+    @Test
+    public void replicate_pipelinedTwice_secondRunInsertsNothing() throws Exception {
+        InMemoryCouchDB source = new InMemoryCouchDB(12, 1, 0);
+
+        BasicPullStrategy first = source.createPullStrategy(datastore, pipelineConfig(5, 3, true));
+        first.run();
+        Assert.assertEquals(12, first.getDocumentCounter());
+
+        BasicPullStrategy second = source.createPullStrategy(datastore, pipelineConfig(5, 3, true));
+        second.run();
+        Assert.assertEquals(0, second.getDocumentCounter());
+        Assert.assertEquals(12, datastore.getDocumentCount());
+        Assert.assertEquals("12", datastoreWrapper.getCheckpoint(second.getReplicationId()));
+    }
+
+    @Test
+    public void replicate_fetchFailsMidway_errorReportedAndCheckpointNotPastFailure()
+            throws Exception {
+        InMemoryCouchDB source = new InMemoryCouchDB(30, 1, 0) {
+            @Override
+            public List<DocumentRevs> getRevisions(String documentId,
+                                                   Collection<String> revisionIds,
+                                                   Collection<String> attsSince,
+                                                   boolean pullAttachmentsInline) {
+                if (documentId.equals("doc-00000017")) {
+                    throw new RuntimeException("Simulated network error");
+                }
+                return super.getRevisions(documentId, revisionIds, attsSince,
+                        pullAttachmentsInline);
+            }
+        };
+        BasicPullStrategy strategy = source.createPullStrategy(datastore, pipelineConfig(10, 5, true));
+        TestStrategyListener listener = new TestStrategyListener();
+        strategy.getEventBus().register(listener);
+
+        strategy.run();
+
+        Assert.assertTrue(listener.errorCalled);
+        Assert.assertFalse(listener.finishCalled);
+        // Only the first batch of changes can have been checkpointed
+        Assert.assertEquals("10", datastoreWrapper.getCheckpoint(strategy.getReplicationId()));
+        Assert.assertNull(datastore.getDocument("doc-00000017"));
+    }
+
+    @Test
+    public void pullReplication_pipelineDepthSet_usedByStrategy() throws Exception {
+        PullReplication pull = new PullReplication();
+        pull.source = new URI("http://in-memory.example.com/db");
+        pull.target = datastore;
+        Assert.assertEquals(PullConfiguration.DEFAULT_PIPELINE_DEPTH,
+                pull.createPullConfiguration().pipelineDepth);
+
+        pull.pipelineDepth = 3;
+        pull.validate();
+        Assert.assertEquals(3, pull.createPullConfiguration().pipelineDepth);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void pullReplication_negativePipelineDepth_invalid() throws Exception {
+        PullReplication pull = new PullReplication();
+        pull.source = new URI("http://in-memory.example.com/db");
+        pull.target = datastore;
+        pull.pipelineDepth = -1;
+        pull.validate();
+    }
+}
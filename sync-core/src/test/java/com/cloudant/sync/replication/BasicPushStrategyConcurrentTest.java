@@ -0,0 +1,243 @@
+/**
+ * Copyright (c) 2015 Cloudant, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.replication;
+
+import com.cloudant.mazha.Response;
+import com.cloudant.sync.datastore.DatastoreExtended;
+import com.cloudant.sync.datastore.DatastoreManager;
+import com.cloudant.sync.datastore.DocumentBodyFactory;
+import com.cloudant.sync.datastore.MultipartAttachmentWriter;
+import com.cloudant.sync.datastore.MutableDocumentRevision;
+import com.cloudant.sync.util.JSONUtils;
+import com.cloudant.sync.util.TestUtils;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.URI;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class BasicPushStrategyConcurrentTest {
+
+    private String datastoreManagerPath;
+    private DatastoreExtended datastore;
+
+    /**
+     * Stands in for the remote database, recording the revisions uploaded
+     * and how many uploads were in flight at once.
+     */
+    private static class RecordingCouchDB extends InMemoryCouchDB {
+
+        final Set<String> uploaded = Collections.synchronizedSet(new HashSet<String>());
+        final Map<String, String> checkpoints =
+                Collections.synchronizedMap(new HashMap<String, String>());
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        String failOnDocumentId;
+
+        RecordingCouchDB() {
+            super(0, 1, 0);
+        }
+
+        @Override
+        public String getCheckpoint(String checkpointId) {
+            return checkpoints.get(checkpointId);
+        }
+
+        @Override
+        public void putCheckpoint(String checkpointId, String sequence) {
+            checkpoints.put(checkpointId, sequence);
+        }
+
+        @Override
+        public Map<String, Set<String>> revsDiff(Map<String, Set<String>> revisions) {
+            Map<String, Set<String>> missing = new HashMap<String, Set<String>>();
+            for (Map.Entry<String, Set<String>> e : revisions.entrySet()) {
+                for (String rev : e.getValue()) {
+                    if (!uploaded.contains(e.getKey() + " " + rev)) {
+                        if (!missing.containsKey(e.getKey())) {
+                            missing.put(e.getKey(), new HashSet<String>());
+                        }
+                        missing.get(e.getKey()).add(rev);
+                    }
+                }
+            }
+            return missing;
+        }
+
+        @Override
+        public List<Response> putMultiparts(List<MultipartAttachmentWriter> multiparts) {
+            Assert.assertTrue(multiparts.isEmpty());
+            return Collections.emptyList();
+        }
+
+        @Override
+        public void bulkSerializedDocs(List<String> serializedDocs) {
+            int n = inFlight.incrementAndGet();
+            while (true) {
+                int max = maxInFlight.get();
+                if (n <= max || maxInFlight.compareAndSet(max, n)) {
+                    break;
+                }
+            }
+            try {
+                Thread.sleep(20);
+                for (String doc : serializedDocs) {
+                    Map<String, Object> map = JSONUtils.deserialize(doc.getBytes());
+                    if (map.get("_id").equals(failOnDocumentId)) {
+                        throw new RuntimeException("Simulated network error");
+                    }
+                }
+                for (String doc : serializedDocs) {
+                    Map<String, Object> map = JSONUtils.deserialize(doc.getBytes());
+                    uploaded.add(map.get("_id") + " " + map.get("_rev"));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                inFlight.decrementAndGet();
+            }
+        }
+    }
+
+    @Before
+    public void setUp() {
+        datastoreManagerPath = TestUtils.createTempTestingDir(this.getClass().getName());
+        DatastoreManager datastoreManager = new DatastoreManager(this.datastoreManagerPath);
+        datastore = (DatastoreExtended) datastoreManager.openDatastore(getClass().getSimpleName());
+    }
+
+    @After
+    public void tearDown() {
+        datastore.close();
+        TestUtils.deleteTempTestingDir(datastoreManagerPath);
+    }
+
+    private void createDocuments(int count) throws Exception {
+        for (int i = 0; i < count; i++) {
+            Map<String, Object> body = new HashMap<String, Object>();
+            body.put("count", i);
+            MutableDocumentRevision rev = new MutableDocumentRevision();
+            rev.docId = String.format("doc-%04d", i);
+            rev.body = DocumentBodyFactory.create(body);
+            datastore.createDocumentFromRevision(rev);
+        }
+    }
+
+    private BasicPushStrategy createStrategy(CouchDB target, int changeLimitPerBatch,
+                                             int insertBatchSize) throws Exception {
+        PushReplication push = new PushReplication();
+        push.source = datastore;
+        push.target = new URI("http://in-memory.example.com/db");
+        BasicPushStrategy strategy = new BasicPushStrategy(push, new PushConfiguration(
+                changeLimitPerBatch, PushConfiguration.DEFAULT_MAX_BATCH_COUNTER_PER_RUN,
+                insertBatchSize, PushConfiguration.DEFAULT_PUSH_ATTACHMENTS_INLINE, 3));
+        strategy.targetDb = target;
+        return strategy;
+    }
+
+    @Test
+    public void replicate_concurrentUploads_allDocumentsAndCheckpointWritten() throws Exception {
+        createDocuments(95);
+        RecordingCouchDB target = new RecordingCouchDB();
+        BasicPushStrategy strategy = createStrategy(target, 20, 5);
+        TestStrategyListener listener = new TestStrategyListener();
+        strategy.getEventBus().register(listener);
+
+        strategy.run();
+
+        Assert.assertTrue(listener.finishCalled);
+        Assert.assertFalse(listener.errorCalled);
+        Assert.assertEquals(95, strategy.getDocumentCounter());
+        Assert.assertEquals(95, target.uploaded.size());
+        Assert.assertEquals("95", target.getCheckpoint(strategy.getReplicationId()));
+        Assert.assertTrue(target.maxInFlight.get() > 1);
+        Assert.assertTrue(target.maxInFlight.get() <= 3);
+    }
+
+    @Test
+    public void replicate_concurrentUploadsTwice_secondRunUploadsNothing() throws Exception {
+        createDocuments(12);
+        RecordingCouchDB target = new RecordingCouchDB();
+
+        BasicPushStrategy first = createStrategy(target, 5, 2);
+        first.run();
+        Assert.assertEquals(12, first.getDocumentCounter());
+
+        BasicPushStrategy second = createStrategy(target, 5, 2);
+        second.run();
+        Assert.assertEquals(0, second.getDocumentCounter());
+        Assert.assertEquals(12, target.uploaded.size());
+        Assert.assertEquals("12", target.getCheckpoint(second.getReplicationId()));
+    }
+
+    @Test
+    public void replicate_uploadFails_errorReportedAndCheckpointNotPastFailure()
+            throws Exception {
+        createDocuments(60);
+        RecordingCouchDB target = new RecordingCouchDB();
+        target.failOnDocumentId = "doc-0047";
+        BasicPushStrategy strategy = createStrategy(target, 10, 5);
+        TestStrategyListener listener = new TestStrategyListener();
+        strategy.getEventBus().register(listener);
+
+        strategy.run();
+
+        Assert.assertTrue(listener.errorCalled);
+        Assert.assertFalse(listener.finishCalled);
+        // Every batch before the failed one has been uploaded and checkpointed
+        Assert.assertEquals("40", target.getCheckpoint(strategy.getReplicationId()));
+        Assert.assertFalse(target.uploaded.contains("doc-0047 " +
+                datastore.getDocument("doc-0047").getRevision()));
+    }
+
+    @Test
+    public void pushReplication_concurrentUploadsSet_allDocumentsUploaded() throws Exception {
+        createDocuments(30);
+        PushReplication push = new PushReplication();
+        push.source = datastore;
+        push.target = new URI("http://in-memory.example.com/db");
+        push.concurrentUploads = 2;
+        push.validate();
+        PushConfiguration config = push.createPushConfiguration();
+        Assert.assertEquals(2, config.concurrentUploads);
+
+        RecordingCouchDB target = new RecordingCouchDB();
+        BasicPushStrategy strategy = new BasicPushStrategy(push, config);
+        strategy.targetDb = target;
+        strategy.run();
+
+        Assert.assertEquals(30, strategy.getDocumentCounter());
+        Assert.assertEquals(30, target.uploaded.size());
+        Assert.assertEquals("30", target.getCheckpoint(strategy.getReplicationId()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void pushReplication_negativeConcurrentUploads_invalid() throws Exception {
+        PushReplication push = new PushReplication();
+        push.source = datastore;
+        push.target = new URI("http://in-memory.example.com/db");
+        push.concurrentUploads = -1;
+        push.validate();
+    }
+}
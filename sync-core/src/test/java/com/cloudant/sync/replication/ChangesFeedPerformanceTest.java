@@ -0,0 +1,108 @@
+/**
+ * Copyright (c) 2015 Cloudant, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.replication;
+
+import com.cloudant.common.PerformanceTest;
+import com.cloudant.mazha.ChangesFeedParser;
+import com.cloudant.mazha.ChangesResult;
+import com.cloudant.mazha.json.JSONHelper;
+import com.cloudant.sync.util.TestUtils;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Compares the heap allocated reading a changes feed into a
+ * {@link ChangesResult} with reading it using the streaming
+ * {@link ChangesFeedParser}.
+ */
+@Category(PerformanceTest.class)
+public class ChangesFeedPerformanceTest {
+
+    private static final int ITERATIONS = 20;
+
+    private byte[] feed;
+
+    @Before
+    public void setUp() throws Exception {
+        feed = FileUtils.readFileToByteArray(TestUtils.loadFixture("fixture/10K_changes_feeds.json"));
+    }
+
+    /**
+     * Reads the changes feed in one of the two ways, as the pull replicator
+     * does, and returns the number of open revisions.
+     */
+    private interface Reader {
+        int read() throws Exception;
+    }
+
+    @Test
+    public void test_allocation() throws Exception {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+
+        final JSONHelper jsonHelper = new JSONHelper();
+        final ChangesFeedParser parser = new ChangesFeedParser();
+
+        Reader databind = new Reader() {
+            @Override
+            public int read() throws Exception {
+                ChangesResult result = jsonHelper.fromJson(
+                        new InputStreamReader(new ByteArrayInputStream(feed)), ChangesResult.class);
+                ChangesResultWrapper changes = new ChangesResultWrapper(result);
+                return changes.openRevisions(0, changes.size()).size();
+            }
+        };
+        Reader streaming = new Reader() {
+            @Override
+            public int read() throws Exception {
+                ChangesResultWrapper.Builder builder = new ChangesResultWrapper.Builder();
+                String lastSeq = parser.parse(new ByteArrayInputStream(feed), builder);
+                ChangesResultWrapper changes = builder.build(lastSeq);
+                return changes.openRevisions(0, changes.size()).size();
+            }
+        };
+
+        Assert.assertEquals(databind.read(), streaming.read());
+
+        System.out.println(String.format("ChangesResultWrapper: %d KB allocated per feed",
+                allocatedPerRead((com.sun.management.ThreadMXBean) threads, databind) / 1024));
+        System.out.println(String.format("ChangesFeedParser: %d KB allocated per feed",
+                allocatedPerRead((com.sun.management.ThreadMXBean) threads, streaming) / 1024));
+    }
+
+    private long allocatedPerRead(com.sun.management.ThreadMXBean threads, Reader reader)
+            throws Exception {
+        long threadId = Thread.currentThread().getId();
+        // warm up
+        for (int i = 0; i < ITERATIONS; i++) {
+            reader.read();
+        }
+        long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < ITERATIONS; i++) {
+            reader.read();
+        }
+        return (threads.getThreadAllocatedBytes(threadId) - before) / ITERATIONS;
+    }
+}
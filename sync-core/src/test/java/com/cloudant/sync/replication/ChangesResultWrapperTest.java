@@ -14,6 +14,7 @@
 
 package com.cloudant.sync.replication;
 
+import com.cloudant.mazha.ChangesFeedParser;
 import com.cloudant.mazha.ChangesResult;
 import com.cloudant.mazha.OpenRevision;
 import com.cloudant.sync.util.JSONUtils;
@@ -25,7 +26,9 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
@@ -87,6 +90,43 @@ public class ChangesResultWrapperTest {
         Assert.assertEquals(2, changes.size());
     }
 
+    @Test
+    public void builder_openRevisionsAndSize() throws IOException {
+        ChangesResultWrapper changes = buildFromFile(TestUtils.loadFixture("fixture/change_feed_1.json"));
+        Assert.assertEquals(2, changes.size());
+        Assert.assertEquals("35", changes.getLastSeq());
+
+        Multimap<String, String> openRevisions = changes.openRevisions(1, 2);
+        Assert.assertEquals(3, openRevisions.size());
+        Assert.assertThat(openRevisions.get("jerry@gmail.com"), hasItems(
+                "29-3f4dabfb32290e557ac1d16b2e8f069c",
+                "29-01fcbf8a3f1457eff21e18f7766d3b45",
+                "26-30722da17ad35cf1860f126dba391d67"));
+        Assert.assertEquals(4, changes.openRevisions(0, 2).size());
+    }
+
+    @Test
+    public void builder_tenK_changesRow() throws IOException {
+        ChangesResultWrapper changes = buildFromFile(TestUtils.loadFixture("fixture/10K_changes_feeds.json"));
+        Assert.assertEquals(10000, changes.size());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void builder_getResults_exception() throws IOException {
+        ChangesResultWrapper changes = buildFromFile(TestUtils.loadFixture("fixture/change_feed_1.json"));
+        changes.getResults();
+    }
+
+    private ChangesResultWrapper buildFromFile(File file) throws IOException {
+        ChangesResultWrapper.Builder builder = new ChangesResultWrapper.Builder();
+        InputStream in = new FileInputStream(file);
+        try {
+            return builder.build(new ChangesFeedParser().parse(in, builder));
+        } finally {
+            in.close();
+        }
+    }
+
     @Test
     public void tenK_changesRow() throws IOException {
         ChangesResult data = getChangeResultFromFile(TestUtils.loadFixture("fixture/10K_changes_feeds.json"));
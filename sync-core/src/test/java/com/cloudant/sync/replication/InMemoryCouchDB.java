@@ -0,0 +1,315 @@
+/**
+ * Copyright (c) 2015 Cloudant, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.replication;
+
+import com.cloudant.mazha.BulkGetRequest;
+import com.cloudant.mazha.ChangesFeedParser;
+import com.cloudant.mazha.ChangesResult;
+import com.cloudant.mazha.DocumentRevs;
+import com.cloudant.mazha.Response;
+import com.cloudant.sync.datastore.BasicDocumentRevision;
+import com.cloudant.sync.datastore.Datastore;
+import com.cloudant.sync.datastore.DocumentRevsList;
+import com.cloudant.sync.datastore.MultipartAttachmentWriter;
+import com.cloudant.sync.datastore.UnsavedStreamAttachment;
+import com.cloudant.sync.util.CouchUtils;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>A read-only stand-in for a remote database, serving a fixed set of
+ * generated documents. Used where a pull replication needs to be driven
+ * without a running CouchDB, for example in performance tests.</p>
+ *
+ * <p>Every document has a linear history of {@code revisionsPerDocument}
+ * revisions, and only the leaf revision has a body. An optional latency is
+ * added to every request to simulate a network round trip.</p>
+ */
+class InMemoryCouchDB implements CouchDB {
+
+    private final List<DocumentRevs> documents = new ArrayList<DocumentRevs>();
+    private final Map<String, DocumentRevs> documentsById = new HashMap<String, DocumentRevs>();
+    private final long latencyMillis;
+
+    final AtomicInteger requestCount = new AtomicInteger();
+
+    // Whether to serve revisions of many documents per request
+    boolean bulkSupported = false;
+
+    final AtomicInteger longpollCount = new AtomicInteger();
+
+    // The longest a longpoll request waits for changes, whatever timeout
+    // the client asks for
+    long longpollTimeoutMillis = 100;
+
+    InMemoryCouchDB(int documentCount, int revisionsPerDocument, long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+        addDocuments(documentCount, revisionsPerDocument);
+    }
+
+    /**
+     * Returns a strategy which pulls from this database into {@code target},
+     * without going over the network.
+     */
+    BasicPullStrategy createPullStrategy(Datastore target, PullConfiguration config)
+            throws URISyntaxException {
+        PullReplication pull = new PullReplication();
+        pull.source = new URI(getIdentifier());
+        pull.target = target;
+        BasicPullStrategy strategy = new BasicPullStrategy(pull, null, config);
+        strategy.sourceDb = this;
+        return strategy;
+    }
+
+    /**
+     * Adds new documents to the end of the changes feed, waking any waiting
+     * longpoll requests.
+     */
+    synchronized void addDocuments(int documentCount, int revisionsPerDocument) {
+        for (int i = 0; i < documentCount; i++) {
+            String id = String.format("doc-%08d", documents.size());
+            DocumentRevs revs = createDocumentRevs(id, revisionsPerDocument);
+            documents.add(revs);
+            documentsById.put(revs.getId(), revs);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Sets the inline attachments served with a document's revision.
+     */
+    synchronized void setAttachments(String documentId, Map<String, Object> attachments) {
+        documentsById.get(documentId).setAttachments(attachments);
+    }
+
+    private synchronized DocumentRevs getDocumentRevs(String documentId) {
+        return documentsById.get(documentId);
+    }
+
+    private static DocumentRevs createDocumentRevs(String id, int revisionsPerDocument) {
+        List<String> ids = new ArrayList<String>();
+        String revId = CouchUtils.getFirstRevisionId();
+        ids.add(CouchUtils.getRevisionIdSuffix(revId));
+        for (int generation = 2; generation <= revisionsPerDocument; generation++) {
+            revId = CouchUtils.generateNextRevisionId(revId);
+            ids.add(0, CouchUtils.getRevisionIdSuffix(revId));
+        }
+        DocumentRevs.Revisions revisions = new DocumentRevs.Revisions();
+        revisions.setStart(revisionsPerDocument);
+        revisions.setIds(ids);
+
+        DocumentRevs revs = new DocumentRevs();
+        revs.setId(id);
+        revs.setRev(revId);
+        revs.setRevisions(revisions);
+        revs.setOthers("name", "document " + id);
+        revs.setOthers("description", "A generated document used to drive a pull replication " +
+                "without a remote database.");
+        revs.setOthers("count", revisionsPerDocument);
+        return revs;
+    }
+
+    private void simulateRoundTrip() {
+        requestCount.incrementAndGet();
+        if (latencyMillis > 0) {
+            try {
+                Thread.sleep(latencyMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public String getIdentifier() {
+        return "http://in-memory.example.com/db";
+    }
+
+    @Override
+    public boolean exists() {
+        simulateRoundTrip();
+        return true;
+    }
+
+    @Override
+    public ChangesResult changes(String lastSequence, int limit) {
+        simulateRoundTrip();
+        return changesSince(lastSequence, limit);
+    }
+
+    private synchronized ChangesResult changesSince(String lastSequence, int limit) {
+        int since = lastSequence == null ? 0 : Integer.parseInt(lastSequence);
+        int end = Math.min(documents.size(), since + limit);
+
+        List<ChangesResult.Row> rows = new ArrayList<ChangesResult.Row>();
+        for (int i = since; i < end; i++) {
+            ChangesResult.Row.Rev rev = new ChangesResult.Row.Rev();
+            rev.setRev(documents.get(i).getRev());
+            ChangesResult.Row row = new ChangesResult.Row();
+            row.setId(documents.get(i).getId());
+            row.setSeq(Integer.toString(i + 1));
+            row.setChanges(Collections.singletonList(rev));
+            rows.add(row);
+        }
+
+        ChangesResult result = new ChangesResult();
+        result.setResults(rows);
+        result.setLastSeq(Integer.toString(Math.max(since, end)));
+        return result;
+    }
+
+    @Override
+    public ChangesResult changes(Replication.Filter filter, String lastSequence, int limit) {
+        if (filter != null) {
+            throw new UnsupportedOperationException("Filters are not supported");
+        }
+        return changes(lastSequence, limit);
+    }
+
+    @Override
+    public String changes(Replication.Filter filter, String lastSequence, int limit,
+                          ChangesFeedParser.RowListener listener) {
+        ChangesResult changes = changes(filter, lastSequence, limit);
+        for (ChangesResult.Row row : changes.getResults()) {
+            listener.onRow(row.getSeq(), row.getId(),
+                    Collections.singletonList(row.getChanges().get(0).getRev()), row.isDeleted());
+        }
+        return changes.getLastSeq();
+    }
+
+    @Override
+    public String longpollChanges(Replication.Filter filter, String lastSequence, int limit,
+                                  int heartbeat, int timeout,
+                                  ChangesFeedParser.RowListener listener) {
+        if (filter != null) {
+            throw new UnsupportedOperationException("Filters are not supported");
+        }
+        longpollCount.incrementAndGet();
+        int since = lastSequence == null ? 0 : Integer.parseInt(lastSequence);
+        synchronized (this) {
+            long end = System.currentTimeMillis() + Math.min(timeout, longpollTimeoutMillis);
+            long remaining;
+            while (documents.size() <= since && (remaining = end - System.currentTimeMillis()) > 0) {
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        return changes(filter, lastSequence, limit, listener);
+    }
+
+    @Override
+    public List<DocumentRevs> getRevisions(String documentId,
+                                           Collection<String> revisionIds,
+                                           Collection<String> attsSince,
+                                           boolean pullAttachmentsInline) {
+        simulateRoundTrip();
+        DocumentRevs revs = getDocumentRevs(documentId);
+        if (revs == null || !revisionIds.contains(revs.getRev())) {
+            throw new RuntimeException("Missing open revision for document:" + documentId);
+        }
+        return Collections.singletonList(revs);
+    }
+
+    @Override
+    public boolean isBulkSupported() {
+        return bulkSupported;
+    }
+
+    @Override
+    public List<DocumentRevsList> bulkGetRevisions(List<BulkGetRequest> requests,
+                                                   boolean pullAttachmentsInline) {
+        if (!bulkSupported) {
+            throw new UnsupportedOperationException();
+        }
+        simulateRoundTrip();
+        List<DocumentRevsList> results = new ArrayList<DocumentRevsList>();
+        for (BulkGetRequest request : requests) {
+            DocumentRevs revs = getDocumentRevs(request.getId());
+            if (revs == null || !request.getRevs().contains(revs.getRev())) {
+                throw new RuntimeException("Missing open revision for document:" + request.getId());
+            }
+            results.add(new DocumentRevsList(Collections.singletonList(revs)));
+        }
+        return results;
+    }
+
+    @Override
+    public Response create(Object object) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Response update(String id, Object object) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public <T> T get(Class<T> classType, String id) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Response delete(String id, String rev) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public String getCheckpoint(String checkpointId) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void putCheckpoint(String checkpointId, String sequence) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void bulk(List<BasicDocumentRevision> revisions) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void bulkSerializedDocs(List<String> serializedDocs) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public List<Response> putMultiparts(List<MultipartAttachmentWriter> multiparts) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Map<String, Set<String>> revsDiff(Map<String, Set<String>> revisions) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public UnsavedStreamAttachment getAttachmentStream(String id, String rev, String attachmentName, String contentType, String encoding) {
+        throw new UnsupportedOperationException();
+    }
+}
@@ -0,0 +1,213 @@
+/**
+ * Copyright (c) 2015 Cloudant, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.replication;
+
+import com.cloudant.common.PerformanceTest;
+import com.cloudant.sync.datastore.DatastoreExtended;
+import com.cloudant.sync.datastore.DatastoreManager;
+import com.cloudant.sync.datastore.DocumentBodyFactory;
+import com.cloudant.sync.datastore.MutableDocumentRevision;
+import com.cloudant.sync.sqlite.sqlite4java.SQLiteWrapper;
+import com.cloudant.sync.util.TestUtils;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.util.Collections;
+
+/**
+ * Measures pull replication throughput against an {@link InMemoryCouchDB},
+ * so only the local side of the replication is timed.
+ */
+@Category(PerformanceTest.class)
+public class PullStrategyPerformanceTest {
+
+    private static final int DOCUMENT_COUNT = 5000;
+
+    private String datastoreManagerPath;
+    private DatastoreManager datastoreManager;
+
+    @Before
+    public void setUp() {
+        datastoreManagerPath = TestUtils.createTempTestingDir(this.getClass().getName());
+        datastoreManager = new DatastoreManager(this.datastoreManagerPath);
+    }
+
+    @After
+    public void tearDown() {
+        TestUtils.deleteTempTestingDir(datastoreManagerPath);
+    }
+
+    @Test
+    public void test_groupCommit() throws Exception {
+        InMemoryCouchDB source = new InMemoryCouchDB(DOCUMENT_COUNT, 1, 0);
+
+        PullConfiguration perDocument = new PullConfiguration(
+                PullConfiguration.DEFAULT_CHANGES_LIMIT_PER_BATCH,
+                PullConfiguration.DEFAULT_MAX_BATCH_COUNTER_PER_RUN,
+                100,
+                PullConfiguration.DEFAULT_PULL_ATTACHMENTS_INLINE,
+                false,
+                PullConfiguration.DEFAULT_PIPELINE_DEPTH);
+        PullConfiguration groupCommit = new PullConfiguration(
+                PullConfiguration.DEFAULT_CHANGES_LIMIT_PER_BATCH,
+                PullConfiguration.DEFAULT_MAX_BATCH_COUNTER_PER_RUN,
+                100,
+                PullConfiguration.DEFAULT_PULL_ATTACHMENTS_INLINE,
+                true,
+                PullConfiguration.DEFAULT_PIPELINE_DEPTH);
+
+        System.out.println("Transaction per document: "
+                + pull("perDocument", source, perDocument) + " docs/sec");
+        System.out.println("Group commit: "
+                + pull("groupCommit", source, groupCommit) + " docs/sec");
+    }
+
+    @Test
+    public void test_pipeline() throws Exception {
+        // A few milliseconds per request, so there's network time for the
+        // pipeline to overlap with inserts
+        InMemoryCouchDB source = new InMemoryCouchDB(DOCUMENT_COUNT, 1, 2);
+
+        PullConfiguration sequential = new PullConfiguration(
+                PullConfiguration.DEFAULT_CHANGES_LIMIT_PER_BATCH,
+                PullConfiguration.DEFAULT_MAX_BATCH_COUNTER_PER_RUN,
+                100,
+                PullConfiguration.DEFAULT_PULL_ATTACHMENTS_INLINE,
+                true,
+                PullConfiguration.DEFAULT_PIPELINE_DEPTH);
+        PullConfiguration pipelined = new PullConfiguration(
+                PullConfiguration.DEFAULT_CHANGES_LIMIT_PER_BATCH,
+                PullConfiguration.DEFAULT_MAX_BATCH_COUNTER_PER_RUN,
+                100,
+                PullConfiguration.DEFAULT_PULL_ATTACHMENTS_INLINE,
+                true,
+                4);
+
+        System.out.println("Sequential: "
+                + pull("sequential", source, sequential) + " docs/sec");
+        System.out.println("Pipelined: "
+                + pull("pipelined", source, pipelined) + " docs/sec");
+    }
+
+    @Test
+    public void test_bulkGet() throws Exception {
+        InMemoryCouchDB perDocumentSource = new InMemoryCouchDB(DOCUMENT_COUNT, 1, 2);
+        InMemoryCouchDB bulkSource = new InMemoryCouchDB(DOCUMENT_COUNT, 1, 2);
+        bulkSource.bulkSupported = true;
+
+        PullConfiguration config = new PullConfiguration(
+                PullConfiguration.DEFAULT_CHANGES_LIMIT_PER_BATCH,
+                PullConfiguration.DEFAULT_MAX_BATCH_COUNTER_PER_RUN,
+                100,
+                PullConfiguration.DEFAULT_PULL_ATTACHMENTS_INLINE,
+                true,
+                PullConfiguration.DEFAULT_PIPELINE_DEPTH);
+
+        System.out.println("Request per document: "
+                + pull("perDocument", perDocumentSource, config) + " docs/sec, "
+                + perDocumentSource.requestCount + " requests");
+        System.out.println("Bulk get: "
+                + pull("bulkGet", bulkSource, config) + " docs/sec, "
+                + bulkSource.requestCount + " requests");
+    }
+
+    @Test
+    public void test_readsDuringPull() throws Exception {
+        InMemoryCouchDB source = new InMemoryCouchDB(DOCUMENT_COUNT, 1, 0);
+
+        // Large transactions, to make readers wait as long as they would
+        PullConfiguration config = new PullConfiguration(
+                PullConfiguration.DEFAULT_CHANGES_LIMIT_PER_BATCH,
+                PullConfiguration.DEFAULT_MAX_BATCH_COUNTER_PER_RUN,
+                500,
+                PullConfiguration.DEFAULT_PULL_ATTACHMENTS_INLINE,
+                true,
+                PullConfiguration.DEFAULT_PIPELINE_DEPTH);
+
+        System.out.println("Rollback journal: " + readDuringPull("rollback", source, config, false));
+        System.out.println("WAL: " + readDuringPull("wal", source, config, true));
+    }
+
+    /**
+     * Reads a local document in a loop on this thread, while pulling every
+     * document in {@code source} into a new datastore on another.
+     *
+     * @return read latency statistics
+     */
+    String readDuringPull(String datastoreName, InMemoryCouchDB source, PullConfiguration config,
+                          boolean wal) throws Exception {
+        DatastoreExtended datastore = (DatastoreExtended) datastoreManager.openDatastore(datastoreName);
+        try {
+            if (wal) {
+                Assert.assertTrue(((SQLiteWrapper) datastore.getSQLDatabase()).enableWriteAheadLogging());
+            }
+            MutableDocumentRevision local = new MutableDocumentRevision();
+            local.body = DocumentBodyFactory.create(Collections.singletonMap("name", "local"));
+            String localId = datastore.createDocumentFromRevision(local).getId();
+
+            BasicPullStrategy strategy = source.createPullStrategy(datastore, config);
+            Thread pullThread = new Thread(strategy);
+
+            long reads = 0;
+            long totalNanos = 0;
+            long maxNanos = 0;
+            pullThread.start();
+            while (pullThread.isAlive()) {
+                long t0 = System.nanoTime();
+                Assert.assertNotNull(datastore.getDocument(localId));
+                long elapsed = System.nanoTime() - t0;
+                reads++;
+                totalNanos += elapsed;
+                maxNanos = Math.max(maxNanos, elapsed);
+            }
+            pullThread.join();
+
+            Assert.assertEquals(DOCUMENT_COUNT + 1, datastore.getDocumentCount());
+            return String.format("%d reads, mean %.2f ms, max %.2f ms", reads,
+                    totalNanos / 1e6 / Math.max(1, reads), maxNanos / 1e6);
+        } finally {
+            datastore.close();
+        }
+    }
+
+    /**
+     * Pulls every document in {@code source} into a new datastore.
+     *
+     * @return documents inserted per second
+     */
+    long pull(String datastoreName, InMemoryCouchDB source, PullConfiguration config) throws Exception {
+        DatastoreExtended datastore = (DatastoreExtended) datastoreManager.openDatastore(datastoreName);
+        try {
+            BasicPullStrategy strategy = source.createPullStrategy(datastore, config);
+            TestStrategyListener listener = new TestStrategyListener();
+            strategy.getEventBus().register(listener);
+
+            long t0 = System.currentTimeMillis();
+            strategy.run();
+            long t1 = System.currentTimeMillis();
+
+            Assert.assertTrue(listener.finishCalled);
+            Assert.assertFalse(listener.errorCalled);
+            Assert.assertEquals(DOCUMENT_COUNT, datastore.getDocumentCount());
+            return strategy.getDocumentCounter() * 1000L / Math.max(1, t1 - t0);
+        } finally {
+            datastore.close();
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/**
+ * Copyright (c) 2015 Cloudant, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.sqlite.sqlite4java;
+
+import com.almworks.sqlite4java.SQLiteConnection;
+import com.almworks.sqlite4java.SQLiteException;
+import com.almworks.sqlite4java.SQLiteStatement;
+
+import java.io.File;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * <p>A bounded pool of read-only connections to a database.</p>
+ *
+ * <p>sqlite4java connections can only be used by the thread which opened
+ * them, so each connection in the pool belongs to one of the pool's
+ * threads. Queries are run on the next free pool thread and their results
+ * read into a {@link SQLiteCursor} before being handed back to the calling
+ * thread.</p>
+ *
+ * <p>This is only useful when the database is in WAL journal mode, where
+ * readers see the last committed state of the database and don't wait
+ * for, or block, a writer.</p>
+ */
+class SQLiteReaderPool {
+
+    private static final Logger logger = Logger.getLogger(SQLiteReaderPool.class.getCanonicalName());
+
+    private final File databaseFile;
+    private final AtomicLong statementCacheHits;
+    private final AtomicLong statementCacheMisses;
+    private final ExecutorService executor;
+
+    private final ThreadLocal<SQLiteStatementCache> localStatementCache =
+            new ThreadLocal<SQLiteStatementCache>();
+
+    /**
+     * @param databaseFile file of the database to read
+     * @param size number of connections, and threads, in the pool
+     * @param statementCacheHits counter for statements reused by the pool's
+     *                           connections
+     * @param statementCacheMisses counter for statements prepared by the
+     *                             pool's connections
+     */
+    SQLiteReaderPool(File databaseFile, int size,
+                     AtomicLong statementCacheHits, AtomicLong statementCacheMisses) {
+        this.databaseFile = databaseFile;
+        this.statementCacheHits = statementCacheHits;
+        this.statementCacheMisses = statementCacheMisses;
+        this.executor = Executors.newFixedThreadPool(size, new ThreadFactory() {
+            private final AtomicInteger threadCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable r) {
+                Thread thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            r.run();
+                        } finally {
+                            closeConnection();
+                        }
+                    }
+                }, "SQLiteReaderPool-" + SQLiteReaderPool.this.databaseFile.getName() + "-" +
+                        threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Runs a query on one of the pool's connections.
+     *
+     * @return a cursor over all the rows of the result
+     */
+    SQLiteCursor query(final String sql, final Object[] bindArgs) throws SQLiteException {
+        try {
+            return executor.submit(new Callable<SQLiteCursor>() {
+                @Override
+                public SQLiteCursor call() throws Exception {
+                    SQLiteStatementCache statementCache = getStatementCache();
+                    SQLiteStatement stmt = statementCache.acquire(sql);
+                    try {
+                        return SQLiteWrapperUtils.buildSQLiteCursor(
+                                SQLiteWrapperUtils.bindArguments(stmt, bindArgs));
+                    } finally {
+                        statementCache.release(sql, stmt);
+                    }
+                }
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting for query: " + sql, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLiteException) {
+                throw (SQLiteException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else {
+                throw new IllegalStateException("Failed to run query: " + sql, cause);
+            }
+        }
+    }
+
+    /**
+     * Closes all the pool's connections once any running queries have
+     * finished. No more queries may be run.
+     */
+    void close() {
+        executor.shutdown();
+    }
+
+    /**
+     * Returns the statement cache of the current pool thread's connection,
+     * opening the connection if needed.
+     */
+    private SQLiteStatementCache getStatementCache() throws SQLiteException {
+        SQLiteStatementCache statementCache = localStatementCache.get();
+        if (statementCache == null) {
+            SQLiteConnection conn = new SQLiteConnection(databaseFile);
+            conn.openReadonly();
+            conn.setBusyTimeout(30 * 1000);
+            statementCache = new SQLiteStatementCache(conn, SQLiteWrapper.STATEMENT_CACHE_SIZE,
+                    statementCacheHits, statementCacheMisses);
+            localStatementCache.set(statementCache);
+        }
+        return statementCache;
+    }
+
+    private void closeConnection() {
+        SQLiteStatementCache statementCache = localStatementCache.get();
+        if (statementCache != null) {
+            statementCache.clear();
+            try {
+                statementCache.getConnection().dispose();
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Failed to close reader connection", e);
+            }
+            localStatementCache.remove();
+        }
+    }
+}
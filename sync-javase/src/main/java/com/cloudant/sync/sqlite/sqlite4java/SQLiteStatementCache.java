@@ -0,0 +1,123 @@
+/**
+ * Copyright (c) 2015 Cloudant, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.sqlite.sqlite4java;
+
+import com.almworks.sqlite4java.SQLiteConnection;
+import com.almworks.sqlite4java.SQLiteException;
+import com.almworks.sqlite4java.SQLiteStatement;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>A least-recently-used cache of compiled statements for a single
+ * {@link SQLiteConnection}, keyed by SQL text.</p>
+ *
+ * <p>A statement is taken out of the cache by {@link #acquire(String)} and
+ * put back, reset and with its bindings cleared, by
+ * {@link #release(String, SQLiteStatement)}. While a statement is in use it
+ * isn't in the cache, so running the same SQL again before it is released
+ * (for example, from inside a loop over its results) prepares a second
+ * statement rather than sharing the first.</p>
+ *
+ * <p>Like the connection itself, a cache must only be used by the thread
+ * which opened the connection.</p>
+ */
+class SQLiteStatementCache {
+
+    private final SQLiteConnection connection;
+    private final AtomicLong hits;
+    private final AtomicLong misses;
+    private final Map<String, SQLiteStatement> statements;
+
+    /**
+     * @param connection connection to prepare statements on
+     * @param capacity maximum number of idle statements to keep; the least
+     *                 recently used statement is disposed when it is exceeded
+     * @param hits counter incremented when a cached statement is reused
+     * @param misses counter incremented when a statement has to be prepared
+     */
+    SQLiteStatementCache(SQLiteConnection connection, final int capacity,
+                         AtomicLong hits, AtomicLong misses) {
+        this.connection = connection;
+        this.hits = hits;
+        this.misses = misses;
+        this.statements = new LinkedHashMap<String, SQLiteStatement>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, SQLiteStatement> eldest) {
+                if (size() > capacity) {
+                    SQLiteWrapperUtils.disposeQuietly(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Returns a statement for {@code sql}, ready to be bound, reusing a
+     * cached statement if there is one.
+     */
+    SQLiteStatement acquire(String sql) throws SQLiteException {
+        SQLiteStatement stmt = statements.remove(sql);
+        if (stmt != null && !stmt.isDisposed()) {
+            hits.incrementAndGet();
+            return stmt;
+        }
+        misses.incrementAndGet();
+        // sqlite4java's own statement cache is bypassed, as it's unbounded
+        return connection.prepare(sql, false);
+    }
+
+    /**
+     * Resets {@code stmt} and returns it to the cache. Statements which
+     * can't be reset are disposed instead.
+     */
+    void release(String sql, SQLiteStatement stmt) {
+        if (stmt == null || stmt.isDisposed()) {
+            return;
+        }
+        try {
+            stmt.reset(true);
+        } catch (SQLiteException e) {
+            SQLiteWrapperUtils.disposeQuietly(stmt);
+            return;
+        }
+        SQLiteStatement previous = statements.put(sql, stmt);
+        if (previous != null && previous != stmt) {
+            SQLiteWrapperUtils.disposeQuietly(previous);
+        }
+    }
+
+    SQLiteConnection getConnection() {
+        return connection;
+    }
+
+    int size() {
+        return statements.size();
+    }
+
+    /**
+     * Disposes all cached statements.
+     */
+    void clear() {
+        for (SQLiteStatement stmt : new ArrayList<SQLiteStatement>(statements.values())) {
+            SQLiteWrapperUtils.disposeQuietly(stmt);
+        }
+        statements.clear();
+    }
+}
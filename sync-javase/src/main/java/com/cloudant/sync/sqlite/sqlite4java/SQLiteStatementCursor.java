@@ -0,0 +1,217 @@
+/**
+ * Copyright (c) 2015 Cloudant, Inc. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language governing permissions
+ * and limitations under the License.
+ */
+
+package com.cloudant.sync.sqlite.sqlite4java;
+
+import com.almworks.sqlite4java.SQLiteException;
+import com.almworks.sqlite4java.SQLiteStatement;
+import com.cloudant.sync.sqlite.Cursor;
+
+/**
+ * <p>A forward-only cursor which reads rows straight from a live
+ * {@link SQLiteStatement}, stepping it on each {@link #moveToNext()}, so
+ * only the current row is held in memory.</p>
+ *
+ * <p>The statement is returned to its connection's statement cache as soon
+ * as the last row has been read, or when the cursor is closed. As the
+ * statement belongs to a thread's connection, the cursor must be used and
+ * closed on the thread which created it.</p>
+ *
+ * <p>The cursor can't be moved back: {@link #moveToFirst()} is only
+ * supported before the cursor has moved past the first row, and
+ * {@link #getCount()} is not supported, as the number of rows isn't known
+ * until they've all been read.</p>
+ */
+class SQLiteStatementCursor implements Cursor {
+
+    private final SQLiteStatementCache statementCache;
+    private final String sql;
+    private SQLiteStatement stmt;
+
+    private int position = -1;
+    private boolean afterLast = false;
+
+    /**
+     * @param statementCache cache {@code stmt} was acquired from, and is
+     *                       released to
+     * @param sql the SQL {@code stmt} was prepared from
+     * @param stmt bound statement, which hasn't been stepped yet
+     */
+    SQLiteStatementCursor(SQLiteStatementCache statementCache, String sql, SQLiteStatement stmt) {
+        this.statementCache = statementCache;
+        this.sql = sql;
+        this.stmt = stmt;
+    }
+
+    @Override
+    public int getCount() {
+        throw new UnsupportedOperationException("The number of rows of a forward-only cursor " +
+                "is not known");
+    }
+
+    @Override
+    public int getColumnCount() {
+        try {
+            return statement().columnCount();
+        } catch (SQLiteException e) {
+            throw new IllegalStateException("Failed to read column count", e);
+        }
+    }
+
+    @Override
+    public int columnType(int index) {
+        try {
+            return SQLiteWrapperUtils.mapColumnType(currentRow().columnType(index));
+        } catch (SQLiteException e) {
+            throw new IllegalStateException("Failed to read type of column " + index, e);
+        }
+    }
+
+    @Override
+    public String columnName(int index) {
+        try {
+            return statement().getColumnName(index);
+        } catch (SQLiteException e) {
+            throw new IllegalStateException("Failed to read name of column " + index, e);
+        }
+    }
+
+    @Override
+    public boolean moveToFirst() {
+        if (position > 0) {
+            throw new UnsupportedOperationException("A forward-only cursor can't be moved " +
+                    "back to the first row");
+        }
+        return position == 0 ? !afterLast : moveToNext();
+    }
+
+    @Override
+    public String getString(int index) {
+        try {
+            return currentRow().columnString(index);
+        } catch (SQLiteException e) {
+            throw new IllegalStateException("Failed to read column " + index, e);
+        }
+    }
+
+    @Override
+    public int getInt(int index) {
+        try {
+            return currentRow().columnInt(index);
+        } catch (SQLiteException e) {
+            throw new IllegalStateException("Failed to read column " + index, e);
+        }
+    }
+
+    @Override
+    public long getLong(int index) {
+        try {
+            return currentRow().columnLong(index);
+        } catch (SQLiteException e) {
+            throw new IllegalStateException("Failed to read column " + index, e);
+        }
+    }
+
+    @Override
+    public float getFloat(int index) {
+        try {
+            return (float) currentRow().columnDouble(index);
+        } catch (SQLiteException e) {
+            throw new IllegalStateException("Failed to read column " + index, e);
+        }
+    }
+
+    @Override
+    public byte[] getBlob(int index) {
+        try {
+            return currentRow().columnBlob(index);
+        } catch (SQLiteException e) {
+            throw new IllegalStateException("Failed to read column " + index, e);
+        }
+    }
+
+    @Override
+    public boolean isAfterLast() {
+        return afterLast;
+    }
+
+    @Override
+    public boolean moveToNext() {
+        if (afterLast) {
+            return false;
+        }
+        try {
+            position++;
+            if (statement().step()) {
+                return true;
+            }
+        } catch (SQLiteException e) {
+            close();
+            throw new IllegalStateException("Failed to read next row", e);
+        }
+        // Free the statement as soon as possible, rather than when the
+        // caller gets round to closing the cursor
+        afterLast = true;
+        close();
+        return false;
+    }
+
+    @Override
+    public void close() {
+        if (stmt != null) {
+            statementCache.release(sql, stmt);
+            stmt = null;
+        }
+        afterLast = true;
+    }
+
+    @Override
+    public int getColumnIndex(String columnName) {
+        for (int i = 0; i < getColumnCount(); i++) {
+            if (columnName(i).equals(columnName)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public int getColumnIndexOrThrow(String columnName) throws IllegalArgumentException {
+        int i = getColumnIndex(columnName);
+        if (i < 0) {
+            throw new IllegalArgumentException("Can not find column: " + columnName);
+        } else {
+            return i;
+        }
+    }
+
+    private SQLiteStatement statement() {
+        if (stmt == null) {
+            throw new IllegalStateException("Cursor is closed");
+        }
+        return stmt;
+    }
+
+    private SQLiteStatement currentRow() {
+        if (position < 0 || afterLast) {
+            throw new IllegalStateException("Cursor is not positioned on a row");
+        }
+        return statement();
+    }
+
+    @Override
+    public String toString() {
+        return "SQLiteStatementCursor: position " + position + ", sql " + sql;
+    }
+}
@@ -18,6 +18,7 @@ import com.almworks.sqlite4java.SQLiteConnection;
 import com.almworks.sqlite4java.SQLiteException;
 import com.almworks.sqlite4java.SQLiteStatement;
 import com.cloudant.sync.sqlite.ContentValues;
+import com.cloudant.sync.sqlite.Cursor;
 import com.cloudant.sync.sqlite.SQLDatabase;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
@@ -25,6 +26,7 @@ import com.google.common.base.Strings;
 import java.io.File;
 import java.sql.SQLException;
 import java.util.Stack;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -46,10 +48,53 @@ public class SQLiteWrapper extends SQLDatabase {
     private static final String[] CONFLICT_VALUES = new String[]
             {"", " OR ROLLBACK ", " OR ABORT ", " OR FAIL ", " OR IGNORE ", " OR REPLACE "};
 
+    /**
+     * Number of compiled statements cached for each connection.
+     */
+    static final int STATEMENT_CACHE_SIZE = 64;
+
+    /**
+     * Number of read-only connections used by {@link #enableWriteAheadLogging()}.
+     */
+    public static final int DEFAULT_READER_POOL_SIZE = 4;
+
+    /**
+     * Values for SQLite's {@code synchronous} setting, which controls how
+     * often SQLite waits for data to reach the disk.
+     *
+     * <p>In WAL mode, {@code NORMAL} is safe from corruption, but the last
+     * transactions committed before a power failure may be lost.</p>
+     *
+     * @see <a href="https://www.sqlite.org/pragma.html#pragma_synchronous">PRAGMA synchronous</a>
+     */
+    public enum Synchronous {
+        OFF, NORMAL, FULL
+    }
+
     private final String databaseFilePath;
 
     private ThreadLocal<SQLiteConnection> localConnection = new ThreadLocal<SQLiteConnection>();
 
+    /**
+     * Compiled statements for the connection in {@link #localConnection}.
+     */
+    private ThreadLocal<SQLiteStatementCache> localStatementCache = new ThreadLocal<SQLiteStatementCache>();
+
+    private final AtomicLong statementCacheHits = new AtomicLong();
+    private final AtomicLong statementCacheMisses = new AtomicLong();
+
+    /**
+     * The {@code synchronous} setting for new connections, or null to
+     * leave SQLite's default.
+     */
+    private volatile Synchronous synchronous = null;
+
+    /**
+     * Read-only connections used by {@link #rawQuery(String, String[])}
+     * outside transactions once WAL is enabled, otherwise null.
+     */
+    private volatile SQLiteReaderPool readerPool = null;
+
     /**
      * Tracks whether the current nested set of transactions has had any
      * failed transactions so far.
@@ -97,11 +142,39 @@ public class SQLiteWrapper extends SQLDatabase {
         return localConnection.get();
     }
 
+    SQLiteStatementCache getStatementCache() {
+        SQLiteConnection conn = getConnection();
+        if (localStatementCache.get() == null) {
+            localStatementCache.set(new SQLiteStatementCache(conn, STATEMENT_CACHE_SIZE,
+                    statementCacheHits, statementCacheMisses));
+        }
+        return localStatementCache.get();
+    }
+
+    /**
+     * Returns the number of times a compiled statement was reused from the
+     * statement cache, across all connections.
+     */
+    public long getStatementCacheHits() {
+        return statementCacheHits.get();
+    }
+
+    /**
+     * Returns the number of times a statement had to be compiled because
+     * it wasn't in the statement cache, across all connections.
+     */
+    public long getStatementCacheMisses() {
+        return statementCacheMisses.get();
+    }
+
     SQLiteConnection createNewConnection() {
         try {
             SQLiteConnection conn = new SQLiteConnection(new File(this.databaseFilePath));
             conn.open();
             conn.setBusyTimeout(30*1000);
+            if (synchronous != null) {
+                conn.exec("PRAGMA synchronous = " + synchronous.name() + ";");
+            }
             return conn;
         } catch (SQLiteException ex) {
             throw new IllegalStateException("Failed to open database.", ex);
@@ -112,6 +185,75 @@ public class SQLiteWrapper extends SQLDatabase {
     public void open() {
     }
 
+    /**
+     * Enables WAL journal mode, with {@code synchronous} set to
+     * {@code NORMAL} and a pool of {@link #DEFAULT_READER_POOL_SIZE}
+     * read-only connections.
+     *
+     * @see #enableWriteAheadLogging(Synchronous, int)
+     */
+    public boolean enableWriteAheadLogging() {
+        return enableWriteAheadLogging(Synchronous.NORMAL, DEFAULT_READER_POOL_SIZE);
+    }
+
+    /**
+     * <p>Switches the database to WAL journal mode. In WAL mode, reading
+     * threads see the last committed state of the database and aren't
+     * blocked by a transaction in progress on another thread, such as a
+     * pull replication writing documents.</p>
+     *
+     * <p>Once enabled, {@link #rawQuery(String, String[])} calls made outside
+     * a transaction are run on a bounded pool of read-only connections,
+     * rather than the calling thread's connection. Queries inside a
+     * transaction still use the calling thread's connection, so they see the
+     * transaction's own changes.</p>
+     *
+     * <p>WAL mode is a property of the database file, so it stays enabled
+     * when the database is next opened. This should be called straight
+     * after the database is opened, as the {@code synchronous} setting
+     * only applies to connections opened afterwards, and the calling
+     * thread's.</p>
+     *
+     * @param synchronous {@code synchronous} setting for connections which
+     *                    write to the database
+     * @param readerPoolSize number of read-only connections, or 0 to keep
+     *                       reading from each thread's own connection
+     * @return true if the database is in WAL mode, false if the database
+     *         doesn't support it (for example, an in-memory database)
+     */
+    public boolean enableWriteAheadLogging(Synchronous synchronous, int readerPoolSize) {
+        Preconditions.checkNotNull(synchronous, "synchronous can not be null");
+        Preconditions.checkArgument(readerPoolSize >= 0, "readerPoolSize must be >= 0");
+        Preconditions.checkState(this.transactionStack.get().isEmpty(),
+                "WAL can not be enabled inside a transaction");
+        try {
+            SQLiteStatement stmt = getConnection().prepare("PRAGMA journal_mode = WAL;", false);
+            String mode;
+            try {
+                mode = stmt.step() ? stmt.columnString(0) : null;
+            } finally {
+                SQLiteWrapperUtils.disposeQuietly(stmt);
+            }
+            if (!"wal".equalsIgnoreCase(mode)) {
+                logger.warning(String.format("Could not enable WAL for %s, journal mode is %s",
+                        databaseFilePath, mode));
+                return false;
+            }
+            this.synchronous = synchronous;
+            getConnection().exec("PRAGMA synchronous = " + synchronous.name() + ";");
+        } catch (SQLiteException e) {
+            throw new IllegalStateException("Failed to enable WAL for " + databaseFilePath, e);
+        }
+
+        synchronized (this) {
+            if (readerPool == null && readerPoolSize > 0) {
+                readerPool = new SQLiteReaderPool(new File(databaseFilePath), readerPoolSize,
+                        statementCacheHits, statementCacheMisses);
+            }
+        }
+        return true;
+    }
+
     @Override
     public void compactDatabase() {
         try {
@@ -212,9 +354,19 @@ public class SQLiteWrapper extends SQLDatabase {
 
     @Override
     public void close() {
+        synchronized (this) {
+            if (readerPool != null) {
+                readerPool.close();
+                readerPool = null;
+            }
+        }
         // it's not possible to call dispose from other threads
         // so the best we can do is call dispose on the connection
         // for the same thread as us
+        SQLiteStatementCache statementCache = localStatementCache.get();
+        if (statementCache != null) {
+            statementCache.clear();
+        }
         SQLiteConnection conn = localConnection.get();
         if (conn != null && !conn.isDisposed()) {
             conn.dispose();
@@ -236,16 +388,10 @@ public class SQLiteWrapper extends SQLDatabase {
     public void execSQL(String sql, Object[] bindArgs) throws SQLException {
         Preconditions.checkArgument(!Strings.isNullOrEmpty(sql.trim()),
                 "Input SQL can not be empty String.");
-        SQLiteStatement stmt = null;
         try {
-            stmt = this.getConnection().prepare(sql);
-            stmt = SQLiteWrapperUtils.bindArguments(stmt, bindArgs);
-            while (stmt.step()) {
-            }
+            this.executeSQLStatement(sql, bindArgs);
         } catch (SQLiteException e) {
             throw new SQLException(e);
-        } finally {
-            SQLiteWrapperUtils.disposeQuietly(stmt);
         }
     }
 
@@ -270,9 +416,44 @@ public class SQLiteWrapper extends SQLDatabase {
     @Override
     public SQLiteCursor rawQuery(String sql, String[] bindArgs) throws SQLException {
         try {
-            return SQLiteWrapperUtils.buildSQLiteCursor(getConnection(), sql, bindArgs);
+            // The thread's own connection has to be used in a transaction,
+            // where the query has to see the transaction's changes
+            SQLiteReaderPool pool = readerPool;
+            if (pool != null && this.transactionStack.get().isEmpty()) {
+                return pool.query(sql, bindArgs);
+            }
+
+            SQLiteStatementCache statementCache = getStatementCache();
+            SQLiteStatement stmt = statementCache.acquire(sql);
+            try {
+                return SQLiteWrapperUtils.buildSQLiteCursor(
+                        SQLiteWrapperUtils.bindArguments(stmt, bindArgs));
+            } finally {
+                statementCache.release(sql, stmt);
+            }
+        } catch (SQLiteException e) {
+            throw new SQLException(e);
+        }
+    }
+
+    /**
+     * Returns a cursor which steps the statement as it's moved, rather than
+     * reading every row up front, so only one row is held in memory at a time.
+     */
+    @Override
+    public Cursor rawQueryForwardOnly(String sql, String[] bindArgs) throws SQLException {
+        SQLiteStatementCache statementCache = getStatementCache();
+        SQLiteStatement stmt = null;
+        try {
+            stmt = statementCache.acquire(sql);
+            return new SQLiteStatementCursor(statementCache, sql,
+                    SQLiteWrapperUtils.bindArguments(stmt, bindArgs));
         } catch (SQLiteException e) {
+            statementCache.release(sql, stmt);
             throw new SQLException(e);
+        } catch (RuntimeException e) {
+            statementCache.release(sql, stmt);
+            throw e;
         }
     }
 
@@ -338,9 +519,14 @@ public class SQLiteWrapper extends SQLDatabase {
     }
 
     private void executeSQLStatement(String sql, Object[] values) throws SQLiteException{
-        SQLiteStatement stmt = getConnection().prepare(sql);
-        stmt = SQLiteWrapperUtils.bindArguments(stmt, values);
-        while (stmt.step()) {
+        SQLiteStatementCache statementCache = getStatementCache();
+        SQLiteStatement stmt = statementCache.acquire(sql);
+        try {
+            stmt = SQLiteWrapperUtils.bindArguments(stmt, values);
+            while (stmt.step()) {
+            }
+        } finally {
+            statementCache.release(sql, stmt);
         }
     }
 }
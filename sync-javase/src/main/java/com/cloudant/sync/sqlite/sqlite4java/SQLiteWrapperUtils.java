@@ -135,26 +135,34 @@ public class SQLiteWrapperUtils {
         SQLiteStatement stmt = null;
         try {
             stmt = bindArguments(conn.prepare(sql), bindArgs);
-            List<String> columnNames = null;
-            List<Tuple> resultSet = new ArrayList<Tuple>();
-            while (!stmt.hasStepped() || stmt.hasRow()) {
-                if (!stmt.step()) {
-                    break;
-                }
-                if (columnNames == null) {
-                    columnNames = getColumnNames(stmt);
-                }
-
-                Tuple t = getDataRow(stmt);
-                logger.finest("Tuple: "+ t.toString());
-                resultSet.add(t);
-            }
-            return new SQLiteCursor(columnNames, resultSet);
+            return buildSQLiteCursor(stmt);
         } finally {
             SQLiteWrapperUtils.disposeQuietly(stmt);
         }
     }
 
+    /**
+     * Steps through all the rows of a prepared and bound statement, returning
+     * them as a cursor. The statement isn't reset or disposed.
+     */
+    static SQLiteCursor buildSQLiteCursor(SQLiteStatement stmt) throws SQLiteException {
+        List<String> columnNames = null;
+        List<Tuple> resultSet = new ArrayList<Tuple>();
+        while (!stmt.hasStepped() || stmt.hasRow()) {
+            if (!stmt.step()) {
+                break;
+            }
+            if (columnNames == null) {
+                columnNames = getColumnNames(stmt);
+            }
+
+            Tuple t = getDataRow(stmt);
+            logger.finest("Tuple: "+ t.toString());
+            resultSet.add(t);
+        }
+        return new SQLiteCursor(columnNames, resultSet);
+    }
+
     static Tuple getDataRow(SQLiteStatement stmt) throws SQLiteException {
         logger.entering("com.cloudant.sync.sqlite.sqlite4java.SQLiteWrapperUtils","getDataRow",stmt);
         Tuple result = new Tuple(getColumnTypes(stmt));
@@ -16,6 +16,7 @@ package com.cloudant.sync.sqlite.sqlite4java;
 
 import com.almworks.sqlite4java.SQLiteConnection;
 import com.almworks.sqlite4java.SQLiteException;
+import com.almworks.sqlite4java.SQLiteStatement;
 import com.cloudant.sync.sqlite.ContentValues;
 import com.cloudant.sync.sqlite.Cursor;
 import com.cloudant.sync.sqlite.SQLDatabase;
@@ -30,6 +31,7 @@ import org.junit.Test;
 
 import java.sql.SQLException;
 import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class SQLiteWrapperTest {
 
@@ -505,6 +507,266 @@ public class SQLiteWrapperTest {
         Assert.assertEquals(4, cursor.getCount());
     }
 
+    @Test
+    public void rawQuery_sameSqlTwice_statementReusedWithNewArguments() throws Exception {
+        prepareDatabaseForTesting();
+        String sql = "SELECT doc_id FROM docs WHERE doc_name = ? ORDER BY doc_id";
+        long hits = database.getStatementCacheHits();
+        long misses = database.getStatementCacheMisses();
+
+        SQLiteCursor cursor = database.rawQuery(sql, new String[]{"haha"});
+        Assert.assertEquals(2, cursor.getCount());
+        Assert.assertEquals(misses + 1, database.getStatementCacheMisses());
+
+        cursor = database.rawQuery(sql, new String[]{"hihi"});
+        Assert.assertEquals(1, cursor.getCount());
+        Assert.assertTrue(cursor.moveToFirst());
+        Assert.assertEquals(3, cursor.getInt(0));
+        Assert.assertEquals(hits + 1, database.getStatementCacheHits());
+        Assert.assertEquals(misses + 1, database.getStatementCacheMisses());
+    }
+
+    @Test
+    public void execSQL_sameSqlTwice_statementReused() throws Exception {
+        prepareDatabaseForTesting();
+        long hits = database.getStatementCacheHits();
+        database.execSQL(insert_into_docs, new Object[]{5, "hoho", "", "1.0", null});
+        database.execSQL(insert_into_docs, new Object[]{6, "hoho", "", "1.0", null});
+        // the statement was already cached by prepareDatabaseForTesting
+        Assert.assertEquals(hits + 2, database.getStatementCacheHits());
+        Assert.assertEquals(2, database.rawQuery("SELECT * FROM docs WHERE doc_name = ?",
+                new String[]{"hoho"}).getCount());
+    }
+
+    @Test
+    public void execSQL_failedStatement_statementStillReusable() throws Exception {
+        prepareDatabaseForTesting();
+        try {
+            // doc_id 1 already exists
+            database.execSQL(insert_into_docs, new Object[]{1, "hoho", "", "1.0", null});
+            Assert.fail("Expected SQLException");
+        } catch (SQLException e) {
+            // expected
+        }
+        database.execSQL(insert_into_docs, new Object[]{5, "hoho", "", "1.0", null});
+        Assert.assertEquals(5, database.rawQuery("SELECT * FROM docs", null).getCount());
+    }
+
+    @Test
+    public void statementCache_statementInUse_secondStatementPrepared() throws Exception {
+        prepareDatabaseForTesting();
+        SQLiteStatementCache cache = database.getStatementCache();
+        String sql = "SELECT doc_id FROM docs";
+
+        SQLiteStatement first = cache.acquire(sql);
+        SQLiteStatement second = cache.acquire(sql);
+        Assert.assertNotSame(first, second);
+        Assert.assertTrue(first.step());
+        Assert.assertTrue(second.step());
+
+        cache.release(sql, first);
+        cache.release(sql, second);
+        // only one statement per SQL is kept
+        Assert.assertTrue(first.isDisposed());
+        Assert.assertSame(second, cache.acquire(sql));
+        Assert.assertFalse(second.hasStepped());
+    }
+
+    @Test
+    public void statementCache_overCapacity_leastRecentlyUsedDisposed() throws Exception {
+        prepareDatabaseForTesting();
+        SQLiteStatementCache cache = new SQLiteStatementCache(conn, 2,
+                new AtomicLong(), new AtomicLong());
+        String[] sql = {"SELECT 1", "SELECT 2", "SELECT 3"};
+        SQLiteStatement[] stmts = new SQLiteStatement[3];
+        for (int i = 0; i < 2; i++) {
+            stmts[i] = cache.acquire(sql[i]);
+            cache.release(sql[i], stmts[i]);
+        }
+        // use "SELECT 1" again, so "SELECT 2" is the least recently used
+        cache.release(sql[0], cache.acquire(sql[0]));
+        stmts[2] = cache.acquire(sql[2]);
+        cache.release(sql[2], stmts[2]);
+
+        Assert.assertEquals(2, cache.size());
+        Assert.assertFalse(stmts[0].isDisposed());
+        Assert.assertTrue(stmts[1].isDisposed());
+        Assert.assertFalse(stmts[2].isDisposed());
+
+        cache.clear();
+        Assert.assertEquals(0, cache.size());
+        Assert.assertTrue(stmts[0].isDisposed());
+    }
+
+    @Test
+    public void rawQueryForwardOnly() throws Exception {
+        prepareDatabaseForTesting();
+
+        Cursor cursor = database.rawQueryForwardOnly(
+                "SELECT * FROM docs WHERE doc_name = ? ORDER BY doc_id", new String[]{"haha"});
+        try {
+            Assert.assertFalse(cursor.isAfterLast());
+            Assert.assertEquals(5, cursor.getColumnCount());
+            Assert.assertEquals("doc_name", cursor.columnName(1));
+
+            Assert.assertTrue(cursor.moveToNext());
+            Assert.assertEquals(Cursor.FIELD_TYPE_INTEGER, cursor.columnType(0));
+            Assert.assertEquals(Cursor.FIELD_TYPE_STRING, cursor.columnType(1));
+            Assert.assertEquals(1, cursor.getInt(0));
+            Assert.assertEquals("haha", cursor.getString(1));
+            Assert.assertEquals(1990.001f, cursor.getFloat(3), 0.000001f);
+            Assert.assertTrue(Arrays.equals("this is a blob".getBytes(), cursor.getBlob(4)));
+
+            Assert.assertTrue(cursor.moveToNext());
+            Assert.assertEquals(2, cursor.getLong(0));
+            Assert.assertTrue(Strings.isNullOrEmpty(cursor.getString(2)));
+
+            Assert.assertFalse(cursor.moveToNext());
+            Assert.assertTrue(cursor.isAfterLast());
+            Assert.assertFalse(cursor.moveToNext());
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void rawQueryForwardOnly_moveToFirst() throws Exception {
+        prepareDatabaseForTesting();
+
+        Cursor cursor = database.rawQueryForwardOnly("SELECT doc_id FROM docs ORDER BY doc_id", null);
+        try {
+            Assert.assertTrue(cursor.moveToFirst());
+            // still on the first row
+            Assert.assertTrue(cursor.moveToFirst());
+            Assert.assertEquals(1, cursor.getInt(0));
+            Assert.assertTrue(cursor.moveToNext());
+            try {
+                cursor.moveToFirst();
+                Assert.fail("Expected UnsupportedOperationException");
+            } catch (UnsupportedOperationException e) {
+                // expected
+            }
+        } finally {
+            cursor.close();
+        }
+
+        cursor = database.rawQueryForwardOnly("SELECT doc_id FROM docs WHERE doc_id > 100", null);
+        try {
+            Assert.assertFalse(cursor.moveToFirst());
+            Assert.assertFalse(cursor.moveToFirst());
+            Assert.assertTrue(cursor.isAfterLast());
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void rawQueryForwardOnly_statementReleasedWhenExhaustedOrClosed() throws Exception {
+        prepareDatabaseForTesting();
+        String sql = "SELECT doc_id FROM docs";
+
+        Cursor cursor = database.rawQueryForwardOnly(sql, null);
+        while (cursor.moveToNext()) {
+        }
+        long hits = database.getStatementCacheHits();
+        // the statement went back to the cache without the cursor being closed
+        cursor = database.rawQueryForwardOnly(sql, null);
+        Assert.assertEquals(hits + 1, database.getStatementCacheHits());
+
+        Assert.assertTrue(cursor.moveToNext());
+        cursor.close();
+        Assert.assertTrue(cursor.isAfterLast());
+        Assert.assertFalse(cursor.moveToNext());
+
+        // the closed cursor's statement is reset when it's reused
+        cursor = database.rawQueryForwardOnly(sql, null);
+        int count = 0;
+        while (cursor.moveToNext()) {
+            count++;
+        }
+        cursor.close();
+        Assert.assertEquals(4, count);
+        Assert.assertEquals(hits + 2, database.getStatementCacheHits());
+    }
+
+    @Test
+    public void rawQueryForwardOnly_sameSqlWhileIterating() throws Exception {
+        prepareDatabaseForTesting();
+        String sql = "SELECT doc_id FROM docs WHERE doc_id >= ? ORDER BY doc_id";
+
+        Cursor outer = database.rawQueryForwardOnly(sql, new String[]{"1"});
+        int pairs = 0;
+        while (outer.moveToNext()) {
+            Cursor inner = database.rawQueryForwardOnly(sql,
+                    new String[]{Integer.toString(outer.getInt(0))});
+            while (inner.moveToNext()) {
+                pairs++;
+            }
+            inner.close();
+        }
+        outer.close();
+        Assert.assertEquals(4 + 3 + 2 + 1, pairs);
+    }
+
+    @Test
+    public void enableWriteAheadLogging_journalModeIsWal() throws Exception {
+        Assert.assertTrue(database.enableWriteAheadLogging(SQLiteWrapper.Synchronous.NORMAL, 2));
+        SQLiteCursor cursor = database.rawQuery("PRAGMA journal_mode", null);
+        Assert.assertTrue(cursor.moveToFirst());
+        Assert.assertEquals("wal", cursor.getString(0));
+        // NORMAL is 1
+        Assert.assertEquals(1, SQLiteWrapperUtils.intForQuery(conn, "PRAGMA synchronous", null));
+    }
+
+    @Test
+    public void enableWriteAheadLogging_readNotBlockedByWriteTransaction() throws Exception {
+        prepareDatabaseForTesting();
+        Assert.assertTrue(database.enableWriteAheadLogging(SQLiteWrapper.Synchronous.NORMAL, 2));
+
+        database.beginTransaction();
+        try {
+            database.execSQL(insert_into_docs, new Object[]{5, "hoho", "", "1.0", null});
+            // in the transaction, its changes are visible
+            Assert.assertEquals(5, database.rawQuery("SELECT * FROM docs", null).getCount());
+
+            // another thread reads the last committed state without waiting
+            // for the transaction to finish
+            final int[] count = new int[]{-1};
+            Thread reader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        count[0] = database.rawQuery("SELECT * FROM docs", null).getCount();
+                    } catch (SQLException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+            reader.start();
+            reader.join(5000);
+            Assert.assertFalse(reader.isAlive());
+            Assert.assertEquals(4, count[0]);
+
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+
+        // outside the transaction the query is run by the reader pool
+        Assert.assertEquals(5, database.rawQuery("SELECT * FROM docs", null).getCount());
+    }
+
+    @Test
+    public void enableWriteAheadLogging_queryErrorFromPool() throws Exception {
+        Assert.assertTrue(database.enableWriteAheadLogging());
+        try {
+            database.rawQuery("SELECT * FROM no_such_table", null);
+            Assert.fail("Expected SQLException");
+        } catch (SQLException e) {
+            // expected
+        }
+    }
+
     @Test
     public void delete() {
         prepareDatabaseForTesting();